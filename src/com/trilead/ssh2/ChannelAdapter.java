@@ -0,0 +1,32 @@
+package com.trilead.ssh2;
+
+/**
+ * A {@link ChannelListener} that ignores all notifications. Extend it and
+ * override the methods you are interested in.
+ */
+public class ChannelAdapter implements ChannelListener
+{
+	public void dataAvailable(boolean stderr)
+	{
+	}
+
+	public void eof()
+	{
+	}
+
+	public void exitStatus(int status)
+	{
+	}
+
+	public void exitSignal(String signal)
+	{
+	}
+
+	public void windowOpened()
+	{
+	}
+
+	public void closed(Throwable reason)
+	{
+	}
+}
@@ -0,0 +1,61 @@
+package com.trilead.ssh2;
+
+/**
+ * A <code>ChannelListener</code> gets notified about state changes of a
+ * channel (e.g., a {@link Session}), so that no thread has to wait in
+ * {@link Session#waitForCondition(int, long)}. See
+ * {@link Session#addChannelListener(ChannelListener, java.util.concurrent.Executor)}.
+ * <p>
+ * Without an executor, the methods are invoked by the receive thread of the
+ * connection (or, for {@link #closed(Throwable)}, by the thread that closes
+ * the channel). They must return quickly and MUST NOT wait for anything that
+ * needs the receive thread, e.g., sending data on or reading from any
+ * channel of the connection. With an executor, the notifications of one
+ * listener are delivered in order, one at a time.
+ * <p>
+ * {@link ChannelAdapter} implements all methods with empty bodies.
+ */
+public interface ChannelListener
+{
+	/**
+	 * New data can be read from stdout (or stderr). Consecutive notifications
+	 * may be merged, and a notification may arrive after the data has already
+	 * been read.
+	 *
+	 * @param stderr true for stderr, false for stdout
+	 */
+	public void dataAvailable(boolean stderr);
+
+	/**
+	 * The server will not send any more data. Buffered data can still be read.
+	 */
+	public void eof();
+
+	/**
+	 * The server reported the exit status of the remote command.
+	 *
+	 * @param status the exit status
+	 */
+	public void exitStatus(int status);
+
+	/**
+	 * The server reported that the remote command was killed by a signal.
+	 *
+	 * @param signal the name of the signal, without "SIG"
+	 */
+	public void exitSignal(String signal);
+
+	/**
+	 * The server granted more window, i.e., more data may be written without
+	 * blocking.
+	 */
+	public void windowOpened();
+
+	/**
+	 * The channel has been closed. This is the last notification; it implies
+	 * {@link #eof()}, which may not have been reported separately.
+	 *
+	 * @param reason why the channel was closed, may be null
+	 */
+	public void closed(Throwable reason);
+}
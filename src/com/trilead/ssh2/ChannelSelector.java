@@ -0,0 +1,354 @@
+package com.trilead.ssh2;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * A <code>ChannelSelector</code> waits for conditions (see
+ * {@link ChannelCondition}) on many sessions at once, similar to
+ * {@link java.nio.channels.Selector}. One thread can thus serve any number of
+ * sessions, without polling:
+ *
+ * <pre>
+ * ChannelSelector selector = new ChannelSelector();
+ * selector.register(sess, ChannelCondition.STDOUT_DATA | ChannelCondition.EXIT_STATUS, job);
+ *
+ * while (true)
+ * {
+ * 	selector.select(0);
+ * 	Iterator&lt;ChannelSelector.Key&gt; it = selector.selectedKeys().iterator();
+ * 	while (it.hasNext())
+ * 	{
+ * 		ChannelSelector.Key key = it.next();
+ * 		it.remove();
+ * 		...
+ * 	}
+ * }
+ * </pre>
+ *
+ * The selector is woken up by the state change notifications of the
+ * registered sessions (see {@link ChannelListener}) and then only looks at
+ * the sessions that have changed, plus those that were ready before.
+ * Readiness is level-triggered: a session stays ready as long as the
+ * condition holds (e.g., until all stdout data has been read).
+ * <p>
+ * As with {@link Session#waitForCondition(int, long)}, a closed session is
+ * always ready (with {@link ChannelCondition#CLOSED}), whatever its interest
+ * set. Cancel its key once you are done with it.
+ * <p>
+ * The selector may be used by several threads. Sessions may be registered
+ * and keys cancelled while another thread is waiting in {@link #select(long)}.
+ */
+public class ChannelSelector
+{
+	/**
+	 * The registration of a session with a selector.
+	 */
+	public final class Key extends ChannelAdapter
+	{
+		private final Session session;
+		private final Object attachment;
+
+		/* Guarded by the selector */
+
+		private int interestOps;
+		private int readyOps = 0;
+		private boolean valid = true;
+
+		Key(Session session, int interestOps, Object attachment)
+		{
+			this.session = session;
+			this.interestOps = interestOps;
+			this.attachment = attachment;
+		}
+
+		public Session session()
+		{
+			return session;
+		}
+
+		public Object attachment()
+		{
+			return attachment;
+		}
+
+		public int interestOps()
+		{
+			synchronized (ChannelSelector.this)
+			{
+				return interestOps;
+			}
+		}
+
+		/**
+		 * Changes the conditions this key is interested in.
+		 *
+		 * @param ops a combination of {@link ChannelCondition} flags
+		 */
+		public void setInterestOps(int ops)
+		{
+			synchronized (ChannelSelector.this)
+			{
+				interestOps = ops;
+				changed(this);
+			}
+		}
+
+		/**
+		 * @return the conditions found by the last {@link ChannelSelector#select(long)}
+		 *         that selected this key, restricted to the interest set (plus
+		 *         CLOSED and EOF for a closed session)
+		 */
+		public int readyOps()
+		{
+			synchronized (ChannelSelector.this)
+			{
+				return readyOps;
+			}
+		}
+
+		public boolean isValid()
+		{
+			synchronized (ChannelSelector.this)
+			{
+				return valid;
+			}
+		}
+
+		/**
+		 * Removes the session from the selector. Does not close the session.
+		 */
+		public void cancel()
+		{
+			synchronized (ChannelSelector.this)
+			{
+				if (valid == false)
+					return;
+
+				valid = false;
+				keys.remove(this);
+				dirty.remove(this);
+				ready.remove(this);
+				selected.remove(this);
+			}
+
+			session.removeChannelListener(this);
+		}
+
+		/* Notifications from the receive thread */
+
+		public void dataAvailable(boolean stderr)
+		{
+			changed(this);
+		}
+
+		public void eof()
+		{
+			changed(this);
+		}
+
+		public void exitStatus(int status)
+		{
+			changed(this);
+		}
+
+		public void exitSignal(String signal)
+		{
+			changed(this);
+		}
+
+		public void closed(Throwable reason)
+		{
+			changed(this);
+		}
+	}
+
+	/* All guarded by "this" */
+
+	private final Set<Key> keys = new HashSet<Key>();
+
+	/* Keys that got a notification since the last evaluation */
+
+	private final Set<Key> dirty = new LinkedHashSet<Key>();
+
+	/* Keys that were ready at the last evaluation, i.e., might still be */
+
+	private final Set<Key> ready = new LinkedHashSet<Key>();
+
+	private final Set<Key> selected = new LinkedHashSet<Key>();
+
+	private boolean wakeup = false;
+
+	/**
+	 * Registers a session.
+	 *
+	 * @param sess        the session
+	 * @param interestOps a combination of {@link ChannelCondition} flags
+	 * @param attachment  any object, may be null
+	 * @return the key of the registration
+	 */
+	public Key register(Session sess, int interestOps, Object attachment)
+	{
+		Key key = new Key(sess, interestOps, attachment);
+
+		synchronized (this)
+		{
+			keys.add(key);
+			changed(key);
+		}
+
+		/* Reports conditions that already hold, i.e., marks the key again */
+
+		sess.addChannelListener(key, null);
+
+		return key;
+	}
+
+	private synchronized void changed(Key key)
+	{
+		if (key.valid == false)
+			return;
+
+		dirty.add(key);
+		notifyAll();
+	}
+
+	/**
+	 * @return a copy of the currently registered keys
+	 */
+	public synchronized Set<Key> keys()
+	{
+		return new HashSet<Key>(keys);
+	}
+
+	/**
+	 * The keys found ready by {@link #select(long)}. Keys are added by
+	 * select() and must be removed by the caller, e.g., while iterating over
+	 * the set. The set must only be used while no other thread is selecting.
+	 *
+	 * @return the selected keys
+	 */
+	public Set<Key> selectedKeys()
+	{
+		return selected;
+	}
+
+	/**
+	 * Checks the sessions without waiting.
+	 *
+	 * @return the number of keys added to the selected keys
+	 */
+	public synchronized int selectNow()
+	{
+		return evaluate();
+	}
+
+	/**
+	 * Waits until at least one session is ready, the timeout has expired or
+	 * {@link #wakeup()} has been called.
+	 *
+	 * @param timeout in milliseconds, 0 means no timeout
+	 * @return the number of keys added to the selected keys
+	 * @throws IOException if the thread has been interrupted
+	 */
+	public synchronized int select(long timeout) throws IOException
+	{
+		long end = (timeout > 0) ? System.currentTimeMillis() + timeout : 0;
+
+		while (true)
+		{
+			int n = evaluate();
+
+			if ((n > 0) || wakeup)
+			{
+				wakeup = false;
+				return n;
+			}
+
+			long wait = 0;
+
+			if (end != 0)
+			{
+				wait = end - System.currentTimeMillis();
+				if (wait <= 0)
+					return 0;
+			}
+
+			if (dirty.isEmpty())
+			{
+				try
+				{
+					wait(wait);
+				}
+				catch (InterruptedException e)
+				{
+					throw new InterruptedIOException();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Makes a pending (or the next) {@link #select(long)} return immediately.
+	 */
+	public synchronized void wakeup()
+	{
+		wakeup = true;
+		notifyAll();
+	}
+
+	/**
+	 * Cancels all keys.
+	 */
+	public void close()
+	{
+		Key[] all;
+
+		synchronized (this)
+		{
+			all = keys.toArray(new Key[keys.size()]);
+		}
+
+		for (int i = 0; i < all.length; i++)
+			all[i].cancel();
+	}
+
+	private int evaluate()
+	{
+		Set<Key> candidates = new LinkedHashSet<Key>(ready);
+		candidates.addAll(dirty);
+
+		dirty.clear();
+		ready.clear();
+
+		int n = 0;
+
+		Iterator<Key> it = candidates.iterator();
+
+		while (it.hasNext())
+		{
+			Key key = it.next();
+
+			int cond = key.session.cm.getConditions(key.session.cn);
+			int ops = cond & (key.interestOps | ChannelCondition.CLOSED | ChannelCondition.EOF);
+
+			if ((cond & ChannelCondition.CLOSED) == 0)
+				ops &= key.interestOps;
+
+			if (ops == 0)
+				continue;
+
+			ready.add(key);
+			key.readyOps = ops;
+
+			if (selected.add(key))
+				n++;
+		}
+
+		return n;
+	}
+}
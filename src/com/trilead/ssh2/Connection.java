@@ -2,6 +2,8 @@ package com.trilead.ssh2;
 
 import com.trilead.ssh2.auth.AgentProxy;
 import com.trilead.ssh2.auth.AuthenticationManager;
+import com.trilead.ssh2.channel.CallbackExecutor;
+import com.trilead.ssh2.channel.Channel;
 import com.trilead.ssh2.channel.ChannelManager;
 import com.trilead.ssh2.crypto.CryptoWishList;
 import com.trilead.ssh2.crypto.cipher.BlockCipherFactory;
@@ -18,14 +20,18 @@ import java.io.CharArrayWriter;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
 import java.security.SecureRandom;
 import java.util.Collections;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 /**
  * A <code>Connection</code> is used to establish an encrypted TCP/IP
@@ -107,6 +113,8 @@ public class Connection
 
 	protected boolean tcpNoDelay = false;
 
+	private boolean nonBlockingForwarding = false;
+
 	protected ProxyData proxyData = null;
 
 	protected Vector connectionMonitors = new Vector();
@@ -822,6 +830,10 @@ public class Connection
 		if (!authenticated)
 			throw new IllegalStateException("Cannot forward ports, connection is not authenticated.");
 
+		if (nonBlockingForwarding)
+			return new LocalPortForwarder(cm, new InetSocketAddress(local_port), host_to_connect, port_to_connect,
+					cm.getForwardingEngine());
+
 		return new LocalPortForwarder(cm, local_port, host_to_connect, port_to_connect);
 	}
 
@@ -850,9 +862,104 @@ public class Connection
 		if (!authenticated)
 			throw new IllegalStateException("Cannot forward ports, connection is not authenticated.");
 
+		if (nonBlockingForwarding)
+			return new LocalPortForwarder(cm, addr, host_to_connect, port_to_connect, cm.getForwardingEngine());
+
 		return new LocalPortForwarder(cm, addr, host_to_connect, port_to_connect);
 	}
 
+	/**
+	 * Creates a new {@link LocalPortForwarder} that forwards TCP/IP
+	 * connections arriving at a local port to a Unix domain socket on the
+	 * server (via "direct-streamlocal@openssh.com" channels, the equivalent of
+	 * <code>ssh -L port:/path</code>). The server must be OpenSSH 6.7 or later.
+	 * <p>
+	 * This method must only be called after one has passed successfully the
+	 * authentication step. The connections are served by the non-blocking
+	 * forwarding engine, independent of {@link #setNonBlockingForwarding(boolean)}.
+	 *
+	 * @param addr             the local address to bind to
+	 * @param remoteSocketPath path of the Unix domain socket on the server
+	 * @return A {@link LocalPortForwarder} object.
+	 * @throws IOException the io exception
+	 */
+	public synchronized LocalPortForwarder createStreamLocalForwarder(InetSocketAddress addr, String remoteSocketPath)
+			throws IOException
+	{
+		if (tm == null)
+			throw new IllegalStateException("Cannot forward, you need to establish a connection first.");
+
+		if (!authenticated)
+			throw new IllegalStateException("Cannot forward, connection is not authenticated.");
+
+		return new LocalPortForwarder(cm, cm.getForwardingEngine().listenStreamLocal(addr, remoteSocketPath));
+	}
+
+	/**
+	 * Creates a new {@link LocalPortForwarder} that forwards connections
+	 * arriving at a local Unix domain socket to a Unix domain socket on the
+	 * server (the equivalent of <code>ssh -L /local/path:/remote/path</code>).
+	 * Local Unix domain sockets need Java 16 or later.
+	 * <p>
+	 * The local socket file must not exist, it is created by this method and
+	 * removed when the forwarder is closed. Otherwise the same as
+	 * {@link #createStreamLocalForwarder(InetSocketAddress, String)}.
+	 *
+	 * @param localSocketPath  path of the local Unix domain socket
+	 * @param remoteSocketPath path of the Unix domain socket on the server
+	 * @return A {@link LocalPortForwarder} object.
+	 * @throws IOException the io exception, also if Unix domain sockets are not supported
+	 */
+	public synchronized LocalPortForwarder createStreamLocalForwarder(String localSocketPath, String remoteSocketPath)
+			throws IOException
+	{
+		if (tm == null)
+			throw new IllegalStateException("Cannot forward, you need to establish a connection first.");
+
+		if (!authenticated)
+			throw new IllegalStateException("Cannot forward, connection is not authenticated.");
+
+		return new LocalPortForwarder(cm, cm.getForwardingEngine().listenStreamLocal(localSocketPath,
+				remoteSocketPath));
+	}
+
+	/**
+	 * Creates a new {@link DynamicPortForwarder}, a local SOCKS5 server that
+	 * forwards every incoming connection via the secure tunnel to the target
+	 * requested by the SOCKS client (the equivalent of <code>ssh -D</code>).
+	 * <p>
+	 * This method must only be called after one has passed successfully the
+	 * authentication step. The connections are served by the non-blocking
+	 * forwarding engine, independent of {@link #setNonBlockingForwarding(boolean)}.
+	 *
+	 * @param local_port the local port the SOCKS server shall bind to.
+	 * @return A {@link DynamicPortForwarder} object.
+	 * @throws IOException the io exception
+	 */
+	public synchronized DynamicPortForwarder createDynamicPortForwarder(int local_port) throws IOException
+	{
+		return createDynamicPortForwarder(new InetSocketAddress(local_port));
+	}
+
+	/**
+	 * Creates a new {@link DynamicPortForwarder}, see
+	 * {@link #createDynamicPortForwarder(int)}.
+	 *
+	 * @param addr specifies the InetSocketAddress where the local socket shall be bound to.
+	 * @return A {@link DynamicPortForwarder} object.
+	 * @throws IOException the io exception
+	 */
+	public synchronized DynamicPortForwarder createDynamicPortForwarder(InetSocketAddress addr) throws IOException
+	{
+		if (tm == null)
+			throw new IllegalStateException("Cannot forward ports, you need to establish a connection first.");
+
+		if (!authenticated)
+			throw new IllegalStateException("Cannot forward ports, connection is not authenticated.");
+
+		return new DynamicPortForwarder(cm, addr);
+	}
+
 	/**
 	 * Creates a new {@link LocalStreamForwarder}. A
 	 * <code>LocalStreamForwarder</code> manages an Input/Outputstream pair
@@ -877,6 +984,25 @@ public class Connection
 		return new LocalStreamForwarder(cm, host_to_connect, port_to_connect);
 	}
 
+	/**
+	 * Creates a new {@link LocalStreamForwarder} that is connected to a Unix
+	 * domain socket on the server ("direct-streamlocal@openssh.com").
+	 *
+	 * @param remoteSocketPath path of the Unix domain socket on the server
+	 * @return A {@link LocalStreamForwarder} object.
+	 * @throws IOException the io exception
+	 */
+	public synchronized LocalStreamForwarder createLocalStreamForwarder(String remoteSocketPath) throws IOException
+	{
+		if (tm == null)
+			throw new IllegalStateException("Cannot forward, you need to establish a connection first.");
+
+		if (!authenticated)
+			throw new IllegalStateException("Cannot forward, connection is not authenticated.");
+
+		return new LocalStreamForwarder(cm, remoteSocketPath);
+	}
+
 	/**
 	 * Create a very basic {@link SCPClient} that can be used to copy files
 	 * from/to the SSH-2 server.
@@ -1081,19 +1207,104 @@ public class Connection
 	 * Open a new {@link Session} on this connection. Works only after one has
 	 * passed successfully the authentication step. There is no limit on the
 	 * number of concurrent sessions.
+	 * <p>
+	 * The connection is not locked while waiting for the server's answer,
+	 * several threads may open sessions at the same time.
 	 *
 	 * @return A {@link Session} object.
 	 * @throws IOException the io exception
 	 */
-	public synchronized Session openSession() throws IOException
+	public Session openSession() throws IOException
+	{
+		ChannelManager cm;
+		SecureRandom rnd;
+
+		synchronized (this)
+		{
+			checkChannelsAllowed("open session");
+			cm = this.cm;
+			rnd = getOrCreateSecureRND();
+		}
+
+		return new Session(cm, rnd);
+	}
+
+	/**
+	 * Like {@link #openSession()}, but does not wait for the server's answer.
+	 * Any number of sessions can be requested this way, opening them takes
+	 * about one round trip in total instead of one per session:
+	 *
+	 * <pre>
+	 * List futures = new ArrayList();
+	 * for (int i = 0; i &lt; 50; i++)
+	 * 	futures.add(conn.openSessionAsync());
+	 * </pre>
+	 *
+	 * The future completes exceptionally if the server refuses the session or
+	 * the connection is lost. Dependent actions run on a shared callback
+	 * thread, never on the receive thread of the connection. Cancelling the
+	 * future closes the session once the server has opened it.
+	 *
+	 * @return the future session
+	 */
+	public CompletableFuture<Session> openSessionAsync()
+	{
+		final ChannelManager cm;
+		final SecureRandom rnd;
+
+		synchronized (this)
+		{
+			checkChannelsAllowed("open session");
+			cm = this.cm;
+			rnd = getOrCreateSecureRND();
+		}
+
+		return cm.openSessionChannelAsync().thenApply(new Function<Channel, Session>()
+		{
+			public Session apply(Channel c)
+			{
+				return new Session(cm, c, rnd);
+			}
+		});
+	}
+
+	/**
+	 * Like {@link #createLocalStreamForwarder(String, int)}, but does not wait
+	 * for the server to open the "direct-tcpip" channel, see
+	 * {@link #openSessionAsync()}.
+	 *
+	 * @param host_to_connect the host to connect
+	 * @param port_to_connect the port to connect
+	 * @return the future forwarder
+	 */
+	public CompletableFuture<LocalStreamForwarder> openDirectTCPIPChannelAsync(String host_to_connect,
+			int port_to_connect)
+	{
+		final ChannelManager cm;
+
+		synchronized (this)
+		{
+			checkChannelsAllowed("forward");
+			cm = this.cm;
+		}
+
+		return cm.openDirectTCPIPChannelAsync(host_to_connect, port_to_connect, "127.0.0.1", 0).thenApply(
+				new Function<Channel, LocalStreamForwarder>()
+				{
+					public LocalStreamForwarder apply(Channel c)
+					{
+						return new LocalStreamForwarder(cm, c);
+					}
+				});
+	}
+
+	private void checkChannelsAllowed(String what)
 	{
 		if (tm == null)
-			throw new IllegalStateException("Cannot open session, you need to establish a connection first.");
+			throw new IllegalStateException("Cannot " + what + ", you need to establish a connection first.");
 
 		if (!authenticated)
-			throw new IllegalStateException("Cannot open session, connection is not authenticated.");
-
-		return new Session(cm, getOrCreateSecureRND());
+			throw new IllegalStateException("Cannot " + what + ", connection is not authenticated.");
 	}
 
 	/**
@@ -1135,7 +1346,7 @@ public class Connection
 		PacketIgnore pi = new PacketIgnore();
 		pi.setData(data);
 
-		tm.sendMessage(pi.getPayload());
+		tm.sendControlMessage(pi.getPayload());
 	}
 
 	/**
@@ -1276,6 +1487,26 @@ public class Connection
 		cryptoWishList.serverHostKeyAlgorithms = algos;
 	}
 
+	/**
+	 * Enable/disable the non-blocking forwarding engine for port forwardings
+	 * created afterwards (with {@link #createLocalPortForwarder(int, String, int)}
+	 * or {@link #requestRemotePortForwarding(String, int, String, int)}).
+	 * <p>
+	 * By default, every forwarded TCP connection is served by two dedicated
+	 * threads. With the non-blocking engine, all forwarded connections of this
+	 * <code>Connection</code> share a few selector threads (see the
+	 * <code>com.trilead.ssh2.channel.ForwardingEngine.threads</code> system property,
+	 * default 1), and a connection that does not consume its data is throttled
+	 * through the SSH window instead of blocking a thread. This pays off if many
+	 * (e.g., short-lived) connections are forwarded.
+	 *
+	 * @param enable whether the non-blocking engine shall be used
+	 */
+	public synchronized void setNonBlockingForwarding(boolean enable)
+	{
+		nonBlockingForwarding = enable;
+	}
+
 	/**
 	 * Enable/disable TCP_NODELAY (disable/enable Nagle's algorithm) on the
 	 * underlying socket.
@@ -1345,6 +1576,36 @@ public class Connection
 	 */
 	public synchronized void requestRemotePortForwarding(String bindAddress, int bindPort, String targetAddress,
 			int targetPort) throws IOException
+	{
+		requestRemotePortForwarding(bindAddress, bindPort, targetAddress, targetPort, 0);
+	}
+
+	/**
+	 * Like {@link #requestRemotePortForwarding(String, int, String, int)}, but
+	 * if the non-blocking forwarding engine is enabled (see
+	 * {@link #setNonBlockingForwarding(boolean)}), <code>preconnect</code>
+	 * sockets are kept connected to the target in advance. A forwarded connection
+	 * that finds such a socket does not have to wait for the TCP handshake with
+	 * the target. A socket the target closes is replaced right away, and idle
+	 * sockets are replaced after 30 seconds in any case.
+	 * <p>
+	 * With the non-blocking engine, the server is only told that a forwarded
+	 * connection was accepted once the connection to the target has been
+	 * established; if the target cannot be reached, the forwarded connection is
+	 * refused. At most 32 connects to targets are in progress at a time (see the
+	 * <code>com.trilead.ssh2.channel.ForwardingEngine.maxPendingConnects</code>
+	 * system property), further ones are queued.
+	 *
+	 * @param bindAddress   address to bind to on the server, see {@link #requestRemotePortForwarding(String, int, String, int)}
+	 * @param bindPort      port number to bind on the server (must be &gt; 0)
+	 * @param targetAddress the target address (IP or hostname)
+	 * @param targetPort    the target port
+	 * @param preconnect    number of sockets to keep connected to the target, 0 for none.
+	 *                      Ignored if the non-blocking engine is not enabled.
+	 * @throws IOException the io exception
+	 */
+	public synchronized void requestRemotePortForwarding(String bindAddress, int bindPort, String targetAddress,
+			int targetPort, int preconnect) throws IOException
 	{
 		if (tm == null)
 			throw new IllegalStateException("You need to establish a connection first.");
@@ -1352,10 +1613,15 @@ public class Connection
 		if (!authenticated)
 			throw new IllegalStateException("The connection is not authenticated.");
 
-		if ((bindAddress == null) || (targetAddress == null) || (bindPort <= 0) || (targetPort <= 0))
+		if ((bindAddress == null) || (targetAddress == null) || (bindPort <= 0) || (targetPort <= 0)
+				|| (preconnect < 0))
 			throw new IllegalArgumentException();
 
-		cm.requestGlobalForward(bindAddress, bindPort, targetAddress, targetPort);
+		if (nonBlockingForwarding)
+			cm.requestGlobalForward(bindAddress, bindPort, targetAddress, targetPort, cm.getForwardingEngine(),
+					preconnect);
+		else
+			cm.requestGlobalForward(bindAddress, bindPort, targetAddress, targetPort);
 	}
 
 	/**
@@ -1378,6 +1644,79 @@ public class Connection
 		cm.requestCancelGlobalForward(bindPort);
 	}
 
+	/**
+	 * Requests the server to listen on a Unix domain socket
+	 * ("streamlocal-forward@openssh.com", the equivalent of
+	 * <code>ssh -R /remote/path:/local/path</code>) and forwards the
+	 * connections to a local Unix domain socket. Needs Java 16 or later, and
+	 * OpenSSH 6.7 or later on the server. The forwarded connections are served
+	 * by the non-blocking forwarding engine.
+	 * <p>
+	 * Note: OpenSSH does not remove an existing socket file unless
+	 * <b>StreamLocalBindUnlink</b> is enabled (see sshd_config(5)).
+	 *
+	 * @param remoteSocketPath path of the socket the server shall listen on
+	 * @param localSocketPath  path of the local socket to connect to
+	 * @throws IOException the io exception
+	 */
+	public synchronized void requestRemoteStreamLocalForwarding(String remoteSocketPath, String localSocketPath)
+			throws IOException
+	{
+		if (tm == null)
+			throw new IllegalStateException("You need to establish a connection first.");
+
+		if (!authenticated)
+			throw new IllegalStateException("The connection is not authenticated.");
+
+		if ((remoteSocketPath == null) || (localSocketPath == null))
+			throw new IllegalArgumentException();
+
+		cm.requestStreamLocalForward(remoteSocketPath, localSocketPath);
+	}
+
+	/**
+	 * Like {@link #requestRemoteStreamLocalForwarding(String, String)}, but
+	 * forwards the connections to a TCP/IP target.
+	 *
+	 * @param remoteSocketPath path of the socket the server shall listen on
+	 * @param targetAddress    the target address (IP or hostname)
+	 * @param targetPort       the target port
+	 * @throws IOException the io exception
+	 */
+	public synchronized void requestRemoteStreamLocalForwarding(String remoteSocketPath, String targetAddress,
+			int targetPort) throws IOException
+	{
+		if (tm == null)
+			throw new IllegalStateException("You need to establish a connection first.");
+
+		if (!authenticated)
+			throw new IllegalStateException("The connection is not authenticated.");
+
+		if ((remoteSocketPath == null) || (targetAddress == null) || (targetPort <= 0))
+			throw new IllegalArgumentException();
+
+		cm.requestStreamLocalForward(remoteSocketPath, targetAddress, targetPort);
+	}
+
+	/**
+	 * Cancel an earlier requested remote Unix domain socket forwarding, see
+	 * {@link #cancelRemotePortForwarding(int)}.
+	 *
+	 * @param remoteSocketPath path of the socket on the server
+	 * @throws IOException if the remote side refuses the cancel request or another low
+	 *                     level error occurs
+	 */
+	public synchronized void cancelRemoteStreamLocalForwarding(String remoteSocketPath) throws IOException
+	{
+		if (tm == null)
+			throw new IllegalStateException("You need to establish a connection first.");
+
+		if (!authenticated)
+			throw new IllegalStateException("The connection is not authenticated.");
+
+		cm.requestCancelStreamLocalForward(remoteSocketPath);
+	}
+
 	/**
 	 * Provide your own instance of SecureRandom. Can be used, e.g., if you want
 	 * to seed the used SecureRandom generator manually.
@@ -1476,70 +1815,194 @@ public class Connection
 
 	/**
 	 * Executes a process remotely and blocks until its completion.
+	 * <p>
+	 * The output is written by a shared callback thread as it arrives, not
+	 * by the receive thread of the connection. A slow <code>output</code>
+	 * only holds back this command (through the channel window), and if
+	 * writing to it fails, only this session is closed and the failure is
+	 * thrown. The stream is not closed.
 	 *
 	 * @param command the command
 	 * @param output  The stdout/stderr will be sent to this stream.
-	 * @return the int
+	 * @return the exit status, or -1 if the server did not report one
 	 * @throws IOException          the io exception
 	 * @throws InterruptedException the interrupted exception
 	 */
 	public int exec(String command, OutputStream output) throws IOException, InterruptedException {
+        OutputPump pump = startExec(command, output);
+        return waitForExit(pump.session, pump.exit);
+    }
+
+	/**
+	 * Executes a process remotely, blocks until its completion and captures
+	 * the beginning and the end of its output, see {@link OutputCapture}. The
+	 * memory needed does not depend on the amount of output.
+	 *
+	 * @param command the command
+	 * @param stdout  captures stdout
+	 * @param stderr  captures stderr, may be the same object as <code>stdout</code>
+	 * @return the exit status, or -1 if the server did not report one
+	 * @throws IOException          the io exception
+	 * @throws InterruptedException the interrupted exception
+	 */
+	public int exec(String command, OutputCapture stdout, OutputCapture stderr) throws IOException,
+			InterruptedException {
+        Session session = startExec(command, stdout, stderr);
+        return waitForExit(session, session.getExitFuture());
+    }
+
+    private int waitForExit(Session session, CompletableFuture<Integer> exit) throws IOException,
+            InterruptedException {
+        try {
+            return exit.get().intValue();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            throw (IOException) new IOException("Command failed: " + cause).initCause(cause);
+        } finally {
+            session.close();
+        }
+    }
+
+	/**
+	 * Like {@link #exec(String, OutputStream)}, but does not wait for the
+	 * command to finish. The returned future completes with the exit status
+	 * (or -1) once the server has closed the session, or exceptionally if the
+	 * connection is lost before or writing to <code>output</code> fails.
+	 * Neither this method nor the future occupy a thread while the command
+	 * runs, apart from the callback thread writing the output.
+	 *
+	 * @param command the command
+	 * @param output  The stdout/stderr will be sent to this stream.
+	 * @return the future exit status
+	 * @throws IOException if the command could not be started
+	 */
+	public CompletableFuture<Integer> execAsync(String command, OutputStream output) throws IOException {
+        return startExec(command, output).exit;
+    }
+
+	/**
+	 * Like {@link #exec(String, OutputCapture, OutputCapture)}, but does not
+	 * wait for the command to finish, see {@link #execAsync(String, OutputStream)}.
+	 *
+	 * @param command the command
+	 * @param stdout  captures stdout
+	 * @param stderr  captures stderr, may be the same object as <code>stdout</code>
+	 * @return the future exit status
+	 * @throws IOException if the command could not be started
+	 */
+	public CompletableFuture<Integer> execAsync(String command, OutputCapture stdout, OutputCapture stderr)
+			throws IOException {
+        return startExec(command, stdout, stderr).getExitFuture();
+    }
+
+    private Session startExec(String command, OutputStream stdout, OutputStream stderr) throws IOException {
         Session session = openSession();
         try {
+            session.pipeStdout(stdout);
+            session.pipeStderr(stderr);
             session.execCommand(command);
-            PumpThread t1 = new PumpThread(session.getStdout(), output);
-            t1.start();
-            PumpThread t2 = new PumpThread(session.getStderr(), output);
-            t2.start();
             session.getStdin().close();
-            t1.join();
-            t2.join();
-
-            // wait for some time since the delivery of the exit status often gets delayed
-            session.waitForCondition(ChannelCondition.EXIT_STATUS,3000);
-            Integer r = session.getExitStatus();
-            if(r!=null) return r.intValue();
-            return -1;
-        } finally {
+            return session;
+        } catch (IOException e) {
             session.close();
+            throw e;
+        }
+    }
+
+    private OutputPump startExec(String command, OutputStream output) throws IOException {
+        Session session = openSession();
+        try {
+            OutputPump pump = new OutputPump(session, output);
+            session.execCommand(command);
+            session.getStdin().close();
+            session.addChannelListener(pump, CallbackExecutor.getExecutor());
+            return pump;
+        } catch (IOException e) {
+            session.close();
+            throw e;
         }
     }
 
     /**
-     * Pumps {@link InputStream} to {@link OutputStream}.
-     *
-     * @author Kohsuke Kawaguchi
+     * Copies the stdout and stderr of a session to a stream on a callback thread. The
+     * data stays in the channel buffers until it has been written, so a slow stream
+     * holds back the server through the window of this session only. If the stream
+     * fails, the session is closed and {@link #exit} completes with the failure.
      */
-    private static final class PumpThread extends Thread {
-        private final InputStream in;
+    private static final class OutputPump extends ChannelAdapter {
+        final Session session;
+        final CompletableFuture<Integer> exit = new CompletableFuture<Integer>();
         private final OutputStream out;
+        private final byte[] buffer = new byte[8192];
 
-		/**
-		 * Instantiates a new Pump thread.
-		 *
-		 * @param in  the in
-		 * @param out the out
-		 */
-		public PumpThread(InputStream in, OutputStream out) {
-            super("pump thread");
-            this.in = in;
+        /* Only touched by the notifications, which are delivered one at a time */
+
+        private IOException failure;
+
+        OutputPump(Session session, OutputStream out) {
+            this.session = session;
             this.out = out;
         }
 
-        public void run() {
-            byte[] buf = new byte[1024];
+        public void dataAvailable(boolean stderr) {
+            drain(stderr ? session.getStderr() : session.getStdout());
+        }
+
+        public void closed(Throwable reason) {
+            drain(session.getStdout());
+            drain(session.getStderr());
+
+            if (failure == null) {
+                try {
+                    out.flush();
+                } catch (IOException e) {
+                    failure = e;
+                } catch (RuntimeException e) {
+                    failure = (IOException) new IOException("Writing the output failed: " + e).initCause(e);
+                }
+            }
+
+            final IOException f = failure;
+
+            session.getExitFuture().whenComplete(new BiConsumer<Integer, Throwable>() {
+                public void accept(Integer status, Throwable t) {
+                    if (f != null)
+                        exit.completeExceptionally(f);
+                    else if (t != null)
+                        exit.completeExceptionally(t);
+                    else
+                        exit.complete(status);
+                }
+            });
+        }
+
+        /**
+         * Writes what can be read without blocking.
+         */
+        private void drain(InputStream in) {
+            if (failure != null)
+                return;
+
             try {
-                while(true) {
-                    int len = in.read(buf);
-                    if(len<0) {
-                        in.close();
-                        return;
-                    }
-                    out.write(buf,0,len);
+                int n;
+                while ((n = in.available()) > 0) {
+                    n = in.read(buffer, 0, Math.min(n, buffer.length));
+                    if (n <= 0)
+                        break;
+                    out.write(buffer, 0, n);
                 }
+                return;
             } catch (IOException e) {
-                e.printStackTrace();
+                failure = e;
+            } catch (RuntimeException e) {
+                failure = (IOException) new IOException("Writing the output failed: " + e).initCause(e);
             }
+
+            /* Not the receive thread, closing may send */
+
+            session.close();
         }
     }
 }
@@ -0,0 +1,47 @@
+package com.trilead.ssh2;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+import com.trilead.ssh2.channel.ChannelManager;
+import com.trilead.ssh2.channel.ForwardingEngine;
+
+/**
+ * A <code>DynamicPortForwarder</code> is a local SOCKS5 server (like
+ * <code>ssh -D</code>): every connection arriving at its local port names its
+ * own target, which is then reached via the secure tunnel. Only the CONNECT
+ * command without authentication is supported. Checkout
+ * {@link Connection#createDynamicPortForwarder(int)} on how to create one.
+ * <p>
+ * All connections are served by the non-blocking forwarding engine of the
+ * connection, no threads are created per connection.
+ */
+public class DynamicPortForwarder
+{
+	ChannelManager cm;
+
+	ForwardingEngine.Acceptor acceptor;
+
+	DynamicPortForwarder(ChannelManager cm, InetSocketAddress addr) throws IOException
+	{
+		this.cm = cm;
+
+		acceptor = cm.getForwardingEngine().listenSocks(addr);
+	}
+
+	/**
+	 * Stop accepting new connections. Connections that have already been
+	 * established are not affected.
+	 *
+	 * @throws IOException the io exception
+	 */
+	public void close() throws IOException
+	{
+		acceptor.close();
+	}
+
+	public int getLocalPort()
+	{
+		return acceptor.getLocalPort();
+	}
+}
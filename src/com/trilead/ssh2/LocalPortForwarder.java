@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 
 import com.trilead.ssh2.channel.ChannelManager;
+import com.trilead.ssh2.channel.ForwardingEngine;
 import com.trilead.ssh2.channel.LocalAcceptThread;
 
 
@@ -27,6 +28,8 @@ public class LocalPortForwarder
 
 	LocalAcceptThread lat;
 
+	ForwardingEngine.Acceptor acceptor;
+
 	LocalPortForwarder(ChannelManager cm, int local_port, String host_to_connect, int port_to_connect)
 			throws IOException
 	{
@@ -51,6 +54,30 @@ public class LocalPortForwarder
 		lat.start();
 	}
 
+	/*
+	 * Uses the non-blocking forwarding engine of the connection instead of
+	 * an accept thread plus two threads per forwarded connection.
+	 */
+	LocalPortForwarder(ChannelManager cm, InetSocketAddress addr, String host_to_connect, int port_to_connect,
+			ForwardingEngine engine) throws IOException
+	{
+		this.cm = cm;
+		this.host_to_connect = host_to_connect;
+		this.port_to_connect = port_to_connect;
+
+		acceptor = engine.listen(addr, host_to_connect, port_to_connect);
+	}
+
+	/*
+	 * Forwards to a Unix domain socket on the server, see
+	 * Connection.createStreamLocalForwarder().
+	 */
+	LocalPortForwarder(ChannelManager cm, ForwardingEngine.Acceptor acceptor)
+	{
+		this.cm = cm;
+		this.acceptor = acceptor;
+	}
+
 	/**
 	 * Stop TCP/IP forwarding of newly arriving connections.
 	 *
@@ -58,11 +85,19 @@ public class LocalPortForwarder
 	 */
 	public void close() throws IOException
 	{
-		lat.stopWorking();
+		if (acceptor != null)
+			acceptor.close();
+		else
+			lat.stopWorking();
 	}
 	
+    /**
+     * @return the local port, or -1 if the forwarder listens on a Unix domain socket
+     */
     public int getLocalPort() 
     {
+        if (acceptor != null)
+            return acceptor.getLocalPort();
         return lat.getLocalPort();
     }
 	
@@ -37,6 +37,19 @@ public class LocalStreamForwarder
 		cn = cm.openDirectTCPIPChannel(host_to_connect, port_to_connect, "127.0.0.1", 0);
 	}
 
+	LocalStreamForwarder(ChannelManager cm, Channel cn)
+	{
+		this.cm = cm;
+		this.cn = cn;
+	}
+
+	LocalStreamForwarder(ChannelManager cm, String remoteSocketPath) throws IOException
+	{
+		this.cm = cm;
+
+		cn = cm.openDirectStreamLocalChannel(remoteSocketPath);
+	}
+
 	/**
 	 * @return An <code>InputStream</code> object.
 	 * @throws IOException the io exception
@@ -0,0 +1,186 @@
+package com.trilead.ssh2;
+
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * An <code>OutputCapture</code> keeps the beginning and the end of a remote
+ * command's output, plus the number of bytes and lines, in constant memory:
+ * the first <code>headSize</code> bytes are kept, then a ring buffer holds
+ * the last <code>tailSize</code> bytes, everything in between is discarded.
+ * <p>
+ * Attach it with {@link Session#pipeStdout(java.io.OutputStream)} /
+ * {@link Session#pipeStderr(java.io.OutputStream)} or use
+ * {@link Connection#exec(String, OutputCapture, OutputCapture)}. The data is
+ * then written by the receive thread and acknowledged to the server right
+ * away, so the command is never held back. The capture is complete once the
+ * stream has been closed (i.e., the server sent EOF), see
+ * {@link #isComplete()}.
+ * <p>
+ * The getters may be called at any time, also while data is arriving.
+ */
+public class OutputCapture extends OutputStream
+{
+	private final byte[] head;
+	private int headLen = 0;
+
+	private final byte[] tail;
+	private int tailPos = 0; /* next write position */
+	private int tailLen = 0;
+
+	private long bytes = 0;
+	private long newlines = 0;
+	private byte last;
+
+	private boolean complete = false;
+
+	/**
+	 * @param headSize number of bytes to keep from the beginning
+	 * @param tailSize number of bytes to keep from the end
+	 */
+	public OutputCapture(int headSize, int tailSize)
+	{
+		if ((headSize < 0) || (tailSize < 0))
+			throw new IllegalArgumentException();
+
+		head = new byte[headSize];
+		tail = new byte[tailSize];
+	}
+
+	public void write(int b)
+	{
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	public synchronized void write(byte[] b, int off, int len)
+	{
+		if ((off < 0) || (len < 0) || ((off + len) > b.length))
+			throw new IndexOutOfBoundsException();
+
+		if (len == 0)
+			return;
+
+		for (int i = off; i < off + len; i++)
+		{
+			if (b[i] == '\n')
+				newlines++;
+		}
+
+		bytes += len;
+		last = b[off + len - 1];
+
+		int n = Math.min(len, head.length - headLen);
+		System.arraycopy(b, off, head, headLen, n);
+		headLen += n;
+		off += n;
+		len -= n;
+
+		if ((len == 0) || (tail.length == 0))
+			return;
+
+		if (len >= tail.length)
+		{
+			System.arraycopy(b, off + len - tail.length, tail, 0, tail.length);
+			tailPos = 0;
+			tailLen = tail.length;
+			return;
+		}
+
+		n = Math.min(len, tail.length - tailPos);
+		System.arraycopy(b, off, tail, tailPos, n);
+		System.arraycopy(b, off + n, tail, 0, len - n);
+		tailPos = (tailPos + len) % tail.length;
+		tailLen = Math.min(tail.length, tailLen + len);
+	}
+
+	/**
+	 * Marks the capture as complete, invoked when the server signals EOF.
+	 */
+	public synchronized void close()
+	{
+		complete = true;
+	}
+
+	/**
+	 * @return true once the whole output has been seen
+	 */
+	public synchronized boolean isComplete()
+	{
+		return complete;
+	}
+
+	/**
+	 * @return the first (up to <code>headSize</code>) bytes of the output
+	 */
+	public synchronized byte[] getHead()
+	{
+		byte[] b = new byte[headLen];
+		System.arraycopy(head, 0, b, 0, headLen);
+		return b;
+	}
+
+	/**
+	 * @return the last (up to <code>tailSize</code>) bytes of the output that
+	 *         are not part of the head
+	 */
+	public synchronized byte[] getTail()
+	{
+		byte[] b = new byte[tailLen];
+		int start = (tailPos - tailLen + tail.length) % Math.max(1, tail.length);
+		int n = Math.min(tailLen, tail.length - start);
+		System.arraycopy(tail, start, b, 0, n);
+		System.arraycopy(tail, 0, b, n, tailLen - n);
+		return b;
+	}
+
+	/**
+	 * @return the total number of bytes of the output
+	 */
+	public synchronized long getByteCount()
+	{
+		return bytes;
+	}
+
+	/**
+	 * @return the number of bytes discarded between head and tail
+	 */
+	public synchronized long getOmittedByteCount()
+	{
+		return bytes - headLen - tailLen;
+	}
+
+	/**
+	 * @return the number of lines of the output; a last line without a
+	 *         trailing newline counts as well
+	 */
+	public synchronized long getLineCount()
+	{
+		if ((bytes > 0) && (last != '\n'))
+			return newlines + 1;
+		return newlines;
+	}
+
+	/**
+	 * Returns head and tail as text. If bytes have been discarded, a line
+	 * saying how many is put in between.
+	 *
+	 * @param charsetName the encoding of the output
+	 * @return the captured text
+	 * @throws UnsupportedEncodingException if the encoding is not supported
+	 */
+	public synchronized String getText(String charsetName) throws UnsupportedEncodingException
+	{
+		StringBuffer sb = new StringBuffer();
+
+		sb.append(new String(getHead(), charsetName));
+
+		long omitted = getOmittedByteCount();
+
+		if (omitted > 0)
+			sb.append("\n[... " + omitted + " bytes omitted ...]\n");
+
+		sb.append(new String(getTail(), charsetName));
+
+		return sb.toString();
+	}
+}
@@ -0,0 +1,170 @@
+package com.trilead.ssh2;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * SFTPAttributeCache. Remembers the results of stat and lstat requests of a
+ * {@link SFTPv3Client} for a limited time, including "no such file" errors,
+ * see {@link SFTPv3Client#setAttributeCache(int, long)}. The least recently
+ * used paths are evicted once the cache is full.
+ * <p>
+ * Paths are used as given, without normalization. The client invalidates the
+ * paths it modifies (and their parents, whose times change as well) both
+ * before sending the request and once it has completed, so that a stat
+ * answered in between is not kept. Changes made by others only show once
+ * the entries have expired.
+ */
+final class SFTPAttributeCache
+{
+	private static final class CacheEntry
+	{
+		/* Index 0 for stat, 1 for lstat: SFTPv3FileAttributes, SFTPException or null */
+
+		final Object[] results = new Object[2];
+		final long[] expiry = new long[2];
+	}
+
+	private final LinkedHashMap<String, CacheEntry> entries;
+	private final long ttlNanos;
+
+	/* Incremented by every invalidation, see put() */
+
+	private long generation = 0;
+
+	SFTPAttributeCache(final int maxEntries, long ttlMillis)
+	{
+		this.ttlNanos = ttlMillis * 1000000L;
+		this.entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true)
+		{
+			protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest)
+			{
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	synchronized long generation()
+	{
+		return generation;
+	}
+
+	/**
+	 * @return a copy of the cached attributes, a new exception for a cached
+	 *         error, or <code>null</code>
+	 */
+	synchronized Object get(String path, boolean lstat)
+	{
+		CacheEntry e = entries.get(path);
+
+		if (e == null)
+			return null;
+
+		int i = lstat ? 1 : 0;
+		Object result = e.results[i];
+
+		if (result == null)
+			return null;
+
+		if (System.nanoTime() - e.expiry[i] >= 0)
+		{
+			e.results[i] = null;
+			return null;
+		}
+
+		if (result instanceof SFTPException)
+		{
+			SFTPException se = (SFTPException) result;
+			return new SFTPException(se.getServerErrorMessage(), se.getServerErrorCode());
+		}
+
+		return copy((SFTPv3FileAttributes) result);
+	}
+
+	/**
+	 * Caches a result, unless the cache was invalidated since the request was
+	 * sent (i.e., the result may be outdated already).
+	 *
+	 * @param result     the attributes or the error
+	 * @param generation the {@link #generation()} from before sending the request
+	 */
+	synchronized void put(String path, boolean lstat, Object result, long generation)
+	{
+		if (generation != this.generation)
+			return;
+
+		CacheEntry e = entries.get(path);
+
+		if (e == null)
+		{
+			e = new CacheEntry();
+			entries.put(path, e);
+		}
+
+		int i = lstat ? 1 : 0;
+
+		e.results[i] = (result instanceof SFTPv3FileAttributes) ? copy((SFTPv3FileAttributes) result) : result;
+		e.expiry[i] = System.nanoTime() + ttlNanos;
+	}
+
+	/**
+	 * Forgets a path and its parent.
+	 */
+	synchronized void invalidate(String path)
+	{
+		generation++;
+
+		entries.remove(path);
+
+		String parent = parentOf(path);
+		if (parent != null)
+			entries.remove(parent);
+	}
+
+	/**
+	 * Forgets a path, its parent and everything below it, e.g., after a
+	 * directory has been moved.
+	 */
+	synchronized void invalidateTree(String path)
+	{
+		invalidate(path);
+
+		String prefix = path.endsWith("/") ? path : path + "/";
+
+		Iterator<String> it = entries.keySet().iterator();
+		while (it.hasNext())
+		{
+			if (it.next().startsWith(prefix))
+				it.remove();
+		}
+	}
+
+	synchronized void clear()
+	{
+		generation++;
+		entries.clear();
+	}
+
+	private static String parentOf(String path)
+	{
+		int idx = path.lastIndexOf('/', path.length() - 2);
+
+		if (idx < 0)
+			return null;
+
+		return (idx == 0) ? "/" : path.substring(0, idx);
+	}
+
+	private static SFTPv3FileAttributes copy(SFTPv3FileAttributes a)
+	{
+		SFTPv3FileAttributes c = new SFTPv3FileAttributes();
+		c.size = a.size;
+		c.uid = a.uid;
+		c.gid = a.gid;
+		c.permissions = a.permissions;
+		c.atime = a.atime;
+		c.mtime = a.mtime;
+		return c;
+	}
+}
@@ -0,0 +1,252 @@
+package com.trilead.ssh2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import com.trilead.ssh2.channel.CallbackExecutor;
+
+/**
+ * SFTPDispatcher. Sends the requests of a {@link SFTPv3Client} for any number
+ * of threads and hands each reply to the future of its request, matched by
+ * request ID. Replies may thus arrive in any order, and many requests may be
+ * outstanding at the same time.
+ * <p>
+ * There is no reader thread: the replies are read when the channel reports
+ * new data, on the shared callback executor. The futures are completed on
+ * that executor as well, but never by the reading task itself, so a
+ * dependent action may block on another request.
+ */
+final class SFTPDispatcher extends ChannelAdapter
+{
+	private final InputStream is;
+	private final InputStream es;
+	private final OutputStream os;
+	private final PrintStream debug;
+	private final Executor executor = CallbackExecutor.getExecutor();
+
+	private final Object sendLock = new Object();
+
+	private volatile int maxMessageLength;
+
+	/* Guarded by "this" */
+
+	private final HashMap<Integer, CompletableFuture<byte[]>> pending = new HashMap<Integer, CompletableFuture<byte[]>>();
+	private IOException failure = null;
+
+	/* Only used by the reader, which never runs concurrently with itself */
+
+	private final byte[] header = new byte[4];
+	private int headerPos = 0;
+	private byte[] message = null;
+	private int messagePos = 0;
+	private final byte[] discard = new byte[1024];
+
+	/**
+	 * @param is the stdout of the channel, the replies
+	 * @param es the stderr of the channel, which is discarded
+	 * @param os the stdin of the channel, the requests
+	 */
+	SFTPDispatcher(InputStream is, InputStream es, OutputStream os, int maxMessageLength, PrintStream debug)
+	{
+		this.is = is;
+		this.es = es;
+		this.os = os;
+		this.maxMessageLength = maxMessageLength;
+		this.debug = debug;
+	}
+
+	/**
+	 * Starts reading the replies whenever the session has new data.
+	 */
+	void start(Session sess)
+	{
+		sess.addChannelListener(this, executor);
+	}
+
+	/**
+	 * @param len the largest reply (without the length field) that is accepted
+	 */
+	void setMaxMessageLength(int len)
+	{
+		maxMessageLength = len;
+	}
+
+	/**
+	 * Sends a request.
+	 *
+	 * @return the future reply, starting with the type and the request ID. It
+	 *         completes exceptionally if the request cannot be sent or the
+	 *         channel fails before the reply arrives.
+	 */
+	CompletableFuture<byte[]> request(int type, int requestId, byte[] msg, int off, int len)
+	{
+		CompletableFuture<byte[]> f = new CompletableFuture<byte[]>();
+		Integer id = Integer.valueOf(requestId);
+
+		synchronized (this)
+		{
+			if (failure != null)
+			{
+				f.completeExceptionally(failure);
+				return f;
+			}
+
+			/* Before sending, the reply may be quick */
+
+			pending.put(id, f);
+		}
+
+		int msglen = len + 5;
+
+		try
+		{
+			synchronized (sendLock)
+			{
+				os.write(msglen >> 24);
+				os.write(msglen >> 16);
+				os.write(msglen >> 8);
+				os.write(msglen);
+				os.write(type);
+				os.write(requestId >> 24);
+				os.write(requestId >> 16);
+				os.write(requestId >> 8);
+				os.write(requestId);
+				os.write(msg, off, len);
+				os.flush();
+			}
+		}
+		catch (IOException e)
+		{
+			synchronized (this)
+			{
+				pending.remove(id);
+			}
+			f.completeExceptionally(e);
+		}
+
+		return f;
+	}
+
+	public void dataAvailable(boolean stderr)
+	{
+		try
+		{
+			if (stderr)
+			{
+				/* Nobody else reads it, it must not block the channel window */
+
+				while (es.available() > 0)
+				{
+					int n = es.read(discard, 0, Math.min(discard.length, es.available()));
+					if ((debug != null) && (n > 0))
+						debug.println("SFTP stderr: " + new String(discard, 0, n));
+				}
+				return;
+			}
+
+			while (is.available() > 0)
+				readAvailable();
+		}
+		catch (IOException e)
+		{
+			fail(e);
+		}
+	}
+
+	public void eof()
+	{
+		dataAvailable(false);
+		fail(new IOException("The SFTP server closed the channel."));
+	}
+
+	public void closed(Throwable reason)
+	{
+		fail((IOException) new IOException("The SFTP channel is closed.").initCause(reason));
+	}
+
+	private void readAvailable() throws IOException
+	{
+		if (message == null)
+		{
+			int n = is.read(header, headerPos, 4 - headerPos);
+			if (n < 0)
+				throw new IOException("Unexpected end of sftp stream.");
+
+			headerPos += n;
+			if (headerPos < 4)
+				return;
+
+			headerPos = 0;
+
+			int len = (((header[0] & 0xff) << 24) | ((header[1] & 0xff) << 16) | ((header[2] & 0xff) << 8) | (header[3] & 0xff));
+
+			/* Every reply has at least a type and a request ID */
+
+			if ((len > maxMessageLength) || (len < 5))
+				throw new IOException("Illegal sftp packet len: " + len);
+
+			message = new byte[len];
+			messagePos = 0;
+			return;
+		}
+
+		int n = is.read(message, messagePos, message.length - messagePos);
+		if (n < 0)
+			throw new IOException("Unexpected end of sftp stream.");
+
+		messagePos += n;
+		if (messagePos < message.length)
+			return;
+
+		final byte[] msg = message;
+		message = null;
+
+		int id = ((msg[1] & 0xff) << 24) | ((msg[2] & 0xff) << 16) | ((msg[3] & 0xff) << 8) | (msg[4] & 0xff);
+
+		final CompletableFuture<byte[]> f;
+
+		synchronized (this)
+		{
+			f = pending.remove(Integer.valueOf(id));
+		}
+
+		if (f == null)
+			throw new IOException("The server sent an invalid id field (" + id + ").");
+
+		executor.execute(new Runnable()
+		{
+			public void run()
+			{
+				f.complete(msg);
+			}
+		});
+	}
+
+	/**
+	 * Fails all outstanding and future requests.
+	 */
+	private void fail(IOException e)
+	{
+		Object[] futures;
+
+		synchronized (this)
+		{
+			if (failure == null)
+				failure = e;
+
+			futures = pending.values().toArray();
+			pending.clear();
+		}
+
+		for (int i = 0; i < futures.length; i++)
+			((CompletableFuture<?>) futures[i]).completeExceptionally(failure);
+
+		if (debug != null)
+			debug.println("SFTP dispatcher failed: " + e.getMessage());
+	}
+}
@@ -0,0 +1,423 @@
+package com.trilead.ssh2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * SFTPFileChannel. A {@link SeekableByteChannel} over an open remote file,
+ * see {@link SFTPv3Client#openChannel(String, java.nio.file.OpenOption[])}.
+ * <p>
+ * The file is read in blocks of {@link SFTPv3Client#getMaxReadLength()}
+ * bytes, which are kept in a small LRU cache, so that repeated or small
+ * reads near each other cost one request per block. A read that spans
+ * several blocks sends the requests for all of them before waiting for the
+ * first. Once a few reads in a row continued where the previous one
+ * stopped, the following blocks are requested ahead of time, with up to
+ * {@link SFTPv3Client#getMaxOutstandingRequests()} of them in flight.
+ * <p>
+ * Writes go to the server directly (pipelined if they are large) and drop
+ * the cached blocks they overlap. Changes made to the file by others only
+ * show once the affected blocks were evicted.
+ */
+final class SFTPFileChannel implements SeekableByteChannel
+{
+	/* Number of cached blocks */
+
+	private static final int CACHE_BLOCKS = Integer.getInteger(SFTPFileChannel.class.getName() + ".cacheBlocks", 32).intValue();
+
+	/* Number of reads continuing the previous one before reading ahead */
+
+	private static final int SEQUENTIAL_THRESHOLD = 2;
+
+	private static final class Block
+	{
+		final long index;
+		CompletableFuture<byte[]> reply;
+
+		/* Set once the reply arrived, the data is at data[dataOffset] to data[dataOffset + length - 1] */
+
+		byte[] data;
+		int dataOffset;
+		int length;
+
+		Block(long index, CompletableFuture<byte[]> reply)
+		{
+			this.index = index;
+			this.reply = reply;
+		}
+	}
+
+	private final SFTPv3Client client;
+	private final SFTPv3FileHandle handle;
+	private final boolean readable;
+	private final boolean writable;
+	private final boolean append;
+	private final int blockSize;
+
+	private final LinkedHashMap<Long, Block> blocks; /* by index, in LRU order */
+
+	private long position = 0;
+	private boolean open = true;
+
+	/* The first block known to be the last one (or beyond), Long.MAX_VALUE if unknown */
+
+	private long eofBlock = Long.MAX_VALUE;
+
+	/* Sequential access detection */
+
+	private long nextSequential = -1;
+	private int sequentialReads = 0;
+	private int readAhead = 1;
+
+	SFTPFileChannel(SFTPv3Client client, SFTPv3FileHandle handle, boolean readable, boolean writable, boolean append)
+	{
+		this.client = client;
+		this.handle = handle;
+		this.readable = readable;
+		this.writable = writable;
+		this.append = append;
+		this.blockSize = client.getMaxReadLength();
+		this.blocks = new LinkedHashMap<Long, Block>(16, 0.75f, true)
+		{
+			protected boolean removeEldestEntry(Map.Entry<Long, Block> eldest)
+			{
+				return size() > CACHE_BLOCKS;
+			}
+		};
+	}
+
+	private void checkOpen() throws IOException
+	{
+		if (open == false)
+			throw new ClosedChannelException();
+	}
+
+	/**
+	 * Returns the cached block, or sends the request for it.
+	 */
+	private Block block(long index)
+	{
+		Long key = Long.valueOf(index);
+		Block b = blocks.get(key);
+
+		if (b == null)
+		{
+			b = new Block(index, client.readRequest(handle, index * blockSize, blockSize));
+			blocks.put(key, b);
+		}
+
+		return b;
+	}
+
+	/**
+	 * Waits for the data of a block. A short read that is not at the end of
+	 * the file is completed with further requests.
+	 */
+	private void resolve(Block b) throws IOException
+	{
+		if (b.reply == null)
+			return;
+
+		try
+		{
+			byte[] resp = SFTPv3Client.await(b.reply);
+			int n = client.dataLength(resp, blockSize);
+
+			if (n < 0)
+				n = 0;
+
+			b.data = resp;
+			b.dataOffset = SFTPv3Client.DATA_OFFSET;
+
+			if ((n > 0) && (n < blockSize))
+			{
+				byte[] data = new byte[blockSize];
+				System.arraycopy(resp, SFTPv3Client.DATA_OFFSET, data, 0, n);
+
+				while (n < blockSize)
+				{
+					long off = b.index * blockSize + n;
+					byte[] more = SFTPv3Client.await(client.readRequest(handle, off, blockSize - n));
+					int m = client.dataLength(more, blockSize - n);
+
+					if (m <= 0)
+						break;
+
+					System.arraycopy(more, SFTPv3Client.DATA_OFFSET, data, n, m);
+					n += m;
+				}
+
+				b.data = data;
+				b.dataOffset = 0;
+			}
+
+			b.length = n;
+			b.reply = null;
+
+			if ((n < blockSize) && (b.index < eofBlock))
+				eofBlock = b.index;
+		}
+		catch (IOException e)
+		{
+			blocks.remove(Long.valueOf(b.index));
+			throw e;
+		}
+	}
+
+	public synchronized int read(ByteBuffer dst) throws IOException
+	{
+		checkOpen();
+
+		if (readable == false)
+			throw new NonReadableChannelException();
+
+		int len = dst.remaining();
+
+		if (len == 0)
+			return 0;
+
+		long first = position / blockSize;
+		long last = (position + len - 1) / blockSize;
+
+		/* Don't request more than can be in flight, or beyond the known end */
+
+		last = Math.min(last, first + client.getMaxOutstandingRequests() - 1);
+		last = Math.min(last, Math.max(first, eofBlock));
+
+		if (position == nextSequential)
+		{
+			sequentialReads++;
+		}
+		else
+		{
+			sequentialReads = 0;
+			readAhead = 1;
+		}
+
+		/* Send the requests for all missing blocks at once */
+
+		LinkedList<Block> needed = new LinkedList<Block>();
+
+		for (long i = first; i <= last; i++)
+			needed.addLast(block(i));
+
+		if (sequentialReads >= SEQUENTIAL_THRESHOLD)
+		{
+			long end = Math.min(last + readAhead, eofBlock);
+
+			for (long i = last + 1; i <= end; i++)
+				block(i);
+
+			readAhead = Math.min(readAhead * 2, Math.max(1, Math.min(client.getMaxOutstandingRequests(), CACHE_BLOCKS / 2)));
+		}
+
+		int total = 0;
+
+		for (Iterator<Block> it = needed.iterator(); it.hasNext();)
+		{
+			Block b = it.next();
+
+			try
+			{
+				resolve(b);
+			}
+			catch (IOException e)
+			{
+				/* Return what was read, the next read fails again */
+
+				if (total == 0)
+					throw e;
+
+				break;
+			}
+
+			int skip = (int) (position - b.index * blockSize);
+
+			if (skip >= b.length)
+				break;
+
+			int n = Math.min(b.length - skip, dst.remaining());
+
+			dst.put(b.data, b.dataOffset + skip, n);
+			position += n;
+			total += n;
+
+			if ((b.length < blockSize) || (dst.hasRemaining() == false))
+				break;
+		}
+
+		if (total == 0)
+			return -1;
+
+		nextSequential = position;
+
+		return total;
+	}
+
+	public synchronized int write(ByteBuffer src) throws IOException
+	{
+		checkOpen();
+
+		if (writable == false)
+			throw new NonWritableChannelException();
+
+		if (append)
+			position = size();
+
+		int len = src.remaining();
+
+		if (len == 0)
+			return 0;
+
+		byte[] data;
+		int off;
+
+		if (src.hasArray())
+		{
+			data = src.array();
+			off = src.arrayOffset() + src.position();
+		}
+		else
+		{
+			data = new byte[len];
+			src.duplicate().get(data);
+			off = 0;
+		}
+
+		/* The requests copy the data, so they can all be sent before waiting */
+
+		int chunkSize = client.getMaxWriteLength();
+		LinkedList<CompletableFuture<Void>> outstanding = new LinkedList<CompletableFuture<Void>>();
+
+		try
+		{
+			for (int done = 0; done < len; done += chunkSize)
+			{
+				if (outstanding.size() >= client.getMaxOutstandingRequests())
+					SFTPv3Client.await(outstanding.removeFirst());
+
+				outstanding.addLast(client.writeRequest(handle, position + done, data, off + done, Math.min(chunkSize, len - done)));
+			}
+
+			while (outstanding.isEmpty() == false)
+				SFTPv3Client.await(outstanding.removeFirst());
+		}
+		finally
+		{
+			/* Even a failed write may have modified the file */
+
+			invalidate(position, position + len);
+			eofBlock = Long.MAX_VALUE;
+		}
+
+		src.position(src.position() + len);
+		position += len;
+
+		return len;
+	}
+
+	/**
+	 * Drops the cached blocks overlapping <code>[from, to)</code>.
+	 */
+	private void invalidate(long from, long to)
+	{
+		long first = from / blockSize;
+		long last = (to - 1) / blockSize;
+
+		for (Iterator<Long> it = blocks.keySet().iterator(); it.hasNext();)
+		{
+			long index = it.next().longValue();
+
+			if ((index >= first) && (index <= last))
+				it.remove();
+		}
+	}
+
+	public synchronized long position() throws IOException
+	{
+		checkOpen();
+
+		return position;
+	}
+
+	public synchronized SeekableByteChannel position(long newPosition) throws IOException
+	{
+		if (newPosition < 0)
+			throw new IllegalArgumentException("Negative position: " + newPosition);
+
+		checkOpen();
+
+		position = newPosition;
+
+		return this;
+	}
+
+	public synchronized long size() throws IOException
+	{
+		checkOpen();
+
+		SFTPv3FileAttributes attr = client.fstat(handle);
+
+		if (attr.size == null)
+			throw new IOException("The server did not report the size of the file.");
+
+		return attr.size.longValue();
+	}
+
+	public synchronized SeekableByteChannel truncate(long size) throws IOException
+	{
+		if (size < 0)
+			throw new IllegalArgumentException("Negative size: " + size);
+
+		checkOpen();
+
+		if (writable == false)
+			throw new NonWritableChannelException();
+
+		if (size < size())
+		{
+			SFTPv3FileAttributes attr = new SFTPv3FileAttributes();
+			attr.size = Long.valueOf(size);
+
+			try
+			{
+				client.fsetstat(handle, attr);
+			}
+			finally
+			{
+				invalidate(size, Long.MAX_VALUE);
+				eofBlock = Long.MAX_VALUE;
+			}
+		}
+
+		if (position > size)
+			position = size;
+
+		return this;
+	}
+
+	public synchronized boolean isOpen()
+	{
+		return open;
+	}
+
+	public synchronized void close() throws IOException
+	{
+		if (open == false)
+			return;
+
+		open = false;
+		blocks.clear();
+
+		client.closeFile(handle);
+	}
+}
@@ -0,0 +1,238 @@
+package com.trilead.ssh2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * SFTPInputStream. Reads a remote file sequentially, with read requests for
+ * the following chunks already outstanding while the caller consumes the
+ * current one. The number of prefetched chunks grows as long as the file is
+ * read sequentially, up to {@link SFTPv3Client#getMaxOutstandingRequests()},
+ * and starts over after a {@link #skip(long)}.
+ * <p>
+ * Like any stream, it is meant to be used by one thread.
+ */
+final class SFTPInputStream extends InputStream
+{
+	/**
+	 * A prefetch request.
+	 */
+	private static final class Chunk
+	{
+		final CompletableFuture<byte[]> reply;
+		final long offset;
+		final int len;
+
+		Chunk(CompletableFuture<byte[]> reply, long offset, int len)
+		{
+			this.reply = reply;
+			this.offset = offset;
+			this.len = len;
+		}
+	}
+
+	private final SFTPv3Client client;
+	private final SFTPv3FileHandle handle;
+	private final boolean closeHandle;
+
+	private final LinkedList<Chunk> outstanding = new LinkedList<Chunk>(); /* in file order */
+	private long nextOffset; /* where the next prefetch request starts */
+	private int window = 1;
+
+	/* The reply that is being consumed, the data is at buf[pos] to buf[end - 1] */
+
+	private byte[] buf = null;
+	private int pos = 0;
+	private int end = 0;
+
+	private long offset; /* of buf[pos] */
+	private boolean eof = false;
+	private boolean closed = false;
+
+	/**
+	 * @param closeHandle whether {@link #close()} closes the handle
+	 */
+	SFTPInputStream(SFTPv3Client client, SFTPv3FileHandle handle, long offset, boolean closeHandle)
+	{
+		this.client = client;
+		this.handle = handle;
+		this.offset = offset;
+		this.nextOffset = offset;
+		this.closeHandle = closeHandle;
+	}
+
+	/**
+	 * Makes sure that there is data in the buffer.
+	 *
+	 * @return false at the end of the file
+	 */
+	private boolean fill() throws IOException
+	{
+		if (closed)
+			throw new IOException("The stream is closed.");
+
+		while (pos == end)
+		{
+			if (eof)
+				return false;
+
+			int chunkSize = client.getMaxReadLength();
+
+			while (outstanding.size() < window)
+			{
+				outstanding.addLast(new Chunk(client.readRequest(handle, nextOffset, chunkSize), nextOffset, chunkSize));
+				nextOffset += chunkSize;
+			}
+
+			Chunk c = outstanding.removeFirst();
+
+			byte[] resp = SFTPv3Client.await(c.reply);
+
+			int n = client.dataLength(resp, c.len);
+
+			if (n <= 0)
+			{
+				/* The remaining prefetched chunks lie beyond the end, too */
+
+				eof = true;
+				outstanding.clear();
+				buf = null;
+				pos = end = 0;
+				return false;
+			}
+
+			if (n < c.len)
+			{
+				/* Short read, ask for the rest before anything else */
+
+				outstanding.addFirst(new Chunk(client.readRequest(handle, c.offset + n, c.len - n), c.offset + n, c.len - n));
+			}
+			else if (window < client.getMaxOutstandingRequests())
+				window++;
+
+			buf = resp;
+			pos = SFTPv3Client.DATA_OFFSET;
+			end = pos + n;
+		}
+
+		return true;
+	}
+
+	public int read() throws IOException
+	{
+		if (fill() == false)
+			return -1;
+
+		offset++;
+		return buf[pos++] & 0xff;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		if ((off < 0) || (len < 0) || (len > b.length - off))
+			throw new IndexOutOfBoundsException();
+
+		if (len == 0)
+			return 0;
+
+		if (fill() == false)
+			return -1;
+
+		int n = Math.min(len, end - pos);
+
+		System.arraycopy(buf, pos, b, off, n);
+		pos += n;
+		offset += n;
+
+		return n;
+	}
+
+	public int available() throws IOException
+	{
+		return end - pos;
+	}
+
+	/**
+	 * Skips within the current chunk if possible, otherwise drops the
+	 * prefetched chunks and continues at the new position. As with a local
+	 * file, skipping beyond the end is not detected.
+	 */
+	public long skip(long n) throws IOException
+	{
+		if (closed)
+			throw new IOException("The stream is closed.");
+
+		if (n <= 0)
+			return 0;
+
+		if (n <= end - pos)
+		{
+			pos += (int) n;
+			offset += n;
+			return n;
+		}
+
+		offset += n;
+
+		outstanding.clear();
+		buf = null;
+		pos = end = 0;
+		nextOffset = offset;
+		window = 1;
+		eof = false;
+
+		return n;
+	}
+
+	/**
+	 * Writes the rest of the file to <code>out</code>, see
+	 * {@link SFTPv3Client#download(SFTPv3FileHandle, long, OutputStream)}.
+	 *
+	 * @return the number of bytes written
+	 */
+	public long transferTo(OutputStream out) throws IOException
+	{
+		if (closed)
+			throw new IOException("The stream is closed.");
+
+		long total = 0;
+
+		if (end > pos)
+		{
+			out.write(buf, pos, end - pos);
+			total = end - pos;
+			offset += total;
+		}
+
+		outstanding.clear();
+		buf = null;
+		pos = end = 0;
+
+		if (eof == false)
+		{
+			long n = client.download(handle, offset, out);
+
+			offset += n;
+			total += n;
+			eof = true;
+		}
+
+		return total;
+	}
+
+	public void close() throws IOException
+	{
+		if (closed)
+			return;
+
+		closed = true;
+		outstanding.clear();
+		buf = null;
+
+		if (closeHandle)
+			client.closeFile(handle);
+	}
+}
@@ -0,0 +1,181 @@
+package com.trilead.ssh2;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * SFTPOutputStream. Writes a remote file sequentially without waiting for
+ * the reply to each write request. The data is collected into chunks of
+ * {@link SFTPv3Client#getMaxWriteLength()} bytes, and up to
+ * {@link SFTPv3Client#getMaxOutstandingRequests()} of them are in flight.
+ * <p>
+ * An error of the server is thus usually reported by a later call to
+ * <code>write()</code>, or at the latest by {@link #flush()} or
+ * {@link #close()}, which wait for all outstanding requests. After an error,
+ * every further call fails.
+ * <p>
+ * Like any stream, it is meant to be used by one thread.
+ */
+final class SFTPOutputStream extends OutputStream
+{
+	private final SFTPv3Client client;
+	private final SFTPv3FileHandle handle;
+	private final boolean closeHandle;
+
+	private final LinkedList<CompletableFuture<Void>> outstanding = new LinkedList<CompletableFuture<Void>>(); /* oldest first */
+
+	private final byte[] buf;
+	private int count = 0;
+
+	private long offset; /* of buf[0] */
+	private IOException failure = null;
+	private boolean closed = false;
+
+	/**
+	 * @param closeHandle whether {@link #close()} closes the handle
+	 */
+	SFTPOutputStream(SFTPv3Client client, SFTPv3FileHandle handle, long offset, boolean closeHandle)
+	{
+		this.client = client;
+		this.handle = handle;
+		this.offset = offset;
+		this.closeHandle = closeHandle;
+		this.buf = new byte[client.getMaxWriteLength()];
+	}
+
+	private void checkState() throws IOException
+	{
+		if (closed)
+			throw new IOException("The stream is closed.");
+
+		if (failure != null)
+			throw failure;
+	}
+
+	/**
+	 * Waits for the oldest request.
+	 */
+	private void complete() throws IOException
+	{
+		try
+		{
+			SFTPv3Client.await(outstanding.removeFirst());
+		}
+		catch (IOException e)
+		{
+			failure = e;
+			outstanding.clear();
+			throw e;
+		}
+	}
+
+	/**
+	 * Sends <code>len</code> bytes from <code>b</code>, waits only if too many
+	 * requests are outstanding.
+	 */
+	private void send(byte[] b, int off, int len) throws IOException
+	{
+		/* The data is copied into the request, b may be reused at once */
+
+		outstanding.addLast(client.writeRequest(handle, offset, b, off, len));
+		offset += len;
+
+		/* Report errors early, without waiting */
+
+		while ((outstanding.isEmpty() == false) && outstanding.getFirst().isDone())
+			complete();
+
+		while (outstanding.size() >= client.getMaxOutstandingRequests())
+			complete();
+	}
+
+	private void sendBuffer() throws IOException
+	{
+		if (count == 0)
+			return;
+
+		int n = count;
+		count = 0;
+		send(buf, 0, n);
+	}
+
+	public void write(int b) throws IOException
+	{
+		checkState();
+
+		buf[count++] = (byte) b;
+
+		if (count == buf.length)
+			sendBuffer();
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		if ((off < 0) || (len < 0) || (len > b.length - off))
+			throw new IndexOutOfBoundsException();
+
+		checkState();
+
+		while (len > 0)
+		{
+			if ((count == 0) && (len >= buf.length))
+			{
+				/* Large writes go out directly, without copying them into the buffer first */
+
+				send(b, off, buf.length);
+				off += buf.length;
+				len -= buf.length;
+				continue;
+			}
+
+			int n = Math.min(len, buf.length - count);
+
+			System.arraycopy(b, off, buf, count, n);
+			count += n;
+			off += n;
+			len -= n;
+
+			if (count == buf.length)
+				sendBuffer();
+		}
+	}
+
+	/**
+	 * Sends the buffered data and waits until the server has confirmed all
+	 * writes.
+	 */
+	public void flush() throws IOException
+	{
+		checkState();
+
+		sendBuffer();
+
+		while (outstanding.isEmpty() == false)
+			complete();
+	}
+
+	public void close() throws IOException
+	{
+		if (closed)
+			return;
+
+		try
+		{
+			if (failure == null)
+				flush();
+		}
+		finally
+		{
+			closed = true;
+			outstanding.clear();
+
+			if (closeHandle)
+				client.closeFile(handle);
+		}
+
+		if (failure != null)
+			throw failure;
+	}
+}
@@ -0,0 +1,88 @@
+package com.trilead.ssh2;
+
+import java.io.IOException;
+
+import com.trilead.ssh2.sftp.ErrorCodes;
+
+/**
+ * The outcome of one path of a batch operation of {@link SFTPv3Client}, e.g.,
+ * {@link SFTPv3Client#statAll(String[])}. The results are returned in the
+ * order of the paths.
+ */
+public class SFTPv3BatchResult
+{
+	private final String path;
+	private final SFTPv3FileAttributes attributes;
+	private final IOException error;
+
+	SFTPv3BatchResult(String path, SFTPv3FileAttributes attributes, IOException error)
+	{
+		this.path = path;
+		this.attributes = attributes;
+		this.error = error;
+	}
+
+	/**
+	 * @return the path this result belongs to
+	 */
+	public String getPath()
+	{
+		return path;
+	}
+
+	/**
+	 * @return true if the operation succeeded for this path
+	 */
+	public boolean isOK()
+	{
+		return error == null;
+	}
+
+	/**
+	 * @return the attributes for stat operations, <code>null</code> otherwise or
+	 *         in case of an error
+	 */
+	public SFTPv3FileAttributes getAttributes()
+	{
+		return attributes;
+	}
+
+	/**
+	 * @return the error, <code>null</code> on success. Errors reported by the
+	 *         server are {@link SFTPException}s.
+	 */
+	public IOException getError()
+	{
+		return error;
+	}
+
+	/**
+	 * @return true if the operation failed because the path does not exist
+	 */
+	public boolean isNoSuchFile()
+	{
+		if ((error instanceof SFTPException) == false)
+			return false;
+
+		int c = ((SFTPException) error).getServerErrorCode();
+
+		return (c == ErrorCodes.SSH_FX_NO_SUCH_FILE)
+				|| (c == ErrorCodes.SSH_FX_NO_SUCH_PATH);
+	}
+
+	/**
+	 * Throws the error, if any.
+	 *
+	 * @throws IOException the error of this path
+	 */
+	public void check() throws IOException
+	{
+		if (error != null)
+			throw error;
+	}
+
+	public String toString()
+	{
+		return path + ": " + ((error == null) ? "OK" : error.getMessage());
+	}
+}
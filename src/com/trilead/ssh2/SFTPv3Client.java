@@ -1,13 +1,27 @@
 package com.trilead.ssh2;
 
-import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.charset.Charset;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 import com.trilead.ssh2.packets.TypesReader;
 import com.trilead.ssh2.packets.TypesWriter;
@@ -18,8 +32,15 @@ import com.trilead.ssh2.sftp.Packet;
 
 /**
  * A <code>SFTPv3Client</code> represents a SFTP (protocol version 3)
- * client connection tunnelled over a SSH-2 connection. This is a very simple
- * (synchronous) implementation.
+ * client connection tunnelled over a SSH-2 connection.
+ * <p>
+ * The client may be used by several threads at the same time. Requests are
+ * matched to their replies by request ID, so they do not wait for each other.
+ * Besides the blocking methods, there are asynchronous variants (e.g.,
+ * {@link #statAsync(String)} or {@link #readAsync(SFTPv3FileHandle, long, int)})
+ * that return a <code>CompletableFuture</code> right after sending the
+ * request. Dependent actions of these futures run on the shared callback
+ * threads of the library.
  * <p>
  * Basically, most methods in this class map directly to one of
  * the packet types described in draft-ietf-secsh-filexfer-02.txt.
@@ -73,6 +94,37 @@ public class SFTPv3Client
 
 	int next_request_id = 1000;
 
+	SFTPDispatcher dispatcher;
+
+	/* Upper limit for the size of a reply, protects against garbage */
+
+	private static final int MAX_REPLY_LENGTH = 65536;
+
+	/* Largest read or write request, unless the server announces its limits */
+
+	private static final int DEFAULT_TRANSFER_LENGTH = 32768;
+
+	/* Higher limits of a server are not used, to bound the memory per request */
+
+	private static final int MAX_TRANSFER_LENGTH = 256 * 1024;
+
+	private static final String LIMITS_EXTENSION = "limits@openssh.com";
+
+	/* Server side copies, see copy(String, String) */
+
+	private static final String COPY_FILE_EXTENSION = "copy-file";
+	private static final String COPY_DATA_EXTENSION = "copy-data";
+
+	private int maxReadLength = DEFAULT_TRANSFER_LENGTH;
+	private int maxWriteLength = DEFAULT_TRANSFER_LENGTH;
+
+	/* See setAttributeCache(), null if disabled */
+
+	private volatile SFTPAttributeCache attributeCache = null;
+
+	private int maxOutstandingRequests = Integer.getInteger(
+			SFTPv3Client.class.getName() + ".maxOutstandingRequests", 64).intValue();
+
 	String charsetName = null;
 
 	/**
@@ -97,15 +149,27 @@ public class SFTPv3Client
 			debug.println("Opening session and starting SFTP subsystem.");
 
 		sess = conn.openSession();
-		sess.startSubSystem("sftp");
+
+		/* SSH_FXP_INIT goes out together with the subsystem request */
+
+		if (debug != null)
+			debug.println("Sending SSH_FXP_INIT (" + CLIENT_VERSION + ")...");
+
+		sess.setup().startSubSystem("sftp").writeStdin(initMessage()).send();
 
 		is = sess.getStdout();
-		os = new BufferedOutputStream(sess.getStdin(), 2048);
+		sess.setStdinBuffered(true, 0);
+		os = sess.getStdin();
 
 		if ((is == null) || (os == null))
 			throw new IOException("There is a problem with the streams of the underlying channel.");
 
 		init();
+
+		dispatcher = new SFTPDispatcher(is, sess.getStderr(), os, MAX_REPLY_LENGTH, debug);
+		dispatcher.start(sess);
+
+		queryLimits();
 	}
 
 	/**
@@ -178,34 +242,186 @@ public class SFTPv3Client
 			throw new IOException("The file handle is closed.");
 	}
 
-	private final void sendMessage(int type, int requestId, byte[] msg, int off, int len) throws IOException
+	private final CompletableFuture<byte[]> sendRequest(int type, int requestId, byte[] msg)
+	{
+		return dispatcher.request(type, requestId, msg, 0, msg.length);
+	}
+
+	/**
+	 * Waits for a reply or the result of an asynchronous operation.
+	 */
+	static <T> T await(CompletableFuture<T> f) throws IOException
+	{
+		try
+		{
+			return f.get();
+		}
+		catch (InterruptedException e)
+		{
+			throw new InterruptedIOException();
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+
+			throw (IOException) new IOException("The SFTP request failed: " + cause).initCause(cause);
+		}
+	}
+
+	private static <T> CompletableFuture<T> failedFuture(IOException e)
+	{
+		CompletableFuture<T> f = new CompletableFuture<T>();
+		f.completeExceptionally(e);
+		return f;
+	}
+
+	/**
+	 * Parses a reply, see {@link SFTPv3Client#requestAsync(int, byte[], ReplyParser)}.
+	 */
+	private interface ReplyParser<T>
+	{
+		T parse(byte[] resp) throws IOException;
+	}
+
+	private <T> CompletableFuture<T> requestAsync(int type, byte[] msg, final ReplyParser<T> parser)
+	{
+		return sendRequest(type, generateNextRequestID(), msg).thenApply(new Function<byte[], T>()
+		{
+			public T apply(byte[] resp)
+			{
+				try
+				{
+					return parser.parse(resp);
+				}
+				catch (IOException e)
+				{
+					throw new CompletionException(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return the exception for a reply that is not the expected one, i.e.,
+	 *         usually an error status
+	 */
+	private static IOException unexpectedReply(TypesReader tr, int t) throws IOException
 	{
-		int msglen = len + 1;
+		if (t != Packet.SSH_FXP_STATUS)
+			return new IOException("The SFTP server sent an unexpected packet type (" + t + ")");
+
+		int errorCode = tr.readUINT32();
 
-		if (type != Packet.SSH_FXP_INIT)
-			msglen += 4;
+		return new SFTPException(tr.readString(), errorCode);
+	}
 
-		os.write(msglen >> 24);
-		os.write(msglen >> 16);
-		os.write(msglen >> 8);
-		os.write(msglen);
-		os.write(type);
+	private final ReplyParser<Void> statusOKParser = new ReplyParser<Void>()
+	{
+		public Void parse(byte[] resp) throws IOException
+		{
+			expectStatusOK(resp);
+			return null;
+		}
+	};
 
-		if (type != Packet.SSH_FXP_INIT)
+	private final ReplyParser<SFTPv3FileAttributes> attrsParser = new ReplyParser<SFTPv3FileAttributes>()
+	{
+		public SFTPv3FileAttributes parse(byte[] resp) throws IOException
 		{
-			os.write(requestId >> 24);
-			os.write(requestId >> 16);
-			os.write(requestId >> 8);
-			os.write(requestId);
+			TypesReader tr = new TypesReader(resp);
+
+			int t = tr.readByte();
+			tr.readUINT32(); /* request ID, matched already */
+
+			if (t == Packet.SSH_FXP_ATTRS)
+				return readAttrs(tr);
+
+			throw unexpectedReply(tr, t);
 		}
+	};
+
+	private ReplyParser<SFTPv3FileHandle> handleParser(final String fileName)
+	{
+		return new ReplyParser<SFTPv3FileHandle>()
+		{
+			public SFTPv3FileHandle parse(byte[] resp) throws IOException
+			{
+				TypesReader tr = new TypesReader(resp);
+
+				int t = tr.readByte();
+				tr.readUINT32(); /* request ID, matched already */
+
+				if (t == Packet.SSH_FXP_HANDLE)
+				{
+					if (debug != null)
+					{
+						debug.println("Got SSH_FXP_HANDLE.");
+						debug.flush();
+					}
+
+					return new SFTPv3FileHandle(SFTPv3Client.this, tr.readByteString(), fileName);
+				}
 
-		os.write(msg, off, len);
-		os.flush();
+				throw unexpectedReply(tr, t);
+			}
+		};
 	}
 
-	private final void sendMessage(int type, int requestId, byte[] msg) throws IOException
+	/* The data of an SSH_FXP_DATA reply starts after type, request ID and length */
+
+	static final int DATA_OFFSET = 9;
+
+	/**
+	 * Checks the reply to a read request.
+	 *
+	 * @return the number of bytes in the reply (starting at {@link #DATA_OFFSET}),
+	 *         -1 on EOF
+	 */
+	int dataLength(byte[] resp, int len) throws IOException
 	{
-		sendMessage(type, requestId, msg, 0, msg.length);
+		TypesReader tr = new TypesReader(resp);
+
+		int t = tr.readByte();
+		tr.readUINT32(); /* request ID, matched already */
+
+		if (t == Packet.SSH_FXP_DATA)
+		{
+			if (debug != null)
+			{
+				debug.println("Got SSH_FXP_DATA...");
+				debug.flush();
+			}
+
+			int readLen = tr.readUINT32();
+
+			if ((readLen < 0) || (readLen > len) || (readLen > tr.remain()))
+				throw new IOException("The server sent an invalid length field.");
+
+			return readLen;
+		}
+
+		if (t != Packet.SSH_FXP_STATUS)
+			throw new IOException("The SFTP server sent an unexpected packet type (" + t + ")");
+
+		int errorCode = tr.readUINT32();
+
+		if (errorCode == ErrorCodes.SSH_FX_EOF)
+		{
+			if (debug != null)
+			{
+				debug.println("Got SSH_FX_EOF.");
+				debug.flush();
+			}
+
+			return -1;
+		}
+
+		String errorMessage = tr.readString();
+
+		throw new SFTPException(errorMessage, errorCode);
 	}
 
 	private final void readBytes(byte[] buff, int pos, int len) throws IOException
@@ -259,16 +475,17 @@ public class SFTPv3Client
 		}
 	}
 
-	private final void closeHandle(byte[] handle) throws IOException
+	final void closeHandle(byte[] handle) throws IOException
 	{
-		int req_id = generateNextRequestID();
+		await(closeHandleAsync(handle));
+	}
 
+	final CompletableFuture<Void> closeHandleAsync(byte[] handle)
+	{
 		TypesWriter tw = new TypesWriter();
 		tw.writeString(handle, 0, handle.length);
 
-		sendMessage(Packet.SSH_FXP_CLOSE, req_id, tw.getBytes());
-
-		expectStatusOKMessage(req_id);
+		return requestAsync(Packet.SSH_FXP_CLOSE, tw.getBytes(), statusOKParser);
 	}
 
 	private SFTPv3FileAttributes readAttrs(TypesReader tr) throws IOException
@@ -352,9 +569,25 @@ public class SFTPv3Client
 	 */
 	public SFTPv3FileAttributes fstat(SFTPv3FileHandle handle) throws IOException
 	{
-		checkHandleValidAndOpen(handle);
+		return await(fstatAsync(handle));
+	}
 
-		int req_id = generateNextRequestID();
+	/**
+	 * Asynchronous variant of {@link #fstat(SFTPv3FileHandle)}.
+	 *
+	 * @param handle a SFTPv3FileHandle handle.
+	 * @return the future attributes
+	 */
+	public CompletableFuture<SFTPv3FileAttributes> fstatAsync(SFTPv3FileHandle handle)
+	{
+		try
+		{
+			checkHandleValidAndOpen(handle);
+		}
+		catch (IOException e)
+		{
+			return failedFuture(e);
+		}
 
 		TypesWriter tw = new TypesWriter();
 		tw.writeString(handle.fileHandle, 0, handle.fileHandle.length);
@@ -365,79 +598,151 @@ public class SFTPv3Client
 			debug.flush();
 		}
 
-		sendMessage(Packet.SSH_FXP_FSTAT, req_id, tw.getBytes());
+		return requestAsync(Packet.SSH_FXP_FSTAT, tw.getBytes(), attrsParser);
+	}
+
+	private CompletableFuture<SFTPv3FileAttributes> statBoth(final String path, int statMethod)
+	{
+		final SFTPAttributeCache cache = attributeCache;
+		final boolean lstat = (statMethod == Packet.SSH_FXP_LSTAT);
+
+		long generation = 0;
+
+		if (cache != null)
+		{
+			Object cached = cache.get(path, lstat);
+
+			if (cached instanceof SFTPv3FileAttributes)
+				return CompletableFuture.completedFuture((SFTPv3FileAttributes) cached);
+
+			if (cached instanceof IOException)
+				return failedFuture((IOException) cached);
+
+			generation = cache.generation();
+		}
+
+		TypesWriter tw = new TypesWriter();
 
-		byte[] resp = receiveMessage(34000);
+		try
+		{
+			tw.writeString(path, charsetName);
+		}
+		catch (IOException e)
+		{
+			return failedFuture(e);
+		}
 
 		if (debug != null)
 		{
-			debug.println("Got REPLY.");
+			debug.println("Sending SSH_FXP_STAT/SSH_FXP_LSTAT...");
 			debug.flush();
 		}
 
-		TypesReader tr = new TypesReader(resp);
+		CompletableFuture<SFTPv3FileAttributes> f = requestAsync(statMethod, tw.getBytes(), attrsParser);
 
-		int t = tr.readByte();
+		if (cache == null)
+			return f;
 
-		int rep_id = tr.readUINT32();
-		if (rep_id != req_id)
-			throw new IOException("The server sent an invalid id field.");
+		final long requestGeneration = generation;
 
-		if (t == Packet.SSH_FXP_ATTRS)
+		return f.whenComplete(new BiConsumer<SFTPv3FileAttributes, Throwable>()
 		{
-			return readAttrs(tr);
-		}
+			public void accept(SFTPv3FileAttributes attr, Throwable error)
+			{
+				if (attr != null)
+				{
+					cache.put(path, lstat, attr, requestGeneration);
+					return;
+				}
 
-		if (t != Packet.SSH_FXP_STATUS)
-			throw new IOException("The SFTP server sent an unexpected packet type (" + t + ")");
+				if (error instanceof CompletionException)
+					error = error.getCause();
 
-		int errorCode = tr.readUINT32();
+				if (error instanceof SFTPException)
+				{
+					int c = ((SFTPException) error).getServerErrorCode();
 
-		throw new SFTPException(tr.readString(), errorCode);
+					if ((c == ErrorCodes.SSH_FX_NO_SUCH_FILE) || (c == ErrorCodes.SSH_FX_NO_SUCH_PATH))
+						cache.put(path, lstat, error, requestGeneration);
+				}
+			}
+		});
 	}
 
-	private SFTPv3FileAttributes statBoth(String path, int statMethod) throws IOException
+	/**
+	 * Enables a cache for the results of {@link #stat(String)} and
+	 * {@link #lstat(String)} (and thus {@link #exists(String)} and the other
+	 * methods built on them), which saves the round trips of callers that
+	 * check the same paths again and again. "No such file" errors are cached
+	 * as well. Paths this client modifies (mkdir, rm, rmdir, mv, setstat,
+	 * symlinks, writes to files) are dropped from the cache, together with
+	 * their parent directories. Changes made by others, though, only show
+	 * once the entries have expired. Paths are cached as given, i.e., "a/b"
+	 * and "a//b" are different entries.
+	 * <p>
+	 * The cache is disabled by default.
+	 *
+	 * @param maxEntries the number of paths to remember, the least recently
+	 *                   used ones are evicted first. 0 disables the cache.
+	 * @param ttlMillis  how long a result is used, in milliseconds
+	 */
+	public void setAttributeCache(int maxEntries, long ttlMillis)
 	{
-		int req_id = generateNextRequestID();
+		if ((maxEntries < 0) || (ttlMillis < 0))
+			throw new IllegalArgumentException("maxEntries and ttlMillis may not be negative");
 
-		TypesWriter tw = new TypesWriter();
-		tw.writeString(path, charsetName);
+		attributeCache = ((maxEntries == 0) || (ttlMillis == 0)) ? null : new SFTPAttributeCache(maxEntries, ttlMillis);
+	}
 
-		if (debug != null)
-		{
-			debug.println("Sending SSH_FXP_STAT/SSH_FXP_LSTAT...");
-			debug.flush();
-		}
+	/**
+	 * Empties the cache enabled with {@link #setAttributeCache(int, long)},
+	 * e.g., after the files have been modified by others.
+	 */
+	public void clearAttributeCache()
+	{
+		SFTPAttributeCache cache = attributeCache;
 
-		sendMessage(statMethod, req_id, tw.getBytes());
+		if (cache != null)
+			cache.clear();
+	}
 
-		byte[] resp = receiveMessage(34000);
+	private void invalidate(String path)
+	{
+		SFTPAttributeCache cache = attributeCache;
 
-		if (debug != null)
-		{
-			debug.println("Got REPLY.");
-			debug.flush();
-		}
+		if ((cache != null) && (path != null))
+			cache.invalidate(path);
+	}
 
-		TypesReader tr = new TypesReader(resp);
+	private void invalidateTree(String path)
+	{
+		SFTPAttributeCache cache = attributeCache;
 
-		int t = tr.readByte();
+		if (cache != null)
+			cache.invalidateTree(path);
+	}
 
-		int rep_id = tr.readUINT32();
-		if (rep_id != req_id)
-			throw new IOException("The server sent an invalid id field.");
+	/**
+	 * Invalidates the path again once the request that modifies it has
+	 * completed. The invalidation before sending it is not enough: a stat
+	 * sent by another thread in between may be answered before the
+	 * modification, and its result would stay cached.
+	 */
+	private <T> CompletableFuture<T> invalidateWhenDone(CompletableFuture<T> f, final String path, final boolean tree)
+	{
+		if ((attributeCache == null) || (path == null))
+			return f;
 
-		if (t == Packet.SSH_FXP_ATTRS)
+		return f.whenComplete(new BiConsumer<T, Throwable>()
 		{
-			return readAttrs(tr);
-		}
-
-		if (t != Packet.SSH_FXP_STATUS)
-			throw new IOException("The SFTP server sent an unexpected packet type (" + t + ")");
-
-		int errorCode = tr.readUINT32();
-
-		throw new SFTPException(tr.readString(), errorCode);
+			public void accept(T result, Throwable error)
+			{
+				if (tree)
+					invalidateTree(path);
+				else
+					invalidate(path);
+			}
+		});
 	}
 
 	/**
@@ -451,6 +756,17 @@ public class SFTPv3Client
 	 * @throws IOException the io exception
 	 */
 	public SFTPv3FileAttributes stat(String path) throws IOException
+	{
+		return await(statAsync(path));
+	}
+
+	/**
+	 * Asynchronous variant of {@link #stat(String)}.
+	 *
+	 * @param path See the {@link SFTPv3Client comment} for the class for more details.
+	 * @return the future attributes
+	 */
+	public CompletableFuture<SFTPv3FileAttributes> statAsync(String path)
 	{
 		return statBoth(path, Packet.SSH_FXP_STAT);
 	}
@@ -466,6 +782,17 @@ public class SFTPv3Client
 	 * @throws IOException the io exception
 	 */
 	public SFTPv3FileAttributes lstat(String path) throws IOException
+	{
+		return await(lstatAsync(path));
+	}
+
+	/**
+	 * Asynchronous variant of {@link #lstat(String)}.
+	 *
+	 * @param path See the {@link SFTPv3Client comment} for the class for more details.
+	 * @return the future attributes
+	 */
+	public CompletableFuture<SFTPv3FileAttributes> lstatAsync(String path)
 	{
 		return statBoth(path, Packet.SSH_FXP_LSTAT);
 	}
@@ -490,9 +817,7 @@ public class SFTPv3Client
 			debug.flush();
 		}
 
-		sendMessage(Packet.SSH_FXP_READLINK, req_id, tw.getBytes());
-
-		byte[] resp = receiveMessage(34000);
+		byte[] resp = await(sendRequest(Packet.SSH_FXP_READLINK, req_id, tw.getBytes()));
 
 		if (debug != null)
 		{
@@ -526,10 +851,8 @@ public class SFTPv3Client
 		throw new SFTPException(tr.readString(), errorCode);
 	}
 
-	private void expectStatusOKMessage(int id) throws IOException
+	private void expectStatusOK(byte[] resp) throws IOException
 	{
-		byte[] resp = receiveMessage(34000);
-
 		if (debug != null)
 		{
 			debug.println("Got REPLY.");
@@ -539,10 +862,7 @@ public class SFTPv3Client
 		TypesReader tr = new TypesReader(resp);
 
 		int t = tr.readByte();
-
-		int rep_id = tr.readUINT32();
-		if (rep_id != id)
-			throw new IOException("The server sent an invalid id field.");
+		tr.readUINT32(); /* request ID, matched already */
 
 		if (t != Packet.SSH_FXP_STATUS)
 			throw new IOException("The SFTP server sent an unexpected packet type (" + t + ")");
@@ -566,21 +886,40 @@ public class SFTPv3Client
 	 */
 	public void setstat(String path, SFTPv3FileAttributes attr) throws IOException
 	{
-		int req_id = generateNextRequestID();
+		await(setstatAsync(path, attr));
+	}
 
+	/**
+	 * Asynchronous variant of {@link #setstat(String, SFTPv3FileAttributes)}.
+	 *
+	 * @param path See the {@link SFTPv3Client comment} for the class for more details.
+	 * @param attr the modifications, empty fields will be ignored
+	 * @return a future that completes once the server has applied the modifications
+	 */
+	public CompletableFuture<Void> setstatAsync(String path, SFTPv3FileAttributes attr)
+	{
 		TypesWriter tw = new TypesWriter();
-		tw.writeString(path, charsetName);
+
+		try
+		{
+			tw.writeString(path, charsetName);
+		}
+		catch (IOException e)
+		{
+			return failedFuture(e);
+		}
+
 		tw.writeBytes(createAttrs(attr));
 
+		invalidate(path);
+
 		if (debug != null)
 		{
 			debug.println("Sending SSH_FXP_SETSTAT...");
 			debug.flush();
 		}
 
-		sendMessage(Packet.SSH_FXP_SETSTAT, req_id, tw.getBytes());
-
-		expectStatusOKMessage(req_id);
+		return invalidateWhenDone(requestAsync(Packet.SSH_FXP_SETSTAT, tw.getBytes(), statusOKParser), path, false);
 	}
 
 	/**
@@ -602,15 +941,22 @@ public class SFTPv3Client
 		tw.writeString(handle.fileHandle, 0, handle.fileHandle.length);
 		tw.writeBytes(createAttrs(attr));
 
+		invalidate(handle.fileName);
+
 		if (debug != null)
 		{
 			debug.println("Sending SSH_FXP_FSETSTAT...");
 			debug.flush();
 		}
 
-		sendMessage(Packet.SSH_FXP_FSETSTAT, req_id, tw.getBytes());
-
-		expectStatusOKMessage(req_id);
+		try
+		{
+			expectStatusOK(await(sendRequest(Packet.SSH_FXP_FSETSTAT, req_id, tw.getBytes())));
+		}
+		finally
+		{
+			invalidate(handle.fileName);
+		}
 	}
 
 	/**
@@ -633,15 +979,24 @@ public class SFTPv3Client
 		tw.writeString(target, charsetName);
 		tw.writeString(src, charsetName);
 
+		invalidate(src);
+		invalidate(target);
+
 		if (debug != null)
 		{
 			debug.println("Sending SSH_FXP_SYMLINK...");
 			debug.flush();
 		}
 
-		sendMessage(Packet.SSH_FXP_SYMLINK, req_id, tw.getBytes());
-
-		expectStatusOKMessage(req_id);
+		try
+		{
+			expectStatusOK(await(sendRequest(Packet.SSH_FXP_SYMLINK, req_id, tw.getBytes())));
+		}
+		finally
+		{
+			invalidate(src);
+			invalidate(target);
+		}
 	}
 
 	/**
@@ -666,9 +1021,7 @@ public class SFTPv3Client
 			debug.flush();
 		}
 
-		sendMessage(Packet.SSH_FXP_REALPATH, req_id, tw.getBytes());
-
-		byte[] resp = receiveMessage(34000);
+		byte[] resp = await(sendRequest(Packet.SSH_FXP_REALPATH, req_id, tw.getBytes()));
 
 		if (debug != null)
 		{
@@ -702,86 +1055,46 @@ public class SFTPv3Client
 		throw new SFTPException(tr.readString(), errorCode);
 	}
 
-	private final Vector scanDirectory(byte[] handle) throws IOException
+	/**
+	 * Sends a READDIR request, see {@link SFTPv3DirectoryStream}.
+	 */
+	CompletableFuture<byte[]> readdirRequest(byte[] handle)
 	{
-		Vector files = new Vector();
+		TypesWriter tw = new TypesWriter();
+		tw.writeString(handle, 0, handle.length);
 
-		while (true)
+		if (debug != null)
 		{
-			int req_id = generateNextRequestID();
-
-			TypesWriter tw = new TypesWriter();
-			tw.writeString(handle, 0, handle.length);
-
-			if (debug != null)
-			{
-				debug.println("Sending SSH_FXP_READDIR...");
-				debug.flush();
-			}
-
-			sendMessage(Packet.SSH_FXP_READDIR, req_id, tw.getBytes());
-		
-			/* Some servers send here a packet with size > 34000 */
-			/* To whom it may concern: please learn to read the specs. */
-			
-			byte[] resp = receiveMessage(65536);
-
-			if (debug != null)
-			{
-				debug.println("Got REPLY.");
-				debug.flush();
-			}
-
-			TypesReader tr = new TypesReader(resp);
-
-			int t = tr.readByte();
-
-			int rep_id = tr.readUINT32();
-			if (rep_id != req_id)
-				throw new IOException("The server sent an invalid id field.");
-
-			if (t == Packet.SSH_FXP_NAME)
-			{
-				int count = tr.readUINT32();
-
-				if (debug != null)
-					debug.println("Parsing " + count + " name entries...");
-
-				while (count > 0)
-				{
-					SFTPv3DirectoryEntry dirEnt = new SFTPv3DirectoryEntry();
-
-					dirEnt.filename = tr.readString(charsetName);
-					dirEnt.longEntry = tr.readString(charsetName);
-
-					dirEnt.attributes = readAttrs(tr);
-					files.addElement(dirEnt);
-
-					if (debug != null)
-						debug.println("File: '" + dirEnt.filename + "'");
-					count--;
-				}
-				continue;
-			}
-
-			if (t != Packet.SSH_FXP_STATUS)
-				throw new IOException("The SFTP server sent an unexpected packet type (" + t + ")");
-
-			int errorCode = tr.readUINT32();
+			debug.println("Sending SSH_FXP_READDIR...");
+			debug.flush();
+		}
 
-			if (errorCode == ErrorCodes.SSH_FX_EOF)
-				return files;
+		/* Some servers send here a packet with size > 34000 */
+		/* To whom it may concern: please learn to read the specs. */
 
-			throw new SFTPException(tr.readString(), errorCode);
-		}
+		return sendRequest(Packet.SSH_FXP_READDIR, generateNextRequestID(), tw.getBytes());
 	}
 
 	private final byte[] openDirectory(String path) throws IOException
 	{
-		int req_id = generateNextRequestID();
+		return await(openDirectoryAsync(path));
+	}
 
+	/**
+	 * @return the future handle of the directory
+	 */
+	CompletableFuture<byte[]> openDirectoryAsync(String path)
+	{
 		TypesWriter tw = new TypesWriter();
-		tw.writeString(path, charsetName);
+
+		try
+		{
+			tw.writeString(path, charsetName);
+		}
+		catch (IOException e)
+		{
+			return failedFuture(e);
+		}
 
 		if (debug != null)
 		{
@@ -789,37 +1102,29 @@ public class SFTPv3Client
 			debug.flush();
 		}
 
-		sendMessage(Packet.SSH_FXP_OPENDIR, req_id, tw.getBytes());
-
-		byte[] resp = receiveMessage(34000);
-
-		TypesReader tr = new TypesReader(resp);
-
-		int t = tr.readByte();
-
-		int rep_id = tr.readUINT32();
-		if (rep_id != req_id)
-			throw new IOException("The server sent an invalid id field.");
-
-		if (t == Packet.SSH_FXP_HANDLE)
+		return requestAsync(Packet.SSH_FXP_OPENDIR, tw.getBytes(), new ReplyParser<byte[]>()
 		{
-			if (debug != null)
+			public byte[] parse(byte[] resp) throws IOException
 			{
-				debug.println("Got SSH_FXP_HANDLE.");
-				debug.flush();
-			}
+				TypesReader tr = new TypesReader(resp);
 
-			byte[] handle = tr.readByteString();
-			return handle;
-		}
+				int t = tr.readByte();
+				tr.readUINT32(); /* request ID, matched already */
 
-		if (t != Packet.SSH_FXP_STATUS)
-			throw new IOException("The SFTP server sent an unexpected packet type (" + t + ")");
+				if (t == Packet.SSH_FXP_HANDLE)
+				{
+					if (debug != null)
+					{
+						debug.println("Got SSH_FXP_HANDLE.");
+						debug.flush();
+					}
 
-		int errorCode = tr.readUINT32();
-		String errorMessage = tr.readString();
+					return tr.readByteString();
+				}
 
-		throw new SFTPException(errorMessage, errorCode);
+				throw unexpectedReply(tr, t);
+			}
+		});
 	}
 
 	private final String expandString(byte[] b, int off, int len)
@@ -843,19 +1148,23 @@ public class SFTPv3Client
 		return sb.toString();
 	}
 
-	private void init() throws IOException
-	{
-		/* Send SSH_FXP_INIT (version 3) */
-
-		final int client_version = 3;
-
-		if (debug != null)
-			debug.println("Sending SSH_FXP_INIT (" + client_version + ")...");
+	private static final int CLIENT_VERSION = 3;
 
+	/**
+	 * SSH_FXP_INIT (version 3), ready to be sent. Unlike all other messages,
+	 * it has no request ID.
+	 */
+	private static byte[] initMessage()
+	{
 		TypesWriter tw = new TypesWriter();
-		tw.writeUINT32(client_version);
-		sendMessage(Packet.SSH_FXP_INIT, 0, tw.getBytes());
+		tw.writeUINT32(5);
+		tw.writeByte(Packet.SSH_FXP_INIT);
+		tw.writeUINT32(CLIENT_VERSION);
+		return tw.getBytes();
+	}
 
+	private void init() throws IOException
+	{
 		/* Receive SSH_FXP_VERSION */
 
 		if (debug != null)
@@ -892,6 +1201,105 @@ public class SFTPv3Client
 		}
 	}
 
+	/**
+	 * Asks a server that announces the "limits@openssh.com" extension (see
+	 * PROTOCOL in the OpenSSH sources) for the largest requests it accepts.
+	 * Modern servers allow reads and writes of about 255 KB, i.e., bulk
+	 * transfers need far fewer requests than with the 32 KB that are safe
+	 * with any server.
+	 */
+	private void queryLimits() throws IOException
+	{
+		if (server_extensions.containsKey(LIMITS_EXTENSION) == false)
+			return;
+
+		if (debug != null)
+			debug.println("Sending SSH_FXP_EXTENDED (" + LIMITS_EXTENSION + ")...");
+
+		TypesWriter tw = new TypesWriter();
+		tw.writeString(LIMITS_EXTENSION);
+
+		byte[] resp = await(sendRequest(Packet.SSH_FXP_EXTENDED, generateNextRequestID(), tw.getBytes()));
+
+		TypesReader tr = new TypesReader(resp);
+
+		int t = tr.readByte();
+		tr.readUINT32(); /* request ID, matched already */
+
+		if (t != Packet.SSH_FXP_EXTENDED_REPLY)
+		{
+			/* Announced, but refused. The defaults work anyway. */
+
+			if (debug != null)
+				debug.println("The server did not answer the " + LIMITS_EXTENSION + " request (got " + t + ")");
+			return;
+		}
+
+		long maxPacket = tr.readUINT64();
+		long maxRead = tr.readUINT64();
+		long maxWrite = tr.readUINT64();
+
+		/* The last field, the number of open handles, is of no interest */
+
+		maxReadLength = transferLength(maxRead);
+		maxWriteLength = transferLength(maxWrite);
+
+		/* A DATA reply is slightly larger than the data, other replies (e.g., READDIR) may use the whole packet size */
+
+		int maxReply = Math.max(MAX_REPLY_LENGTH, maxReadLength + 1024);
+
+		if ((maxPacket < 0) || (maxPacket > MAX_TRANSFER_LENGTH + 1024))
+			maxPacket = MAX_TRANSFER_LENGTH + 1024;
+
+		maxReply = Math.max(maxReply, (int) maxPacket);
+
+		dispatcher.setMaxMessageLength(maxReply);
+
+		if (debug != null)
+			debug.println(LIMITS_EXTENSION + ": max read = " + maxRead + ", max write = " + maxWrite
+					+ ", max packet = " + maxPacket + " -> using " + maxReadLength + "/" + maxWriteLength);
+	}
+
+	/**
+	 * @param limit a limit of the server, 0 means unknown and uint64 values
+	 *              above 2^63 appear negative
+	 */
+	private static int transferLength(long limit)
+	{
+		if (limit == 0)
+			return DEFAULT_TRANSFER_LENGTH;
+
+		if ((limit < 0) || (limit > MAX_TRANSFER_LENGTH))
+			return MAX_TRANSFER_LENGTH;
+
+		return (int) limit;
+	}
+
+	/**
+	 * The largest number of bytes {@link #read(SFTPv3FileHandle, long, byte[], int, int)}
+	 * can fetch with one request. This is 32768, unless the server announced
+	 * a different limit through the "limits@openssh.com" extension.
+	 *
+	 * @return the maximum read length
+	 */
+	public int getMaxReadLength()
+	{
+		return maxReadLength;
+	}
+
+	/**
+	 * The largest number of bytes that are sent with one write request,
+	 * {@link #write(SFTPv3FileHandle, long, byte[], int, int)} splits larger
+	 * writes. This is 32768, unless the server announced a different limit
+	 * through the "limits@openssh.com" extension.
+	 *
+	 * @return the maximum write length
+	 */
+	public int getMaxWriteLength()
+	{
+		return maxWriteLength;
+	}
+
 	/**
 	 * Returns the negotiated SFTP protocol version between the client and the server.
 	 * 
@@ -918,7 +1326,9 @@ public class SFTPv3Client
 	}
 
 	/**
-	 * List the contents of a directory.
+	 * List the contents of a directory. For large directories, prefer
+	 * {@link #openDirectoryStream(String)}, which does not need to keep all
+	 * entries in memory.
 	 * 
 	 * @param dirName See the {@link SFTPv3Client comment} for the class for more details.
 	 * @return A Vector containing {@link SFTPv3DirectoryEntry} objects.
@@ -926,12 +1336,37 @@ public class SFTPv3Client
 	 */
 	public Vector ls(String dirName) throws IOException
 	{
-		byte[] handle = openDirectory(dirName);
-		Vector result = scanDirectory(handle);
-		closeHandle(handle);
+		SFTPv3DirectoryStream dir = openDirectoryStream(dirName);
+		Vector<SFTPv3DirectoryEntry> result = new Vector<SFTPv3DirectoryEntry>();
+
+		try
+		{
+			SFTPv3DirectoryStream.Entry e;
+
+			while ((e = dir.read()) != null)
+				result.addElement(e.toDirectoryEntry());
+		}
+		finally
+		{
+			dir.close();
+		}
+
 		return result;
 	}
 
+	/**
+	 * Opens a directory for reading its entries one by one, as they arrive.
+	 * Several READDIR requests are kept outstanding, see {@link SFTPv3DirectoryStream}.
+	 *
+	 * @param dirName See the {@link SFTPv3Client comment} for the class for more details.
+	 * @return the stream, which must be closed
+	 * @throws IOException the io exception
+	 */
+	public SFTPv3DirectoryStream openDirectoryStream(String dirName) throws IOException
+	{
+		return new SFTPv3DirectoryStream(this, openDirectory(dirName), charsetName);
+	}
+
 	/**
 	 * Create a new directory.
 	 * 
@@ -943,16 +1378,35 @@ public class SFTPv3Client
 	 */
 	public void mkdir(String dirName, int posixPermissions) throws IOException
 	{
-		int req_id = generateNextRequestID();
+		await(mkdirAsync(dirName, posixPermissions));
+	}
 
+	/**
+	 * Asynchronous variant of {@link #mkdir(String, int)}.
+	 *
+	 * @param dirName See the {@link SFTPv3Client comment} for the class for more details.
+	 * @param posixPermissions the permissions for this directory, e.g., "0700"
+	 * @return a future that completes once the directory has been created
+	 */
+	public CompletableFuture<Void> mkdirAsync(String dirName, int posixPermissions)
+	{
 		TypesWriter tw = new TypesWriter();
-		tw.writeString(dirName, charsetName);
+
+		try
+		{
+			tw.writeString(dirName, charsetName);
+		}
+		catch (IOException e)
+		{
+			return failedFuture(e);
+		}
+
 		tw.writeUINT32(AttribFlags.SSH_FILEXFER_ATTR_PERMISSIONS);
 		tw.writeUINT32(posixPermissions);
 
-		sendMessage(Packet.SSH_FXP_MKDIR, req_id, tw.getBytes());
+		invalidate(dirName);
 
-		expectStatusOKMessage(req_id);
+		return invalidateWhenDone(requestAsync(Packet.SSH_FXP_MKDIR, tw.getBytes(), statusOKParser), dirName, false);
 	}
 
 	/**
@@ -963,14 +1417,36 @@ public class SFTPv3Client
 	 */
 	public void rm(String fileName) throws IOException
 	{
-		int req_id = generateNextRequestID();
+		await(rmAsync(fileName));
+	}
+
+	/**
+	 * Asynchronous variant of {@link #rm(String)}.
+	 *
+	 * @param fileName See the {@link SFTPv3Client comment} for the class for more details.
+	 * @return a future that completes once the file has been removed
+	 */
+	public CompletableFuture<Void> rmAsync(String fileName)
+	{
+		invalidate(fileName);
 
+		return invalidateWhenDone(pathRequestAsync(Packet.SSH_FXP_REMOVE, fileName), fileName, false);
+	}
+
+	private CompletableFuture<Void> pathRequestAsync(int type, String path)
+	{
 		TypesWriter tw = new TypesWriter();
-		tw.writeString(fileName, charsetName);
 
-		sendMessage(Packet.SSH_FXP_REMOVE, req_id, tw.getBytes());
+		try
+		{
+			tw.writeString(path, charsetName);
+		}
+		catch (IOException e)
+		{
+			return failedFuture(e);
+		}
 
-		expectStatusOKMessage(req_id);
+		return requestAsync(type, tw.getBytes(), statusOKParser);
 	}
 
 	/**
@@ -981,14 +1457,20 @@ public class SFTPv3Client
 	 */
 	public void rmdir(String dirName) throws IOException
 	{
-		int req_id = generateNextRequestID();
-
-		TypesWriter tw = new TypesWriter();
-		tw.writeString(dirName, charsetName);
+		await(rmdirAsync(dirName));
+	}
 
-		sendMessage(Packet.SSH_FXP_RMDIR, req_id, tw.getBytes());
+	/**
+	 * Asynchronous variant of {@link #rmdir(String)}.
+	 *
+	 * @param dirName See the {@link SFTPv3Client comment} for the class for more details.
+	 * @return a future that completes once the directory has been removed
+	 */
+	public CompletableFuture<Void> rmdirAsync(String dirName)
+	{
+		invalidateTree(dirName);
 
-		expectStatusOKMessage(req_id);
+		return invalidateWhenDone(pathRequestAsync(Packet.SSH_FXP_RMDIR, dirName), dirName, true);
 	}
 
 	/**
@@ -1000,39 +1482,347 @@ public class SFTPv3Client
 	 */
 	public void mv(String oldPath, String newPath) throws IOException
 	{
-		int req_id = generateNextRequestID();
+		await(mvAsync(oldPath, newPath));
+	}
 
+	/**
+	 * Asynchronous variant of {@link #mv(String, String)}.
+	 *
+	 * @param oldPath See the {@link SFTPv3Client comment} for the class for more details.
+	 * @param newPath See the {@link SFTPv3Client comment} for the class for more details.
+	 * @return a future that completes once the file or directory has been moved
+	 */
+	public CompletableFuture<Void> mvAsync(String oldPath, String newPath)
+	{
 		TypesWriter tw = new TypesWriter();
-		tw.writeString(oldPath, charsetName);
-		tw.writeString(newPath, charsetName);
 
-		sendMessage(Packet.SSH_FXP_RENAME, req_id, tw.getBytes());
+		try
+		{
+			tw.writeString(oldPath, charsetName);
+			tw.writeString(newPath, charsetName);
+		}
+		catch (IOException e)
+		{
+			return failedFuture(e);
+		}
+
+		invalidateTree(oldPath);
+		invalidateTree(newPath);
+
+		CompletableFuture<Void> f = requestAsync(Packet.SSH_FXP_RENAME, tw.getBytes(), statusOKParser);
 
-		expectStatusOKMessage(req_id);
+		return invalidateWhenDone(invalidateWhenDone(f, oldPath, true), newPath, true);
 	}
 
 	/**
-	 * Open a file for reading.
-	 * 
-	 * @param fileName See the {@link SFTPv3Client comment} for the class for more details.
-	 * @return a SFTPv3FileHandle handle
-	 * @throws IOException the io exception
+	 * Waits for the results of a batch.
 	 */
-	public SFTPv3FileHandle openFileRO(String fileName) throws IOException
+	private static SFTPv3BatchResult[] collect(String[] paths, CompletableFuture<?>[] futures) throws IOException
 	{
-		return openFile(fileName, 0x00000001, null); // SSH_FXF_READ	
+		SFTPv3BatchResult[] results = new SFTPv3BatchResult[paths.length];
+
+		for (int i = 0; i < paths.length; i++)
+		{
+			try
+			{
+				Object value = await(futures[i]);
+
+				results[i] = new SFTPv3BatchResult(paths[i], (value instanceof SFTPv3FileAttributes)
+						? (SFTPv3FileAttributes) value : null, null);
+			}
+			catch (InterruptedIOException e)
+			{
+				throw e;
+			}
+			catch (IOException e)
+			{
+				results[i] = new SFTPv3BatchResult(paths[i], null, e);
+			}
+		}
+
+		return results;
 	}
 
 	/**
-	 * Open a file for reading and writing.
-	 * 
-	 * @param fileName See the {@link SFTPv3Client comment} for the class for more details.
-	 * @return a SFTPv3FileHandle handle
-	 * @throws IOException the io exception
+	 * Retrieves the attributes of many files at once. All requests are sent
+	 * before waiting for the first reply, i.e., this takes about one round
+	 * trip instead of one per path.
+	 *
+	 * @param paths See the {@link SFTPv3Client comment} for the class for more details.
+	 * @return the results, in the order of the paths
+	 * @throws IOException if the thread was interrupted, other errors are
+	 *                     reported per path
 	 */
-	public SFTPv3FileHandle openFileRW(String fileName) throws IOException
+	public SFTPv3BatchResult[] statAll(String[] paths) throws IOException
 	{
-		return openFile(fileName, 0x00000003, null); // SSH_FXF_READ | SSH_FXF_WRITE
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[paths.length];
+
+		for (int i = 0; i < paths.length; i++)
+			futures[i] = statAsync(paths[i]);
+
+		return collect(paths, futures);
+	}
+
+	/**
+	 * Like {@link #statAll(String[])}, but does not follow symbolic links.
+	 *
+	 * @param paths See the {@link SFTPv3Client comment} for the class for more details.
+	 * @return the results, in the order of the paths
+	 * @throws IOException if the thread was interrupted, other errors are
+	 *                     reported per path
+	 */
+	public SFTPv3BatchResult[] lstatAll(String[] paths) throws IOException
+	{
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[paths.length];
+
+		for (int i = 0; i < paths.length; i++)
+			futures[i] = lstatAsync(paths[i]);
+
+		return collect(paths, futures);
+	}
+
+	/**
+	 * Removes many files at once, with all requests outstanding at the same
+	 * time (see {@link #statAll(String[])}).
+	 *
+	 * @param paths See the {@link SFTPv3Client comment} for the class for more details.
+	 * @return the results, in the order of the paths
+	 * @throws IOException if the thread was interrupted, other errors are
+	 *                     reported per path
+	 */
+	public SFTPv3BatchResult[] removeAll(String[] paths) throws IOException
+	{
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[paths.length];
+
+		for (int i = 0; i < paths.length; i++)
+			futures[i] = rmAsync(paths[i]);
+
+		return collect(paths, futures);
+	}
+
+	/**
+	 * Removes many empty directories at once. The server handles the
+	 * requests in order, so list subdirectories before their parents.
+	 *
+	 * @param paths See the {@link SFTPv3Client comment} for the class for more details.
+	 * @return the results, in the order of the paths
+	 * @throws IOException if the thread was interrupted, other errors are
+	 *                     reported per path
+	 */
+	public SFTPv3BatchResult[] rmdirAll(String[] paths) throws IOException
+	{
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[paths.length];
+
+		for (int i = 0; i < paths.length; i++)
+			futures[i] = rmdirAsync(paths[i]);
+
+		return collect(paths, futures);
+	}
+
+	/**
+	 * Applies the same modifications to the attributes of many files at
+	 * once, e.g., to change their permissions.
+	 *
+	 * @param paths See the {@link SFTPv3Client comment} for the class for more details.
+	 * @param attr  the modifications, empty fields will be ignored
+	 * @return the results, in the order of the paths
+	 * @throws IOException if the thread was interrupted, other errors are
+	 *                     reported per path
+	 */
+	public SFTPv3BatchResult[] setstatAll(String[] paths, SFTPv3FileAttributes attr) throws IOException
+	{
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[paths.length];
+
+		for (int i = 0; i < paths.length; i++)
+			futures[i] = setstatAsync(paths[i], attr);
+
+		return collect(paths, futures);
+	}
+
+	/**
+	 * Makes sure that many directories exist, creating them and their parents
+	 * if necessary. First all of them and their parents are checked with
+	 * one burst of requests, then the missing ones below the deepest existing
+	 * directory of each path are created with another, parents first. Errors
+	 * of parents above that directory are ignored. This takes about two round
+	 * trips, however many paths and levels there are.
+	 *
+	 * @param paths            See the {@link SFTPv3Client comment} for the class for more details.
+	 * @param posixPermissions the permissions for new directories, e.g., "0700"
+	 * @return the results, in the order of the paths
+	 * @throws IOException if the thread was interrupted, other errors are
+	 *                     reported per path
+	 */
+	public SFTPv3BatchResult[] mkdirsAll(String[] paths, int posixPermissions) throws IOException
+	{
+		/* All directories, parents first */
+
+		LinkedHashSet<String> todo = new LinkedHashSet<String>();
+		String[][] dirsOfPath = new String[paths.length][];
+
+		for (int i = 0; i < paths.length; i++)
+		{
+			dirsOfPath[i] = parentsAndSelf(paths[i]);
+
+			for (int j = 0; j < dirsOfPath[i].length; j++)
+				todo.add(dirsOfPath[i][j]);
+		}
+
+		String[] dirs = todo.toArray(new String[todo.size()]);
+		SFTPv3BatchResult[] stats = statAll(dirs);
+
+		HashMap<String, SFTPv3FileAttributes> attrs = new HashMap<String, SFTPv3FileAttributes>();
+
+		for (int i = 0; i < dirs.length; i++)
+		{
+			if (stats[i].getAttributes() != null)
+				attrs.put(dirs[i], stats[i].getAttributes());
+		}
+
+		/*
+		 * Only the directories below the deepest existing one of each path
+		 * need to be created. The ones above it do not matter, even if they
+		 * cannot be stat'ed (e.g., in a chroot).
+		 */
+
+		HashMap<String, IOException> errors = new HashMap<String, IOException>();
+		int[] firstMissing = new int[paths.length];
+
+		todo.clear();
+
+		for (int i = 0; i < paths.length; i++)
+		{
+			int j = dirsOfPath[i].length;
+
+			while (j > 0)
+			{
+				SFTPv3FileAttributes attr = attrs.get(dirsOfPath[i][j - 1]);
+
+				if ((attr != null) && attr.isDirectory())
+					break;
+
+				j--;
+			}
+
+			firstMissing[i] = j;
+
+			for (; j < dirsOfPath[i].length; j++)
+			{
+				String dir = dirsOfPath[i][j];
+
+				if (attrs.containsKey(dir))
+					errors.put(dir, new IOException(dir + " exists but is not a directory"));
+				else
+					todo.add(dir);
+			}
+		}
+
+		while (todo.isEmpty() == false)
+		{
+			dirs = todo.toArray(new String[todo.size()]);
+
+			CompletableFuture<?>[] futures = new CompletableFuture<?>[dirs.length];
+
+			for (int i = 0; i < dirs.length; i++)
+				futures[i] = mkdirAsync(dirs[i], posixPermissions);
+
+			SFTPv3BatchResult[] results = collect(dirs, futures);
+
+			boolean progress = false;
+			todo.clear();
+
+			for (int i = 0; i < dirs.length; i++)
+			{
+				if (results[i].isOK())
+				{
+					errors.remove(dirs[i]);
+					progress = true;
+					continue;
+				}
+
+				errors.put(dirs[i], results[i].getError());
+
+				/* A server that does not handle the requests in order may not have created the parent yet */
+
+				if (results[i].isNoSuchFile())
+					todo.add(dirs[i]);
+			}
+
+			if (progress == false)
+				break;
+		}
+
+		SFTPv3BatchResult[] results = new SFTPv3BatchResult[paths.length];
+
+		for (int i = 0; i < paths.length; i++)
+		{
+			IOException error = null;
+
+			for (int j = firstMissing[i]; j < dirsOfPath[i].length; j++)
+			{
+				IOException e = errors.get(dirsOfPath[i][j]);
+
+				if (e != null)
+				{
+					error = (IOException) new IOException("Failed to mkdir " + dirsOfPath[i][j]).initCause(e);
+					break;
+				}
+			}
+
+			results[i] = new SFTPv3BatchResult(paths[i], null, error);
+		}
+
+		return results;
+	}
+
+	/**
+	 * @return "/a", "/a/b" and "/a/b/c" for "/a/b/c", the root is left out
+	 */
+	private static String[] parentsAndSelf(String path)
+	{
+		while ((path.length() > 1) && path.endsWith("/"))
+			path = path.substring(0, path.length() - 1);
+
+		Vector<String> dirs = new Vector<String>();
+
+		int idx = path.indexOf('/', 1);
+
+		while (idx > 0)
+		{
+			dirs.addElement(path.substring(0, idx));
+			idx = path.indexOf('/', idx + 1);
+		}
+
+		if (path.equals("/") == false)
+			dirs.addElement(path);
+
+		String[] result = new String[dirs.size()];
+		dirs.copyInto(result);
+		return result;
+	}
+
+	/**
+	 * Open a file for reading.
+	 * 
+	 * @param fileName See the {@link SFTPv3Client comment} for the class for more details.
+	 * @return a SFTPv3FileHandle handle
+	 * @throws IOException the io exception
+	 */
+	public SFTPv3FileHandle openFileRO(String fileName) throws IOException
+	{
+		return openFile(fileName, 0x00000001, null); // SSH_FXF_READ	
+	}
+
+	/**
+	 * Open a file for reading and writing.
+	 * 
+	 * @param fileName See the {@link SFTPv3Client comment} for the class for more details.
+	 * @return a SFTPv3FileHandle handle
+	 * @throws IOException the io exception
+	 */
+	public SFTPv3FileHandle openFileRW(String fileName) throws IOException
+	{
+		return openFile(fileName, 0x00000003, null); // SSH_FXF_READ | SSH_FXF_WRITE
 	}
 
 	// Append is broken (already in the specification, because there is no way to
@@ -1174,10 +1964,31 @@ public class SFTPv3Client
 	 */
 	public SFTPv3FileHandle openFile(String fileName, int flags, SFTPv3FileAttributes attr) throws IOException
 	{
-		int req_id = generateNextRequestID();
+		return await(openFileAsync(fileName, flags, attr));
+	}
 
+	/**
+	 * Asynchronous variant of {@link #openFile(String, int, SFTPv3FileAttributes)}.
+	 *
+	 * @param fileName See the {@link SFTPv3Client comment} for the class for more details.
+	 * @param flags SSH_FXF_READ,SSH_FXF_WRITE,SSH_FXF_APPEND,SSH_FXF_CREAT,
+	 *                  SSH_FXF_TRUNC,SSH_FXF_EXCL
+	 * @param attr may be <code>null</code> to use server defaults
+	 * @return the future handle
+	 */
+	public CompletableFuture<SFTPv3FileHandle> openFileAsync(String fileName, int flags, SFTPv3FileAttributes attr)
+	{
 		TypesWriter tw = new TypesWriter();
-		tw.writeString(fileName, charsetName);
+
+		try
+		{
+			tw.writeString(fileName, charsetName);
+		}
+		catch (IOException e)
+		{
+			return failedFuture(e);
+		}
+
 		tw.writeUINT32(flags);
 		tw.writeBytes(createAttrs(attr));
 
@@ -1187,40 +1998,19 @@ public class SFTPv3Client
 			debug.flush();
 		}
 
-		sendMessage(Packet.SSH_FXP_OPEN, req_id, tw.getBytes());
-
-		byte[] resp = receiveMessage(34000);
-
-		TypesReader tr = new TypesReader(resp);
-
-		int t = tr.readByte();
-
-		int rep_id = tr.readUINT32();
-		if (rep_id != req_id)
-			throw new IOException("The server sent an invalid id field.");
-
-		if (t == Packet.SSH_FXP_HANDLE)
-		{
-			if (debug != null)
-			{
-				debug.println("Got SSH_FXP_HANDLE.");
-				debug.flush();
-			}
-
-			return new SFTPv3FileHandle(this, tr.readByteString());
-		}
+		/* A new or truncated file changes the attributes, see also writeRequest() */
 
-		if (t != Packet.SSH_FXP_STATUS)
-			throw new IOException("The SFTP server sent an unexpected packet type (" + t + ")");
+		if ((flags & 0x00000018) == 0) // SSH_FXF_CREAT | SSH_FXF_TRUNC
+			return requestAsync(Packet.SSH_FXP_OPEN, tw.getBytes(), handleParser(fileName));
 
-		int errorCode = tr.readUINT32();
-		String errorMessage = tr.readString();
+		invalidate(fileName);
 
-		throw new SFTPException(errorMessage, errorCode);
+		return invalidateWhenDone(requestAsync(Packet.SSH_FXP_OPEN, tw.getBytes(), handleParser(fileName)), fileName, false);
 	}
 
 	/**
-	 * Read bytes from a file. No more than 32768 bytes may be read at once.
+	 * Read bytes from a file. No more than {@link #getMaxReadLength()} bytes
+	 * (at least 32768) may be read at once.
 	 * Be aware that the semantics of read() are different than for Java streams.
 	 *
 	 * <ul>
@@ -1237,7 +2027,7 @@ public class SFTPv3Client
 	 * @param fileOffset offset (in bytes) in the file
 	 * @param dst the destination byte array
 	 * @param dstoff offset in the destination byte array
-	 * @param len how many bytes to read, 0 &lt; len &lt;= 32768 bytes
+	 * @param len how many bytes to read, 0 &lt; len &lt;= {@link #getMaxReadLength()}
 	 * @return the number of bytes that could be read, may be less than requested if
 	 *         the end of the file is reached, -1 is returned in case of <code>EOF</code>
 	 * @throws IOException the io exception
@@ -1246,76 +2036,86 @@ public class SFTPv3Client
 	{
 		checkHandleValidAndOpen(handle);
 
-		if ((len > 32768) || (len <= 0))
+		if ((len > maxReadLength) || (len <= 0))
 			throw new IllegalArgumentException("invalid len argument");
 
-		int req_id = generateNextRequestID();
-
-		TypesWriter tw = new TypesWriter();
-		tw.writeString(handle.fileHandle, 0, handle.fileHandle.length);
-		tw.writeUINT64(fileOffset);
-		tw.writeUINT32(len);
-
 		if (debug != null)
 		{
 			debug.println("Sending SSH_FXP_READ...");
 			debug.flush();
 		}
 
-		sendMessage(Packet.SSH_FXP_READ, req_id, tw.getBytes());
-
-		byte[] resp = receiveMessage(34000);
+		byte[] resp = await(readRequest(handle, fileOffset, len));
 
-		TypesReader tr = new TypesReader(resp);
+		int readLen = dataLength(resp, len);
 
-		int t = tr.readByte();
+		if (readLen > 0)
+			System.arraycopy(resp, DATA_OFFSET, dst, dstoff, readLen);
 
-		int rep_id = tr.readUINT32();
-		if (rep_id != req_id)
-			throw new IOException("The server sent an invalid id field.");
+		return readLen;
+	}
 
-		if (t == Packet.SSH_FXP_DATA)
+	/**
+	 * Asynchronous variant of {@link #read(SFTPv3FileHandle, long, byte[], int, int)}.
+	 * Any number of reads may be outstanding, e.g., to fetch several parts of
+	 * a file at once.
+	 *
+	 * @param handle a SFTPv3FileHandle handle
+	 * @param fileOffset offset (in bytes) in the file
+	 * @param len how many bytes to read, 0 &lt; len &lt;= {@link #getMaxReadLength()}
+	 * @return the future data, which may be shorter than requested, or
+	 *         <code>null</code> in case of <code>EOF</code>
+	 */
+	public CompletableFuture<byte[]> readAsync(SFTPv3FileHandle handle, long fileOffset, final int len)
+	{
+		try
 		{
-			if (debug != null)
-			{
-				debug.println("Got SSH_FXP_DATA...");
-				debug.flush();
-			}
-
-			int readLen = tr.readUINT32();
-
-			if ((readLen < 0) || (readLen > len))
-				throw new IOException("The server sent an invalid length field.");
-
-			tr.readBytes(dst, dstoff, readLen);
-
-			return readLen;
+			checkHandleValidAndOpen(handle);
+		}
+		catch (IOException e)
+		{
+			return failedFuture(e);
 		}
 
-		if (t != Packet.SSH_FXP_STATUS)
-			throw new IOException("The SFTP server sent an unexpected packet type (" + t + ")");
-
-		int errorCode = tr.readUINT32();
+		if ((len > maxReadLength) || (len <= 0))
+			throw new IllegalArgumentException("invalid len argument");
 
-		if (errorCode == ErrorCodes.SSH_FX_EOF)
+		return readRequest(handle, fileOffset, len).thenApply(new Function<byte[], byte[]>()
 		{
-			if (debug != null)
+			public byte[] apply(byte[] resp)
 			{
-				debug.println("Got SSH_FX_EOF.");
-				debug.flush();
-			}
+				try
+				{
+					int readLen = dataLength(resp, len);
 
-			return -1;
-		}
+					if (readLen < 0)
+						return null;
 
-		String errorMessage = tr.readString();
+					byte[] data = new byte[readLen];
+					System.arraycopy(resp, DATA_OFFSET, data, 0, readLen);
+					return data;
+				}
+				catch (IOException e)
+				{
+					throw new CompletionException(e);
+				}
+			}
+		});
+	}
 
-		throw new SFTPException(errorMessage, errorCode);
+	CompletableFuture<byte[]> readRequest(SFTPv3FileHandle handle, long fileOffset, int len)
+	{
+		TypesWriter tw = new TypesWriter();
+		tw.writeString(handle.fileHandle, 0, handle.fileHandle.length);
+		tw.writeUINT64(fileOffset);
+		tw.writeUINT32(len);
+
+		return sendRequest(Packet.SSH_FXP_READ, generateNextRequestID(), tw.getBytes());
 	}
 
 	/**
-	 * Write bytes to a file. If <code>len</code> &gt; 32768, then the write operation will
-	 * be split into multiple writes.
+	 * Write bytes to a file. If <code>len</code> &gt; {@link #getMaxWriteLength()}, then
+	 * the write operation will be split into multiple writes.
 	 * 
 	 * @param handle a SFTPv3FileHandle handle.
 	 * @param fileOffset offset (in bytes) in the file.
@@ -1326,56 +2126,614 @@ public class SFTPv3Client
 	 */
 	public void write(SFTPv3FileHandle handle, long fileOffset, byte[] src, int srcoff, int len) throws IOException
 	{
-		checkHandleValidAndOpen(handle);
+		await(writeAsync(handle, fileOffset, src, srcoff, len));
+	}
 
-		while (len > 0)
+	/**
+	 * Asynchronous variant of {@link #write(SFTPv3FileHandle, long, byte[], int, int)}.
+	 * At most {@link #getMaxOutstandingRequests()} parts are outstanding at a
+	 * time, the others are sent as earlier ones complete (the data is copied
+	 * for them). <code>src</code> may be reused once this method returns,
+	 * which may block while the channel window is full. The server may carry
+	 * out the parts in any order.
+	 *
+	 * @param handle a SFTPv3FileHandle handle.
+	 * @param fileOffset offset (in bytes) in the file.
+	 * @param src the source byte array.
+	 * @param srcoff offset in the source byte array.
+	 * @param len how many bytes to write.
+	 * @return a future that completes once all parts have been written
+	 */
+	public CompletableFuture<Void> writeAsync(SFTPv3FileHandle handle, long fileOffset, byte[] src, int srcoff, int len)
+	{
+		try
+		{
+			checkHandleValidAndOpen(handle);
+		}
+		catch (IOException e)
 		{
-			int writeRequestLen = len;
+			return failedFuture(e);
+		}
 
-			if (writeRequestLen > 32768)
-				writeRequestLen = 32768;
+		PartWriter w = new PartWriter(handle, fileOffset, src, srcoff, len);
+		w.fill();
+		return w.done;
+	}
 
-			int req_id = generateNextRequestID();
+	/**
+	 * Sends the parts of a {@link #writeAsync(SFTPv3FileHandle, long, byte[], int, int)}
+	 * call, at most <code>maxOutstandingRequests</code> at a time. Every
+	 * completed part sends the next one, on the thread completing it.
+	 */
+	private final class PartWriter implements BiConsumer<Void, Throwable>
+	{
+		final CompletableFuture<Void> done = new CompletableFuture<Void>();
 
-			TypesWriter tw = new TypesWriter();
-			tw.writeString(handle.fileHandle, 0, handle.fileHandle.length);
-			tw.writeUINT64(fileOffset);
-			tw.writeString(src, srcoff, writeRequestLen);
+		private final SFTPv3FileHandle handle;
+		private final byte[] src;
+		private final int max = maxOutstandingRequests;
 
-			if (debug != null)
-			{
-				debug.println("Sending SSH_FXP_WRITE...");
-				debug.flush();
-			}
+		/* Guarded by "this" */
 
-			sendMessage(Packet.SSH_FXP_WRITE, req_id, tw.getBytes());
+		private long fileOffset;
+		private int srcoff;
+		private int len;
+		private int outstanding = 0;
 
-			fileOffset += writeRequestLen;
+		PartWriter(SFTPv3FileHandle handle, long fileOffset, byte[] src, int srcoff, int len)
+		{
+			this.handle = handle;
+			this.fileOffset = fileOffset;
 
-			srcoff += writeRequestLen;
-			len -= writeRequestLen;
+			/* Parts beyond the first ones may be sent after the caller reused src */
 
-			byte[] resp = receiveMessage(34000);
+			if (len > (long) max * maxWriteLength)
+			{
+				src = Arrays.copyOfRange(src, srcoff, srcoff + len);
+				srcoff = 0;
+			}
 
-			TypesReader tr = new TypesReader(resp);
+			this.src = src;
+			this.srcoff = srcoff;
+			this.len = len;
 
-			int t = tr.readByte();
+			if (len == 0)
+				done.complete(null);
+		}
+
+		/**
+		 * Sends parts until <code>max</code> are outstanding or all have been sent.
+		 */
+		void fill()
+		{
+			while (true)
+			{
+				long partOffset;
+				int partOff;
+				int partLen;
+
+				synchronized (this)
+				{
+					if ((len == 0) || (outstanding >= max) || done.isDone())
+						return;
+
+					partOffset = fileOffset;
+					partOff = srcoff;
+					partLen = Math.min(len, maxWriteLength);
+
+					fileOffset += partLen;
+					srcoff += partLen;
+					len -= partLen;
+					outstanding++;
+				}
+
+				if (debug != null)
+				{
+					debug.println("Sending SSH_FXP_WRITE...");
+					debug.flush();
+				}
+
+				writeRequest(handle, partOffset, src, partOff, partLen).whenComplete(this);
+			}
+		}
+
+		public void accept(Void result, Throwable t)
+		{
+			if (t != null)
+			{
+				done.completeExceptionally(t);
+				return;
+			}
+
+			boolean last;
+
+			synchronized (this)
+			{
+				outstanding--;
+				last = (len == 0) && (outstanding == 0);
+			}
+
+			if (last)
+				done.complete(null);
+			else
+				fill();
+		}
+	}
+
+	CompletableFuture<Void> writeRequest(SFTPv3FileHandle handle, long fileOffset, byte[] src, int srcoff, int len)
+	{
+		TypesWriter tw = new TypesWriter();
+		tw.writeString(handle.fileHandle, 0, handle.fileHandle.length);
+		tw.writeUINT64(fileOffset);
+		tw.writeString(src, srcoff, len);
+
+		invalidate(handle.fileName);
+
+		return invalidateWhenDone(requestAsync(Packet.SSH_FXP_WRITE, tw.getBytes(), statusOKParser), handle.fileName, false);
+	}
+
+	/**
+	 * Sets how many read or write requests {@link #download(SFTPv3FileHandle, long, OutputStream)}
+	 * and {@link #upload(InputStream, SFTPv3FileHandle, long)} keep outstanding at most.
+	 * A transfer starts with a single request and sends one more with every
+	 * complete reply, i.e., the number of requests in flight about doubles
+	 * every round trip until it reaches this limit. With the default of 64
+	 * requests of 32 KB, up to 2 MB are in flight (more if the server allows
+	 * larger requests, see {@link #getMaxReadLength()}).
+	 *
+	 * @param max the maximum number of outstanding requests, at least 1
+	 */
+	public void setMaxOutstandingRequests(int max)
+	{
+		if (max < 1)
+			throw new IllegalArgumentException("max must be at least 1");
+
+		maxOutstandingRequests = max;
+	}
+
+	/**
+	 * @return the maximum number of outstanding requests of a transfer
+	 * @see #setMaxOutstandingRequests(int)
+	 */
+	public int getMaxOutstandingRequests()
+	{
+		return maxOutstandingRequests;
+	}
+
+	/**
+	 * An outstanding read request of a download.
+	 */
+	private static final class PendingRead
+	{
+		final CompletableFuture<byte[]> reply;
+		final long offset;
+		final int len;
+
+		PendingRead(CompletableFuture<byte[]> reply, long offset, int len)
+		{
+			this.reply = reply;
+			this.offset = offset;
+			this.len = len;
+		}
+	}
+
+	/**
+	 * Reads a file from the given offset up to its end and writes it to
+	 * <code>out</code>. Unlike a loop of {@link #read(SFTPv3FileHandle, long, byte[], int, int)}
+	 * calls, which costs one round trip per request, several read requests are
+	 * kept outstanding (see {@link #setMaxOutstandingRequests(int)}). The
+	 * replies are processed in order, short reads are completed with further
+	 * requests.
+	 *
+	 * @param handle     a SFTPv3FileHandle handle
+	 * @param fileOffset where to start in the file
+	 * @param out        receives the data, is not closed
+	 * @return the number of bytes written to <code>out</code>
+	 * @throws IOException the io exception
+	 */
+	public long download(SFTPv3FileHandle handle, long fileOffset, OutputStream out) throws IOException
+	{
+		checkHandleValidAndOpen(handle);
+
+		LinkedList<PendingRead> outstanding = new LinkedList<PendingRead>(); /* in file order */
+
+		long nextOffset = fileOffset; /* where the next request starts */
+		long written = fileOffset; /* all data before has been written to out */
+		long eofOffset = Long.MAX_VALUE; /* where the server reported EOF */
+		int chunk = maxReadLength;
+		int window = 1;
+
+		/*
+		 * On failure, the remaining replies are simply dropped by the
+		 * dispatcher, there is nothing to collect.
+		 */
+
+		while (true)
+		{
+			while ((outstanding.size() < window) && (nextOffset < eofOffset))
+			{
+				outstanding.addLast(new PendingRead(readRequest(handle, nextOffset, chunk), nextOffset, chunk));
+				nextOffset += chunk;
+			}
+
+			if (outstanding.isEmpty())
+				break;
 
-			int rep_id = tr.readUINT32();
-			if (rep_id != req_id)
-				throw new IOException("The server sent an invalid id field.");
+			PendingRead req = outstanding.removeFirst();
 
-			if (t != Packet.SSH_FXP_STATUS)
-				throw new IOException("The SFTP server sent an unexpected packet type (" + t + ")");
+			byte[] resp = await(req.reply);
 
-			int errorCode = tr.readUINT32();
+			int readLen = dataLength(resp, req.len);
 
-			if (errorCode == ErrorCodes.SSH_FX_OK)
+			if (readLen <= 0)
+			{
+				/* An empty reply is not allowed, but would make us loop forever */
+
+				eofOffset = Math.min(eofOffset, req.offset);
 				continue;
+			}
+
+			if (req.offset >= eofOffset)
+				throw new IOException("The server sent data beyond the end of the file (did it change meanwhile?)");
+
+			out.write(resp, DATA_OFFSET, readLen);
+			written += readLen;
+
+			if (readLen < req.len)
+			{
+				/* Short read, e.g., of a device file: ask again for the rest, before anything else */
+
+				outstanding.addFirst(new PendingRead(readRequest(handle, written, req.len - readLen), written,
+						req.len - readLen));
+			}
+			else if (window < maxOutstandingRequests)
+				window++;
+		}
+
+		return written - fileOffset;
+	}
+
+	/**
+	 * Downloads a whole file, see {@link #download(SFTPv3FileHandle, long, OutputStream)}.
+	 *
+	 * @param fileName See the {@link SFTPv3Client comment} for the class for more details.
+	 * @param out      receives the data, is not closed
+	 * @return the number of bytes written to <code>out</code>
+	 * @throws IOException the io exception
+	 */
+	public long download(String fileName, OutputStream out) throws IOException
+	{
+		SFTPv3FileHandle handle = openFileRO(fileName);
+
+		try
+		{
+			return download(handle, 0, out);
+		}
+		finally
+		{
+			closeFile(handle);
+		}
+	}
+
+	/**
+	 * Downloads a whole file to a local file, see
+	 * {@link #download(SFTPv3FileHandle, long, OutputStream)}. The local file
+	 * is created or truncated.
+	 *
+	 * @param fileName  See the {@link SFTPv3Client comment} for the class for more details.
+	 * @param localFile the local file
+	 * @return the size of the file
+	 * @throws IOException the io exception
+	 */
+	public long download(String fileName, File localFile) throws IOException
+	{
+		OutputStream out = new FileOutputStream(localFile);
+
+		try
+		{
+			return download(fileName, out);
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes everything from <code>in</code> to a file, starting at the given
+	 * offset. Like {@link #download(SFTPv3FileHandle, long, OutputStream)},
+	 * several write requests are kept outstanding instead of waiting for the
+	 * reply to each one.
+	 *
+	 * @param in         the data, is read up to its end but not closed
+	 * @param handle     a SFTPv3FileHandle handle
+	 * @param fileOffset where to start in the file
+	 * @return the number of bytes written
+	 * @throws IOException the io exception
+	 */
+	public long upload(InputStream in, SFTPv3FileHandle handle, long fileOffset) throws IOException
+	{
+		checkHandleValidAndOpen(handle);
+
+		LinkedList<CompletableFuture<Void>> outstanding = new LinkedList<CompletableFuture<Void>>(); /* oldest first */
+		byte[] buf = new byte[maxWriteLength];
+
+		long offset = fileOffset;
+		boolean inputEOF = false;
+		int window = 1;
+
+		while (true)
+		{
+			while ((inputEOF == false) && (outstanding.size() < window))
+			{
+				int len = readChunk(in, buf);
+
+				if (len == 0)
+				{
+					inputEOF = true;
+					break;
+				}
+
+				outstanding.addLast(writeRequest(handle, offset, buf, 0, len));
+				offset += len;
+			}
+
+			if (outstanding.isEmpty())
+				break;
+
+			await(outstanding.removeFirst());
+
+			if (window < maxOutstandingRequests)
+				window++;
+		}
+
+		return offset - fileOffset;
+	}
+
+	/**
+	 * Fills <code>buf</code> as far as possible, so that all write requests
+	 * but the last one have the full size.
+	 */
+	private static int readChunk(InputStream in, byte[] buf) throws IOException
+	{
+		int total = 0;
+
+		while (total < buf.length)
+		{
+			int n = in.read(buf, total, buf.length - total);
+			if (n < 0)
+				break;
+			total += n;
+		}
+
+		return total;
+	}
+
+	/**
+	 * Uploads to a file, which is created or truncated, see
+	 * {@link #upload(InputStream, SFTPv3FileHandle, long)}.
+	 *
+	 * @param in       the data, is read up to its end but not closed
+	 * @param fileName See the {@link SFTPv3Client comment} for the class for more details.
+	 * @return the number of bytes written
+	 * @throws IOException the io exception
+	 */
+	public long upload(InputStream in, String fileName) throws IOException
+	{
+		SFTPv3FileHandle handle = createFileTruncate(fileName);
+
+		try
+		{
+			return upload(in, handle, 0);
+		}
+		finally
+		{
+			closeFile(handle);
+		}
+	}
 
-			String errorMessage = tr.readString();
+	/**
+	 * Uploads a local file, see {@link #upload(InputStream, SFTPv3FileHandle, long)}.
+	 * The remote file is created or truncated.
+	 *
+	 * @param localFile the local file
+	 * @param fileName  See the {@link SFTPv3Client comment} for the class for more details.
+	 * @return the size of the file
+	 * @throws IOException the io exception
+	 */
+	public long upload(File localFile, String fileName) throws IOException
+	{
+		InputStream in = new FileInputStream(localFile);
 
-			throw new SFTPException(errorMessage, errorCode);
+		try
+		{
+			return upload(in, fileName);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * Copies a remote file to another one on the same server, which is
+	 * created or truncated. If possible, the server copies the data itself:
+	 * <ul>
+	 * <li>with the "copy-file" extension (draft-ietf-secsh-filexfer-extensions), or</li>
+	 * <li>with the "copy-data" extension of OpenSSH.</li>
+	 * </ul>
+	 * Otherwise the data is downloaded and written back with several requests
+	 * outstanding in both directions, like {@link #download(SFTPv3FileHandle, long, OutputStream)}
+	 * and {@link #upload(InputStream, SFTPv3FileHandle, long)}.
+	 *
+	 * @param src See the {@link SFTPv3Client comment} for the class for more details.
+	 * @param dst See the {@link SFTPv3Client comment} for the class for more details.
+	 * @throws IOException the io exception
+	 */
+	public void copy(String src, String dst) throws IOException
+	{
+		if (server_extensions.containsKey(COPY_FILE_EXTENSION))
+		{
+			if (debug != null)
+			{
+				debug.println("Sending SSH_FXP_EXTENDED (" + COPY_FILE_EXTENSION + ")...");
+				debug.flush();
+			}
+
+			TypesWriter tw = new TypesWriter();
+			tw.writeString(COPY_FILE_EXTENSION);
+			tw.writeString(src, charsetName);
+			tw.writeString(dst, charsetName);
+			tw.writeBoolean(true); /* overwrite */
+
+			invalidate(dst);
+
+			try
+			{
+				if (extendedRequest(tw.getBytes()))
+					return;
+			}
+			finally
+			{
+				invalidate(dst);
+			}
+		}
+
+		SFTPv3FileHandle in = openFileRO(src);
+
+		try
+		{
+			SFTPv3FileHandle out = createFileTruncate(dst);
+
+			try
+			{
+				copy(in, out);
+			}
+			finally
+			{
+				closeFile(out);
+			}
+		}
+		finally
+		{
+			closeFile(in);
+		}
+	}
+
+	/**
+	 * Copies the contents of one open file to the start of another, on the
+	 * server if it supports the "copy-data" extension.
+	 */
+	private void copy(SFTPv3FileHandle in, SFTPv3FileHandle out) throws IOException
+	{
+		checkHandleValidAndOpen(in);
+		checkHandleValidAndOpen(out);
+
+		if (server_extensions.containsKey(COPY_DATA_EXTENSION))
+		{
+			if (debug != null)
+			{
+				debug.println("Sending SSH_FXP_EXTENDED (" + COPY_DATA_EXTENSION + ")...");
+				debug.flush();
+			}
+
+			TypesWriter tw = new TypesWriter();
+			tw.writeString(COPY_DATA_EXTENSION);
+			tw.writeString(in.fileHandle, 0, in.fileHandle.length);
+			tw.writeUINT64(0); /* read offset */
+			tw.writeUINT64(0); /* length, 0 means up to EOF */
+			tw.writeString(out.fileHandle, 0, out.fileHandle.length);
+			tw.writeUINT64(0); /* write offset */
+
+			invalidate(out.fileName);
+
+			try
+			{
+				if (extendedRequest(tw.getBytes()))
+					return;
+			}
+			finally
+			{
+				invalidate(out.fileName);
+			}
+		}
+
+		HandleWriter writer = new HandleWriter(out, 0);
+
+		download(in, 0, writer);
+
+		writer.finish();
+	}
+
+	/**
+	 * Sends an extended request that is answered with a status.
+	 *
+	 * @return false if the server does not support the request after all
+	 */
+	private boolean extendedRequest(byte[] msg) throws IOException
+	{
+		try
+		{
+			expectStatusOK(await(sendRequest(Packet.SSH_FXP_EXTENDED, generateNextRequestID(), msg)));
+			return true;
+		}
+		catch (SFTPException e)
+		{
+			if (e.getServerErrorCode() != ErrorCodes.SSH_FX_OP_UNSUPPORTED)
+				throw e;
+
+			if (debug != null)
+				debug.println("The server does not support the request after all: " + e.getMessage());
+
+			return false;
+		}
+	}
+
+	/**
+	 * Writes to a file with several write requests outstanding, i.e., without
+	 * waiting for each reply. {@link #finish()} waits for the remaining ones.
+	 */
+	private final class HandleWriter extends OutputStream
+	{
+		private final SFTPv3FileHandle handle;
+		private final LinkedList<CompletableFuture<Void>> outstanding = new LinkedList<CompletableFuture<Void>>(); /* oldest first */
+
+		private long offset;
+
+		HandleWriter(SFTPv3FileHandle handle, long offset)
+		{
+			this.handle = handle;
+			this.offset = offset;
+		}
+
+		public void write(int b) throws IOException
+		{
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			while (len > 0)
+			{
+				int n = Math.min(len, maxWriteLength);
+
+				/* The data is copied into the request, b may be reused at once */
+
+				outstanding.addLast(writeRequest(handle, offset, b, off, n));
+
+				offset += n;
+				off += n;
+				len -= n;
+
+				if (outstanding.size() >= maxOutstandingRequests)
+					await(outstanding.removeFirst());
+			}
+		}
+
+		void finish() throws IOException
+		{
+			while (outstanding.isEmpty() == false)
+				await(outstanding.removeFirst());
 		}
 	}
 
@@ -1403,6 +2761,26 @@ public class SFTPv3Client
 		}
 	}
 
+	/**
+	 * Asynchronous variant of {@link #closeFile(SFTPv3FileHandle)}. The handle
+	 * is marked as closed at once.
+	 *
+	 * @param handle a SFTPv3FileHandle handle
+	 * @return a future that completes once the server has closed the file
+	 */
+	public CompletableFuture<Void> closeFileAsync(SFTPv3FileHandle handle)
+	{
+		if (handle == null)
+			throw new IllegalArgumentException("the handle argument may not be null");
+
+		if (handle.isClosed)
+			return CompletableFuture.completedFuture(null);
+
+		handle.isClosed = true;
+
+		return closeHandleAsync(handle.fileHandle);
+	}
+
 	/**
 	 * Checks if the given path exists.
 	 *
@@ -1441,84 +2819,101 @@ public class SFTPv3Client
 	 * @throws IOException the io exception
 	 */
 	public void mkdirs(String path, int posixPermission) throws IOException {
-        SFTPv3FileAttributes atts = _stat(path);
-        if (atts!=null && atts.isDirectory())
-            return;
-
-        int idx = path.lastIndexOf("/");
-        if (idx>0)
-            mkdirs(path.substring(0,idx), posixPermission);
-
-        try {
-            mkdir(path, posixPermission);
-        } catch (IOException e) {
-            throw (IOException)new IOException("Failed to mkdir "+path).initCause(e);
-        }
+        mkdirsAll(new String[] { path }, posixPermission)[0].check();
     }
 
 	/**
-	 * Creates a new file and writes to it.
+	 * Creates a new file and writes to it. The writes are pipelined, so an
+	 * error may only be reported by a later <code>write()</code> or by
+	 * <code>flush()</code> or <code>close()</code>, which wait for the
+	 * server to confirm all writes.
 	 *
 	 * @param path the path
 	 * @return the output stream
 	 * @throws IOException the io exception
 	 */
 	public OutputStream writeToFile(String path) throws IOException {
-        final SFTPv3FileHandle h = createFile(path);
-        return new OutputStream() {
-            private long offset = 0;
-            public void write(int b) throws IOException {
-                write(new byte[]{(byte)b});
-            }
-
-            public void write(byte[] b, int off, int len) throws IOException {
-                SFTPv3Client.this.write(h,offset,b,off,len);
-                offset += len;
-            }
-
-            public void close() throws IOException {
-                closeFile(h);
-            }
-        };
+        return new SFTPOutputStream(this, createFile(path), 0, true);
     }
 
 	/**
-	 * Read input stream.
+	 * Opens a file for sequential reading. The stream reads ahead, with up to
+	 * {@link #getMaxOutstandingRequests()} requests in flight.
 	 *
 	 * @param file the file
 	 * @return the input stream
 	 * @throws IOException the io exception
 	 */
 	public InputStream read(String file) throws IOException {
-        final SFTPv3FileHandle h = openFileRO(file);
-        return new InputStream() {
-            private long offset = 0;
-
-            public int read() throws IOException {
-                byte[] b = new byte[1];
-                if(read(b)<0)
-                    return -1;
-                return b[0];
-            }
-
-            public int read(byte[] b, int off, int len) throws IOException {
-                int r = SFTPv3Client.this.read(h,offset,b,off,len);
-                if (r<0)    return -1;
-                offset += r;
-                return r;
-            }
-
-            public long skip(long n) throws IOException {
-                offset += n;
-                return n;
-            }
-
-            public void close() throws IOException {
-                closeFile(h);
-            }
-        };
+        return new SFTPInputStream(this, openFileRO(file), 0, true);
     }
 
+	/**
+	 * Opens a file for random access, in the manner of
+	 * {@link java.nio.file.Files#newByteChannel(java.nio.file.Path, OpenOption...)}.
+	 * The channel caches the blocks it has read and reads ahead once the file
+	 * is accessed sequentially, see {@link #getMaxReadLength()} and
+	 * {@link #getMaxOutstandingRequests()}. It is closed by closing the
+	 * channel.
+	 * <p>
+	 * Supported are the {@link StandardOpenOption}s <code>READ</code>
+	 * (the default), <code>WRITE</code>, <code>APPEND</code>,
+	 * <code>CREATE</code>, <code>CREATE_NEW</code> and
+	 * <code>TRUNCATE_EXISTING</code>. Other options are ignored.
+	 *
+	 * @param path    See the {@link SFTPv3Client comment} for the class for more details.
+	 * @param options how to open the file
+	 * @return the channel
+	 * @throws IOException the io exception
+	 */
+	public SeekableByteChannel openChannel(String path, OpenOption... options) throws IOException
+	{
+		boolean read = false;
+		boolean write = false;
+		boolean append = false;
+		int flags = 0;
+
+		for (int i = 0; i < options.length; i++)
+		{
+			if (options[i] == StandardOpenOption.READ)
+				read = true;
+			else if (options[i] == StandardOpenOption.WRITE)
+				write = true;
+			else if (options[i] == StandardOpenOption.APPEND)
+				append = true;
+			else if (options[i] == StandardOpenOption.CREATE)
+				flags |= 0x00000008; // SSH_FXF_CREAT
+			else if (options[i] == StandardOpenOption.CREATE_NEW)
+				flags |= 0x00000028; // SSH_FXF_CREAT | SSH_FXF_EXCL
+			else if (options[i] == StandardOpenOption.TRUNCATE_EXISTING)
+				flags |= 0x00000010; // SSH_FXF_TRUNC
+		}
+
+		if (append)
+		{
+			if (read || ((flags & 0x00000010) != 0))
+				throw new IllegalArgumentException("APPEND cannot be combined with READ or TRUNCATE_EXISTING");
+
+			write = true;
+		}
+
+		if (write == false)
+		{
+			/* As with local files, these only apply when writing */
+
+			read = true;
+			flags = 0;
+		}
+
+		if (read)
+			flags |= 0x00000001; // SSH_FXF_READ
+
+		if (write)
+			flags |= 0x00000002; // SSH_FXF_WRITE
+
+		return new SFTPFileChannel(this, openFile(path, flags, null), read, write, append);
+	}
+
 	/**
 	 * Chmod.
 	 *
@@ -0,0 +1,576 @@
+package com.trilead.ssh2;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+
+import com.trilead.ssh2.packets.TypesReader;
+import com.trilead.ssh2.sftp.AttribFlags;
+import com.trilead.ssh2.sftp.ErrorCodes;
+import com.trilead.ssh2.sftp.Packet;
+
+/**
+ * A <code>SFTPv3DirectoryStream</code> lists a directory entry by entry, see
+ * {@link SFTPv3Client#openDirectoryStream(String)}:
+ *
+ * <pre>
+ * SFTPv3DirectoryStream dir = client.openDirectoryStream("/var/log");
+ * try
+ * {
+ * 	SFTPv3DirectoryStream.Entry e;
+ * 	while ((e = dir.read()) != null)
+ * 		if (e.isRegularFile())
+ * 			System.out.println(e.getFilename() + " " + e.getSize());
+ * }
+ * finally
+ * {
+ * 	dir.close();
+ * }
+ * </pre>
+ *
+ * Several READDIR requests are kept outstanding, and the entries are returned
+ * as soon as their reply has arrived. A huge directory thus neither costs a
+ * round trip per batch of names nor has to fit into memory as a whole, as
+ * with {@link SFTPv3Client#ls(String)}.
+ * <p>
+ * An entry only records where its name and attributes are located in the
+ * reply. They are decoded when asked for, the attributes into primitive
+ * fields. Each entry keeps the whole reply it came from reachable, so convert
+ * entries that are kept for long with {@link Entry#toDirectoryEntry()}.
+ * <p>
+ * A stream is meant to be used by one thread. Close it to release the handle
+ * on the server.
+ */
+public class SFTPv3DirectoryStream implements Iterable<SFTPv3DirectoryStream.Entry>, Closeable
+{
+	/**
+	 * One entry of a directory listing.
+	 */
+	public static final class Entry
+	{
+		private final byte[] buf;
+		private final int nameOff;
+		private final int nameLen;
+		private final int longOff;
+		private final int longLen;
+		private final int attrOff;
+		private final String charsetName;
+
+		private String filename = null;
+		private String longEntry = null;
+
+		private boolean decoded = false;
+		private int flags;
+		private long size;
+		private int uid;
+		private int gid;
+		private int permissions;
+		private long atime;
+		private long mtime;
+
+		Entry(byte[] buf, int nameOff, int nameLen, int longOff, int longLen, int attrOff, String charsetName)
+		{
+			this.buf = buf;
+			this.nameOff = nameOff;
+			this.nameLen = nameLen;
+			this.longOff = longOff;
+			this.longLen = longLen;
+			this.attrOff = attrOff;
+			this.charsetName = charsetName;
+		}
+
+		/**
+		 * @return a relative name within the directory, without any path components
+		 */
+		public String getFilename()
+		{
+			if (filename == null)
+				filename = decodeString(nameOff, nameLen);
+			return filename;
+		}
+
+		/**
+		 * @return the "ls -l" like line of the server, see {@link SFTPv3DirectoryEntry#longEntry}
+		 */
+		public String getLongEntry()
+		{
+			if (longEntry == null)
+				longEntry = decodeString(longOff, longLen);
+			return longEntry;
+		}
+
+		private String decodeString(int off, int len)
+		{
+			try
+			{
+				return (charsetName == null) ? new String(buf, off, len) : new String(buf, off, len, charsetName);
+			}
+			catch (UnsupportedEncodingException e)
+			{
+				/* The charset was checked by SFTPv3Client.setCharset() */
+				throw new IllegalStateException(e);
+			}
+		}
+
+		private void decode()
+		{
+			if (decoded)
+				return;
+
+			int pos = attrOff;
+
+			flags = getUINT32(buf, pos);
+			pos += 4;
+
+			if ((flags & AttribFlags.SSH_FILEXFER_ATTR_SIZE) != 0)
+			{
+				size = getUINT64(buf, pos);
+				pos += 8;
+			}
+
+			if ((flags & AttribFlags.SSH_FILEXFER_ATTR_V3_UIDGID) != 0)
+			{
+				uid = getUINT32(buf, pos);
+				gid = getUINT32(buf, pos + 4);
+				pos += 8;
+			}
+
+			if ((flags & AttribFlags.SSH_FILEXFER_ATTR_PERMISSIONS) != 0)
+			{
+				permissions = getUINT32(buf, pos);
+				pos += 4;
+			}
+
+			if ((flags & AttribFlags.SSH_FILEXFER_ATTR_V3_ACMODTIME) != 0)
+			{
+				atime = getUINT32(buf, pos) & 0xffffffffL;
+				mtime = getUINT32(buf, pos + 4) & 0xffffffffL;
+			}
+
+			decoded = true;
+		}
+
+		/**
+		 * @return the <code>SSH_FILEXFER_ATTR_*</code> flags of {@link AttribFlags}
+		 *         that tell which attributes the server sent
+		 */
+		public int getAttributeFlags()
+		{
+			decode();
+			return flags;
+		}
+
+		private boolean has(int flag)
+		{
+			return (getAttributeFlags() & flag) != 0;
+		}
+
+		/**
+		 * @return the size, -1 if not present
+		 */
+		public long getSize()
+		{
+			return has(AttribFlags.SSH_FILEXFER_ATTR_SIZE) ? size : -1;
+		}
+
+		/**
+		 * @return the UID, 0 if not present (see {@link #getAttributeFlags()})
+		 */
+		public int getUid()
+		{
+			decode();
+			return uid;
+		}
+
+		/**
+		 * @return the GID, 0 if not present (see {@link #getAttributeFlags()})
+		 */
+		public int getGid()
+		{
+			decode();
+			return gid;
+		}
+
+		/**
+		 * @return the POSIX permissions including the file type bits (see
+		 *         {@link SFTPv3FileAttributes#permissions}), 0 if not present
+		 */
+		public int getPermissions()
+		{
+			decode();
+			return permissions;
+		}
+
+		/**
+		 * @return the access time in seconds since Jan 1, 1970 UTC, -1 if not present
+		 */
+		public long getAtime()
+		{
+			return has(AttribFlags.SSH_FILEXFER_ATTR_V3_ACMODTIME) ? atime : -1;
+		}
+
+		/**
+		 * @return the modification time in seconds since Jan 1, 1970 UTC, -1 if not present
+		 */
+		public long getMtime()
+		{
+			return has(AttribFlags.SSH_FILEXFER_ATTR_V3_ACMODTIME) ? mtime : -1;
+		}
+
+		private boolean isType(int type)
+		{
+			return has(AttribFlags.SSH_FILEXFER_ATTR_PERMISSIONS) && ((permissions & 0170000) == type);
+		}
+
+		/**
+		 * @return true if permissions are present and say that this is a directory
+		 */
+		public boolean isDirectory()
+		{
+			return isType(0040000);
+		}
+
+		/**
+		 * @return true if permissions are present and say that this is a regular file
+		 */
+		public boolean isRegularFile()
+		{
+			return isType(0100000);
+		}
+
+		/**
+		 * @return true if permissions are present and say that this is a symlink
+		 */
+		public boolean isSymlink()
+		{
+			return isType(0120000);
+		}
+
+		/**
+		 * @return the attributes in the form returned by {@link SFTPv3Client#stat(String)}
+		 */
+		public SFTPv3FileAttributes toAttributes()
+		{
+			decode();
+
+			SFTPv3FileAttributes fa = new SFTPv3FileAttributes();
+
+			if ((flags & AttribFlags.SSH_FILEXFER_ATTR_SIZE) != 0)
+				fa.size = Long.valueOf(size);
+
+			if ((flags & AttribFlags.SSH_FILEXFER_ATTR_V3_UIDGID) != 0)
+			{
+				fa.uid = Integer.valueOf(uid);
+				fa.gid = Integer.valueOf(gid);
+			}
+
+			if ((flags & AttribFlags.SSH_FILEXFER_ATTR_PERMISSIONS) != 0)
+				fa.permissions = Integer.valueOf(permissions);
+
+			if ((flags & AttribFlags.SSH_FILEXFER_ATTR_V3_ACMODTIME) != 0)
+			{
+				fa.atime = Long.valueOf(atime);
+				fa.mtime = Long.valueOf(mtime);
+			}
+
+			return fa;
+		}
+
+		/**
+		 * @return a copy in the form returned by {@link SFTPv3Client#ls(String)},
+		 *         which does not refer to the reply any more
+		 */
+		public SFTPv3DirectoryEntry toDirectoryEntry()
+		{
+			SFTPv3DirectoryEntry dirEnt = new SFTPv3DirectoryEntry();
+			dirEnt.filename = getFilename();
+			dirEnt.longEntry = getLongEntry();
+			dirEnt.attributes = toAttributes();
+			return dirEnt;
+		}
+
+		public String toString()
+		{
+			return getFilename();
+		}
+	}
+
+	private final SFTPv3Client client;
+	private final byte[] handle;
+	private final String charsetName;
+
+	private final LinkedList<CompletableFuture<byte[]>> outstanding = new LinkedList<CompletableFuture<byte[]>>(); /* READDIR requests, oldest first */
+	private int window = 1;
+	private boolean eof = false;
+	private boolean closed = false;
+	private boolean iterated = false;
+
+	/* The entries of the current SSH_FXP_NAME reply */
+
+	private Entry[] entries = null;
+	private int next = 0;
+
+	SFTPv3DirectoryStream(SFTPv3Client client, byte[] handle, String charsetName)
+	{
+		this.client = client;
+		this.handle = handle;
+		this.charsetName = charsetName;
+	}
+
+	/**
+	 * Returns the next entry, waits for it if necessary.
+	 *
+	 * @return the next entry, <code>null</code> at the end of the directory
+	 * @throws IOException the io exception
+	 */
+	public Entry read() throws IOException
+	{
+		while (true)
+		{
+			if (closed)
+				throw new IOException("The directory stream is closed.");
+
+			if ((entries != null) && (next < entries.length))
+				return entries[next++];
+
+			if (nextReply() == false)
+				return null;
+		}
+	}
+
+	/**
+	 * Makes the next SSH_FXP_NAME reply the current one.
+	 *
+	 * @return false at the end of the directory
+	 */
+	private boolean nextReply() throws IOException
+	{
+		while (true)
+		{
+			while ((eof == false) && (outstanding.size() < window))
+				outstanding.addLast(client.readdirRequest(handle));
+
+			/*
+			 * After EOF, the replies of the other requests are still
+			 * processed, a server might have handled them out of order.
+			 */
+
+			if (outstanding.isEmpty())
+				return false;
+
+			byte[] resp = SFTPv3Client.await(outstanding.removeFirst());
+
+			entries = parseReply(resp, charsetName);
+			next = 0;
+
+			if (entries == null)
+			{
+				eof = true;
+				continue;
+			}
+
+			if ((entries.length > 0) && (window < client.getMaxOutstandingRequests()))
+				window++;
+
+			return true;
+		}
+	}
+
+	/**
+	 * Parses the reply to a READDIR request.
+	 *
+	 * @return the entries, <code>null</code> on EOF
+	 */
+	static Entry[] parseReply(byte[] resp, String charsetName) throws IOException
+	{
+		TypesReader tr = new TypesReader(resp);
+
+		int t = tr.readByte();
+		tr.readUINT32(); /* request ID, matched already */
+
+		if (t == Packet.SSH_FXP_NAME)
+		{
+			int count = tr.readUINT32();
+
+			/* Every entry takes at least 12 bytes, do not trust the count blindly */
+
+			if ((count < 0) || (count > tr.remain() / 12))
+				throw new IOException("The server sent an invalid count field.");
+
+			NameParser parser = new NameParser(resp, resp.length - tr.remain());
+
+			Entry[] result = new Entry[count];
+
+			for (int i = 0; i < count; i++)
+				result[i] = parser.nextEntry(charsetName);
+
+			return result;
+		}
+
+		if (t != Packet.SSH_FXP_STATUS)
+			throw new IOException("The SFTP server sent an unexpected packet type (" + t + ")");
+
+		int errorCode = tr.readUINT32();
+
+		if (errorCode == ErrorCodes.SSH_FX_EOF)
+			return null;
+
+		throw new SFTPException(tr.readString(), errorCode);
+	}
+
+	/**
+	 * Locates the entries of a SSH_FXP_NAME reply, skipping their attributes.
+	 */
+	private static final class NameParser
+	{
+		private final byte[] buf;
+		private int pos;
+
+		NameParser(byte[] buf, int pos)
+		{
+			this.buf = buf;
+			this.pos = pos;
+		}
+
+		Entry nextEntry(String charsetName) throws IOException
+		{
+			int nameLen = readLength();
+			int nameOff = pos;
+			skip(nameLen);
+
+			int longLen = readLength();
+			int longOff = pos;
+			skip(longLen);
+
+			int attrOff = pos;
+
+			int flags = readLength();
+
+			if ((flags & AttribFlags.SSH_FILEXFER_ATTR_SIZE) != 0)
+				skip(8);
+
+			if ((flags & AttribFlags.SSH_FILEXFER_ATTR_V3_UIDGID) != 0)
+				skip(8);
+
+			if ((flags & AttribFlags.SSH_FILEXFER_ATTR_PERMISSIONS) != 0)
+				skip(4);
+
+			if ((flags & AttribFlags.SSH_FILEXFER_ATTR_V3_ACMODTIME) != 0)
+				skip(8);
+
+			if ((flags & AttribFlags.SSH_FILEXFER_ATTR_EXTENDED) != 0)
+			{
+				int extended = readLength();
+
+				while (extended-- > 0)
+				{
+					skip(readLength()); /* type */
+					skip(readLength()); /* data */
+				}
+			}
+
+			return new Entry(buf, nameOff, nameLen, longOff, longLen, attrOff, charsetName);
+		}
+
+		private int readLength() throws IOException
+		{
+			skip(4);
+			return getUINT32(buf, pos - 4);
+		}
+
+		private void skip(int n) throws IOException
+		{
+			if ((n < 0) || (n > buf.length - pos))
+				throw new IOException("The server sent a malformed SSH_FXP_NAME packet.");
+			pos += n;
+		}
+	}
+
+	private static int getUINT32(byte[] b, int off)
+	{
+		return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16) | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+	}
+
+	private static long getUINT64(byte[] b, int off)
+	{
+		return (((long) getUINT32(b, off)) << 32) | (getUINT32(b, off + 4) & 0xffffffffL);
+	}
+
+	/**
+	 * Returns an iterator over the remaining entries, for use in a for-each
+	 * loop. It can only be obtained once. Errors are thrown as
+	 * {@link UncheckedIOException}, which wraps the original
+	 * <code>IOException</code>.
+	 *
+	 * @return the iterator
+	 */
+	public Iterator<Entry> iterator()
+	{
+		if (iterated)
+			throw new IllegalStateException("The iterator was already obtained.");
+
+		iterated = true;
+
+		return new Iterator<Entry>()
+		{
+			private Entry next = null;
+			private boolean end = false;
+
+			public boolean hasNext()
+			{
+				if ((next == null) && (end == false))
+				{
+					try
+					{
+						next = read();
+					}
+					catch (IOException e)
+					{
+						throw new UncheckedIOException(e);
+					}
+
+					end = (next == null);
+				}
+
+				return next != null;
+			}
+
+			public Entry next()
+			{
+				if (hasNext() == false)
+					throw new NoSuchElementException();
+
+				Entry e = next;
+				next = null;
+				return e;
+			}
+
+			public void remove()
+			{
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Closes the directory handle. Outstanding replies are discarded.
+	 *
+	 * @throws IOException the io exception
+	 */
+	public void close() throws IOException
+	{
+		if (closed)
+			return;
+
+		closed = true;
+		outstanding.clear();
+		entries = null;
+
+		client.closeHandle(handle);
+	}
+}
@@ -12,14 +12,16 @@ public class SFTPv3FileHandle
 {
 	final SFTPv3Client client;
 	final byte[] fileHandle;
+	final String fileName; /* as passed to open, may be null */
 	boolean isClosed = false;
 
 	/* The constructor is NOT public */
 
-	SFTPv3FileHandle(SFTPv3Client client, byte[] h)
+	SFTPv3FileHandle(SFTPv3Client client, byte[] h, String fileName)
 	{
 		this.client = client;
 		this.fileHandle = h;
+		this.fileName = fileName;
 	}
 
 	/**
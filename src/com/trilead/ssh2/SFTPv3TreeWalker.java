@@ -0,0 +1,458 @@
+package com.trilead.ssh2;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.BiConsumer;
+
+/**
+ * A <code>SFTPv3TreeWalker</code> walks a remote directory tree and reports
+ * every entry to a {@link Visitor}. Many directories are listed at the same
+ * time, over one or more {@link SFTPv3Client}s (i.e., SFTP channels), instead
+ * of one after the other:
+ *
+ * <pre>
+ * new SFTPv3TreeWalker(client).walk("/srv/data", new SFTPv3TreeWalker.Visitor()
+ * {
+ * 	public int visit(String path, SFTPv3DirectoryStream.Entry entry, int depth)
+ * 	{
+ * 		if (entry.getFilename().equals(".git"))
+ * 			return SFTPv3TreeWalker.SKIP_SUBTREE;
+ * 		total += entry.getSize();
+ * 		return SFTPv3TreeWalker.CONTINUE;
+ * 	}
+ *
+ * 	public int failed(String path, IOException e)
+ * 	{
+ * 		return SFTPv3TreeWalker.CONTINUE;
+ * 	}
+ * });
+ * </pre>
+ *
+ * The attributes come with the directory listing, no extra <code>stat</code>
+ * is needed. As with <code>lstat</code>, symbolic links are reported but not
+ * followed. The entries of a directory are reported in the order of the
+ * server, but the directories are interleaved, in no particular order.
+ * <p>
+ * The visitor is only called by the thread that called {@link #walk(String, Visitor)},
+ * it needs no synchronization.
+ */
+public class SFTPv3TreeWalker
+{
+	/** Go on with the walk. */
+	public static final int CONTINUE = 0;
+
+	/** Do not descend into this directory, only valid for {@link Visitor#visit(String, SFTPv3DirectoryStream.Entry, int)}. */
+	public static final int SKIP_SUBTREE = 1;
+
+	/** Stop the walk. */
+	public static final int TERMINATE = 2;
+
+	/**
+	 * Receives the entries of a walk.
+	 */
+	public interface Visitor
+	{
+		/**
+		 * Called for each entry below the start directory, except "." and "..".
+		 *
+		 * @param path  the path of the entry
+		 * @param entry the entry, only valid until this method returns unless converted
+		 *              (see {@link SFTPv3DirectoryStream.Entry#toDirectoryEntry()})
+		 * @param depth 1 for the entries of the start directory, 2 below, ...
+		 * @return {@link #CONTINUE}, {@link #SKIP_SUBTREE} or {@link #TERMINATE}
+		 */
+		int visit(String path, SFTPv3DirectoryStream.Entry entry, int depth);
+
+		/**
+		 * Called if a directory cannot be opened or read. Its remaining entries
+		 * are skipped.
+		 *
+		 * @param path the path of the directory
+		 * @param e    the error
+		 * @return {@link #CONTINUE} or {@link #TERMINATE}
+		 */
+		int failed(String path, IOException e);
+	}
+
+	/* READDIR requests that are kept outstanding per directory */
+
+	private static final int READDIR_REQUESTS = 2;
+
+	private final SFTPv3Client[] clients;
+
+	private int maxParallelism = 16;
+	private int maxDepth = Integer.MAX_VALUE;
+
+	/**
+	 * @param client the client to use
+	 */
+	public SFTPv3TreeWalker(SFTPv3Client client)
+	{
+		this(new SFTPv3Client[] { client });
+	}
+
+	/**
+	 * Spreads the directories over several clients. Each client has its own
+	 * channel, e.g., on different connections or on one with several sessions.
+	 *
+	 * @param clients the clients to use
+	 */
+	public SFTPv3TreeWalker(SFTPv3Client[] clients)
+	{
+		if ((clients == null) || (clients.length == 0))
+			throw new IllegalArgumentException("At least one client is needed.");
+
+		this.clients = clients.clone();
+	}
+
+	/**
+	 * Sets how many directories are listed at the same time at most, over
+	 * all clients. Each takes a handle on the server. The default is 16.
+	 *
+	 * @param max the maximum, at least 1
+	 */
+	public void setMaxParallelism(int max)
+	{
+		if (max < 1)
+			throw new IllegalArgumentException("max must be at least 1");
+
+		maxParallelism = max;
+	}
+
+	/**
+	 * Limits the depth of the walk. With 1, only the entries of the start
+	 * directory are visited. By default, there is no limit.
+	 *
+	 * @param depth the maximum depth, at least 1
+	 */
+	public void setMaxDepth(int depth)
+	{
+		if (depth < 1)
+			throw new IllegalArgumentException("depth must be at least 1");
+
+		maxDepth = depth;
+	}
+
+	/**
+	 * Walks the tree below a directory. Returns once every directory has been
+	 * listed, or the visitor has asked to stop.
+	 *
+	 * @param root    the start directory, see the {@link SFTPv3Client comment} for the class
+	 * @param visitor receives the entries
+	 * @throws IOException if the thread was interrupted. Errors of single
+	 *                     directories are reported to the visitor.
+	 */
+	public void walk(String root, Visitor visitor) throws IOException
+	{
+		new Walk(visitor).run(root);
+	}
+
+	private static final class Directory
+	{
+		final int clientIndex;
+		final SFTPv3Client client;
+		final String path;
+		final int depth;
+
+		byte[] handle = null;
+		int outstanding = 0;
+		boolean eof = false;
+		boolean done = false;
+
+		Directory(int clientIndex, SFTPv3Client client, String path, int depth)
+		{
+			this.clientIndex = clientIndex;
+			this.client = client;
+			this.path = path;
+			this.depth = depth;
+		}
+	}
+
+	/**
+	 * A directory that is still to be listed.
+	 */
+	private static final class Pending
+	{
+		final String path;
+		final int depth;
+
+		Pending(String path, int depth)
+		{
+			this.path = path;
+			this.depth = depth;
+		}
+	}
+
+	/**
+	 * The completion of a request, handed from the callback thread to the walk.
+	 */
+	private static final class Event
+	{
+		final Directory dir;
+		final boolean opened;
+		final byte[] data;
+		final Throwable error;
+
+		Event(Directory dir, boolean opened, byte[] data, Throwable error)
+		{
+			this.dir = dir;
+			this.opened = opened;
+			this.data = data;
+			this.error = error;
+		}
+	}
+
+	/**
+	 * The state of one walk, only used by the walking thread.
+	 */
+	private final class Walk
+	{
+		private final Visitor visitor;
+
+		private final LinkedList<Pending> pending = new LinkedList<Pending>();
+		private final HashSet<Directory> active = new HashSet<Directory>();
+		private final int[] activePerClient = new int[clients.length];
+		private final LinkedBlockingQueue<Event> events = new LinkedBlockingQueue<Event>();
+
+		private boolean terminated = false;
+
+		/* Set once the walk has returned, guarded by "events" */
+
+		private boolean over = false;
+
+		Walk(Visitor visitor)
+		{
+			this.visitor = visitor;
+		}
+
+		void run(String root) throws IOException
+		{
+			pending.add(new Pending(root, 0));
+
+			try
+			{
+				while (true)
+				{
+					/* Depth first, which keeps the list of pending directories short */
+
+					while ((terminated == false) && (active.size() < maxParallelism) && (pending.isEmpty() == false))
+					{
+						Pending p = pending.removeFirst();
+						open(p.path, p.depth);
+					}
+
+					if (terminated || active.isEmpty())
+						return;
+
+					Event e;
+
+					try
+					{
+						e = events.take();
+					}
+					catch (InterruptedException ie)
+					{
+						throw new InterruptedIOException();
+					}
+
+					if (e.opened)
+						opened(e.dir, e.data, e.error);
+					else
+						replied(e.dir, e.data, e.error);
+				}
+			}
+			finally
+			{
+				/* After TERMINATE or an exception, release the handles */
+
+				Iterator<Directory> it = new LinkedList<Directory>(active).iterator();
+				while (it.hasNext())
+					finish(it.next());
+
+				/* Including those of directories that are being opened */
+
+				synchronized (events)
+				{
+					over = true;
+
+					Event e;
+					while ((e = events.poll()) != null)
+						closeLateHandle(e);
+				}
+			}
+		}
+
+		private void closeLateHandle(Event e)
+		{
+			if (e.opened && (e.data != null))
+				e.dir.client.closeHandleAsync(e.data);
+		}
+
+		private BiConsumer<byte[], Throwable> completion(final Directory dir, final boolean opened)
+		{
+			return new BiConsumer<byte[], Throwable>()
+			{
+				public void accept(byte[] data, Throwable error)
+				{
+					Event e = new Event(dir, opened, data, error);
+
+					synchronized (events)
+					{
+						if (over == false)
+						{
+							events.add(e);
+							return;
+						}
+					}
+
+					closeLateHandle(e);
+				}
+			};
+		}
+
+		private void open(String path, int depth)
+		{
+			int c = 0;
+
+			for (int i = 1; i < clients.length; i++)
+			{
+				if (activePerClient[i] < activePerClient[c])
+					c = i;
+			}
+
+			Directory dir = new Directory(c, clients[c], path, depth);
+
+			activePerClient[c]++;
+			active.add(dir);
+
+			dir.client.openDirectoryAsync(path).whenComplete(completion(dir, true));
+		}
+
+		private void opened(Directory dir, byte[] handle, Throwable error)
+		{
+			if (error != null)
+			{
+				finish(dir);
+				failed(dir, error);
+				return;
+			}
+
+			dir.handle = handle;
+
+			for (int i = 0; i < READDIR_REQUESTS; i++)
+				readdir(dir);
+		}
+
+		private void readdir(Directory dir)
+		{
+			dir.outstanding++;
+			dir.client.readdirRequest(dir.handle).whenComplete(completion(dir, false));
+		}
+
+		private void replied(Directory dir, byte[] resp, Throwable error)
+		{
+			dir.outstanding--;
+
+			if (dir.done)
+				return;
+
+			SFTPv3DirectoryStream.Entry[] entries = null;
+
+			if (error == null)
+			{
+				try
+				{
+					entries = SFTPv3DirectoryStream.parseReply(resp, dir.client.charsetName);
+				}
+				catch (IOException e)
+				{
+					error = e;
+				}
+			}
+
+			if (error != null)
+			{
+				finish(dir);
+				failed(dir, error);
+				return;
+			}
+
+			if (entries == null)
+				dir.eof = true;
+			else
+			{
+				for (int i = 0; i < entries.length; i++)
+				{
+					visit(dir, entries[i]);
+
+					if (terminated)
+						return;
+				}
+
+				/* Replace this request, further replies after EOF are still awaited */
+
+				if (dir.eof == false)
+					readdir(dir);
+			}
+
+			if (dir.eof && (dir.outstanding == 0))
+				finish(dir);
+		}
+
+		private void visit(Directory dir, SFTPv3DirectoryStream.Entry entry)
+		{
+			String name = entry.getFilename();
+
+			if (name.equals(".") || name.equals(".."))
+				return;
+
+			String path = dir.path.endsWith("/") ? dir.path + name : dir.path + "/" + name;
+			int depth = dir.depth + 1;
+
+			int r = visitor.visit(path, entry, depth);
+
+			if (r == TERMINATE)
+				terminated = true;
+			else if ((r == CONTINUE) && (depth < maxDepth) && entry.isDirectory())
+				pending.addFirst(new Pending(path, depth));
+		}
+
+		private void failed(Directory dir, Throwable error)
+		{
+			if (error instanceof CompletionException && (error.getCause() != null))
+				error = error.getCause();
+
+			IOException e = (error instanceof IOException) ? (IOException) error
+					: (IOException) new IOException("Listing " + dir.path + " failed: " + error).initCause(error);
+
+			if (visitor.failed(dir.path, e) == TERMINATE)
+				terminated = true;
+		}
+
+		/**
+		 * Ends the listing of a directory. Replies that are still outstanding
+		 * are ignored, closing the handle is not waited for.
+		 */
+		private void finish(Directory dir)
+		{
+			if (dir.done)
+				return;
+
+			dir.done = true;
+			active.remove(dir);
+
+			activePerClient[dir.clientIndex]--;
+
+			if (dir.handle != null)
+			{
+				dir.client.closeHandleAsync(dir.handle);
+				dir.handle = null;
+			}
+		}
+	}
+}
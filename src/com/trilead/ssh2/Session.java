@@ -6,6 +6,8 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
 import java.security.SecureRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 import com.trilead.ssh2.channel.Channel;
 import com.trilead.ssh2.channel.ChannelManager;
@@ -43,6 +45,13 @@ public class Session
 		this.rnd = rnd;
 	}
 
+	Session(ChannelManager cm, Channel cn, SecureRandom rnd)
+	{
+		this.cm = cm;
+		this.cn = cn;
+		this.rnd = rnd;
+	}
+
 	/**
 	 * Basically just a wrapper for lazy people - identical to calling
 	 * requestPTY("dumb", 0, 0, 0, 0, null).
@@ -232,6 +241,20 @@ public class Session
 			flag_x11_requested = true;
 		}
 
+		X11ServerData x11data = newX11ServerData(hostname, port, cookie);
+		String hexEncodedFakeCookie = newX11FakeCookie();
+
+		/* Ask for X11 forwarding */
+
+		cm.requestX11(cn, singleConnection, "MIT-MAGIC-COOKIE-1", hexEncodedFakeCookie, 0);
+
+		registerX11Cookie(hexEncodedFakeCookie, x11data);
+
+		/* Now it is safe to start remote X11 programs */
+	}
+
+	static X11ServerData newX11ServerData(String hostname, int port, byte[] cookie)
+	{
 		/* X11ServerData - used to store data about the target X11 server */
 
 		X11ServerData x11data = new X11ServerData();
@@ -240,8 +263,15 @@ public class Session
 		x11data.port = port;
 		x11data.x11_magic_cookie = cookie; /* if non-null, then present this cookie to the real X11 server */
 
-		/* Generate fake cookie - this one is used between remote clients and our proxy */
+		return x11data;
+	}
 
+	/**
+	 * Generates a fake cookie - this one is used between remote clients and
+	 * our proxy.
+	 */
+	String newX11FakeCookie()
+	{
 		byte[] fakeCookie = new byte[16];
 		String hexEncodedFakeCookie;
 
@@ -267,13 +297,15 @@ public class Session
 				break;
 		}
 
-		/* Ask for X11 forwarding */
-
-		cm.requestX11(cn, singleConnection, "MIT-MAGIC-COOKIE-1", hexEncodedFakeCookie, 0);
-
-		/* OK, that went fine, get ready to accept X11 connections... */
-		/* ... but only if the user has not called close() in the meantime =) */
+		return hexEncodedFakeCookie;
+	}
 
+	/**
+	 * Gets ready to accept X11 connections once the server has agreed...
+	 * but only if the user has not called close() in the meantime.
+	 */
+	void registerX11Cookie(String hexEncodedFakeCookie, X11ServerData x11data)
+	{
 		synchronized (this)
 		{
 			if (flag_closed == false)
@@ -282,8 +314,6 @@ public class Session
 				cm.registerX11Cookie(hexEncodedFakeCookie, x11data);
 			}
 		}
-
-		/* Now it is safe to start remote X11 programs */
 	}
 
 	/**
@@ -362,6 +392,17 @@ public class Session
 		cm.requestSubSystem(cn, name);
 	}
 
+	/**
+	 * Prepares and starts this session with a single round trip, instead of
+	 * one per request, see {@link SessionSetup}.
+	 *
+	 * @return a new, empty setup for this session
+	 */
+	public SessionSetup setup()
+	{
+		return new SessionSetup(this);
+	}
+
 	/**
 	 * This method can be used to perform end-to-end session (i.e., SSH channel)
 	 * testing. It sends a 'ping' message to the server and waits for the 'pong'
@@ -403,6 +444,30 @@ public class Session
 		return cn.getStdinStream();
 	}
 
+	/**
+	 * Enables or disables buffering of the stream returned by {@link #getStdin()}.
+	 * <p>
+	 * By default, every write to stdin is sent to the server in its own packet,
+	 * which is wasteful if the data is written in small pieces. In buffered mode,
+	 * small writes are packed into packets of the maximum size accepted by the server.
+	 * Writes that fill a packet on their own are sent right away. Remaining data
+	 * is sent when {@link OutputStream#flush()} or {@link OutputStream#close()} is
+	 * called, or after <code>flushDelay</code> milliseconds if that is positive.
+	 * <p>
+	 * Protocols that flush after every message (e.g., SFTP) should pass 0,
+	 * interactive use typically wants a small delay (a few milliseconds).
+	 *
+	 * @param buffered whether stdin shall be buffered
+	 * @param flushDelay delay in ms after which buffered data is sent automatically,
+	 *            0 or a negative value means that data is only sent on flush/close
+	 *            or once a packet is full
+	 * @throws IOException if disabling buffering fails to send pending data
+	 */
+	public void setStdinBuffered(boolean buffered, long flushDelay) throws IOException
+	{
+		cn.getStdinStream().setBuffered(buffered, flushDelay);
+	}
+
 	/**
 	 * Write stdout received from the other side to the specified {@link OutputStream}.
 	 *
@@ -538,6 +603,49 @@ public class Session
 		return cn.getExitStatus();
 	}
 
+	/**
+	 * Returns a future that completes with the exit status once the remote
+	 * command has finished and the session has been closed, so that no thread
+	 * has to wait for it. The status is -1 if the server did not report one.
+	 * If the session is closed for any other reason (e.g., the connection is
+	 * lost), the future completes exceptionally.
+	 * <p>
+	 * The session is closed on our side as well before the future completes.
+	 * Dependent actions run on a shared callback thread.
+	 *
+	 * @return the exit status future
+	 */
+	public CompletableFuture<Integer> getExitFuture()
+	{
+		return cn.getExitFuture();
+	}
+
+	/**
+	 * Registers a listener that is notified about new data, EOF, the exit
+	 * status and the closing of this session, as an alternative to
+	 * {@link #waitForCondition(int, long)}. Conditions that already hold are
+	 * reported right away.
+	 *
+	 * @param listener the listener
+	 * @param executor runs the notifications (in order), or null to run them
+	 *                 directly on the receive thread, see {@link ChannelListener}
+	 */
+	public void addChannelListener(ChannelListener listener, Executor executor)
+	{
+		cn.addListener(listener, executor);
+	}
+
+	/**
+	 * Removes a listener registered with
+	 * {@link #addChannelListener(ChannelListener, Executor)}.
+	 *
+	 * @param listener the listener
+	 */
+	public void removeChannelListener(ChannelListener listener)
+	{
+		cn.removeListener(listener);
+	}
+
 	/**
 	 * Get the name of the signal by which the process on the remote side was
 	 * stopped - if available and applicable. Be careful - not all server
@@ -584,6 +692,23 @@ public class Session
 		}
 	}
 
+	/**
+	 * Sets the share of the connection's outbound bandwidth this session gets
+	 * while other sessions or forwardings on the same connection are sending
+	 * data at the same time. E.g., a session with weight 4 gets about four times
+	 * the bandwidth of a session with the default weight of 1.
+	 * <p>
+	 * Independent of the weight, a session that sends little data (such as an
+	 * interactive shell) never has to wait behind a bulk transfer for more than
+	 * a few packets.
+	 *
+	 * @param weight a positive number, the default is 1
+	 */
+	public void setOutboundWeight(int weight)
+	{
+		cn.setOutboundWeight(weight);
+	}
+
 	/**
 	 * Sets the receive window size.
 	 * <p>
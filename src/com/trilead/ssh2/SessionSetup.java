@@ -0,0 +1,310 @@
+package com.trilead.ssh2;
+
+import java.io.IOException;
+import java.util.Vector;
+
+import com.trilead.ssh2.channel.ChannelRequest;
+import com.trilead.ssh2.channel.X11ServerData;
+
+/**
+ * A <code>SessionSetup</code> collects the requests that prepare a
+ * {@link Session} (PTY, environment, X11 forwarding) and the one that starts
+ * the remote program, and sends them all at once:
+ *
+ * <pre>
+ * sess.setup().requestPTY("xterm").setEnv("LANG", "C").execCommand("top").send();
+ * </pre>
+ *
+ * Calling the corresponding methods of {@link Session} one after the other
+ * waits for the server's answer after each request, i.e., costs one round
+ * trip per request. Here the replies are only checked after everything has
+ * been sent, in order, and the first failure is reported by {@link #send()}.
+ * <p>
+ * The server processes the requests in the order they were added. If one of
+ * them fails, the ones after it may still have been carried out (e.g., the
+ * command may run without a PTY); close the session in that case.
+ */
+public class SessionSetup
+{
+	private final Session sess;
+
+	private final Vector<ChannelRequest> requests = new Vector<ChannelRequest>();
+
+	private boolean pty = false;
+	private boolean execution = false;
+
+	private boolean x11 = false;
+	private X11ServerData x11data;
+	private boolean x11SingleConnection;
+
+	private byte[] stdinData;
+
+	private boolean sent = false;
+
+	SessionSetup(Session sess)
+	{
+		this.sess = sess;
+	}
+
+	/**
+	 * Same as {@link Session#requestDumbPTY()}.
+	 *
+	 * @return this object
+	 */
+	public SessionSetup requestDumbPTY()
+	{
+		return requestPTY("dumb", 0, 0, 0, 0, null);
+	}
+
+	/**
+	 * Same as {@link Session#requestPTY(String)}.
+	 *
+	 * @param term the term
+	 * @return this object
+	 */
+	public SessionSetup requestPTY(String term)
+	{
+		return requestPTY(term, 0, 0, 0, 0, null);
+	}
+
+	/**
+	 * Adds a PTY request, see
+	 * {@link Session#requestPTY(String, int, int, int, int, byte[])}.
+	 *
+	 * @param term                   TERM environment variable value (e.g., vt100)
+	 * @param term_width_characters  terminal width, characters (e.g., 80)
+	 * @param term_height_characters terminal height, rows (e.g., 24)
+	 * @param term_width_pixels      terminal width, pixels (e.g., 640)
+	 * @param term_height_pixels     terminal height, pixels (e.g., 480)
+	 * @param terminal_modes         encoded terminal modes (may be null)
+	 * @return this object
+	 */
+	public SessionSetup requestPTY(String term, int term_width_characters, int term_height_characters,
+			int term_width_pixels, int term_height_pixels, byte[] terminal_modes)
+	{
+		if (term == null)
+			throw new IllegalArgumentException("TERM cannot be null.");
+
+		if ((terminal_modes != null) && (terminal_modes.length > 0))
+		{
+			if (terminal_modes[terminal_modes.length - 1] != 0)
+				throw new IllegalArgumentException("Illegal terminal modes description, does not end in zero byte");
+		}
+		else
+			terminal_modes = new byte[] { 0 };
+
+		checkNotStarted();
+
+		if (pty)
+			throw new IllegalStateException("A PTY was already requested.");
+
+		pty = true;
+		requests.addElement(ChannelRequest.pty(term, term_width_characters, term_height_characters,
+				term_width_pixels, term_height_pixels, terminal_modes));
+		return this;
+	}
+
+	/**
+	 * Passes an environment variable to the remote program. The server
+	 * silently ignores variables it is not configured to accept (e.g., OpenSSH
+	 * only accepts the ones listed in <code>AcceptEnv</code>), this is not
+	 * reported as a failure.
+	 *
+	 * @param name  the name of the variable
+	 * @param value the value
+	 * @return this object
+	 */
+	public SessionSetup setEnv(String name, String value)
+	{
+		if ((name == null) || (value == null))
+			throw new IllegalArgumentException("name and value may not be null");
+
+		checkNotStarted();
+
+		requests.addElement(ChannelRequest.env(name, value));
+		return this;
+	}
+
+	/**
+	 * Adds an X11 forwarding request, see
+	 * {@link Session#requestX11Forwarding(String, int, byte[], boolean)}.
+	 *
+	 * @param hostname         the hostname of the real (target) X11 server
+	 * @param port             the port of the real (target) X11 server
+	 * @param cookie           if non-null, then present this cookie to the real X11 server
+	 * @param singleConnection if true, only forward one single connection
+	 * @return this object
+	 */
+	public SessionSetup requestX11Forwarding(String hostname, int port, byte[] cookie, boolean singleConnection)
+	{
+		if (hostname == null)
+			throw new IllegalArgumentException("hostname argument may not be null");
+
+		checkNotStarted();
+
+		if (x11)
+			throw new IllegalStateException("X11 forwarding was already requested.");
+
+		x11 = true;
+		x11data = Session.newX11ServerData(hostname, port, cookie);
+		x11SingleConnection = singleConnection;
+
+		/* The request is built in send(), once the fake cookie is known */
+
+		requests.addElement(null);
+		return this;
+	}
+
+	/**
+	 * Adds the request to execute a command, see {@link Session#execCommand(String)}.
+	 *
+	 * @param cmd the command to execute on the remote host
+	 * @return this object
+	 */
+	public SessionSetup execCommand(String cmd)
+	{
+		if (cmd == null)
+			throw new IllegalArgumentException("cmd argument may not be null");
+
+		return start(ChannelRequest.exec(cmd));
+	}
+
+	/**
+	 * Adds the request to start a shell, see {@link Session#startShell()}.
+	 *
+	 * @return this object
+	 */
+	public SessionSetup startShell()
+	{
+		return start(ChannelRequest.shell());
+	}
+
+	/**
+	 * Adds the request to start a subsystem, see {@link Session#startSubSystem(String)}.
+	 *
+	 * @param name the name of the subsystem
+	 * @return this object
+	 */
+	public SessionSetup startSubSystem(String name)
+	{
+		if (name == null)
+			throw new IllegalArgumentException("name argument may not be null");
+
+		return start(ChannelRequest.subsystem(name));
+	}
+
+	/**
+	 * Sends the given data to stdin right after the requests, without waiting
+	 * for the replies. This saves another round trip for protocols where the
+	 * client speaks first (e.g., the SFTP subsystem). If starting the program
+	 * fails, the data is discarded by the server.
+	 *
+	 * @param data the data, not flushed through {@link Session#getStdin()}
+	 * @return this object
+	 */
+	public SessionSetup writeStdin(byte[] data)
+	{
+		if (execution == false)
+			throw new IllegalStateException("Nothing is started that could read the data.");
+
+		if (stdinData != null)
+			throw new IllegalStateException("Only one block of stdin data can be added.");
+
+		stdinData = data;
+		return this;
+	}
+
+	private SessionSetup start(ChannelRequest r)
+	{
+		checkNotStarted();
+
+		execution = true;
+		requests.addElement(r);
+		return this;
+	}
+
+	private void checkNotStarted()
+	{
+		if (sent)
+			throw new IllegalStateException("The setup was already sent.");
+
+		if (execution)
+			throw new IllegalStateException("Nothing can be added after the program has been started.");
+	}
+
+	/**
+	 * Sends all requests and checks the replies.
+	 *
+	 * @throws IOException if a request was denied or the session is closed
+	 */
+	public void send() throws IOException
+	{
+		if (sent)
+			throw new IllegalStateException("The setup was already sent.");
+
+		sent = true;
+
+		synchronized (sess)
+		{
+			/* The following is just a nicer error, we would catch it anyway later in the channel code */
+			if (sess.flag_closed)
+				throw new IOException("This session is closed.");
+
+			if (pty && sess.flag_pty_requested)
+				throw new IOException("A PTY was already requested.");
+
+			if (x11 && sess.flag_x11_requested)
+				throw new IOException("X11 forwarding was already requested.");
+
+			if (sess.flag_execution_started)
+				throw new IOException("A remote execution has already started.");
+
+			sess.flag_pty_requested |= pty;
+			sess.flag_x11_requested |= x11;
+			sess.flag_execution_started |= execution;
+		}
+
+		ChannelRequest[] r = new ChannelRequest[requests.size()];
+		requests.copyInto(r);
+
+		String hexEncodedFakeCookie = null;
+
+		if (x11)
+		{
+			hexEncodedFakeCookie = sess.newX11FakeCookie();
+
+			for (int i = 0; i < r.length; i++)
+			{
+				if (r[i] == null)
+					r[i] = ChannelRequest.x11(x11SingleConnection, "MIT-MAGIC-COOKIE-1", hexEncodedFakeCookie, 0);
+			}
+
+			/*
+			 * The program may open X11 connections before we have seen all
+			 * replies, so accept them already now.
+			 */
+
+			sess.registerX11Cookie(hexEncodedFakeCookie, x11data);
+		}
+
+		try
+		{
+			sess.cm.sendRequests(sess.cn, r, stdinData);
+		}
+		catch (IOException e)
+		{
+			if (hexEncodedFakeCookie != null)
+			{
+				synchronized (sess)
+				{
+					if (hexEncodedFakeCookie.equals(sess.x11FakeCookie))
+					{
+						sess.x11FakeCookie = null;
+						sess.cm.unRegisterX11Cookie(hexEncodedFakeCookie, true);
+					}
+				}
+			}
+			throw e;
+		}
+	}
+}
@@ -1,10 +1,13 @@
 
 package com.trilead.ssh2;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
 
+import com.trilead.ssh2.channel.SpoolingInputStream;
+
 /**
  * A <code>StreamGobbler</code> is an InputStream that uses an internal worker
  * thread to constantly consume input from another InputStream. It uses a buffer
@@ -26,6 +29,12 @@ import java.io.InterruptedIOException;
  * encounter a low memory situation due to the aggregated data (well, it also depends on the Java heap size).
  * Joe Average will like this class anyway - a paranoid programmer would never use such an approach.
  * <p>
+ * Alternatively, a gobbler can be attached directly to the stdout or stderr of a
+ * {@link Session} (see {@link #StreamGobbler(Session, boolean, int, File)}). It then
+ * needs no thread at all, is fed by the receive thread of the connection and keeps
+ * its memory bounded; surplus data is either spilled to a temporary file or held
+ * back on the server.
+ * <p>
  * The term "StreamGobbler" was taken from an article called "When Runtime.exec() won't",
  * see http://www.javaworld.com/javaworld/jw-12-2000/jw-1229-traps.html.
  * 
@@ -39,6 +48,9 @@ public class StreamGobbler extends InputStream
 	private static final String PROPERTY_TIMEOUT = StreamGobbler.class.getName() + ".timeout";
 	private static long DEFAULT_WAIT_TIMEOUT = Long.parseLong(System.getProperty(PROPERTY_TIMEOUT,"1200000"));
 
+	private static final int DEFAULT_MAX_MEMORY = Integer.getInteger(
+			StreamGobbler.class.getName() + ".maxMemory", 1024 * 1024).intValue();
+
 	class GobblerThread extends Thread
 	{
 		public void run()
@@ -110,6 +122,10 @@ public class StreamGobbler extends InputStream
 	private InputStream is;
 	private final GobblerThread t;
 
+	/* Set if the gobbler is attached to a session, all calls are delegated to it */
+
+	private final SpoolingInputStream spool;
+
 	private final Object synchronizer = new Object();
 
 	private boolean isEOF = false;
@@ -123,13 +139,59 @@ public class StreamGobbler extends InputStream
 	public StreamGobbler(InputStream is)
 	{
 		this.is = is;
+		this.spool = null;
 		t = new GobblerThread();
 		t.setDaemon(true);
 		t.start();
 	}
 
+	/**
+	 * Creates a gobbler for the stdout or stderr of a session that keeps at
+	 * most 1 MB in memory (see the <code>maxMemory</code> system property of
+	 * this class) and holds back the server if the reader falls behind.
+	 *
+	 * @param sess   the session
+	 * @param stderr true to gobble stderr, false for stdout
+	 * @throws IOException the io exception
+	 */
+	public StreamGobbler(Session sess, boolean stderr) throws IOException
+	{
+		this(sess, stderr, DEFAULT_MAX_MEMORY, null);
+	}
+
+	/**
+	 * Creates a gobbler for the stdout or stderr of a session that does not
+	 * use a thread: the data is appended by the receive thread of the
+	 * connection as it arrives. Must be called before the session's stream is
+	 * read from, the session's {@link Session#getStdout()} (or
+	 * {@link Session#getStderr()}) must not be used afterwards.
+	 * <p>
+	 * At most <code>maxMemory</code> bytes are kept in memory. If a spill
+	 * directory is given, anything beyond is appended to a temporary file there
+	 * (deleted on {@link #close()}), and the server is never held back.
+	 * Otherwise the data beyond <code>maxMemory</code> is only acknowledged to
+	 * the server once it has been read, so the server stops sending when the
+	 * channel window is exhausted. Since stdout and stderr share one window,
+	 * this also stalls the other stream until the reader catches up.
+	 *
+	 * @param sess           the session
+	 * @param stderr         true to gobble stderr, false for stdout
+	 * @param maxMemory      maximum number of bytes kept in memory
+	 * @param spillDirectory directory for the spill file, or null
+	 * @throws IOException the io exception
+	 */
+	public StreamGobbler(Session sess, boolean stderr, int maxMemory, File spillDirectory) throws IOException
+	{
+		this.is = null;
+		this.t = null;
+		this.spool = sess.cn.spool(stderr, maxMemory, spillDirectory);
+	}
+
 	public int read() throws IOException
 	{
+		if (spool != null)
+			return spool.read();
+
 		synchronized (synchronizer)
 		{
 			if (isClosed)
@@ -161,6 +223,9 @@ public class StreamGobbler extends InputStream
 
 	public int available() throws IOException
 	{
+		if (spool != null)
+			return spool.available();
+
 		synchronized (synchronizer)
 		{
 			if (isClosed)
@@ -177,6 +242,12 @@ public class StreamGobbler extends InputStream
 
 	public void close() throws IOException
 	{
+		if (spool != null)
+		{
+			spool.close();
+			return;
+		}
+
 		synchronized (synchronizer)
 		{
 			if (isClosed)
@@ -199,6 +270,9 @@ public class StreamGobbler extends InputStream
 		if (len == 0)
 			return 0;
 
+		if (spool != null)
+			return spool.read(b, off, len);
+
 		synchronized (synchronizer)
 		{
 			if (isClosed)
@@ -0,0 +1,48 @@
+package com.trilead.ssh2.channel;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * CallbackExecutor. Runs work that was triggered by the receive thread but
+ * must not run on it, e.g., because it sends messages or calls user code that
+ * might. Shared by all connections; the threads are created on demand and go
+ * away after a minute of idleness.
+ */
+public final class CallbackExecutor
+{
+	private static final ThreadFactory threadFactory = new ThreadFactory()
+	{
+		private final AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(Runnable r)
+		{
+			Thread t = new Thread(r, "Trilead_ChannelCallback_" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	};
+
+	private static final ExecutorService executor = Executors.newCachedThreadPool(threadFactory);
+
+	private CallbackExecutor()
+	{
+	}
+
+	static void execute(Runnable r)
+	{
+		executor.execute(r);
+	}
+
+	/**
+	 * @return the executor, for callbacks of other packages that must not run
+	 *         on the receive thread either
+	 */
+	public static Executor getExecutor()
+	{
+		return executor;
+	}
+}
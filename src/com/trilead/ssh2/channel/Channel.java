@@ -1,16 +1,23 @@
 
 package com.trilead.ssh2.channel;
 
+import com.trilead.ssh2.ChannelAdapter;
+import com.trilead.ssh2.ChannelListener;
 import com.trilead.ssh2.log.Logger;
 import com.trilead.ssh2.packets.PacketSignal;
 import com.trilead.ssh2.packets.PacketWindowChange;
 import com.trilead.ssh2.packets.Packets;
+import com.trilead.ssh2.transport.OutboundScheduler;
 import com.trilead.ssh2.transport.TransportManager;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 import static com.trilead.ssh2.util.IOUtils.closeQuietly;
 
@@ -87,6 +94,18 @@ public class Channel
         FifoBuffer buffer = new FifoBuffer(Channel.this, 2048, channelBufferSize);
         OutputStream sink;
 
+        /**
+         * If true, data written to the {@link #sink} is only acknowledged to the other side
+         * (by adjusting the window) once {@link #ack(int)} is called. This lets a non-blocking
+         * sink that queues the data apply backpressure.
+         */
+        boolean deferAck;
+
+        /**
+         * Bytes handed to the {@link #sink} but not yet acknowledged, see {@link #deferAck}.
+         */
+        int unacked;
+
         public void write(byte[] buf, int start, int len) throws IOException {
             if (buffer!=null) {
                 try {
@@ -95,17 +114,23 @@ public class Channel
                     throw new InterruptedIOException();
                 }
             } else {
+                // counted first, a sink may acknowledge right away
+                if (deferAck)
+                    unacked += len;
                 sink.write(buf,start,len);
-                freeupWindow(len, true);
+                if (!deferAck)
+                    freeupWindow(len, true);
             }
         }
 
         /**
          * How many bytes can be read from the buffer?
+         * In the deferred ack mode, the bytes still held by the sink count as well,
+         * since they still occupy our window.
          */
         public int readable() {
             if (buffer!=null)   return buffer.readable();
-            else                return 0;
+            else                return unacked;
         }
 
         /**
@@ -144,7 +169,11 @@ public class Channel
         public void pipeTo(OutputStream os) throws IOException {
             sink = os;
             if (buffer.readable()!=0) {
-                freeupWindow(buffer.writeTo(os));
+                if (deferAck)
+                    unacked += buffer.readable();
+                int len = buffer.writeTo(os);
+                if (!deferAck)
+                    freeupWindow(len);
             }
 
             buffer = null;
@@ -155,6 +184,12 @@ public class Channel
     final Output stdout = new Output();
     final Output stderr = new Output();
 
+    /**
+     * Notified by the {@link ChannelManager} about state changes, may be null.
+     * Set before the channel is opened.
+     */
+    volatile IChannelEventHandler eventHandler;
+
     // These two fields will only be written while the Channel is in state
 	// STATE_OPENING.
 	// The code makes sure that the two fields are written out when the state is
@@ -200,6 +235,19 @@ public class Channel
 
 	final byte[] msgWindowAdjust = new byte[9];
 
+	/*
+	 * Header (type, recipient channel, data length) of outgoing
+	 * SSH_MSG_CHANNEL_DATA messages. The data itself is handed to the
+	 * transport layer straight from the caller's buffer.
+	 * May only be used while holding the channelSendLock
+	 */
+
+	final byte[] msgDataHeader = new byte[9];
+
+	/* Our share of the connection's outbound bandwidth */
+
+	final OutboundScheduler.Flow outboundFlow = new OutboundScheduler.Flow();
+
 	// If you access (read or write) any of the following fields, then you have
 	// to synchronize on the channel.
 
@@ -213,6 +261,9 @@ public class Channel
 	int successCounter = 0;
 	int failedCounter = 0;
 
+	/* The replies in order while a burst of requests is pending, see ChannelManager.sendRequests() */
+	Vector<Boolean> replies = null;
+
 	int localWindow = 0; /* locally, we use a small window, < 2^31 */
 	long remoteWindow = 0; /* long for readable  2^32 - 1 window support */
 
@@ -235,6 +286,24 @@ public class Channel
 
 	String exit_signal;
 
+	/* Created on demand, see getExitFuture() */
+
+	private CompletableFuture<Integer> exitFuture;
+	private boolean exitFutureCompleting = false;
+
+	/* Set by the asynchronous open methods of the ChannelManager */
+
+	CompletableFuture<Channel> openFuture;
+	private boolean openReported = false;
+
+	/* Set if the channel was closed because the connection went away */
+
+	boolean connectionLost = false;
+
+	/* Copy on write, see addListener() */
+
+	private volatile ListenerRegistration[] listeners = new ListenerRegistration[0];
+
 	// we keep the x11 cookie so that this channel can be closed when this
 	// specific x11 forwarding gets stopped
 
@@ -267,6 +336,17 @@ public class Channel
         // next time when the other side sends us something, we'll issue SSH_MSG_CHANNEL_WINDOW_ADJUST
     }
 
+	/**
+	 * Sets the share of the connection's outbound bandwidth this channel gets
+	 * while other channels are sending data at the same time.
+	 *
+	 * @param weight a positive number, the default is 1
+	 */
+	public void setOutboundWeight(int weight)
+	{
+		outboundFlow.setWeight(weight);
+	}
+
 	public ChannelInputStream getStderrStream()
 	{
 		return stderr.stream;
@@ -290,6 +370,333 @@ public class Channel
         stderr.pipeTo(os);
     }
 
+    /**
+     * Like {@link #pipeStdoutStream(OutputStream)}, but the window is only given back to
+     * the other side once the data is acknowledged with {@link #ackStdout(int)}.
+     */
+    synchronized void pipeStdoutStreamDeferred(OutputStream os) throws IOException {
+        stdout.deferAck = true;
+        stdout.pipeTo(os);
+    }
+
+    /**
+     * Acknowledges that data passed to a deferred stdout pipe has been consumed.
+     * Must not be called by the receive thread.
+     */
+    void ackStdout(int len) throws IOException {
+        ack(stdout, len, false);
+    }
+
+    /**
+     * Acknowledges data passed to a deferred pipe. With <code>sendAsync</code>, the
+     * window adjust is queued, which makes this safe for the receive thread.
+     */
+    void ack(Output o, int len, boolean sendAsync) throws IOException {
+        synchronized (this) {
+            o.unacked -= len;
+        }
+        freeupWindow(len, sendAsync);
+    }
+
+    /**
+     * Replaces the stdout (or stderr) stream by a {@link SpoolingInputStream} that is
+     * fed directly by the receive thread, see there.
+     *
+     * @param extended          true for stderr
+     * @param maxMemory         bytes kept in memory
+     * @param spillDirectory    where to spill data that does not fit into memory, or
+     *                          null to hold back the remote side instead
+     * @return the stream to read the data from
+     * @throws IOException the io exception
+     */
+    public synchronized SpoolingInputStream spool(boolean extended, int maxMemory, File spillDirectory)
+            throws IOException {
+        Output o = extended ? stderr : stdout;
+        SpoolingInputStream s = new SpoolingInputStream(this, o, maxMemory, spillDirectory);
+        o.deferAck = true;
+        o.pipeTo(s.sink);
+        return s;
+    }
+
+	/**
+	 * Returns a future that is completed once the channel has been closed:
+	 * with the exit status of the remote command, or -1 if the server did not
+	 * report one (e.g., because the command was killed by a signal). If the
+	 * channel was closed for another reason (e.g., the connection was lost),
+	 * the future completes exceptionally with the reason.
+	 * <p>
+	 * The channel is closed on our side as well before the future completes.
+	 * Dependent actions run on a shared callback thread, never on the receive
+	 * thread of the connection.
+	 *
+	 * @return the exit status future
+	 */
+	public CompletableFuture<Integer> getExitFuture()
+	{
+		synchronized (this)
+		{
+			if (exitFuture != null)
+				return exitFuture;
+
+			exitFuture = new CompletableFuture<Integer>();
+		}
+
+		/* Reports the close right away if the channel is closed already */
+
+		addListener(new ChannelAdapter()
+		{
+			public void closed(Throwable reason)
+			{
+				completeExitFuture();
+			}
+		}, null);
+
+		return exitFuture;
+	}
+
+	private void completeExitFuture()
+	{
+		synchronized (this)
+		{
+			/* Closing the channel below reports the close again */
+
+			if (exitFutureCompleting)
+				return;
+			exitFutureCompleting = true;
+		}
+
+		/* Invoked by the receive thread, closing sends a message */
+
+		CallbackExecutor.execute(new Runnable()
+		{
+			public void run()
+			{
+				Integer status;
+				boolean closedByRemote;
+
+				synchronized (Channel.this)
+				{
+					status = exit_status;
+					closedByRemote = closeMessageRecv && (connectionLost == false);
+				}
+
+				try
+				{
+					cm.closeChannel(Channel.this, "Closed after the remote command finished", true);
+				}
+				catch (IOException ignore)
+				{
+				}
+
+				if (status != null)
+					exitFuture.complete(status);
+				else if (closedByRemote)
+					exitFuture.complete(Integer.valueOf(-1));
+				else
+					exitFuture.completeExceptionally(ioException());
+			}
+		});
+	}
+
+	private IOException ioException()
+	{
+		Throwable cause = getReasonClosedCause();
+
+		if (cause instanceof IOException)
+			return (IOException) cause;
+
+		IOException e = new IOException("The channel was closed without an exit status");
+		if (cause != null)
+			e.initCause(cause);
+		return e;
+	}
+
+	/**
+	 * Registers a listener for state changes of this channel. Conditions that
+	 * already hold (data available, EOF, exit status or signal, closed) are
+	 * reported right away.
+	 *
+	 * @param listener the listener
+	 * @param executor invokes the listener, or null to invoke it directly from
+	 *                 the receive thread (see {@link ChannelListener})
+	 */
+	public void addListener(ChannelListener listener, Executor executor)
+	{
+		ListenerRegistration r = new ListenerRegistration(listener, executor);
+
+		boolean stdoutData;
+		boolean stderrData;
+		boolean isEOF;
+		Integer status;
+		String signal;
+		boolean closed;
+
+		synchronized (this)
+		{
+			ListenerRegistration[] n = new ListenerRegistration[listeners.length + 1];
+			System.arraycopy(listeners, 0, n, 0, listeners.length);
+			n[listeners.length] = r;
+			listeners = n;
+
+			stdoutData = (stdout.buffer != null) && (stdout.buffer.readable() > 0);
+			stderrData = (stderr.buffer != null) && (stderr.buffer.readable() > 0);
+			isEOF = eof;
+			status = exit_status;
+			signal = exit_signal;
+			closed = (state == STATE_CLOSED);
+		}
+
+		/* Might duplicate a notification that is being fired concurrently, that is harmless */
+
+		if (stdoutData)
+			r.fire(ListenerRegistration.DATA_STDOUT, 0, null);
+		if (stderrData)
+			r.fire(ListenerRegistration.DATA_STDERR, 0, null);
+		if (isEOF)
+			r.fire(ListenerRegistration.EOF, 0, null);
+		if (status != null)
+			r.fire(ListenerRegistration.EXIT_STATUS, status.intValue(), null);
+		if (signal != null)
+			r.fire(ListenerRegistration.EXIT_SIGNAL, 0, signal);
+		if (closed)
+			r.fire(ListenerRegistration.CLOSED, 0, getReasonClosedCause());
+	}
+
+	public void removeListener(ChannelListener listener)
+	{
+		synchronized (this)
+		{
+			for (int i = 0; i < listeners.length; i++)
+			{
+				if (listeners[i].listener == listener)
+				{
+					ListenerRegistration[] n = new ListenerRegistration[listeners.length - 1];
+					System.arraycopy(listeners, 0, n, 0, i);
+					System.arraycopy(listeners, i + 1, n, i, n.length - i);
+					listeners = n;
+					return;
+				}
+			}
+		}
+	}
+
+	/*
+	 * Notifications, invoked by the ChannelManager after the state has been
+	 * updated. Never invoke them while holding the channel lock.
+	 */
+
+	void fireOpened()
+	{
+		IChannelEventHandler h = eventHandler;
+		if (h != null)
+			h.channelOpened(this);
+
+		reportOpen(true);
+	}
+
+	void fireDataAvailable(boolean extended)
+	{
+		ListenerRegistration[] ls = listeners;
+		for (int i = 0; i < ls.length; i++)
+			ls[i].fire(extended ? ListenerRegistration.DATA_STDERR : ListenerRegistration.DATA_STDOUT, 0, null);
+	}
+
+	void fireEOF()
+	{
+		ListenerRegistration[] ls = listeners;
+		for (int i = 0; i < ls.length; i++)
+			ls[i].fire(ListenerRegistration.EOF, 0, null);
+	}
+
+	void fireExitStatus(int status)
+	{
+		ListenerRegistration[] ls = listeners;
+		for (int i = 0; i < ls.length; i++)
+			ls[i].fire(ListenerRegistration.EXIT_STATUS, status, null);
+	}
+
+	void fireExitSignal(String signal)
+	{
+		ListenerRegistration[] ls = listeners;
+		for (int i = 0; i < ls.length; i++)
+			ls[i].fire(ListenerRegistration.EXIT_SIGNAL, 0, signal);
+	}
+
+	void fireWindowAdjusted()
+	{
+		IChannelEventHandler h = eventHandler;
+		if (h != null)
+			h.remoteWindowAdjusted(this);
+
+		ListenerRegistration[] ls = listeners;
+		for (int i = 0; i < ls.length; i++)
+			ls[i].fire(ListenerRegistration.WINDOW_OPENED, 0, null);
+	}
+
+	void fireClosed()
+	{
+		IChannelEventHandler h = eventHandler;
+		if (h != null)
+			h.channelClosed(this);
+
+		reportOpen(false);
+
+		ListenerRegistration[] ls = listeners;
+		if (ls.length == 0)
+			return;
+
+		Throwable reason = getReasonClosedCause();
+		for (int i = 0; i < ls.length; i++)
+			ls[i].fire(ListenerRegistration.CLOSED, 0, reason);
+	}
+
+	/**
+	 * Completes the open future (if any) with the outcome of the open request,
+	 * on the callback executor since dependent actions typically send.
+	 */
+	private void reportOpen(final boolean opened)
+	{
+		final CompletableFuture<Channel> f = openFuture;
+
+		if (f == null)
+			return;
+
+		synchronized (this)
+		{
+			/* A close after the open must not report a failure */
+
+			if (openReported)
+				return;
+			openReported = true;
+		}
+
+		CallbackExecutor.execute(new Runnable()
+		{
+			public void run()
+			{
+				if (opened == false)
+				{
+					f.completeExceptionally((IOException) new IOException("Could not open channel")
+							.initCause(getReasonClosedCause()));
+					return;
+				}
+
+				if (f.complete(Channel.this) == false)
+				{
+					/* The caller has given up (cancelled the future) */
+
+					try
+					{
+						cm.closeChannel(Channel.this, "The open request was cancelled", true);
+					}
+					catch (IOException ignore)
+					{
+					}
+				}
+			}
+		});
+	}
+
 	public String getExitSignal()
 	{
 		synchronized (this)
@@ -403,10 +810,13 @@ public class Channel
                 msg[8] = (byte) (increment);
 
                 if (closeMessageSent == false) {
+                    // window adjusts go out ahead of queued channel data, otherwise the
+                    // peer's sender stalls while we are busy sending
                     if (sendAsync) {
-                        cm.tm.sendAsynchronousMessage(msg);
+                        // the queue keeps a reference, so it must not see the reused buffer
+                        cm.tm.sendAsynchronousMessage(msg.clone());
                     } else {
-                        cm.tm.sendMessage(msg);
+                        cm.tm.sendControlMessage(msg);
                     }
                 }
             }
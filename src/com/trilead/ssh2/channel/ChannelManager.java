@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.util.HashMap;
 import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
 
 import com.trilead.ssh2.ChannelCondition;
 import com.trilead.ssh2.log.Logger;
@@ -11,8 +12,11 @@ import com.trilead.ssh2.packets.PacketChannelOpenConfirmation;
 import com.trilead.ssh2.packets.PacketChannelOpenFailure;
 import com.trilead.ssh2.packets.PacketChannelTrileadPing;
 import com.trilead.ssh2.packets.PacketGlobalCancelForwardRequest;
+import com.trilead.ssh2.packets.PacketGlobalCancelStreamLocalForwardRequest;
 import com.trilead.ssh2.packets.PacketGlobalForwardRequest;
+import com.trilead.ssh2.packets.PacketGlobalStreamLocalForwardRequest;
 import com.trilead.ssh2.packets.PacketGlobalTrileadPing;
+import com.trilead.ssh2.packets.PacketOpenDirectStreamLocalChannel;
 import com.trilead.ssh2.packets.PacketOpenDirectTCPIPChannel;
 import com.trilead.ssh2.packets.PacketOpenSessionChannel;
 import com.trilead.ssh2.packets.PacketSessionExecCommand;
@@ -24,6 +28,7 @@ import com.trilead.ssh2.packets.PacketWindowChange;
 import com.trilead.ssh2.packets.Packets;
 import com.trilead.ssh2.packets.TypesReader;
 import com.trilead.ssh2.transport.MessageHandler;
+import com.trilead.ssh2.transport.OutboundScheduler;
 import com.trilead.ssh2.transport.TransportManager;
 
 /**
@@ -51,11 +56,14 @@ public class ChannelManager implements MessageHandler
 	private int globalFailedCounter = 0;
 
 	private HashMap remoteForwardings = new HashMap();
+	private HashMap<String, RemoteForwardingData> remoteStreamLocalForwardings = new HashMap<String, RemoteForwardingData>();
 
-	private Vector listenerThreads = new Vector();
+	private Vector<IChannelWorkerThread> listenerThreads = new Vector<IChannelWorkerThread>();
 
 	private boolean listenerThreadsAllowed = true;
 
+	private ForwardingEngine forwardingEngine = null;
+
 	public ChannelManager(TransportManager tm)
 	{
 		this.tm = tm;
@@ -299,6 +307,9 @@ public class ChannelManager implements MessageHandler
 			c.notifyAll();
 		}
 
+		if (force)
+			c.fireClosed();
+
 		synchronized (c.channelSendLock)
 		{
 			if (c.closeMessageSent == true)
@@ -360,12 +371,95 @@ public class ChannelManager implements MessageHandler
 		}
 	}
 
+	/**
+	 * Refuses the opening of a channel requested by the server. Can be used
+	 * instead of {@link #sendOpenConfirmation(Channel)}.
+	 */
+	void sendOpenFailure(Channel c, int reasonCode, String description) throws IOException
+	{
+		PacketChannelOpenFailure pcof = null;
+
+		synchronized (c)
+		{
+			if (c.state != Channel.STATE_OPENING)
+				return;
+
+			c.state = Channel.STATE_CLOSED;
+			c.setReasonClosed(description);
+			c.eof();
+
+			pcof = new PacketChannelOpenFailure(c.remoteID, reasonCode, description, "");
+
+			c.notifyAll();
+		}
+
+		removeChannel(c.localID);
+
+		synchronized (c.channelSendLock)
+		{
+			if (c.closeMessageSent == true)
+				return;
+			tm.sendMessage(pcof.getPayload());
+
+			/* The channel never existed for the server, there must be no close message */
+			c.closeMessageSent = true;
+		}
+
+		if (log.isEnabled())
+			log.log(50, "Sent SSH_MSG_CHANNEL_OPEN_FAILURE (channel " + c.localID + ", " + description + ")");
+	}
+
+	/**
+	 * Returns the (estimated) maximum number of data bytes that fit into
+	 * one SSH_MSG_CHANNEL_DATA packet on the given channel.
+	 */
+	int getMaxDataLength(Channel c)
+	{
+		int estimatedMaxDataLen = c.remoteMaxPacketSize - (tm.getPacketOverheadEstimate() + 9);
+
+		/* The worst case scenario =) a true bottleneck */
+
+		if (estimatedMaxDataLen <= 0)
+		{
+			estimatedMaxDataLen = 1;
+		}
+
+		return estimatedMaxDataLen;
+	}
+
+	/**
+	 * Returns the number of bytes that can currently be sent on the given
+	 * channel without waiting for the remote side to adjust its window.
+	 */
+	long getRemoteWindow(Channel c)
+	{
+		synchronized (c)
+		{
+			return c.remoteWindow;
+		}
+	}
+
+	/**
+	 * Checks if <code>len</code> bytes can currently be sent on the given
+	 * channel without waiting for the remote side to adjust its window.
+	 */
+	boolean isRemoteWindowAvailable(Channel c, int len)
+	{
+		synchronized (c)
+		{
+			if (c.state != Channel.STATE_OPEN)
+				return true; /* sendData will fail right away */
+
+			return c.remoteWindow >= len;
+		}
+	}
+
 	public void sendData(Channel c, byte[] buffer, int pos, int len) throws IOException
 	{
 		while (len > 0)
 		{
 			int thislen = 0;
-			byte[] msg;
+			int remoteID;
 
 			synchronized (c)
 			{
@@ -394,41 +488,49 @@ public class ChannelManager implements MessageHandler
 
 				thislen = (c.remoteWindow >= len) ? len : (int) c.remoteWindow;
 
-				int estimatedMaxDataLen = c.remoteMaxPacketSize - (tm.getPacketOverheadEstimate() + 9);
-
-				/* The worst case scenario =) a true bottleneck */
-
-				if (estimatedMaxDataLen <= 0)
-				{
-					estimatedMaxDataLen = 1;
-				}
+				int estimatedMaxDataLen = getMaxDataLength(c);
 
 				if (thislen > estimatedMaxDataLen)
 					thislen = estimatedMaxDataLen;
 
 				c.remoteWindow -= thislen;
 
-				msg = new byte[1 + 8 + thislen];
+				remoteID = c.remoteID;
+			}
 
-				msg[0] = Packets.SSH_MSG_CHANNEL_DATA;
-				msg[1] = (byte) (c.remoteID >> 24);
-				msg[2] = (byte) (c.remoteID >> 16);
-				msg[3] = (byte) (c.remoteID >> 8);
-				msg[4] = (byte) (c.remoteID);
-				msg[5] = (byte) (thislen >> 24);
-				msg[6] = (byte) (thislen >> 16);
-				msg[7] = (byte) (thislen >> 8);
-				msg[8] = (byte) (thislen);
+			/*
+			 * Wait for our turn, so that a busy channel cannot starve the
+			 * other channels on this connection.
+			 */
 
-				System.arraycopy(buffer, pos, msg, 9, thislen);
-			}
+			OutboundScheduler scheduler = tm.getOutboundScheduler();
 
-			synchronized (c.channelSendLock)
+			try
+			{
+				scheduler.acquire(c.outboundFlow, 9 + thislen);
+			}
+			catch (InterruptedIOException e)
 			{
-				if (c.closeMessageSent == true)
-                    throw ioException("SSH channel is closed",c);
+				synchronized (c)
+				{
+					c.remoteWindow += thislen;
+				}
+				throw e;
+			}
+
+			/*
+			 * No copy of the data is made: the header goes into a per-channel
+			 * buffer and the payload is taken directly from the caller's array
+			 * while the transport layer encrypts the packet.
+			 */
 
-				tm.sendMessage(msg);
+			try
+			{
+				sendDataPacket(c, remoteID, buffer, pos, thislen);
+			}
+			finally
+			{
+				scheduler.release();
 			}
 
 			pos += thislen;
@@ -436,8 +538,43 @@ public class ChannelManager implements MessageHandler
 		}
 	}
 
+	private void sendDataPacket(Channel c, int remoteID, byte[] buffer, int pos, int len) throws IOException
+	{
+		synchronized (c.channelSendLock)
+		{
+			if (c.closeMessageSent == true)
+				throw ioException("SSH channel is closed",c);
+
+			byte[] msg = c.msgDataHeader;
+
+			msg[0] = Packets.SSH_MSG_CHANNEL_DATA;
+			msg[1] = (byte) (remoteID >> 24);
+			msg[2] = (byte) (remoteID >> 16);
+			msg[3] = (byte) (remoteID >> 8);
+			msg[4] = (byte) (remoteID);
+			msg[5] = (byte) (len >> 24);
+			msg[6] = (byte) (len >> 16);
+			msg[7] = (byte) (len >> 8);
+			msg[8] = (byte) (len);
+
+			tm.sendMessage(msg, 0, 9, buffer, pos, len);
+		}
+	}
+
 	public int requestGlobalForward(String bindAddress, int bindPort, String targetAddress, int targetPort)
 			throws IOException
+	{
+		return requestGlobalForward(bindAddress, bindPort, targetAddress, targetPort, null, 0);
+	}
+
+	/**
+	 * Requests a remote forwarding. If an engine is given, the forwarded
+	 * connections are handled by it (instead of three threads per connection),
+	 * optionally using a pool of <code>preconnect</code> sockets that are
+	 * connected to the target in advance.
+	 */
+	public int requestGlobalForward(String bindAddress, int bindPort, String targetAddress, int targetPort,
+			ForwardingEngine engine, int preconnect) throws IOException
 	{
 		RemoteForwardingData rfd = new RemoteForwardingData();
 
@@ -445,6 +582,8 @@ public class ChannelManager implements MessageHandler
 		rfd.bindPort = bindPort;
 		rfd.targetAddress = targetAddress;
 		rfd.targetPort = targetPort;
+		rfd.engine = engine;
+		rfd.target = ForwardingTarget.tcp(targetAddress, targetPort);
 
 		synchronized (remoteForwardings)
 		{
@@ -463,6 +602,9 @@ public class ChannelManager implements MessageHandler
 			globalSuccessCounter = globalFailedCounter = 0;
 		}
 
+		if ((engine != null) && (preconnect > 0))
+			rfd.pool = engine.createPool(rfd.target, preconnect);
+
 		PacketGlobalForwardRequest pgf = new PacketGlobalForwardRequest(true, bindAddress, bindPort);
 		tm.sendMessage(pgf.getPayload());
 
@@ -480,6 +622,8 @@ public class ChannelManager implements MessageHandler
 			{
 				remoteForwardings.remove(rfd);
 			}
+			if (rfd.pool != null)
+				rfd.pool.close();
 			throw e;
 		}
 
@@ -522,10 +666,109 @@ public class ChannelManager implements MessageHandler
 				/* Only now we are sure that no more forwarded connections will arrive */
 				remoteForwardings.remove(rfd);
 			}
+			if (rfd.pool != null)
+				rfd.pool.close();
 		}
 
 	}
 
+	/**
+	 * Requests the server to listen on a Unix domain socket
+	 * ("streamlocal-forward@openssh.com") and forwards the connections to a
+	 * local Unix domain socket. Needs Java 16 or later.
+	 */
+	public void requestStreamLocalForward(String socketPath, String targetSocketPath) throws IOException
+	{
+		requestStreamLocalForward(socketPath, ForwardingTarget.streamLocal(targetSocketPath));
+	}
+
+	/**
+	 * Requests the server to listen on a Unix domain socket
+	 * ("streamlocal-forward@openssh.com") and forwards the connections to the
+	 * given TCP target.
+	 */
+	public void requestStreamLocalForward(String socketPath, String targetAddress, int targetPort)
+			throws IOException
+	{
+		requestStreamLocalForward(socketPath, ForwardingTarget.tcp(targetAddress, targetPort));
+	}
+
+	private void requestStreamLocalForward(String socketPath, ForwardingTarget target) throws IOException
+	{
+		RemoteForwardingData rfd = new RemoteForwardingData();
+
+		rfd.bindPath = socketPath;
+		rfd.engine = getForwardingEngine();
+		rfd.target = target;
+
+		synchronized (remoteStreamLocalForwardings)
+		{
+			if (remoteStreamLocalForwardings.get(socketPath) != null)
+				throw new IOException("There is already a forwarding for remote socket " + socketPath);
+
+			remoteStreamLocalForwardings.put(socketPath, rfd);
+		}
+
+		synchronized (channels)
+		{
+			globalSuccessCounter = globalFailedCounter = 0;
+		}
+
+		PacketGlobalStreamLocalForwardRequest pgf = new PacketGlobalStreamLocalForwardRequest(true, socketPath);
+		tm.sendMessage(pgf.getPayload());
+
+		if (log.isEnabled())
+			log.log(50, "Requesting a remote forwarding ('" + socketPath + "')");
+
+		try
+		{
+			if (waitForGlobalRequestResult() == false)
+				throw new IOException("The server denied the request (did you enable stream local forwarding?)");
+		}
+		catch (IOException e)
+		{
+			synchronized (remoteStreamLocalForwardings)
+			{
+				remoteStreamLocalForwardings.remove(socketPath);
+			}
+			throw e;
+		}
+	}
+
+	public void requestCancelStreamLocalForward(String socketPath) throws IOException
+	{
+		synchronized (remoteStreamLocalForwardings)
+		{
+			if (remoteStreamLocalForwardings.get(socketPath) == null)
+				throw new IOException("Sorry, there is no known remote forwarding for remote socket " + socketPath);
+		}
+
+		synchronized (channels)
+		{
+			globalSuccessCounter = globalFailedCounter = 0;
+		}
+
+		PacketGlobalCancelStreamLocalForwardRequest pgcf = new PacketGlobalCancelStreamLocalForwardRequest(true,
+				socketPath);
+		tm.sendMessage(pgcf.getPayload());
+
+		if (log.isEnabled())
+			log.log(50, "Requesting cancelation of remote forward ('" + socketPath + "')");
+
+		try
+		{
+			if (waitForGlobalRequestResult() == false)
+				throw new IOException("The server denied the request.");
+		}
+		finally
+		{
+			synchronized (remoteStreamLocalForwardings)
+			{
+				remoteStreamLocalForwardings.remove(socketPath);
+			}
+		}
+	}
+
 	public void registerThread(IChannelWorkerThread thr) throws IOException
 	{
 		synchronized (listenerThreads)
@@ -536,11 +779,73 @@ public class ChannelManager implements MessageHandler
 		}
 	}
 
+	/**
+	 * Returns the non-blocking forwarding engine of this connection, creates
+	 * it on first use.
+	 *
+	 * @return the forwarding engine
+	 * @throws IOException if the connection is closed
+	 */
+	public ForwardingEngine getForwardingEngine() throws IOException
+	{
+		synchronized (listenerThreads)
+		{
+			if (forwardingEngine == null)
+			{
+				if (listenerThreadsAllowed == false)
+					throw new IOException("Too late, this connection is closed.");
+
+				forwardingEngine = new ForwardingEngine(this);
+				listenerThreads.addElement(forwardingEngine);
+			}
+			return forwardingEngine;
+		}
+	}
+
 	public Channel openDirectTCPIPChannel(String host_to_connect, int port_to_connect, String originator_IP_address,
 			int originator_port) throws IOException
 	{
 		Channel c = new Channel(this);
 
+		sendOpenDirectTCPIPChannel(c, host_to_connect, port_to_connect, originator_IP_address, originator_port);
+
+		waitUntilChannelOpen(c);
+
+		return c;
+	}
+
+	/**
+	 * Requests a "direct-tcpip" channel without waiting for the answer, see
+	 * {@link #openSessionChannelAsync()}.
+	 *
+	 * @return a future that completes with the open channel
+	 */
+	public CompletableFuture<Channel> openDirectTCPIPChannelAsync(String host_to_connect, int port_to_connect,
+			String originator_IP_address, int originator_port)
+	{
+		Channel c = new Channel(this);
+		c.openFuture = new CompletableFuture<Channel>();
+
+		try
+		{
+			sendOpenDirectTCPIPChannel(c, host_to_connect, port_to_connect, originator_IP_address, originator_port);
+		}
+		catch (IOException e)
+		{
+			c.openFuture.completeExceptionally(e);
+		}
+
+		return c.openFuture;
+	}
+
+	/**
+	 * Registers the given (new) channel and requests the server to open it as
+	 * a "direct-tcpip" channel. Does not wait for the answer, the
+	 * {@link IChannelEventHandler} of the channel (if any) gets notified.
+	 */
+	void sendOpenDirectTCPIPChannel(Channel c, String host_to_connect, int port_to_connect,
+			String originator_IP_address, int originator_port) throws IOException
+	{
 		synchronized (c)
 		{
 			c.localID = addChannel(c);
@@ -550,17 +855,95 @@ public class ChannelManager implements MessageHandler
 		PacketOpenDirectTCPIPChannel dtc = new PacketOpenDirectTCPIPChannel(c.localID, c.localWindow,
 				c.localMaxPacketSize, host_to_connect, port_to_connect, originator_IP_address, originator_port);
 
-		tm.sendMessage(dtc.getPayload());
+		try
+		{
+			tm.sendMessage(dtc.getPayload());
+		}
+		catch (IOException e)
+		{
+			removeChannel(c.localID);
+			throw e;
+		}
+	}
+
+	public Channel openDirectStreamLocalChannel(String socketPath) throws IOException
+	{
+		Channel c = new Channel(this);
+
+		sendOpenDirectStreamLocalChannel(c, socketPath);
 
 		waitUntilChannelOpen(c);
 
 		return c;
 	}
 
+	/**
+	 * Registers the given (new) channel and requests the server to open it as
+	 * a "direct-streamlocal@openssh.com" channel, i.e., to connect it to a
+	 * Unix domain socket. Does not wait for the answer.
+	 */
+	void sendOpenDirectStreamLocalChannel(Channel c, String socketPath) throws IOException
+	{
+		synchronized (c)
+		{
+			c.localID = addChannel(c);
+			// end of synchronized block forces writing out to main memory
+		}
+
+		PacketOpenDirectStreamLocalChannel dsc = new PacketOpenDirectStreamLocalChannel(c.localID, c.localWindow,
+				c.localMaxPacketSize, socketPath);
+
+		try
+		{
+			tm.sendMessage(dsc.getPayload());
+		}
+		catch (IOException e)
+		{
+			removeChannel(c.localID);
+			throw e;
+		}
+	}
+
 	public Channel openSessionChannel() throws IOException
 	{
 		Channel c = new Channel(this);
 
+		sendOpenSessionChannel(c);
+
+		waitUntilChannelOpen(c);
+
+		return c;
+	}
+
+	/**
+	 * Requests a "session" channel without waiting for the answer. Any number
+	 * of such requests may be in flight, the server's confirmations are
+	 * matched to them by channel ID.
+	 *
+	 * @return a future that completes with the open channel, or exceptionally
+	 *         if the server refuses the channel or the connection is lost.
+	 *         Dependent actions run on a shared callback thread. Cancelling
+	 *         the future closes the channel once it has been opened.
+	 */
+	public CompletableFuture<Channel> openSessionChannelAsync()
+	{
+		Channel c = new Channel(this);
+		c.openFuture = new CompletableFuture<Channel>();
+
+		try
+		{
+			sendOpenSessionChannel(c);
+		}
+		catch (IOException e)
+		{
+			c.openFuture.completeExceptionally(e);
+		}
+
+		return c.openFuture;
+	}
+
+	private void sendOpenSessionChannel(Channel c) throws IOException
+	{
 		synchronized (c)
 		{
 			c.localID = addChannel(c);
@@ -571,11 +954,16 @@ public class ChannelManager implements MessageHandler
 			log.log(50, "Sending SSH_MSG_CHANNEL_OPEN (Channel " + c.localID + ")");
 
 		PacketOpenSessionChannel smo = new PacketOpenSessionChannel(c.localID, c.localWindow, c.localMaxPacketSize);
-		tm.sendMessage(smo.getPayload());
 
-		waitUntilChannelOpen(c);
-
-		return c;
+		try
+		{
+			tm.sendMessage(smo.getPayload());
+		}
+		catch (IOException e)
+		{
+			removeChannel(c.localID);
+			throw e;
+		}
 	}
 
 	public void requestGlobalTrileadPing() throws IOException
@@ -587,7 +975,7 @@ public class ChannelManager implements MessageHandler
 
 		PacketGlobalTrileadPing pgtp = new PacketGlobalTrileadPing();
 
-		tm.sendMessage(pgtp.getPayload());
+		tm.sendControlMessage(pgtp.getPayload());
 
 		if (log.isEnabled())
 			log.log(50, "Sending SSH_MSG_GLOBAL_REQUEST 'trilead-ping'.");
@@ -623,7 +1011,7 @@ public class ChannelManager implements MessageHandler
 		{
 			if (c.closeMessageSent)
                 throw ioException("Cannot ping this channel",c);
-			tm.sendMessage(pctp.getPayload());
+			tm.sendControlMessage(pctp.getPayload());
 		}
 
 		try
@@ -809,6 +1197,102 @@ public class ChannelManager implements MessageHandler
 		}
 	}
 
+	/**
+	 * Sends several session requests back-to-back, optionally followed by
+	 * some stdin data, and only then waits for the replies. The server answers
+	 * the requests in order, the first failure is reported. The whole setup
+	 * thus costs a single round trip.
+	 *
+	 * @param c         the channel
+	 * @param requests  the requests, in the order the server has to process them
+	 * @param stdinData sent after the requests (e.g., the first message of a
+	 *                  subsystem), may be null
+	 * @throws IOException if sending fails or a request is denied
+	 */
+	public void sendRequests(Channel c, ChannelRequest[] requests, byte[] stdinData) throws IOException
+	{
+		byte[][] payloads = new byte[requests.length][];
+		int expected = 0;
+
+		synchronized (c)
+		{
+			if (c.state != Channel.STATE_OPEN)
+				throw ioException("Cannot send requests on this channel", c);
+
+			for (int i = 0; i < requests.length; i++)
+			{
+				payloads[i] = requests[i].getPayload(c.remoteID);
+				if (requests[i].wantReply)
+					expected++;
+			}
+
+			c.successCounter = c.failedCounter = 0;
+			c.replies = new Vector<Boolean>();
+		}
+
+		try
+		{
+			synchronized (c.channelSendLock)
+			{
+				if (c.closeMessageSent)
+					throw ioException("Cannot send requests on this channel", c);
+
+				for (int i = 0; i < payloads.length; i++)
+					tm.sendMessage(payloads[i]);
+			}
+
+			if (log.isEnabled())
+				log.log(50, "Sent " + payloads.length + " requests (channel " + c.localID + ")");
+
+			if ((stdinData != null) && (stdinData.length > 0))
+				sendData(c, stdinData, 0, stdinData.length);
+
+			Vector<Boolean> replies = waitForChannelRequestResults(c, expected);
+
+			int r = 0;
+
+			for (int i = 0; i < requests.length; i++)
+			{
+				if (requests[i].wantReply == false)
+					continue;
+
+				if (replies.elementAt(r++).booleanValue() == false)
+					throw (IOException) new IOException(requests[i].failureMessage)
+							.initCause(new IOException("The server denied the request."));
+			}
+		}
+		finally
+		{
+			synchronized (c)
+			{
+				c.replies = null;
+			}
+		}
+	}
+
+	private final Vector<Boolean> waitForChannelRequestResults(Channel c, int expected) throws IOException
+	{
+		synchronized (c)
+		{
+			while (c.replies.size() < expected)
+			{
+				if (c.state != Channel.STATE_OPEN)
+					throw ioException("This SSH2 channel is not open. state: " + c.state, c);
+
+				try
+				{
+					c.wait(DEFAULT_WAIT_TIMEOUT);
+				}
+				catch (InterruptedException ignore)
+				{
+					throw new InterruptedIOException();
+				}
+			}
+
+			return c.replies;
+		}
+	}
+
 	public void msgChannelExtendedData(byte[] msg, int msglen) throws IOException
 	{
 		if (msglen <= 13)
@@ -849,6 +1333,8 @@ public class ChannelManager implements MessageHandler
 
             c.stderr.write(msg,13,len);
 		}
+
+		c.fireDataAvailable(true);
 	}
 
 	/**
@@ -868,28 +1354,10 @@ public class ChannelManager implements MessageHandler
 		{
 			while (true)
 			{
-				int current_cond = 0;
-
-				int stdoutAvail = c.stdout.readable();
-				int stderrAvail = c.stderr.readable();
-
-				if (stdoutAvail > 0)
-					current_cond = current_cond | ChannelCondition.STDOUT_DATA;
-
-				if (stderrAvail > 0)
-					current_cond = current_cond | ChannelCondition.STDERR_DATA;
-
-				if (c.isEOF())
-					current_cond = current_cond | ChannelCondition.EOF;
-
-				if (c.getExitStatus() != null)
-					current_cond = current_cond | ChannelCondition.EXIT_STATUS;
+				int current_cond = getConditions(c);
 
-				if (c.getExitSignal() != null)
-					current_cond = current_cond | ChannelCondition.EXIT_SIGNAL;
-
-				if (c.state == Channel.STATE_CLOSED)
-					return current_cond | ChannelCondition.CLOSED | ChannelCondition.EOF;
+				if ((current_cond & ChannelCondition.CLOSED) != 0)
+					return current_cond;
 
 				if ((current_cond & condition_mask) != 0)
 					return current_cond;
@@ -918,6 +1386,39 @@ public class ChannelManager implements MessageHandler
 		}
 	}
 
+	/**
+	 * Returns the conditions (see {@link ChannelCondition}) that currently
+	 * hold for the given channel, without waiting. A closed channel always
+	 * reports CLOSED and EOF.
+	 */
+	public int getConditions(Channel c)
+	{
+		synchronized (c)
+		{
+			int current_cond = 0;
+
+			if (c.stdout.readable() > 0)
+				current_cond = current_cond | ChannelCondition.STDOUT_DATA;
+
+			if (c.stderr.readable() > 0)
+				current_cond = current_cond | ChannelCondition.STDERR_DATA;
+
+			if (c.isEOF())
+				current_cond = current_cond | ChannelCondition.EOF;
+
+			if (c.getExitStatus() != null)
+				current_cond = current_cond | ChannelCondition.EXIT_STATUS;
+
+			if (c.getExitSignal() != null)
+				current_cond = current_cond | ChannelCondition.EXIT_SIGNAL;
+
+			if (c.state == Channel.STATE_CLOSED)
+				current_cond = current_cond | ChannelCondition.CLOSED | ChannelCondition.EOF;
+
+			return current_cond;
+		}
+	}
+
 	public int getAvailable(Channel c, boolean extended) throws IOException
 	{
 		synchronized (c)
@@ -979,6 +1480,8 @@ public class ChannelManager implements MessageHandler
 
             c.stdout.write(msg,9,len);
         }
+
+		c.fireDataAvailable(false);
 	}
 
 	public void msgChannelWindowAdjust(byte[] msg, int msglen) throws IOException
@@ -1008,6 +1511,8 @@ public class ChannelManager implements MessageHandler
 			c.notifyAll();
 		}
 
+		c.fireWindowAdjusted();
+
 		if (log.isEnabled())
 			log.log(80, "Got SSH_MSG_CHANNEL_WINDOW_ADJUST (channel " + id + ", " + windowChange + ")");
 	}
@@ -1110,6 +1615,12 @@ public class ChannelManager implements MessageHandler
 			 * The open confirmation message will be sent from another thread.
 			 */
 
+			if (rfd.engine != null)
+			{
+				rfd.engine.forwardRemote(c, rfd.target, rfd.pool);
+				return;
+			}
+
 			RemoteAcceptThread rat = new RemoteAcceptThread(c, remoteConnectedAddress, remoteConnectedPort,
 					remoteOriginatorAddress, remoteOriginatorPort, rfd.targetAddress, rfd.targetPort);
 
@@ -1119,6 +1630,46 @@ public class ChannelManager implements MessageHandler
 			return;
 		}
 
+		if ("forwarded-streamlocal@openssh.com".equals(channelType))
+		{
+			String socketPath = tr.readString(); /* socket that was connected */
+
+			RemoteForwardingData rfd = null;
+
+			synchronized (remoteStreamLocalForwardings)
+			{
+				rfd = remoteStreamLocalForwardings.get(socketPath);
+			}
+
+			if (rfd == null)
+			{
+				PacketChannelOpenFailure pcof = new PacketChannelOpenFailure(remoteID,
+						Packets.SSH_OPEN_ADMINISTRATIVELY_PROHIBITED,
+						"No thanks, unknown socket in forwarded-streamlocal request", "");
+
+				tm.sendAsynchronousMessage(pcof.getPayload());
+
+				if (log.isEnabled())
+					log.log(20, "Unexpected forwarded-streamlocal request, denying it!");
+
+				return;
+			}
+
+			Channel c = new Channel(this);
+
+			synchronized (c)
+			{
+				c.remoteID = remoteID;
+				c.remoteWindow = remoteWindow & 0xFFFFffffL; /* convert UINT32 to long */
+				c.remoteMaxPacketSize = remoteMaxPacketSize;
+				c.localID = addChannel(c);
+			}
+
+			rfd.engine.forwardRemote(c, rfd.target, null);
+
+			return;
+		}
+
 		/* Tell the server that we have no idea what it is talking about */
 
 		PacketChannelOpenFailure pcof = new PacketChannelOpenFailure(remoteID, Packets.SSH_OPEN_UNKNOWN_CHANNEL_TYPE,
@@ -1164,6 +1715,8 @@ public class ChannelManager implements MessageHandler
 				c.notifyAll();
 			}
 
+			c.fireExitStatus(exit_status);
+
 			if (log.isEnabled())
 				log.log(50, "Got EXIT STATUS (channel " + id + ", status " + exit_status + ")");
 
@@ -1189,6 +1742,8 @@ public class ChannelManager implements MessageHandler
 				c.notifyAll();
 			}
 
+			c.fireExitSignal(signame);
+
 			if (log.isEnabled())
 				log.log(50, "Got EXIT SIGNAL (channel " + id + ", signal " + signame + ")");
 
@@ -1230,6 +1785,8 @@ public class ChannelManager implements MessageHandler
 
         c.eof();
 
+		c.fireEOF();
+
 		if (log.isEnabled())
 			log.log(50, "Got SSH_MSG_CHANNEL_EOF (channel " + id + ")");
 	}
@@ -1258,6 +1815,8 @@ public class ChannelManager implements MessageHandler
 			c.notifyAll();
 		}
 
+		c.fireClosed();
+
 		if (log.isEnabled())
 			log.log(50, "Got SSH_MSG_CHANNEL_CLOSE (channel " + id + ")");
 	}
@@ -1277,6 +1836,8 @@ public class ChannelManager implements MessageHandler
 		synchronized (c)
 		{
 			c.successCounter++;
+			if (c.replies != null)
+				c.replies.addElement(Boolean.TRUE);
 			c.notifyAll();
 		}
 
@@ -1299,6 +1860,8 @@ public class ChannelManager implements MessageHandler
 		synchronized (c)
 		{
 			c.failedCounter++;
+			if (c.replies != null)
+				c.replies.addElement(Boolean.FALSE);
 			c.notifyAll();
 		}
 
@@ -1329,6 +1892,8 @@ public class ChannelManager implements MessageHandler
 			c.notifyAll();
 		}
 
+		c.fireOpened();
+
 		if (log.isEnabled())
 			log.log(50, "Got SSH_MSG_CHANNEL_OPEN_CONFIRMATION (channel " + sm.recipientChannelID + " / remote: "
 					+ sm.senderChannelID + ")");
@@ -1393,6 +1958,14 @@ public class ChannelManager implements MessageHandler
 			c.notifyAll();
 		}
 
+		if ((c.eventHandler != null) || (c.openFuture != null))
+		{
+			/* Nobody waits in waitUntilChannelOpen() for this channel */
+			removeChannel(c.localID);
+		}
+
+		c.fireClosed();
+
 		if (log.isEnabled())
 			log.log(50, "Got SSH_MSG_CHANNEL_OPEN_FAILURE (channel " + id + ")");
 	}
@@ -1504,7 +2077,7 @@ public class ChannelManager implements MessageHandler
         {
             for (int i = 0; i < listenerThreads.size(); i++)
             {
-                IChannelWorkerThread lat = (IChannelWorkerThread) listenerThreads.elementAt(i);
+                IChannelWorkerThread lat = listenerThreads.elementAt(i);
                 lat.stopWorking();
             }
             listenerThreadsAllowed = false;
@@ -1522,6 +2095,7 @@ public class ChannelManager implements MessageHandler
                     c.eof();
                     c.state = Channel.STATE_CLOSED;
                     c.setReasonClosed(new IOException("The connection is being shutdown").initCause(cause));
+                    c.connectionLost = true;
                     c.closeMessageRecv = true; /*
                                                                                                                          * You never know, perhaps
                                                                                                                          * we are waiting for a
@@ -1530,6 +2104,7 @@ public class ChannelManager implements MessageHandler
                                                                                                                          */
                     c.notifyAll();
                 }
+                c.fireClosed();
             }
             /* Works with J2ME */
             channels.setSize(0);
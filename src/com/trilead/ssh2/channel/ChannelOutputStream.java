@@ -2,69 +2,355 @@ package com.trilead.ssh2.channel;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * ChannelOutputStream.
- * 
+ * <p>
+ * By default every write is sent to the remote side immediately. In buffered
+ * mode (see {@link #setBuffered(boolean, long)}) small writes are collected
+ * into packets of the maximum size the remote side accepts. The collected
+ * data is sent when a packet is full, on {@link #flush()}, on {@link #close()}
+ * or, optionally, after a short delay.
+ *
  * @author Christian Plattner, plattner@trilead.com
  * @version $Id: ChannelOutputStream.java,v 1.1 2007/10/15 12:49:56 cplattne Exp $
  */
 public final class ChannelOutputStream extends OutputStream
 {
+	/*
+	 * One daemon thread times the delayed flushes of all buffered streams. It
+	 * only hands them to the CallbackExecutor, sending may block (e.g., while
+	 * other channels have their turn) and must not hold up the other streams.
+	 */
+
+	private static ScheduledExecutorService flusher;
+
 	Channel c;
 
 	boolean isClosed = false;
-	
+
+	/*
+	 * Serializes writers and the delayed flush. The delayed flush only uses
+	 * tryLock(), a writer blocked on the remote window must not tie up a
+	 * callback thread.
+	 */
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final byte[] single = new byte[1];
+
+	/* null if the stream is unbuffered */
+
+	private byte[] buffer;
+	private int count = 0;
+	private long flushDelay = 0;
+	private boolean flushScheduled = false;
+
+	private final Runnable flushTask = new Runnable()
+	{
+		public void run()
+		{
+			delayedFlush();
+		}
+	};
+
+	/* Set if a delayed flush failed, thrown by any later write, flush or close */
+
+	private IOException flushFailure;
+
 	ChannelOutputStream(Channel c)
 	{
 		this.c = c;
 	}
 
+	private static synchronized ScheduledExecutorService getFlusher()
+	{
+		if (flusher == null)
+		{
+			flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+			{
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "Trilead_ChannelOutputStream_Flusher");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return flusher;
+	}
+
+	/**
+	 * Enables or disables buffering.
+	 * <p>
+	 * In buffered mode, writes are collected until a full packet can be sent.
+	 * Writes that fill a packet on their own are sent without delay. Any
+	 * remaining data is sent on {@link #flush()}, on {@link #close()} or, if
+	 * <code>flushDelay</code> is positive, at the latest <code>flushDelay</code>
+	 * milliseconds after it was written (as long as the remote window permits).
+	 * <p>
+	 * Disabling buffering sends any pending data.
+	 *
+	 * @param buffered whether writes shall be buffered
+	 * @param flushDelay delay in ms after which buffered data is sent
+	 *            automatically, 0 or a negative value disables automatic flushes
+	 * @throws IOException if pending data cannot be sent
+	 */
+	public void setBuffered(boolean buffered, long flushDelay) throws IOException
+	{
+		lock.lock();
+		try
+		{
+			if (buffered)
+			{
+				if (buffer == null)
+					buffer = new byte[c.cm.getMaxDataLength(c)];
+			}
+			else
+			{
+				if (buffer != null)
+				{
+					checkFlushFailure();
+					flushBuffer();
+					buffer = null;
+				}
+			}
+
+			this.flushDelay = flushDelay;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
 	public void write(int b) throws IOException
-	{	
-		byte[] buff = new byte[1];
-		
-		buff[0] = (byte) b;
-		
-		write(buff, 0, 1);
+	{
+		lock.lock();
+		try
+		{
+			if (isClosed)
+				throw new IOException("This OutputStream is closed.");
+
+			checkFlushFailure();
+
+			if (buffer == null)
+			{
+				single[0] = (byte) b;
+				c.cm.sendData(c, single, 0, 1);
+				return;
+			}
+
+			buffer[count++] = (byte) b;
+
+			if (count == buffer.length)
+				flushBuffer();
+			else
+				scheduleFlush();
+		}
+		finally
+		{
+			lock.unlock();
+		}
 	}
 
 	public void close() throws IOException
 	{
-		if (isClosed == false)
+		lock.lock();
+		try
+		{
+			if (isClosed == false)
+			{
+				isClosed = true;
+				try
+				{
+					checkFlushFailure();
+					flushBuffer();
+				}
+				finally
+				{
+					c.cm.sendEOF(c);
+				}
+			}
+		}
+		finally
 		{
-			isClosed = true;
-			c.cm.sendEOF(c);
+			lock.unlock();
 		}
 	}
 
 	public void flush() throws IOException
 	{
-		if (isClosed)
-			throw new IOException("This OutputStream is closed.");
+		lock.lock();
+		try
+		{
+			if (isClosed)
+				throw new IOException("This OutputStream is closed.");
+
+			checkFlushFailure();
 
-		/* This is a no-op, since this stream is unbuffered */
+			flushBuffer();
+		}
+		finally
+		{
+			lock.unlock();
+		}
 	}
 
 	public void write(byte[] b, int off, int len) throws IOException
 	{
-		if (isClosed)
-			throw new IOException("This OutputStream is closed.");
-		
 		if (b == null)
 			throw new NullPointerException();
 
 		if ((off < 0) || (len < 0) || ((off + len) > b.length) || ((off + len) < 0) || (off > b.length))
 			throw new IndexOutOfBoundsException();
 
-		if (len == 0)
-			return;
-		
-		c.cm.sendData(c, b, off, len);
+		lock.lock();
+		try
+		{
+			if (isClosed)
+				throw new IOException("This OutputStream is closed.");
+
+			checkFlushFailure();
+
+			if (len == 0)
+				return;
+
+			if (buffer == null)
+			{
+				c.cm.sendData(c, b, off, len);
+				return;
+			}
+
+			if (count > 0)
+			{
+				int copy = Math.min(buffer.length - count, len);
+
+				System.arraycopy(b, off, buffer, count, copy);
+				count += copy;
+				off += copy;
+				len -= copy;
+
+				if (count < buffer.length)
+				{
+					scheduleFlush();
+					return;
+				}
+
+				flushBuffer();
+			}
+
+			/* Full packets do not need to wait in the buffer */
+
+			int direct = len - (len % buffer.length);
+
+			if (direct > 0)
+			{
+				c.cm.sendData(c, b, off, direct);
+				off += direct;
+				len -= direct;
+			}
+
+			if (len > 0)
+			{
+				System.arraycopy(b, off, buffer, 0, len);
+				count = len;
+				scheduleFlush();
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
 	}
 
 	public void write(byte[] b) throws IOException
 	{
 		write(b, 0, b.length);
 	}
+
+	/* Must be called while holding the lock */
+
+	private void checkFlushFailure() throws IOException
+	{
+		if (flushFailure != null)
+			throw (IOException) new IOException("Sending buffered data failed: " + flushFailure.getMessage())
+					.initCause(flushFailure);
+	}
+
+	/* Must be called while holding the lock */
+
+	private void flushBuffer() throws IOException
+	{
+		if (count == 0)
+			return;
+
+		/* Cleared only once sent, the data is not lost if sending fails */
+
+		c.cm.sendData(c, buffer, 0, count);
+		count = 0;
+	}
+
+	/* Must be called while holding the lock */
+
+	private void scheduleFlush()
+	{
+		if ((flushDelay <= 0) || flushScheduled)
+			return;
+
+		flushScheduled = true;
+
+		runDelayedFlush(flushDelay);
+	}
+
+	private void runDelayedFlush(long delay)
+	{
+		getFlusher().schedule(new Runnable()
+		{
+			public void run()
+			{
+				CallbackExecutor.execute(flushTask);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void delayedFlush()
+	{
+		if (lock.tryLock() == false)
+		{
+			/* A writer is busy, check again later */
+			runDelayedFlush(Math.max(flushDelay, 1));
+			return;
+		}
+
+		try
+		{
+			flushScheduled = false;
+
+			if (isClosed || (buffer == null) || (count == 0))
+				return;
+
+			if (c.cm.isRemoteWindowAvailable(c, count) == false)
+			{
+				/* Do not park a callback thread until the window opens */
+				scheduleFlush();
+				return;
+			}
+
+			flushBuffer();
+		}
+		catch (IOException e)
+		{
+			flushFailure = e;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
 }
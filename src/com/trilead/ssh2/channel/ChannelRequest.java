@@ -0,0 +1,102 @@
+package com.trilead.ssh2.channel;
+
+import com.trilead.ssh2.packets.PacketSessionEnv;
+import com.trilead.ssh2.packets.PacketSessionExecCommand;
+import com.trilead.ssh2.packets.PacketSessionPtyRequest;
+import com.trilead.ssh2.packets.PacketSessionStartShell;
+import com.trilead.ssh2.packets.PacketSessionSubsystemRequest;
+import com.trilead.ssh2.packets.PacketSessionX11Request;
+
+/**
+ * ChannelRequest. One session request of a burst, see
+ * {@link ChannelManager#sendRequests(Channel, ChannelRequest[], byte[])}. The
+ * packet is built once the remote channel ID is known.
+ */
+public abstract class ChannelRequest
+{
+	final boolean wantReply;
+	final String failureMessage;
+
+	private ChannelRequest(boolean wantReply, String failureMessage)
+	{
+		this.wantReply = wantReply;
+		this.failureMessage = failureMessage;
+	}
+
+	abstract byte[] getPayload(int remoteID);
+
+	public static ChannelRequest pty(final String term, final int term_width_characters,
+			final int term_height_characters, final int term_width_pixels, final int term_height_pixels,
+			final byte[] terminal_modes)
+	{
+		return new ChannelRequest(true, "PTY request failed")
+		{
+			byte[] getPayload(int remoteID)
+			{
+				return new PacketSessionPtyRequest(remoteID, true, term, term_width_characters,
+						term_height_characters, term_width_pixels, term_height_pixels, terminal_modes).getPayload();
+			}
+		};
+	}
+
+	/**
+	 * Like OpenSSH, no reply is requested: servers commonly refuse variables
+	 * they are not configured to accept, and that is not worth failing for.
+	 */
+	public static ChannelRequest env(final String name, final String value)
+	{
+		return new ChannelRequest(false, null)
+		{
+			byte[] getPayload(int remoteID)
+			{
+				return new PacketSessionEnv(remoteID, false, name, value).getPayload();
+			}
+		};
+	}
+
+	public static ChannelRequest x11(final boolean singleConnection, final String x11AuthenticationProtocol,
+			final String x11AuthenticationCookie, final int x11ScreenNumber)
+	{
+		return new ChannelRequest(true, "The X11 request failed.")
+		{
+			byte[] getPayload(int remoteID)
+			{
+				return new PacketSessionX11Request(remoteID, true, singleConnection, x11AuthenticationProtocol,
+						x11AuthenticationCookie, x11ScreenNumber).getPayload();
+			}
+		};
+	}
+
+	public static ChannelRequest exec(final String cmd)
+	{
+		return new ChannelRequest(true, "The execute request failed.")
+		{
+			byte[] getPayload(int remoteID)
+			{
+				return new PacketSessionExecCommand(remoteID, true, cmd).getPayload();
+			}
+		};
+	}
+
+	public static ChannelRequest shell()
+	{
+		return new ChannelRequest(true, "The shell request failed.")
+		{
+			byte[] getPayload(int remoteID)
+			{
+				return new PacketSessionStartShell(remoteID, true).getPayload();
+			}
+		};
+	}
+
+	public static ChannelRequest subsystem(final String subSystemName)
+	{
+		return new ChannelRequest(true, "The subsystem request failed.")
+		{
+			byte[] getPayload(int remoteID)
+			{
+				return new PacketSessionSubsystemRequest(remoteID, true, subSystemName).getPayload();
+			}
+		};
+	}
+}
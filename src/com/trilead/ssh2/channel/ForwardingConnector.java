@@ -0,0 +1,155 @@
+package com.trilead.ssh2.channel;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import com.trilead.ssh2.packets.Packets;
+
+/**
+ * ForwardingConnector. Establishes a non-blocking connection to the target of
+ * a remote forwarding, either for a channel opened by the server or for a
+ * {@link TargetSocketPool}.
+ * <p>
+ * For a channel, the opening is only confirmed once the target has accepted
+ * the connection. If the target cannot be reached, the server gets an open
+ * failure instead.
+ */
+class ForwardingConnector extends ForwardingEngine.Handler
+{
+	final ForwardingEngine engine;
+	final ForwardingEngine.IoLoop loop;
+
+	private final Channel c;
+	private final ForwardingTarget target;
+	private final TargetSocketPool pool;
+
+	private SocketChannel sock;
+	private SelectionKey key;
+	private boolean done = false;
+
+	ForwardingConnector(ForwardingEngine engine, ForwardingEngine.IoLoop loop, Channel c, ForwardingTarget target,
+			TargetSocketPool pool)
+	{
+		this.engine = engine;
+		this.loop = loop;
+		this.c = c;
+		this.target = target;
+		this.pool = pool;
+	}
+
+	/**
+	 * Starts connecting, invoked on the loop thread.
+	 */
+	void start()
+	{
+		try
+		{
+			sock = target.openSocketChannel();
+			sock.configureBlocking(false);
+
+			if (sock.connect(target.getSocketAddress()))
+				connected();
+			else
+				key = sock.register(loop.selector, SelectionKey.OP_CONNECT, this);
+		}
+		catch (IOException e)
+		{
+			close("Cannot connect to " + target + " (" + e.getMessage() + ")");
+		}
+	}
+
+	void selected(SelectionKey key) throws IOException
+	{
+		if (sock.finishConnect())
+			connected();
+	}
+
+	private void connected()
+	{
+		done = true;
+		engine.connectFinished();
+
+		if (target.isStreamLocal() == false)
+		{
+			try
+			{
+				sock.socket().setTcpNoDelay(true);
+			}
+			catch (IOException ignore)
+			{
+			}
+		}
+
+		if (c != null)
+		{
+			new ForwardingTunnel(engine, loop, sock).accept(key, c);
+			return;
+		}
+
+		try
+		{
+			if (key == null)
+				key = sock.register(loop.selector, 0, this);
+			else
+				key.interestOps(0);
+		}
+		catch (IOException e)
+		{
+			try
+			{
+				sock.close();
+			}
+			catch (IOException ignore)
+			{
+			}
+			pool.connectFailed();
+			return;
+		}
+
+		pool.connected(pool.new Entry(loop, sock, key));
+	}
+
+	void close(String reason)
+	{
+		if (done)
+		{
+			/* A pooled socket, the engine is being stopped */
+			try
+			{
+				sock.close();
+			}
+			catch (IOException ignore)
+			{
+			}
+			return;
+		}
+
+		done = true;
+		engine.connectFinished();
+
+		try
+		{
+			if (sock != null)
+				sock.close();
+		}
+		catch (IOException ignore)
+		{
+		}
+
+		if (c != null)
+		{
+			try
+			{
+				engine.cm.sendOpenFailure(c, Packets.SSH_OPEN_CONNECT_FAILED, reason);
+			}
+			catch (IOException ignore)
+			{
+			}
+		}
+		else
+		{
+			pool.connectFailed();
+		}
+	}
+}
@@ -0,0 +1,609 @@
+package com.trilead.ssh2.channel;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Vector;
+
+import com.trilead.ssh2.log.Logger;
+
+/**
+ * ForwardingEngine. Forwards TCP (and Unix domain socket) connections through
+ * the SSH connection without dedicating threads to them: all sockets are
+ * non-blocking and are served by a small number of selector threads (I/O
+ * loops).
+ * <p>
+ * Data is only read from a socket while the remote window of its channel is
+ * open, and data received from the server is acknowledged (i.e., the window is
+ * adjusted) only after it has been written to the socket. A slow peer on
+ * either side therefore throttles its own connection through the SSH window
+ * instead of blocking a thread.
+ * <p>
+ * There is at most one engine per connection, see
+ * {@link ChannelManager#getForwardingEngine()}. It stops, and closes all its
+ * sockets, when the connection is closed.
+ */
+public class ForwardingEngine implements IChannelWorkerThread
+{
+	private static final Logger log = Logger.getLogger(ForwardingEngine.class);
+
+	private static final int THREADS = Integer.getInteger(
+			ForwardingEngine.class.getName() + ".threads", 1).intValue();
+
+	private static final int READ_BUFFER_SIZE = Integer.getInteger(
+			ForwardingEngine.class.getName() + ".readBufferSize", 32 * 1024).intValue();
+
+	private static final int MAX_PENDING_CONNECTS = Integer.getInteger(
+			ForwardingEngine.class.getName() + ".maxPendingConnects", 32).intValue();
+
+	/**
+	 * Something that is registered with the {@link Selector} of an I/O loop.
+	 * All methods are invoked by the I/O loop thread.
+	 */
+	abstract static class Handler
+	{
+		/**
+		 * The key of this handler was selected.
+		 */
+		abstract void selected(SelectionKey key) throws IOException;
+
+		/**
+		 * Releases all resources, invoked on errors and when the engine stops.
+		 */
+		abstract void close(String reason);
+	}
+
+	private static final class Timer
+	{
+		final long deadline;
+		final Runnable task;
+
+		Timer(long deadline, Runnable task)
+		{
+			this.deadline = deadline;
+			this.task = task;
+		}
+	}
+
+	/**
+	 * A selector thread.
+	 */
+	final class IoLoop extends Thread
+	{
+		final Selector selector;
+
+		/* Shared by all sockets of this loop, only used by the loop thread */
+
+		final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+		final byte[] readArray = new byte[READ_BUFFER_SIZE];
+
+		private final Vector<Runnable> tasks = new Vector<Runnable>();
+		private volatile boolean stopped = false;
+
+		/* Delayed tasks, by deadline, only used by the loop thread */
+
+		private final LinkedList<Timer> timers = new LinkedList<Timer>();
+
+		IoLoop(Selector selector)
+		{
+			this.selector = selector;
+		}
+
+		/**
+		 * Runs the given task on the loop thread. May be invoked by any thread.
+		 */
+		void execute(Runnable r)
+		{
+			tasks.addElement(r);
+			selector.wakeup();
+		}
+
+		/**
+		 * Runs the given task on the loop thread after the given delay. May
+		 * only be invoked by the loop thread.
+		 */
+		void schedule(Runnable r, long delayMillis)
+		{
+			Timer t = new Timer(System.currentTimeMillis() + delayMillis, r);
+
+			int i = 0;
+			while ((i < timers.size()) && (timers.get(i).deadline <= t.deadline))
+				i++;
+
+			timers.add(i, t);
+		}
+
+		void stopWorking()
+		{
+			stopped = true;
+			selector.wakeup();
+		}
+
+		public void run()
+		{
+			while (stopped == false)
+			{
+				try
+				{
+					if (timers.isEmpty())
+						selector.select();
+					else
+						selector.select(Math.max(1, timers.getFirst().deadline - System.currentTimeMillis()));
+				}
+				catch (IOException e)
+				{
+					if (log.isEnabled())
+						log.log(20, "Selector failed: " + e.getMessage());
+					break;
+				}
+
+				runTasks();
+				runTimers();
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+
+				while (it.hasNext())
+				{
+					SelectionKey key = it.next();
+					it.remove();
+
+					Handler h = (Handler) key.attachment();
+
+					try
+					{
+						if (key.isValid())
+							h.selected(key);
+					}
+					catch (IOException e)
+					{
+						h.close("Closed due to exception in ForwardingEngine: " + e.getMessage());
+					}
+					catch (RuntimeException e)
+					{
+						h.close("Closed due to exception in ForwardingEngine: " + e);
+					}
+				}
+			}
+
+			closeAll();
+		}
+
+		private void runTasks()
+		{
+			while (true)
+			{
+				Runnable r;
+
+				synchronized (tasks)
+				{
+					if (tasks.size() == 0)
+						return;
+					r = tasks.remove(0);
+				}
+
+				try
+				{
+					r.run();
+				}
+				catch (RuntimeException e)
+				{
+					if (log.isEnabled())
+						log.log(20, "Task of ForwardingEngine failed: " + e);
+				}
+			}
+		}
+
+		private void runTimers()
+		{
+			long now = System.currentTimeMillis();
+
+			while ((timers.isEmpty() == false) && (timers.getFirst().deadline <= now))
+			{
+				Runnable r = timers.removeFirst().task;
+
+				try
+				{
+					r.run();
+				}
+				catch (RuntimeException e)
+				{
+					if (log.isEnabled())
+						log.log(20, "Task of ForwardingEngine failed: " + e);
+				}
+			}
+		}
+
+		private void closeAll()
+		{
+			Iterator<SelectionKey> it = selector.keys().iterator();
+
+			while (it.hasNext())
+			{
+				SelectionKey key = it.next();
+				((Handler) key.attachment()).close("The connection is being shutdown");
+			}
+
+			try
+			{
+				selector.close();
+			}
+			catch (IOException ignore)
+			{
+			}
+		}
+	}
+
+	/**
+	 * A listening socket. For every accepted connection a "direct-tcpip" (or
+	 * "direct-streamlocal@openssh.com") channel to the configured target is
+	 * opened.
+	 */
+	public class Acceptor extends Handler
+	{
+		final ServerSocketChannel ssc;
+		final IoLoop loop;
+		private final ForwardingTarget local;
+		private final ForwardingTarget target;
+
+		Acceptor(ForwardingTarget local, ForwardingTarget target) throws IOException
+		{
+			this.local = local;
+			this.target = target;
+			this.loop = loops[0];
+
+			ssc = local.openServerSocketChannel();
+
+			try
+			{
+				ssc.bind(local.getSocketAddress());
+				ssc.configureBlocking(false);
+			}
+			catch (IOException e)
+			{
+				ssc.close();
+				throw e;
+			}
+
+			loop.execute(new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						ssc.register(loop.selector, SelectionKey.OP_ACCEPT, Acceptor.this);
+					}
+					catch (IOException e)
+					{
+						close(e.getMessage());
+					}
+				}
+			});
+		}
+
+		void selected(SelectionKey key) throws IOException
+		{
+			while (true)
+			{
+				SocketChannel sc = ssc.accept();
+
+				if (sc == null)
+					return;
+
+				try
+				{
+					sc.configureBlocking(false);
+					if (local.isStreamLocal() == false)
+						sc.socket().setTcpNoDelay(true);
+				}
+				catch (IOException e)
+				{
+					sc.close();
+					continue;
+				}
+
+				accepted(sc);
+			}
+		}
+
+		/**
+		 * Handles a newly accepted (non-blocking) connection.
+		 */
+		void accepted(SocketChannel sc)
+		{
+			final ForwardingTunnel t = new ForwardingTunnel(ForwardingEngine.this, nextLoop(), sc);
+
+			t.loop.execute(new Runnable()
+			{
+				public void run()
+				{
+					t.start(null, target);
+				}
+			});
+		}
+
+		void close(String reason)
+		{
+			try
+			{
+				ssc.close();
+			}
+			catch (IOException ignore)
+			{
+			}
+
+			if (local.isStreamLocal())
+			{
+				/* Unlike a TCP port, the socket file stays around */
+				try
+				{
+					Files.deleteIfExists(Paths.get(local.path));
+				}
+				catch (IOException ignore)
+				{
+				}
+			}
+		}
+
+		/**
+		 * Stops accepting new connections. Connections that have already been
+		 * accepted are not affected.
+		 */
+		public void close()
+		{
+			loop.execute(new Runnable()
+			{
+				public void run()
+				{
+					close("Closed due to user request");
+				}
+			});
+		}
+
+		/**
+		 * @return the local TCP port, or -1 if listening on a Unix domain socket
+		 */
+		public int getLocalPort()
+		{
+			if (local.isStreamLocal())
+				return -1;
+			return ssc.socket().getLocalPort();
+		}
+	}
+
+	/**
+	 * A listening socket that speaks SOCKS5, the target of every accepted
+	 * connection is chosen by the client.
+	 */
+	class SocksAcceptor extends Acceptor
+	{
+		SocksAcceptor(InetSocketAddress localAddress) throws IOException
+		{
+			super(ForwardingTarget.tcp(localAddress), null);
+		}
+
+		void accepted(SocketChannel sc)
+		{
+			final SocksHandshake h = new SocksHandshake(ForwardingEngine.this, nextLoop(), sc);
+
+			h.loop.execute(new Runnable()
+			{
+				public void run()
+				{
+					h.start();
+				}
+			});
+		}
+	}
+
+	final ChannelManager cm;
+
+	private final IoLoop[] loops;
+
+	private int nextLoop = 0;
+
+	/* Outgoing connects (remote forwardings), guarded by "this" */
+
+	private int pendingConnects = 0;
+	private final LinkedList<ForwardingConnector> waitingConnects = new LinkedList<ForwardingConnector>();
+
+	ForwardingEngine(ChannelManager cm) throws IOException
+	{
+		this.cm = cm;
+
+		loops = new IoLoop[Math.max(1, THREADS)];
+
+		for (int i = 0; i < loops.length; i++)
+		{
+			loops[i] = new IoLoop(Selector.open());
+			loops[i].setDaemon(true);
+			loops[i].setName("Trilead_ForwardingEngine_" + i);
+		}
+
+		for (int i = 0; i < loops.length; i++)
+			loops[i].start();
+	}
+
+	synchronized IoLoop nextLoop()
+	{
+		IoLoop l = loops[nextLoop];
+		nextLoop = (nextLoop + 1) % loops.length;
+		return l;
+	}
+
+	/**
+	 * Starts forwarding the connections arriving at the given local address
+	 * to the given target (via "direct-tcpip" channels).
+	 *
+	 * @param localAddress the address to listen on
+	 * @param host_to_connect target address (IP or hostname)
+	 * @param port_to_connect target port
+	 * @return the acceptor, use it to stop listening
+	 * @throws IOException if the local address cannot be bound
+	 */
+	public Acceptor listen(InetSocketAddress localAddress, String host_to_connect, int port_to_connect)
+			throws IOException
+	{
+		return new Acceptor(ForwardingTarget.tcp(localAddress), ForwardingTarget.tcp(host_to_connect,
+				port_to_connect));
+	}
+
+	/**
+	 * Starts forwarding the connections arriving at the given local address
+	 * to a Unix domain socket on the server (via
+	 * "direct-streamlocal@openssh.com" channels).
+	 *
+	 * @param localAddress the address to listen on
+	 * @param remoteSocketPath path of the socket on the server
+	 * @return the acceptor, use it to stop listening
+	 * @throws IOException if the local address cannot be bound
+	 */
+	public Acceptor listenStreamLocal(InetSocketAddress localAddress, String remoteSocketPath) throws IOException
+	{
+		return new Acceptor(ForwardingTarget.tcp(localAddress), ForwardingTarget.streamLocal(remoteSocketPath));
+	}
+
+	/**
+	 * Starts forwarding the connections arriving at a local Unix domain socket
+	 * to a Unix domain socket on the server. Needs Java 16 or later. The local
+	 * socket file must not exist yet, it is removed again when the acceptor
+	 * is closed.
+	 *
+	 * @param localSocketPath path of the local socket
+	 * @param remoteSocketPath path of the socket on the server
+	 * @return the acceptor, use it to stop listening
+	 * @throws IOException if the local socket cannot be created
+	 */
+	public Acceptor listenStreamLocal(String localSocketPath, String remoteSocketPath) throws IOException
+	{
+		return new Acceptor(ForwardingTarget.streamLocal(localSocketPath), ForwardingTarget
+				.streamLocal(remoteSocketPath));
+	}
+
+	/**
+	 * Starts a SOCKS5 server at the given local address. For every CONNECT
+	 * request, a "direct-tcpip" channel to the requested target is opened.
+	 *
+	 * @param localAddress the address to listen on
+	 * @return the acceptor, use it to stop listening
+	 * @throws IOException if the local address cannot be bound
+	 */
+	public Acceptor listenSocks(InetSocketAddress localAddress) throws IOException
+	{
+		return new SocksAcceptor(localAddress);
+	}
+
+	/**
+	 * Creates a pool of pre-connected sockets for the target of a remote
+	 * forwarding and starts filling it.
+	 */
+	TargetSocketPool createPool(ForwardingTarget target, int size)
+	{
+		TargetSocketPool pool = new TargetSocketPool(this, target, size);
+		pool.fill();
+		return pool;
+	}
+
+	/**
+	 * Forwards a "forwarded-tcpip" (or "forwarded-streamlocal@openssh.com")
+	 * channel opened by the server to the given target. Invoked by the receive
+	 * thread, the channel is confirmed (or refused) once the target has
+	 * accepted (or refused) the connection.
+	 */
+	void forwardRemote(final Channel c, ForwardingTarget target, TargetSocketPool pool)
+	{
+		if (pool != null)
+		{
+			final TargetSocketPool.Entry e = pool.take();
+
+			if (e != null)
+			{
+				e.loop.execute(new Runnable()
+				{
+					public void run()
+					{
+						ForwardingTunnel t = new ForwardingTunnel(ForwardingEngine.this, e.loop, e.sock);
+
+						/* The target may have spoken first, e.g., an SSH or SMTP server */
+
+						byte[] early = e.takeReceived();
+						if (early != null)
+							t.setOutboundData(early);
+
+						t.accept(e.key, c);
+					}
+				});
+				return;
+			}
+		}
+
+		connect(c, target, pool);
+	}
+
+	/**
+	 * Connects to a target, either for a channel or (if c is null) for a pool.
+	 * At most <code>maxPendingConnects</code> connects are in progress at any
+	 * time, the others are queued.
+	 */
+	void connect(Channel c, ForwardingTarget target, TargetSocketPool pool)
+	{
+		IoLoop loop = nextLoop();
+		final ForwardingConnector fc = new ForwardingConnector(this, loop, c, target, pool);
+
+		synchronized (this)
+		{
+			if (pendingConnects >= Math.max(1, MAX_PENDING_CONNECTS))
+			{
+				waitingConnects.addLast(fc);
+				return;
+			}
+			pendingConnects++;
+		}
+
+		startConnect(fc);
+	}
+
+	private void startConnect(final ForwardingConnector fc)
+	{
+		fc.loop.execute(new Runnable()
+		{
+			public void run()
+			{
+				fc.start();
+			}
+		});
+	}
+
+	/**
+	 * A connect has finished (successfully or not), start the next one.
+	 */
+	void connectFinished()
+	{
+		ForwardingConnector next;
+
+		synchronized (this)
+		{
+			if (waitingConnects.isEmpty())
+			{
+				pendingConnects--;
+				return;
+			}
+			next = waitingConnects.removeFirst();
+		}
+
+		startConnect(next);
+	}
+
+	public void stopWorking()
+	{
+		for (int i = 0; i < loops.length; i++)
+			loops[i].stopWorking();
+	}
+}
@@ -0,0 +1,180 @@
+package com.trilead.ssh2.channel;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * ForwardingTarget. One end of a forwarding: either a TCP address (host and
+ * port) or the path of a Unix domain socket ("streamlocal" in OpenSSH terms).
+ * <p>
+ * The same object describes a local socket (to connect to or to listen on)
+ * and a target on the server side (the channel type to open).
+ * <p>
+ * Local Unix domain sockets need Java 16 or later. The classes are looked up
+ * at runtime, so the library still runs on older versions as long as only TCP
+ * is used.
+ */
+final class ForwardingTarget
+{
+	final String host;
+	final int port;
+	final String path;
+
+	private final InetSocketAddress address;
+
+	private ForwardingTarget(String host, int port, String path, InetSocketAddress address)
+	{
+		this.host = host;
+		this.port = port;
+		this.path = path;
+		this.address = address;
+	}
+
+	static ForwardingTarget tcp(String host, int port)
+	{
+		return new ForwardingTarget(host, port, null, null);
+	}
+
+	static ForwardingTarget tcp(InetSocketAddress address)
+	{
+		return new ForwardingTarget(address.getHostString(), address.getPort(), null, address);
+	}
+
+	static ForwardingTarget streamLocal(String path)
+	{
+		return new ForwardingTarget(null, 0, path, null);
+	}
+
+	boolean isStreamLocal()
+	{
+		return path != null;
+	}
+
+	/**
+	 * Returns the local socket address of this target.
+	 */
+	SocketAddress getSocketAddress() throws IOException
+	{
+		if (address != null)
+			return address;
+
+		if (isStreamLocal() == false)
+			return new InetSocketAddress(host, port);
+
+		return (SocketAddress) invoke(method("java.net.UnixDomainSocketAddress", "of", String.class), null,
+				new Object[] { path });
+	}
+
+	/**
+	 * Opens an unconnected socket that can connect to this target.
+	 */
+	SocketChannel openSocketChannel() throws IOException
+	{
+		if (isStreamLocal() == false)
+			return SocketChannel.open();
+
+		return (SocketChannel) invoke(method(SocketChannel.class, "open", ProtocolFamily.class), null,
+				new Object[] { unixFamily() });
+	}
+
+	/**
+	 * Opens an unbound server socket that can listen on this target.
+	 */
+	ServerSocketChannel openServerSocketChannel() throws IOException
+	{
+		if (isStreamLocal() == false)
+			return ServerSocketChannel.open();
+
+		return (ServerSocketChannel) invoke(method(ServerSocketChannel.class, "open", ProtocolFamily.class), null,
+				new Object[] { unixFamily() });
+	}
+
+	/**
+	 * Registers the given (new) channel and asks the server to open it as a
+	 * channel to this target.
+	 */
+	void sendOpen(ChannelManager cm, Channel c, String originator_IP_address, int originator_port)
+			throws IOException
+	{
+		if (isStreamLocal())
+			cm.sendOpenDirectStreamLocalChannel(c, path);
+		else
+			cm.sendOpenDirectTCPIPChannel(c, host, port, originator_IP_address, originator_port);
+	}
+
+	public String toString()
+	{
+		return isStreamLocal() ? path : host + ":" + port;
+	}
+
+	private static ProtocolFamily unixFamily() throws IOException
+	{
+		try
+		{
+			return StandardProtocolFamily.valueOf("UNIX");
+		}
+		catch (IllegalArgumentException e)
+		{
+			throw notSupported(e);
+		}
+	}
+
+	private static Method method(String className, String name, Class<?> param) throws IOException
+	{
+		try
+		{
+			return method(Class.forName(className), name, param);
+		}
+		catch (ClassNotFoundException e)
+		{
+			throw notSupported(e);
+		}
+	}
+
+	private static Method method(Class<?> c, String name, Class<?> param) throws IOException
+	{
+		try
+		{
+			return c.getMethod(name, param);
+		}
+		catch (NoSuchMethodException e)
+		{
+			throw notSupported(e);
+		}
+	}
+
+	private static Object invoke(Method m, Object target, Object[] args) throws IOException
+	{
+		try
+		{
+			return m.invoke(target, args);
+		}
+		catch (InvocationTargetException e)
+		{
+			Throwable cause = e.getCause();
+
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+
+			throw (IOException) new IOException(cause.getMessage()).initCause(cause);
+		}
+		catch (IllegalAccessException e)
+		{
+			throw notSupported(e);
+		}
+	}
+
+	private static IOException notSupported(Exception e)
+	{
+		return (IOException) new IOException("Unix domain sockets need Java 16 or later").initCause(e);
+	}
+}
@@ -0,0 +1,477 @@
+package com.trilead.ssh2.channel;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+
+/**
+ * ForwardingTunnel. Connects one non-blocking socket with one channel, see
+ * {@link ForwardingEngine}.
+ * <p>
+ * Unless noted otherwise, everything happens on the thread of the I/O loop
+ * the tunnel belongs to. The receive thread only appends data to the inbound
+ * queue (through the stdout pipe of the channel) and schedules the tunnel.
+ */
+class ForwardingTunnel extends ForwardingEngine.Handler implements IChannelEventHandler
+{
+	final ForwardingEngine engine;
+	final ForwardingEngine.IoLoop loop;
+	final SocketChannel sock;
+
+	SelectionKey key;
+	Channel c;
+
+	/* Guarded by "this", written by the receive thread */
+
+	private final LinkedList<ByteBuffer> inbound = new LinkedList<ByteBuffer>();
+	private boolean remoteEOF = false;
+	private boolean scheduled = false;
+
+	/* Only accessed by the loop thread */
+
+	private ByteBuffer current;
+	private boolean localEOF = false;
+	private boolean outputShutdown = false;
+	private boolean closed = false;
+
+	/* Close the channel as soon as the server has confirmed it */
+
+	private boolean channelClosePending = false;
+
+	/*
+	 * Optional messages for the local peer (e.g., a SOCKS reply), sent once
+	 * the server has confirmed or refused the channel
+	 */
+
+	private ByteBuffer openedReply;
+	private ByteBuffer refusedReply;
+	private boolean opened = false;
+
+	/* Data read from the socket before the tunnel took over, sent on the channel first */
+
+	private ByteBuffer pendingOutbound;
+
+	private final Runnable processTask = new Runnable()
+	{
+		public void run()
+		{
+			synchronized (ForwardingTunnel.this)
+			{
+				scheduled = false;
+			}
+			process();
+		}
+	};
+
+	/**
+	 * Receives the data the server sends on the channel, invoked by the
+	 * receive thread while holding the channel lock.
+	 */
+	private class Sink extends OutputStream
+	{
+		public void write(int b) throws IOException
+		{
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			byte[] copy = new byte[len];
+			System.arraycopy(b, off, copy, 0, len);
+
+			synchronized (ForwardingTunnel.this)
+			{
+				inbound.addLast(ByteBuffer.wrap(copy));
+			}
+			schedule();
+		}
+
+		public void close()
+		{
+			synchronized (ForwardingTunnel.this)
+			{
+				remoteEOF = true;
+			}
+			schedule();
+		}
+	}
+
+	ForwardingTunnel(ForwardingEngine engine, ForwardingEngine.IoLoop loop, SocketChannel sock)
+	{
+		this.engine = engine;
+		this.loop = loop;
+		this.sock = sock;
+	}
+
+	private void register(SelectionKey key) throws IOException
+	{
+		if (key == null)
+		{
+			key = sock.register(loop.selector, 0, this);
+		}
+		else
+		{
+			key.attach(this);
+			key.interestOps(0);
+		}
+
+		this.key = key;
+	}
+
+	/**
+	 * Sets the data that is written to the socket before any channel data
+	 * once the channel is open, or before closing the socket if the server
+	 * refuses to open the channel. Must be called before {@link #start}.
+	 */
+	void setReplies(byte[] opened, byte[] refused)
+	{
+		this.openedReply = ByteBuffer.wrap(opened);
+		this.refusedReply = ByteBuffer.wrap(refused);
+	}
+
+	/**
+	 * Sets data that has been read from the socket already (e.g., by a
+	 * handshake), it is sent on the channel before anything else once the
+	 * channel is open. Must be called before {@link #start} or {@link #accept}.
+	 */
+	void setOutboundData(byte[] data)
+	{
+		this.pendingOutbound = ByteBuffer.wrap(data);
+	}
+
+	/**
+	 * Registers the socket (unless a key is given) and asks the server to open
+	 * a channel to the given target.
+	 */
+	void start(SelectionKey key, ForwardingTarget target)
+	{
+		try
+		{
+			register(key);
+
+			Channel c = new Channel(engine.cm);
+			c.eventHandler = this;
+			c.pipeStdoutStreamDeferred(new Sink());
+
+			/* A local Unix domain socket has no address that makes sense to the server */
+
+			String originatorAddress = "127.0.0.1";
+			int originatorPort = 0;
+
+			SocketAddress peer = sock.getRemoteAddress();
+
+			if (peer instanceof InetSocketAddress)
+			{
+				originatorAddress = ((InetSocketAddress) peer).getAddress().getHostAddress();
+				originatorPort = ((InetSocketAddress) peer).getPort();
+			}
+
+			target.sendOpen(engine.cm, c, originatorAddress, originatorPort);
+
+			/* Events for the channel are processed on this thread, i.e., after this assignment */
+
+			this.c = c;
+		}
+		catch (IOException e)
+		{
+			close("Could not open channel: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Registers the socket (unless a key is given) and confirms the opening of
+	 * a channel requested by the server.
+	 */
+	void accept(SelectionKey key, Channel c)
+	{
+		this.c = c;
+
+		try
+		{
+			register(key);
+
+			c.eventHandler = this;
+			c.pipeStdoutStreamDeferred(new Sink());
+
+			engine.cm.sendOpenConfirmation(c);
+		}
+		catch (IOException e)
+		{
+			close("Could not confirm channel: " + e.getMessage());
+			return;
+		}
+
+		schedule();
+	}
+
+	/**
+	 * Makes sure that the tunnel gets processed soon. May be invoked by any thread.
+	 */
+	void schedule()
+	{
+		synchronized (this)
+		{
+			if (scheduled)
+				return;
+			scheduled = true;
+		}
+		loop.execute(processTask);
+	}
+
+	public void channelOpened(Channel c)
+	{
+		schedule();
+	}
+
+	public void channelClosed(Channel c)
+	{
+		schedule();
+	}
+
+	public void remoteWindowAdjusted(Channel c)
+	{
+		schedule();
+	}
+
+	void selected(SelectionKey key) throws IOException
+	{
+		if (key.isReadable())
+			readOutbound();
+
+		process();
+	}
+
+	private int getChannelState()
+	{
+		synchronized (c)
+		{
+			return c.state;
+		}
+	}
+
+	private void process()
+	{
+		if (c == null)
+			return;
+
+		if (closed)
+		{
+			if (channelClosePending && (getChannelState() != Channel.STATE_OPENING))
+			{
+				channelClosePending = false;
+				closeChannel("Forwarded connection closed before the channel was opened");
+			}
+			return;
+		}
+
+		try
+		{
+			int state = getChannelState();
+
+			if (state == Channel.STATE_OPENING)
+				return;
+
+			if (opened == false)
+			{
+				if ((state == Channel.STATE_CLOSED) && (refusedReply != null))
+				{
+					/* Best effort, the socket is closed right away */
+					sock.write(refusedReply);
+					close("The server refused to open the channel");
+					return;
+				}
+
+				opened = true;
+				refusedReply = null;
+			}
+
+			writeInbound();
+			sendPendingOutbound();
+
+			if (outputShutdown && (localEOF || (state == Channel.STATE_CLOSED)))
+			{
+				close("Forwarded connection finished");
+				return;
+			}
+
+			int ops = 0;
+
+			if ((localEOF == false) && (pendingOutbound == null) && (state == Channel.STATE_OPEN)
+					&& (engine.cm.getRemoteWindow(c) > 0))
+				ops |= SelectionKey.OP_READ;
+
+			if ((current != null) || (openedReply != null))
+				ops |= SelectionKey.OP_WRITE;
+
+			key.interestOps(ops);
+		}
+		catch (IOException e)
+		{
+			close("Closed due to exception in ForwardingTunnel: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Socket to channel. Never reads more than the remote window, so sending
+	 * the data does not wait for a window adjust.
+	 */
+	private void readOutbound() throws IOException
+	{
+		if (localEOF || (pendingOutbound != null) || (getChannelState() != Channel.STATE_OPEN))
+			return;
+
+		long window = engine.cm.getRemoteWindow(c);
+
+		if (window <= 0)
+			return;
+
+		ByteBuffer buf = loop.readBuffer;
+		buf.clear();
+
+		if (window < buf.capacity())
+			buf.limit((int) window);
+
+		int len = sock.read(buf);
+
+		if (len < 0)
+		{
+			localEOF = true;
+			engine.cm.sendEOF(c);
+			return;
+		}
+
+		if (len == 0)
+			return;
+
+		buf.flip();
+		buf.get(loop.readArray, 0, len);
+
+		engine.cm.sendData(c, loop.readArray, 0, len);
+	}
+
+	/**
+	 * Sends what {@link #setOutboundData(byte[])} left, as far as the remote
+	 * window allows.
+	 */
+	private void sendPendingOutbound() throws IOException
+	{
+		if ((pendingOutbound == null) || (getChannelState() != Channel.STATE_OPEN))
+			return;
+
+		long window = engine.cm.getRemoteWindow(c);
+
+		if (window <= 0)
+			return;
+
+		int len = (int) Math.min(window, pendingOutbound.remaining());
+
+		engine.cm.sendData(c, pendingOutbound.array(), pendingOutbound.position(), len);
+		pendingOutbound.position(pendingOutbound.position() + len);
+
+		if (pendingOutbound.hasRemaining() == false)
+			pendingOutbound = null;
+	}
+
+	/**
+	 * Channel to socket. Acknowledges what has been written, so that the
+	 * server may send more.
+	 */
+	private void writeInbound() throws IOException
+	{
+		if (openedReply != null)
+		{
+			sock.write(openedReply);
+
+			if (openedReply.hasRemaining())
+				return;
+
+			openedReply = null;
+		}
+
+		int written = 0;
+
+		while (true)
+		{
+			if (current == null)
+			{
+				synchronized (this)
+				{
+					if (inbound.isEmpty())
+						break;
+					current = inbound.removeFirst();
+				}
+			}
+
+			written += sock.write(current);
+
+			if (current.hasRemaining())
+				break;
+
+			current = null;
+		}
+
+		if (written > 0)
+			c.ackStdout(written);
+
+		if ((current == null) && (outputShutdown == false))
+		{
+			boolean eof;
+
+			synchronized (this)
+			{
+				eof = remoteEOF && inbound.isEmpty();
+			}
+
+			if (eof)
+			{
+				outputShutdown = true;
+				sock.shutdownOutput();
+			}
+		}
+	}
+
+	void close(String reason)
+	{
+		if (closed)
+			return;
+
+		closed = true;
+
+		if (key != null)
+			key.cancel();
+
+		try
+		{
+			sock.close();
+		}
+		catch (IOException ignore)
+		{
+		}
+
+		if (c == null)
+			return;
+
+		/* We may only send the close message once the server has told us its channel ID */
+
+		if (getChannelState() == Channel.STATE_OPENING)
+			channelClosePending = true;
+		else
+			closeChannel(reason);
+	}
+
+	private void closeChannel(String reason)
+	{
+		try
+		{
+			engine.cm.closeChannel(c, reason, true);
+		}
+		catch (IOException ignore)
+		{
+		}
+	}
+}
@@ -0,0 +1,26 @@
+package com.trilead.ssh2.channel;
+
+/**
+ * IChannelEventHandler. Gets notified by the {@link ChannelManager} about
+ * changes of a {@link Channel}.
+ * <p>
+ * The methods are invoked by the receive thread (without holding the lock of
+ * the channel). They must return quickly and must never send messages.
+ */
+interface IChannelEventHandler
+{
+	/**
+	 * The server confirmed the opening of the channel.
+	 */
+	public void channelOpened(Channel c);
+
+	/**
+	 * The channel was closed (this includes a refused open request).
+	 */
+	public void channelClosed(Channel c);
+
+	/**
+	 * The server increased the window, more data may be sent.
+	 */
+	public void remoteWindowAdjusted(Channel c);
+}
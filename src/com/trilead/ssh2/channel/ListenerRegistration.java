@@ -0,0 +1,178 @@
+package com.trilead.ssh2.channel;
+
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+
+import com.trilead.ssh2.ChannelListener;
+import com.trilead.ssh2.log.Logger;
+
+/**
+ * ListenerRegistration. Delivers the notifications of a channel to one
+ * {@link ChannelListener}, either directly or, in order, through an executor.
+ */
+final class ListenerRegistration implements Runnable
+{
+	private static final Logger log = Logger.getLogger(ListenerRegistration.class);
+
+	static final int DATA_STDOUT = 1;
+	static final int DATA_STDERR = 2;
+	static final int EOF = 3;
+	static final int EXIT_STATUS = 4;
+	static final int EXIT_SIGNAL = 5;
+	static final int WINDOW_OPENED = 6;
+	static final int CLOSED = 7;
+
+	private static final class Event
+	{
+		final int type;
+		final int status;
+		final Object arg;
+
+		Event(int type, int status, Object arg)
+		{
+			this.type = type;
+			this.status = status;
+			this.arg = arg;
+		}
+	}
+
+	final ChannelListener listener;
+	private final Executor executor;
+
+	/* Guarded by "this" */
+
+	private final LinkedList<Event> pending = new LinkedList<Event>();
+	private boolean running = false;
+	private boolean closed = false;
+
+	/* Data notifications that are queued already, later ones are merged into them */
+
+	private boolean stdoutPending = false;
+	private boolean stderrPending = false;
+
+	ListenerRegistration(ChannelListener listener, Executor executor)
+	{
+		this.listener = listener;
+		this.executor = executor;
+	}
+
+	void fire(int type, int status, Object arg)
+	{
+		synchronized (this)
+		{
+			if (closed)
+				return;
+
+			if (type == CLOSED)
+				closed = true;
+
+			if (executor != null)
+			{
+				if (type == DATA_STDOUT)
+				{
+					if (stdoutPending)
+						return;
+					stdoutPending = true;
+				}
+				else if (type == DATA_STDERR)
+				{
+					if (stderrPending)
+						return;
+					stderrPending = true;
+				}
+
+				pending.addLast(new Event(type, status, arg));
+
+				if (running)
+					return;
+				running = true;
+			}
+		}
+
+		if (executor == null)
+		{
+			deliver(type, status, arg);
+			return;
+		}
+
+		try
+		{
+			executor.execute(this);
+		}
+		catch (RuntimeException e)
+		{
+			synchronized (this)
+			{
+				running = false;
+				pending.clear();
+			}
+			if (log.isEnabled())
+				log.log(20, "Could not schedule channel notification: " + e);
+		}
+	}
+
+	/**
+	 * Drains the queue, invoked by the executor.
+	 */
+	public void run()
+	{
+		while (true)
+		{
+			Event e;
+
+			synchronized (this)
+			{
+				if (pending.isEmpty())
+				{
+					running = false;
+					return;
+				}
+
+				e = pending.removeFirst();
+
+				if (e.type == DATA_STDOUT)
+					stdoutPending = false;
+				else if (e.type == DATA_STDERR)
+					stderrPending = false;
+			}
+
+			deliver(e.type, e.status, e.arg);
+		}
+	}
+
+	private void deliver(int type, int status, Object arg)
+	{
+		try
+		{
+			switch (type)
+			{
+			case DATA_STDOUT:
+				listener.dataAvailable(false);
+				break;
+			case DATA_STDERR:
+				listener.dataAvailable(true);
+				break;
+			case EOF:
+				listener.eof();
+				break;
+			case EXIT_STATUS:
+				listener.exitStatus(status);
+				break;
+			case EXIT_SIGNAL:
+				listener.exitSignal((String) arg);
+				break;
+			case WINDOW_OPENED:
+				listener.windowOpened();
+				break;
+			case CLOSED:
+				listener.closed((Throwable) arg);
+				break;
+			}
+		}
+		catch (RuntimeException e)
+		{
+			if (log.isEnabled())
+				log.log(20, "ChannelListener failed: " + e);
+		}
+	}
+}
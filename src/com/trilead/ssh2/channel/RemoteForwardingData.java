@@ -14,4 +14,14 @@ public class RemoteForwardingData
 
 	String targetAddress;
 	int targetPort;
+
+	/* Only set for "streamlocal-forward@openssh.com" forwardings */
+
+	String bindPath;
+
+	/* If not null, connections are forwarded by the non-blocking engine (to the target) */
+
+	ForwardingEngine engine;
+	ForwardingTarget target;
+	TargetSocketPool pool;
 }
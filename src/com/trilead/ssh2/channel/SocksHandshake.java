@@ -0,0 +1,342 @@
+package com.trilead.ssh2.channel;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * SocksHandshake. Performs the server side of a SOCKS5 (RFC 1928) handshake
+ * on a non-blocking socket. Only the CONNECT command without authentication
+ * is supported. Once the client has named its target, the socket is handed
+ * over to a {@link ForwardingTunnel}, which opens a "direct-tcpip" channel to
+ * that target and sends the final SOCKS reply depending on the outcome.
+ */
+class SocksHandshake extends ForwardingEngine.Handler
+{
+	private static final int SOCKS_VERSION = 5;
+
+	private static final int METHOD_NO_AUTH = 0x00;
+	private static final int METHOD_NONE_ACCEPTABLE = 0xff;
+
+	private static final int CMD_CONNECT = 1;
+
+	private static final int ATYP_IPV4 = 1;
+	private static final int ATYP_DOMAIN = 3;
+	private static final int ATYP_IPV6 = 4;
+
+	private static final int REP_SUCCEEDED = 0x00;
+	private static final int REP_GENERAL_FAILURE = 0x01;
+	private static final int REP_CONNECTION_REFUSED = 0x05;
+	private static final int REP_COMMAND_NOT_SUPPORTED = 0x07;
+	private static final int REP_ADDRESS_TYPE_NOT_SUPPORTED = 0x08;
+
+	private static final int STATE_GREETING = 1;
+	private static final int STATE_REQUEST = 2;
+	private static final int STATE_CLOSING = 3;
+
+	final ForwardingEngine engine;
+	final ForwardingEngine.IoLoop loop;
+	final SocketChannel sock;
+
+	private SelectionKey key;
+	private int state = STATE_GREETING;
+
+	/* The longest request is 4 + 1 + 255 + 2 bytes */
+
+	private final ByteBuffer in = ByteBuffer.allocate(262);
+	private ByteBuffer out;
+
+	SocksHandshake(ForwardingEngine engine, ForwardingEngine.IoLoop loop, SocketChannel sock)
+	{
+		this.engine = engine;
+		this.loop = loop;
+		this.sock = sock;
+	}
+
+	void start()
+	{
+		try
+		{
+			key = sock.register(loop.selector, SelectionKey.OP_READ, this);
+		}
+		catch (IOException e)
+		{
+			close(e.getMessage());
+		}
+	}
+
+	void selected(SelectionKey key) throws IOException
+	{
+		if (out != null)
+		{
+			sock.write(out);
+
+			if (out.hasRemaining())
+				return;
+
+			out = null;
+
+			if (state == STATE_CLOSING)
+			{
+				close("SOCKS request refused");
+				return;
+			}
+
+			key.interestOps(SelectionKey.OP_READ);
+		}
+
+		if (key.isReadable() == false)
+			return;
+
+		if (sock.read(in) < 0)
+		{
+			close("SOCKS client closed the connection");
+			return;
+		}
+
+		if (state == STATE_GREETING)
+			parseGreeting();
+
+		if (state == STATE_REQUEST)
+			parseRequest();
+	}
+
+	/**
+	 * A parsed CONNECT (or other) request.
+	 */
+	static final class Request
+	{
+		int version;
+		int command;
+		String host;
+		int port;
+
+		/* Length of the request in the buffer */
+
+		int length;
+
+		/* REP_SUCCEEDED, or the reason for refusing the request */
+
+		int error = REP_SUCCEEDED;
+	}
+
+	/**
+	 * @return the length of the greeting at the start of the buffer, 0 if
+	 *         it is not complete yet
+	 */
+	static int greetingLength(ByteBuffer in)
+	{
+		if (in.position() < 2)
+			return 0;
+
+		int len = 2 + (in.get(1) & 0xff);
+
+		return (in.position() < len) ? 0 : len;
+	}
+
+	/**
+	 * @return whether the (complete) greeting offers "no authentication"
+	 */
+	static boolean offersNoAuth(ByteBuffer in)
+	{
+		int nmethods = in.get(1) & 0xff;
+
+		for (int i = 0; i < nmethods; i++)
+		{
+			if ((in.get(2 + i) & 0xff) == METHOD_NO_AUTH)
+				return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Parses the request at the start of the buffer.
+	 *
+	 * @return null if the request is not complete yet
+	 */
+	static Request parseRequest(ByteBuffer in) throws IOException
+	{
+		if (in.position() < 5)
+			return null;
+
+		Request r = new Request();
+		r.version = in.get(0) & 0xff;
+		r.command = in.get(1) & 0xff;
+
+		int atyp = in.get(3) & 0xff;
+		int addrlen;
+
+		if (atyp == ATYP_IPV4)
+			addrlen = 4;
+		else if (atyp == ATYP_IPV6)
+			addrlen = 16;
+		else if (atyp == ATYP_DOMAIN)
+			addrlen = 1 + (in.get(4) & 0xff);
+		else
+		{
+			/* The length is unknown, but the connection is closed anyway */
+			r.error = REP_ADDRESS_TYPE_NOT_SUPPORTED;
+			r.length = in.position();
+			return r;
+		}
+
+		r.length = 4 + addrlen + 2;
+
+		if (in.position() < r.length)
+			return null;
+
+		if (r.command != CMD_CONNECT)
+		{
+			r.error = REP_COMMAND_NOT_SUPPORTED;
+			return r;
+		}
+
+		if (atyp == ATYP_DOMAIN)
+		{
+			byte[] name = new byte[addrlen - 1];
+			for (int i = 0; i < name.length; i++)
+				name[i] = in.get(5 + i);
+			r.host = new String(name, "ISO-8859-1");
+		}
+		else
+		{
+			byte[] addr = new byte[addrlen];
+			for (int i = 0; i < addr.length; i++)
+				addr[i] = in.get(4 + i);
+			r.host = InetAddress.getByAddress(addr).getHostAddress();
+		}
+
+		r.port = ((in.get(4 + addrlen) & 0xff) << 8) | (in.get(4 + addrlen + 1) & 0xff);
+
+		return r;
+	}
+
+	private void parseGreeting() throws IOException
+	{
+		int len = greetingLength(in);
+
+		if (len == 0)
+			return;
+
+		if ((in.get(0) & 0xff) != SOCKS_VERSION)
+		{
+			close("Unsupported SOCKS version " + (in.get(0) & 0xff));
+			return;
+		}
+
+		boolean noAuth = offersNoAuth(in);
+
+		consume(len);
+
+		if (noAuth == false)
+		{
+			state = STATE_CLOSING;
+			send(new byte[] { SOCKS_VERSION, (byte) METHOD_NONE_ACCEPTABLE });
+			return;
+		}
+
+		state = STATE_REQUEST;
+		send(new byte[] { SOCKS_VERSION, METHOD_NO_AUTH });
+	}
+
+	private void parseRequest() throws IOException
+	{
+		Request r = parseRequest(in);
+
+		if (r == null)
+			return;
+
+		if (r.version != SOCKS_VERSION)
+		{
+			close("Unsupported SOCKS version " + r.version);
+			return;
+		}
+
+		if (r.error != REP_SUCCEEDED)
+		{
+			refuse(r.error);
+			return;
+		}
+
+		if (out != null)
+		{
+			/* The client did not wait for our method selection, let it drain first */
+			sock.write(out);
+			if (out.hasRemaining())
+			{
+				refuse(REP_GENERAL_FAILURE);
+				return;
+			}
+			out = null;
+		}
+
+		ForwardingTunnel t = new ForwardingTunnel(engine, loop, sock);
+		t.setReplies(reply(REP_SUCCEEDED), reply(REP_CONNECTION_REFUSED));
+
+		/* Data the client sent right after the request, without waiting for the reply */
+
+		if (in.position() > r.length)
+		{
+			byte[] early = new byte[in.position() - r.length];
+			for (int i = 0; i < early.length; i++)
+				early[i] = in.get(r.length + i);
+			t.setOutboundData(early);
+		}
+
+		t.start(key, ForwardingTarget.tcp(r.host, r.port));
+	}
+
+	private void refuse(int rep) throws IOException
+	{
+		state = STATE_CLOSING;
+		send(reply(rep));
+	}
+
+	private static byte[] reply(int rep)
+	{
+		/* VER, REP, RSV, ATYP (IPv4), BND.ADDR 0.0.0.0, BND.PORT 0 */
+		return new byte[] { SOCKS_VERSION, (byte) rep, 0, ATYP_IPV4, 0, 0, 0, 0, 0, 0 };
+	}
+
+	private void consume(int len)
+	{
+		in.flip();
+		in.position(len);
+		in.compact();
+	}
+
+	private void send(byte[] msg) throws IOException
+	{
+		out = ByteBuffer.wrap(msg);
+
+		sock.write(out);
+
+		if (out.hasRemaining())
+		{
+			key.interestOps(SelectionKey.OP_WRITE);
+			return;
+		}
+
+		out = null;
+
+		if (state == STATE_CLOSING)
+			close("SOCKS request refused");
+	}
+
+	void close(String reason)
+	{
+		if (key != null)
+			key.cancel();
+
+		try
+		{
+			sock.close();
+		}
+		catch (IOException ignore)
+		{
+		}
+	}
+}
@@ -0,0 +1,367 @@
+package com.trilead.ssh2.channel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+
+/**
+ * SpoolingInputStream. Collects the stdout (or stderr) data of a channel
+ * without a thread of its own: the receive thread appends the data as it
+ * arrives, see {@link Channel#spool(boolean, int, File)}.
+ * <p>
+ * Up to <code>maxMemory</code> bytes are kept in memory, in chunks that are
+ * recycled once they have been read. What does not fit:
+ * <ul>
+ * <li>is appended to a temporary file if a spill directory was given. The
+ * data is acknowledged right away, so the remote side never waits for the
+ * reader. The file is deleted on {@link #close()}.</li>
+ * <li>is kept in memory anyway otherwise, but only acknowledged once it has
+ * been read. The remote side is held back by the channel window, so at most
+ * one window more than <code>maxMemory</code> is held. Note that stdout and
+ * stderr share the window, a stream that is not being read also stalls the
+ * other one.</li>
+ * </ul>
+ */
+public class SpoolingInputStream extends InputStream
+{
+	private static final String PROPERTY_TIMEOUT = SpoolingInputStream.class.getName() + ".timeout";
+	private static final long DEFAULT_WAIT_TIMEOUT = Long.parseLong(System.getProperty(PROPERTY_TIMEOUT, "1200000"));
+
+	static final int CHUNK_SIZE = 8192;
+
+	/* Recycled chunks beyond this are left to the garbage collector */
+
+	private static final int MAX_FREE_CHUNKS = 16;
+
+	private final Channel c;
+	private final Channel.Output output;
+	private final int maxMemory;
+	private final File spillDirectory;
+
+	/*
+	 * All fields below are guarded by "this". The receive thread holds the
+	 * channel lock when it appends data, so never call into the channel while
+	 * holding "this".
+	 */
+
+	/* Oldest chunk first, the first one is read from readPos */
+
+	private final LinkedList<byte[]> chunks = new LinkedList<byte[]>();
+	private final LinkedList<byte[]> freeChunks = new LinkedList<byte[]>();
+	private int readPos = 0;
+	private int writePos = CHUNK_SIZE;
+	private int memoryBytes = 0;
+
+	/* Bytes kept in memory above maxMemory, not yet acknowledged */
+
+	private int held = 0;
+
+	/* Newer than everything in memory, from fileReadPos to fileWritePos */
+
+	private File spillFile;
+	private RandomAccessFile raf;
+	private FileChannel spill;
+	private long fileReadPos = 0;
+	private long fileWritePos = 0;
+
+	private boolean isEOF = false;
+	private boolean isClosed = false;
+	private IOException exception = null;
+
+	private final byte[] single = new byte[1];
+
+	/**
+	 * Receives the data, invoked by the receive thread while holding the
+	 * channel lock. Every write is already counted as unacknowledged by the
+	 * channel.
+	 */
+	final OutputStream sink = new OutputStream()
+	{
+		public void write(int b) throws IOException
+		{
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			int ack = append(b, off, len);
+
+			if (ack > 0)
+				c.ack(output, ack, true);
+		}
+
+		public void close()
+		{
+			synchronized (SpoolingInputStream.this)
+			{
+				isEOF = true;
+				SpoolingInputStream.this.notifyAll();
+			}
+		}
+	};
+
+	SpoolingInputStream(Channel c, Channel.Output output, int maxMemory, File spillDirectory)
+	{
+		if (maxMemory < 0)
+			throw new IllegalArgumentException("maxMemory must not be negative");
+
+		this.c = c;
+		this.output = output;
+		this.maxMemory = maxMemory;
+		this.spillDirectory = spillDirectory;
+	}
+
+	/**
+	 * Stores the data, returns how much of it may be acknowledged immediately.
+	 * Errors are reported to the reader, not to the receive thread.
+	 */
+	private synchronized int append(byte[] b, int off, int len)
+	{
+		if (isClosed || (exception != null))
+			return len;
+
+		notifyAll();
+
+		int fits = Math.max(0, Math.min(len, maxMemory - memoryBytes));
+
+		if ((spill != null) && (fileReadPos < fileWritePos))
+			fits = 0; /* the file holds older data, keep the order */
+
+		appendMemory(b, off, fits);
+
+		if (fits == len)
+			return len;
+
+		if (spillDirectory == null)
+		{
+			appendMemory(b, off + fits, len - fits);
+			held += len - fits;
+			return fits;
+		}
+
+		try
+		{
+			appendFile(b, off + fits, len - fits);
+		}
+		catch (IOException e)
+		{
+			exception = (IOException) new IOException("Cannot spill to " + spillFile + ": " + e.getMessage())
+					.initCause(e);
+		}
+
+		return len;
+	}
+
+	private void appendMemory(byte[] b, int off, int len)
+	{
+		while (len > 0)
+		{
+			if (writePos == CHUNK_SIZE)
+			{
+				chunks.addLast(freeChunks.isEmpty() ? new byte[CHUNK_SIZE] : freeChunks.removeFirst());
+				writePos = 0;
+			}
+
+			int n = Math.min(len, CHUNK_SIZE - writePos);
+			System.arraycopy(b, off, chunks.getLast(), writePos, n);
+			writePos += n;
+			memoryBytes += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	private void appendFile(byte[] b, int off, int len) throws IOException
+	{
+		if (spill == null)
+		{
+			spillFile = File.createTempFile("trilead-spool", ".tmp", spillDirectory);
+			raf = new RandomAccessFile(spillFile, "rw");
+			spill = raf.getChannel();
+		}
+
+		ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+
+		while (buf.hasRemaining())
+			fileWritePos += spill.write(buf, fileWritePos);
+	}
+
+	/**
+	 * Copies data out of memory or, once memory is empty, out of the file.
+	 * Returns the number of bytes copied, 0 if there is nothing to read.
+	 */
+	private int take(byte[] b, int off, int len) throws IOException
+	{
+		if (memoryBytes > 0)
+		{
+			int total = 0;
+
+			while ((len > 0) && (memoryBytes > 0))
+			{
+				byte[] chunk = chunks.getFirst();
+				int end = (chunks.size() == 1) ? writePos : CHUNK_SIZE;
+				int n = Math.min(len, end - readPos);
+
+				System.arraycopy(chunk, readPos, b, off, n);
+				readPos += n;
+				memoryBytes -= n;
+				total += n;
+				off += n;
+				len -= n;
+
+				if (readPos == end)
+				{
+					chunks.removeFirst();
+					if (freeChunks.size() < MAX_FREE_CHUNKS)
+						freeChunks.addLast(chunk);
+					readPos = 0;
+					if (chunks.isEmpty())
+						writePos = CHUNK_SIZE;
+				}
+			}
+			return total;
+		}
+
+		if ((spill != null) && (fileReadPos < fileWritePos))
+		{
+			int n = (int) Math.min(len, fileWritePos - fileReadPos);
+			ByteBuffer buf = ByteBuffer.wrap(b, off, n);
+
+			while (buf.hasRemaining())
+			{
+				int r = spill.read(buf, fileReadPos + buf.position() - off);
+				if (r < 0)
+					throw new IOException("Spill file " + spillFile + " was truncated");
+			}
+
+			fileReadPos += n;
+
+			if (fileReadPos == fileWritePos)
+			{
+				/* Drained, start over at the beginning of the file */
+				fileReadPos = fileWritePos = 0;
+				spill.truncate(0);
+			}
+			return n;
+		}
+
+		return 0;
+	}
+
+	public int read() throws IOException
+	{
+		int n = read(single, 0, 1);
+		return (n < 0) ? -1 : (single[0] & 0xff);
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		if (b == null)
+			throw new NullPointerException();
+
+		if ((off < 0) || (len < 0) || ((off + len) > b.length) || ((off + len) < 0))
+			throw new IndexOutOfBoundsException();
+
+		if (len == 0)
+			return 0;
+
+		int n;
+		int ack;
+
+		synchronized (this)
+		{
+			while (true)
+			{
+				if (isClosed)
+					throw new IOException("This SpoolingInputStream is closed.");
+
+				n = take(b, off, len);
+
+				if (n > 0)
+					break;
+
+				if (exception != null)
+					throw exception;
+
+				if (isEOF)
+					return -1;
+
+				try
+				{
+					wait(DEFAULT_WAIT_TIMEOUT);
+				}
+				catch (InterruptedException e)
+				{
+					throw new InterruptedIOException();
+				}
+			}
+
+			ack = Math.min(held, n);
+			held -= ack;
+		}
+
+		if (ack > 0)
+			c.ack(output, ack, false);
+
+		return n;
+	}
+
+	public synchronized int available() throws IOException
+	{
+		if (isClosed)
+			throw new IOException("This SpoolingInputStream is closed.");
+
+		return (int) Math.min(Integer.MAX_VALUE, memoryBytes + (fileWritePos - fileReadPos));
+	}
+
+	/**
+	 * Discards all data and deletes the spill file. Data that arrives
+	 * afterwards is dropped.
+	 */
+	public void close() throws IOException
+	{
+		int ack;
+
+		synchronized (this)
+		{
+			if (isClosed)
+				return;
+
+			isClosed = true;
+			isEOF = true;
+
+			chunks.clear();
+			freeChunks.clear();
+			memoryBytes = 0;
+
+			ack = held;
+			held = 0;
+
+			if (spill != null)
+			{
+				try
+				{
+					raf.close();
+				}
+				finally
+				{
+					spillFile.delete();
+					spill = null;
+				}
+			}
+
+			notifyAll();
+		}
+
+		/* Let the remote side go on */
+
+		if (ack > 0)
+			c.ack(output, ack, false);
+	}
+}
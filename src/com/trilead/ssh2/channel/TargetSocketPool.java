@@ -0,0 +1,263 @@
+package com.trilead.ssh2.channel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+
+/**
+ * TargetSocketPool. Keeps a few sockets connected to the target of a remote
+ * forwarding, so that a forwarded connection does not have to wait for the
+ * TCP handshake with the target.
+ * <p>
+ * Idle sockets are watched by their I/O loop: one that is closed by the
+ * target is replaced right away, and each one is replaced after 30 seconds
+ * in any case (see the <code>idleTimeout</code> property), since the target
+ * may drop idle connections without telling. Data the target sends on an
+ * idle socket (e.g., a server greeting) is kept for the forwarded
+ * connection.
+ */
+class TargetSocketPool
+{
+	private static final long IDLE_TIMEOUT = Long.getLong(
+			TargetSocketPool.class.getName() + ".idleTimeout", 30000).longValue();
+
+	/* Received data kept per idle socket, the socket is no longer watched beyond that */
+
+	private static final int MAX_RECEIVED = 64 * 1024;
+
+	/**
+	 * An idle socket, registered for reading with its loop until it is taken.
+	 */
+	class Entry extends ForwardingEngine.Handler
+	{
+		final ForwardingEngine.IoLoop loop;
+		final SocketChannel sock;
+		final SelectionKey key;
+
+		/* Guarded by the pool */
+
+		private boolean taken = false;
+
+		/* Only accessed by the loop thread */
+
+		private ByteArrayOutputStream received;
+
+		Entry(ForwardingEngine.IoLoop loop, SocketChannel sock, SelectionKey key)
+		{
+			this.loop = loop;
+			this.sock = sock;
+			this.key = key;
+		}
+
+		/**
+		 * Starts watching the socket, invoked on the loop thread.
+		 */
+		void watch() throws IOException
+		{
+			key.attach(this);
+			key.interestOps(SelectionKey.OP_READ);
+
+			loop.schedule(new Runnable()
+			{
+				public void run()
+				{
+					if (remove(Entry.this))
+					{
+						closeSocket();
+						fill();
+					}
+				}
+			}, IDLE_TIMEOUT);
+		}
+
+		void selected(SelectionKey key) throws IOException
+		{
+			synchronized (TargetSocketPool.this)
+			{
+				/* A tunnel takes over, on this thread, right after */
+				if (taken)
+					return;
+			}
+
+			ByteBuffer buf = loop.readBuffer;
+			buf.clear();
+
+			int len = sock.read(buf);
+
+			if (len < 0)
+			{
+				close("Closed by the target");
+				return;
+			}
+
+			if (len == 0)
+				return;
+
+			if (received == null)
+				received = new ByteArrayOutputStream();
+
+			buf.flip();
+			buf.get(loop.readArray, 0, len);
+			received.write(loop.readArray, 0, len);
+
+			if (received.size() >= MAX_RECEIVED)
+				key.interestOps(0);
+		}
+
+		/**
+		 * Returns the data received while idle, invoked on the loop thread.
+		 */
+		byte[] takeReceived()
+		{
+			return (received == null) ? null : received.toByteArray();
+		}
+
+		/**
+		 * The target closed the socket, or the engine is stopping.
+		 */
+		void close(String reason)
+		{
+			closeSocket();
+
+			if (remove(this))
+				fill();
+		}
+
+		void closeSocket()
+		{
+			try
+			{
+				sock.close();
+			}
+			catch (IOException ignore)
+			{
+			}
+		}
+	}
+
+	final ForwardingEngine engine;
+	final ForwardingTarget target;
+	final int size;
+
+	private final LinkedList<Entry> idle = new LinkedList<Entry>();
+	private int connecting = 0;
+	private boolean closed = false;
+
+	TargetSocketPool(ForwardingEngine engine, ForwardingTarget target, int size)
+	{
+		this.engine = engine;
+		this.target = target;
+		this.size = size;
+	}
+
+	/**
+	 * Returns a connected socket, or null if there is none. The socket must
+	 * be handed over to a tunnel on its loop.
+	 */
+	Entry take()
+	{
+		Entry e = null;
+
+		synchronized (this)
+		{
+			if (idle.isEmpty() == false)
+			{
+				e = idle.removeFirst();
+				e.taken = true;
+			}
+		}
+
+		fill();
+
+		return e;
+	}
+
+	/**
+	 * Removes an idle socket.
+	 *
+	 * @return false if it was taken already
+	 */
+	private synchronized boolean remove(Entry e)
+	{
+		if (e.taken)
+			return false;
+
+		e.taken = true;
+		return idle.remove(e);
+	}
+
+	/**
+	 * Starts connecting until there are <code>size</code> sockets (idle or
+	 * being connected).
+	 */
+	void fill()
+	{
+		int missing;
+
+		synchronized (this)
+		{
+			if (closed)
+				return;
+
+			missing = size - idle.size() - connecting;
+
+			if (missing <= 0)
+				return;
+
+			connecting += missing;
+		}
+
+		for (int i = 0; i < missing; i++)
+			engine.connect(null, target, this);
+	}
+
+	/**
+	 * A socket was connected, invoked on its loop thread.
+	 */
+	void connected(Entry e)
+	{
+		synchronized (this)
+		{
+			connecting--;
+
+			if (closed == false)
+			{
+				try
+				{
+					e.watch();
+					idle.addLast(e);
+					return;
+				}
+				catch (IOException ignore)
+				{
+				}
+			}
+		}
+
+		e.closeSocket();
+	}
+
+	synchronized void connectFailed()
+	{
+		/* No immediate retry, the next take() tries again */
+		connecting--;
+	}
+
+	void close()
+	{
+		LinkedList<Entry> toClose;
+
+		synchronized (this)
+		{
+			closed = true;
+			toClose = new LinkedList<Entry>(idle);
+			idle.clear();
+		}
+
+		while (toClose.isEmpty() == false)
+			toClose.removeFirst().closeSocket();
+	}
+}
@@ -120,10 +120,60 @@ public class CipherOutputStream
 		}
 	}
 
+	/*
+	 * Encrypts whole blocks straight from the caller's array into out_buffer,
+	 * bypassing the per-block staging buffers. Only valid if pos == 0.
+	 */
+	private int writeAlignedBlocks(byte[] src, int off, int len) throws IOException
+	{
+		int done = 0;
+
+		while (len - done >= blockSize)
+		{
+			if (BUFF_SIZE - out_buffer_pos < blockSize)
+			{
+				bo.write(out_buffer, 0, out_buffer_pos);
+				out_buffer_pos = 0;
+			}
+
+			try
+			{
+				currentCipher.transformBlock(src, off + done, out_buffer, out_buffer_pos);
+			}
+			catch (Exception e)
+			{
+				throw (IOException) new IOException("Error while encrypting block.").initCause(e);
+			}
+
+			if (recordingOutput) {
+				recordingOutputStream.write(out_buffer, out_buffer_pos, blockSize);
+			}
+
+			out_buffer_pos += blockSize;
+			done += blockSize;
+
+			if (out_buffer_pos >= BUFF_SIZE)
+			{
+				bo.write(out_buffer, 0, BUFF_SIZE);
+				out_buffer_pos = 0;
+			}
+		}
+
+		return done;
+	}
+
 	public void write(byte[] src, int off, int len) throws IOException
 	{
 		while (len > 0)
 		{
+			if (pos == 0 && len >= blockSize)
+			{
+				int done = writeAlignedBlocks(src, off, len);
+				off += done;
+				len -= done;
+				continue;
+			}
+
 			int avail = blockSize - pos;
 			int copy = Math.min(avail, len);
 
@@ -25,7 +25,6 @@ package com.trilead.ssh2.jenkins;
 
 import com.trilead.ssh2.SFTPv3Client;
 import com.trilead.ssh2.Connection;
-import com.trilead.ssh2.SFTPv3FileHandle;
 import com.trilead.ssh2.SFTPv3FileAttributes;
 import com.trilead.ssh2.SFTPException;
 import com.trilead.ssh2.sftp.ErrorCodes;
@@ -77,19 +76,7 @@ public class SFTPClient extends SFTPv3Client {
      * @throws IOException if it is not possible to access to the directory.
      */
     public void mkdirs(String path, int posixPermission) throws IOException {
-        SFTPv3FileAttributes atts = _stat(path);
-        if (atts!=null && atts.isDirectory())
-            return;
-
-        int idx = path.lastIndexOf('/');
-        if (idx>0)
-            mkdirs(path.substring(0,idx), posixPermission);
-
-        try {
-            mkdir(path, posixPermission);
-        } catch (IOException e) {
-            throw new IOException("Failed to mkdir "+path,e);
-        }
+        mkdirsAll(new String[] { path }, posixPermission)[0].check();
     }
 
     /**
@@ -99,8 +86,7 @@ public class SFTPClient extends SFTPv3Client {
      * @throws IOException if it is not possible to access to the file.
      */
     public OutputStream writeToFile(String path) throws IOException {
-        final SFTPv3FileHandle h = createFile(path);
-        return new SFTPOutputStream(h);
+        return super.writeToFile(path);
     }
 
     /**
@@ -110,8 +96,7 @@ public class SFTPClient extends SFTPv3Client {
      * @throws IOException if it is not possible to access to the file.
      */
     public InputStream read(String file) throws IOException {
-        final SFTPv3FileHandle h = openFileRO(file);
-        return new SFTPInputStream(h);
+        return super.read(file);
     }
 
     /**
@@ -125,65 +110,4 @@ public class SFTPClient extends SFTPv3Client {
         atts.permissions = permissions;
         setstat(path, atts);
     }
-
-    private class SFTPOutputStream extends OutputStream {
-        private final SFTPv3FileHandle h;
-        private long offset;
-
-        public SFTPOutputStream(SFTPv3FileHandle h) {
-            this.h = h;
-            offset = 0;
-        }
-
-        public void write(int b) throws IOException {
-            write(new byte[]{(byte)b});
-        }
-
-        @Override
-        public void write(byte[] b, int off, int len) throws IOException {
-            SFTPClient.this.write(h,offset,b,off,len);
-            offset += len;
-        }
-
-        @Override
-        public void close() throws IOException {
-            closeFile(h);
-        }
-    }
-
-    private class SFTPInputStream extends InputStream {
-        private final SFTPv3FileHandle h;
-        private long offset;
-
-        public SFTPInputStream(SFTPv3FileHandle h) {
-            this.h = h;
-            offset = 0;
-        }
-
-        public int read() throws IOException {
-            byte[] b = new byte[1];
-            if(read(b)<0)
-                return -1;
-            return b[0];
-        }
-
-        @Override
-        public int read(byte[] b, int off, int len) throws IOException {
-            int r = SFTPClient.this.read(h,offset,b,off,len);
-            if (r<0)    return -1;
-            offset += r;
-            return r;
-        }
-
-        @Override
-        public long skip(long n) throws IOException {
-            offset += n;
-            return n;
-        }
-
-        @Override
-        public void close() throws IOException {
-            closeFile(h);
-        }
-    }
 }
@@ -0,0 +1,36 @@
+package com.trilead.ssh2.packets;
+
+/**
+ * PacketGlobalCancelStreamLocalForwardRequest. Stops a forwarding requested
+ * with {@link PacketGlobalStreamLocalForwardRequest}
+ * ("cancel-streamlocal-forward@openssh.com").
+ */
+public class PacketGlobalCancelStreamLocalForwardRequest
+{
+	byte[] payload;
+
+	public boolean wantReply;
+	public String socketPath;
+
+	public PacketGlobalCancelStreamLocalForwardRequest(boolean wantReply, String socketPath)
+	{
+		this.wantReply = wantReply;
+		this.socketPath = socketPath;
+	}
+
+	public byte[] getPayload()
+	{
+		if (payload == null)
+		{
+			TypesWriter tw = new TypesWriter();
+			tw.writeByte(Packets.SSH_MSG_GLOBAL_REQUEST);
+
+			tw.writeString("cancel-streamlocal-forward@openssh.com");
+			tw.writeBoolean(wantReply);
+			tw.writeString(socketPath);
+
+			payload = tw.getBytes();
+		}
+		return payload;
+	}
+}
@@ -0,0 +1,35 @@
+package com.trilead.ssh2.packets;
+
+/**
+ * PacketGlobalStreamLocalForwardRequest. Asks the server to listen on a Unix
+ * domain socket ("streamlocal-forward@openssh.com").
+ */
+public class PacketGlobalStreamLocalForwardRequest
+{
+	byte[] payload;
+
+	public boolean wantReply;
+	public String socketPath;
+
+	public PacketGlobalStreamLocalForwardRequest(boolean wantReply, String socketPath)
+	{
+		this.wantReply = wantReply;
+		this.socketPath = socketPath;
+	}
+
+	public byte[] getPayload()
+	{
+		if (payload == null)
+		{
+			TypesWriter tw = new TypesWriter();
+			tw.writeByte(Packets.SSH_MSG_GLOBAL_REQUEST);
+
+			tw.writeString("streamlocal-forward@openssh.com");
+			tw.writeBoolean(wantReply);
+			tw.writeString(socketPath);
+
+			payload = tw.getBytes();
+		}
+		return payload;
+	}
+}
@@ -0,0 +1,46 @@
+package com.trilead.ssh2.packets;
+
+/**
+ * PacketOpenDirectStreamLocalChannel. Opens a channel to a Unix domain socket
+ * on the server ("direct-streamlocal@openssh.com", see the OpenSSH PROTOCOL
+ * file).
+ */
+public class PacketOpenDirectStreamLocalChannel
+{
+	byte[] payload;
+
+	int channelID;
+	int initialWindowSize;
+	int maxPacketSize;
+
+	String socketPath;
+
+	public PacketOpenDirectStreamLocalChannel(int channelID, int initialWindowSize, int maxPacketSize,
+			String socketPath)
+	{
+		this.channelID = channelID;
+		this.initialWindowSize = initialWindowSize;
+		this.maxPacketSize = maxPacketSize;
+		this.socketPath = socketPath;
+	}
+
+	public byte[] getPayload()
+	{
+		if (payload == null)
+		{
+			TypesWriter tw = new TypesWriter();
+
+			tw.writeByte(Packets.SSH_MSG_CHANNEL_OPEN);
+			tw.writeString("direct-streamlocal@openssh.com");
+			tw.writeUINT32(channelID);
+			tw.writeUINT32(initialWindowSize);
+			tw.writeUINT32(maxPacketSize);
+			tw.writeString(socketPath);
+			tw.writeString(""); /* reserved */
+			tw.writeUINT32(0); /* reserved */
+
+			payload = tw.getBytes();
+		}
+		return payload;
+	}
+}
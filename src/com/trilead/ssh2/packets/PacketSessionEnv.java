@@ -0,0 +1,39 @@
+package com.trilead.ssh2.packets;
+
+/**
+ * PacketSessionEnv. Passes an environment variable to the session ("env",
+ * RFC 4254, 6.4). Servers usually only accept a configured set of names.
+ */
+public class PacketSessionEnv
+{
+	byte[] payload;
+
+	public int recipientChannelID;
+	public boolean wantReply;
+	public String name;
+	public String value;
+
+	public PacketSessionEnv(int recipientChannelID, boolean wantReply, String name, String value)
+	{
+		this.recipientChannelID = recipientChannelID;
+		this.wantReply = wantReply;
+		this.name = name;
+		this.value = value;
+	}
+
+	public byte[] getPayload()
+	{
+		if (payload == null)
+		{
+			TypesWriter tw = new TypesWriter();
+			tw.writeByte(Packets.SSH_MSG_CHANNEL_REQUEST);
+			tw.writeUINT32(recipientChannelID);
+			tw.writeString("env");
+			tw.writeBoolean(wantReply);
+			tw.writeString(name);
+			tw.writeString(value);
+			payload = tw.getBytes();
+		}
+		return payload;
+	}
+}
@@ -0,0 +1,252 @@
+package com.trilead.ssh2.transport;
+
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+
+/**
+ * OutboundScheduler. Decides in which order the threads that want to send
+ * channel data over one connection get their turn.
+ * <p>
+ * Without a scheduler, the next packet is sent by whichever thread happens to
+ * win the connection monitor, so a bulk upload on one channel can keep other
+ * channels (e.g., an interactive shell) waiting for a long time. Here, every
+ * sender registers its packet with the {@link Flow} (usually a channel) it
+ * belongs to and the turns are handed out using deficit round-robin: every
+ * flow earns <code>quantum * weight</code> bytes per round, and may send a
+ * packet as soon as it has earned enough bytes for it. As a result, the link
+ * is shared between busy flows in proportion to their weights, and a flow that
+ * sends only now and then never waits for more than one round.
+ * <p>
+ * A channel usually has one sending thread, which asks for the next turn
+ * right after the previous one ended. So that such a flow keeps its credit
+ * and its place in the round in the meantime, a flow only counts as idle
+ * once it has not asked for a turn for a short while (1 ms by default); until
+ * then, the other flows wait for it when it is its turn.
+ * <p>
+ * Only one turn is granted at a time. A granted sender must call
+ * {@link #release()} once its packet has been handed to the transport layer.
+ */
+public class OutboundScheduler
+{
+	private static final int QUANTUM = Integer.getInteger(
+			OutboundScheduler.class.getName() + ".quantum", 16 * 1024).intValue();
+
+	private static final long IDLE_MILLIS = Integer.getInteger(
+			OutboundScheduler.class.getName() + ".idleMillis", 1).intValue();
+
+	/**
+	 * The scheduling state of one sender, e.g., a channel.
+	 */
+	public static class Flow
+	{
+		private volatile int weight = 1;
+
+		/* The following fields are protected by the scheduler */
+
+		int deficit = 0;
+		final LinkedList<Ticket> waiting = new LinkedList<Ticket>();
+		boolean active = false;
+		boolean inTurn = false; /* at the head of the round, credit earned */
+		long idleSince = 0; /* System.nanoTime() of the last release() */
+
+		/**
+		 * Sets the weight of this flow. A flow with weight 2 gets about twice
+		 * the bandwidth of a flow with weight 1 when both have data to send.
+		 *
+		 * @param weight a positive number, the default is 1
+		 */
+		public void setWeight(int weight)
+		{
+			if (weight <= 0)
+				throw new IllegalArgumentException("Invalid weight: " + weight);
+			this.weight = weight;
+		}
+
+		public int getWeight()
+		{
+			return weight;
+		}
+	}
+
+	private static class Ticket
+	{
+		final int size;
+		boolean granted = false;
+
+		Ticket(int size)
+		{
+			this.size = size;
+		}
+	}
+
+	/* Flows that are waiting or were busy just now, in round-robin order */
+
+	private final LinkedList<Flow> active = new LinkedList<Flow>();
+
+	private boolean busy = false;
+
+	private final long idleMillis;
+
+	/* The flow that has the turn, null if it was granted without accounting */
+
+	private Flow holder = null;
+
+	public OutboundScheduler()
+	{
+		this(IDLE_MILLIS);
+	}
+
+	/**
+	 * @param idleMillis after how long without a request a flow counts as idle
+	 */
+	OutboundScheduler(long idleMillis)
+	{
+		this.idleMillis = idleMillis;
+	}
+
+	/**
+	 * Waits until the given flow may send a packet of the given size.
+	 *
+	 * @param f the flow the packet belongs to
+	 * @param size size of the packet (payload)
+	 * @throws InterruptedIOException if the thread is interrupted while waiting
+	 */
+	public synchronized void acquire(Flow f, int size) throws InterruptedIOException
+	{
+		if ((busy == false) && active.isEmpty())
+		{
+			/* Nobody else wants to send, no need to account for this packet */
+			busy = true;
+			return;
+		}
+
+		Ticket t = new Ticket(size);
+
+		if (f.active == false)
+		{
+			f.active = true;
+			f.inTurn = false;
+			f.deficit = 0;
+			active.addLast(f);
+		}
+
+		f.waiting.addLast(t);
+
+		if (busy == false)
+			dispatch();
+
+		while (t.granted == false)
+		{
+			try
+			{
+				/* If nobody got the turn, some flow may be about to go idle */
+
+				if (busy)
+					wait();
+				else
+					wait(idleMillis);
+			}
+			catch (InterruptedException e)
+			{
+				if (t.granted)
+				{
+					release();
+				}
+				else
+				{
+					f.waiting.remove(t);
+					if (f.waiting.isEmpty())
+					{
+						active.remove(f);
+						f.active = false;
+						if (busy == false)
+							dispatch();
+					}
+				}
+				throw new InterruptedIOException();
+			}
+
+			if ((t.granted == false) && (busy == false))
+				dispatch();
+		}
+	}
+
+	/**
+	 * Ends the turn granted by {@link #acquire(Flow, int)}.
+	 */
+	public synchronized void release()
+	{
+		if (holder != null)
+		{
+			holder.idleSince = System.nanoTime();
+			holder = null;
+		}
+
+		busy = false;
+		dispatch();
+	}
+
+	private void dispatch()
+	{
+		while (active.isEmpty() == false)
+		{
+			Flow f = active.getFirst();
+
+			if (f.waiting.isEmpty())
+			{
+				if (System.nanoTime() - f.idleSince < idleMillis * 1000000L)
+				{
+					/* Its sender is probably about to ask for the next turn */
+					return;
+				}
+
+				/* Idle flows do not keep their credit */
+				active.removeFirst();
+				f.active = false;
+				continue;
+			}
+
+			Ticket t = f.waiting.getFirst();
+
+			/* Every visit in the round earns credit */
+
+			if (f.inTurn == false)
+			{
+				f.deficit += QUANTUM * f.getWeight();
+				f.inTurn = true;
+			}
+
+			if (f.deficit < t.size)
+			{
+				/* Not enough credit, next round */
+
+				f.inTurn = false;
+				active.removeFirst();
+				active.addLast(f);
+				continue;
+			}
+
+			f.deficit -= t.size;
+			f.waiting.removeFirst();
+
+			/* Without the credit for another packet of this size, the turn is over */
+
+			if (f.deficit < t.size)
+			{
+				f.inTurn = false;
+				active.removeFirst();
+				active.addLast(f);
+			}
+			else
+			{
+				f.inTurn = true;
+			}
+
+			t.granted = true;
+			busy = true;
+			holder = f;
+			notifyAll();
+			return;
+		}
+	}
+}
@@ -120,6 +120,24 @@ public class TransportConnection
 
 	public void sendMessage(byte[] message, int off, int len, int padd) throws IOException
 	{
+		sendMessage(null, 0, 0, message, off, len, padd);
+	}
+
+	/**
+	 * Sends a message whose payload is the concatenation of <code>header</code>
+	 * and <code>message</code>. Both parts are fed straight into the cipher,
+	 * so callers do not have to assemble the payload in a temporary array first.
+	 */
+	public void sendMessage(byte[] header, int hoff, int hlen, byte[] message, int off, int len) throws IOException
+	{
+		sendMessage(header, hoff, hlen, message, off, len, 0);
+	}
+
+	private void sendMessage(byte[] header, int hoff, int hlen, byte[] message, int off, int len, int padd)
+			throws IOException
+	{
+		final int payload_len = hlen + len;
+
 		if (padd < 4)
 			padd = 4;
 		else if (padd > 64)
@@ -127,7 +145,7 @@ public class TransportConnection
 
 		boolean encryptThenMac = send_mac != null && send_mac.isEncryptThenMac();
 
-		int packet_len = (encryptThenMac ? 1 : 5) + len + padd; /* Minimum allowed padding is 4 */
+		int packet_len = (encryptThenMac ? 1 : 5) + payload_len + padd; /* Minimum allowed padding is 4 */
 
 		int slack = packet_len % send_padd_blocksize;
 
@@ -139,7 +157,7 @@ public class TransportConnection
 		if (packet_len < 16)
 			packet_len = 16;
 
-		int padd_len = packet_len - ((encryptThenMac ? 1 : 5) + len);
+		int padd_len = packet_len - ((encryptThenMac ? 1 : 5) + payload_len);
 
 		if (useRandomPadding)
 		{
@@ -185,6 +203,8 @@ public class TransportConnection
 		} else {
 			cos.write(send_packet_header_buffer, 0, 5);
 		}
+		if (hlen > 0)
+			cos.write(header, hoff, hlen);
 		cos.write(message, off, len);
 		cos.write(send_padding_buffer, 0, padd_len);
 
@@ -199,6 +219,8 @@ public class TransportConnection
 				send_mac.update(encryptedMessage, 0, encryptedMessage.length);
 			} else {
 				send_mac.update(send_packet_header_buffer, 0, 5);
+				if (hlen > 0)
+					send_mac.update(header, hoff, hlen);
 				send_mac.update(message, off, len);
 				send_mac.update(send_padding_buffer, 0, padd_len);
 			}
@@ -211,7 +233,8 @@ public class TransportConnection
 
 		if (log.isEnabled())
 		{
-			log.log(90, "Sent " + Packets.getMessageName(message[off] & 0xff) + " " + len + " bytes payload");
+			int type = (hlen > 0) ? header[hoff] & 0xff : message[off] & 0xff;
+			log.log(90, "Sent " + Packets.getMessageName(type) + " " + payload_len + " bytes payload");
 		}
 
 		send_seq_number++;
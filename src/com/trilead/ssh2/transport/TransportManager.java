@@ -11,6 +11,7 @@ import java.net.Socket;
 import java.net.UnknownHostException;
 import java.security.SecureRandom;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.trilead.ssh2.ConnectionInfo;
 import com.trilead.ssh2.ConnectionMonitor;
@@ -121,7 +122,7 @@ public class TransportManager
 
 				try
 				{
-					sendMessage(msg);
+					sendControlMessage(msg);
 				}
 				catch (IOException e)
 				{
@@ -138,6 +139,17 @@ public class TransportManager
 
 	final Object connectionSemaphore = new Object();
 
+	private final OutboundScheduler outboundScheduler = new OutboundScheduler();
+
+	/*
+	 * Number of control messages (see sendControlMessage) that are waiting for
+	 * the connectionSemaphore. While it is non-zero, other messages hold back.
+	 * Updated without holding the connectionSemaphore, so that a waiting
+	 * control message is noticed even before its sender gets the lock.
+	 */
+
+	private final AtomicInteger pendingControlMessages = new AtomicInteger();
+
 	boolean flagKexOngoing = false;
 
 	Throwable reasonClosedCause = null;
@@ -229,6 +241,16 @@ public class TransportManager
 		this.sourceAddress = sourceAddress;
 	}
 
+	/**
+	 * Returns the scheduler that orders the channel data sent over this connection.
+	 *
+	 * @return the outbound scheduler
+	 */
+	public OutboundScheduler getOutboundScheduler()
+	{
+		return outboundScheduler;
+	}
+
 	public int getPacketOverheadEstimate()
 	{
 		return tc.getPacketOverheadEstimate();
@@ -701,32 +723,106 @@ public class TransportManager
 	}
 
 	public void sendMessage(byte[] msg) throws IOException
+	{
+		sendMessage(null, 0, 0, msg, 0, msg.length);
+	}
+
+	/**
+	 * Sends a small control message (e.g., a window adjust, a reply to a request
+	 * of the peer or a keepalive) ahead of any other message that is waiting
+	 * to be sent, in particular ahead of queued channel data.
+	 * <p>
+	 * Key exchange messages always take precedence, control messages wait for
+	 * an ongoing key exchange to finish, just like every other message.
+	 *
+	 * @param msg the message
+	 * @throws IOException if the connection is (or gets) closed
+	 */
+	public void sendControlMessage(byte[] msg) throws IOException
 	{
 		if (Thread.currentThread() == receiveThread)
 			throw new IOException("Assertion error: sendMessage may never be invoked by the receiver thread!");
 
-		synchronized (connectionSemaphore)
+		pendingControlMessages.incrementAndGet();
+
+		try
 		{
-			while (true)
+			synchronized (connectionSemaphore)
 			{
-                ensureConnected();
-
-                if (flagKexOngoing == false)
-					break;
+				waitForSendPermission(true);
 
 				try
 				{
-					connectionSemaphore.wait(DEFAULT_WAIT_TIMEOUT);
+					tc.sendMessage(msg);
 				}
-				catch (InterruptedException e)
+				catch (IOException e)
+				{
+					close(e, false);
+					throw e;
+				}
+			}
+		}
+		finally
+		{
+			if (pendingControlMessages.decrementAndGet() == 0)
+			{
+				synchronized (connectionSemaphore)
 				{
-					throw new InterruptedIOException();
+					connectionSemaphore.notifyAll();
 				}
 			}
+		}
+	}
+
+	/*
+	 * Must be called while holding the connectionSemaphore.
+	 */
+	private void waitForSendPermission(boolean control) throws IOException
+	{
+		while (true)
+		{
+			ensureConnected();
+
+			if ((flagKexOngoing == false) && (control || (pendingControlMessages.get() == 0)))
+				break;
 
 			try
 			{
-				tc.sendMessage(msg);
+				connectionSemaphore.wait(DEFAULT_WAIT_TIMEOUT);
+			}
+			catch (InterruptedException e)
+			{
+				throw new InterruptedIOException();
+			}
+		}
+	}
+
+	/**
+	 * Sends a message whose payload is <code>header</code> followed by
+	 * <code>msg</code>, without assembling it in a temporary array.
+	 * <p>
+	 * The caller must not modify either array until this method returns.
+	 *
+	 * @param header first part of the payload, may be <code>null</code> if <code>hlen</code> is 0
+	 * @param hoff offset of the first part
+	 * @param hlen length of the first part
+	 * @param msg second part of the payload
+	 * @param off offset of the second part
+	 * @param len length of the second part
+	 * @throws IOException if the connection is (or gets) closed
+	 */
+	public void sendMessage(byte[] header, int hoff, int hlen, byte[] msg, int off, int len) throws IOException
+	{
+		if (Thread.currentThread() == receiveThread)
+			throw new IOException("Assertion error: sendMessage may never be invoked by the receiver thread!");
+
+		synchronized (connectionSemaphore)
+		{
+			waitForSendPermission(false);
+
+			try
+			{
+				tc.sendMessage(header, hoff, hlen, msg, off, len);
 			}
 			catch (IOException e)
 			{
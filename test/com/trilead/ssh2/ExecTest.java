@@ -0,0 +1,52 @@
+package com.trilead.ssh2;
+
+import com.trilead.ssh2.channel.ConnectionRule;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ExecTest {
+    @Rule
+    public ConnectionRule con = new ConnectionRule();
+
+    @Test
+    public void outputAndExitStatus() throws Exception {
+        Connection c = con.getConnection();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(3, c.exec("seq 1 100000; echo done >&2; exit 3", out));
+
+        String text = out.toString("US-ASCII");
+        assertTrue(text.startsWith("1\n2\n"));
+        assertTrue(text.contains("100000\n"));
+        assertTrue(text.contains("done\n"));
+    }
+
+    @Test
+    public void failingOutputOnlyFailsItsOwnSession() throws Exception {
+        Connection c = con.getConnection();
+        OutputStream broken = new OutputStream() {
+            public void write(int b) throws IOException {
+                throw new IOException("broken");
+            }
+        };
+
+        try {
+            c.exec("seq 1 100000", broken);
+            fail("the failing output was not reported");
+        } catch (IOException expected) {
+            assertEquals("broken", expected.getMessage());
+        }
+
+        /* The connection is still usable */
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(0, c.exec("echo hi", out));
+        assertEquals("hi\n", out.toString("US-ASCII"));
+    }
+}
@@ -0,0 +1,64 @@
+package com.trilead.ssh2;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+public class OutputCaptureTest {
+    private static void write(OutputCapture c, String s) {
+        byte[] b = s.getBytes();
+        c.write(b, 0, b.length);
+    }
+
+    @Test
+    public void shortOutputIsKeptCompletely() throws Exception {
+        OutputCapture c = new OutputCapture(10, 10);
+        write(c, "abc\nde");
+        c.close();
+
+        assertThat(c.getText("US-ASCII"), is("abc\nde"));
+        assertThat(c.getTail().length, is(0));
+        assertThat(c.getByteCount(), is(6L));
+        assertThat(c.getLineCount(), is(2L));
+        assertThat(c.getOmittedByteCount(), is(0L));
+        assertTrue(c.isComplete());
+    }
+
+    @Test
+    public void middleIsDiscarded() throws Exception {
+        OutputCapture c = new OutputCapture(4, 5);
+        write(c, "01");
+        write(c, "2345");
+        write(c, "6789abcd");
+        write(c, "e\n");
+        write(c, "f");
+
+        assertThat(new String(c.getHead(), "US-ASCII"), is("0123"));
+        assertThat(new String(c.getTail(), "US-ASCII"), is("cde\nf"));
+        assertThat(c.getByteCount(), is(17L));
+        assertThat(c.getOmittedByteCount(), is(8L));
+        assertThat(c.getLineCount(), is(2L));
+        assertThat(c.getText("US-ASCII"), is("0123\n[... 8 bytes omitted ...]\ncde\nf"));
+        assertFalse(c.isComplete());
+    }
+
+    @Test
+    public void singleBytesWrapAround() throws Exception {
+        OutputCapture c = new OutputCapture(0, 3);
+        for (char ch = 'a'; ch <= 'z'; ch++)
+            c.write(ch);
+
+        assertThat(new String(c.getTail(), "US-ASCII"), is("xyz"));
+        assertThat(c.getLineCount(), is(1L));
+    }
+
+    @Test
+    public void nothingKept() throws Exception {
+        OutputCapture c = new OutputCapture(0, 0);
+        write(c, "a\nb\n");
+
+        assertThat(c.getText("US-ASCII"), is("\n[... 4 bytes omitted ...]\n"));
+        assertThat(c.getLineCount(), is(2L));
+    }
+}
@@ -0,0 +1,111 @@
+package com.trilead.ssh2;
+
+import org.junit.Test;
+
+import com.trilead.ssh2.sftp.ErrorCodes;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+public class SFTPAttributeCacheTest {
+    private static SFTPv3FileAttributes attrs(long size) {
+        SFTPv3FileAttributes a = new SFTPv3FileAttributes();
+        a.size = Long.valueOf(size);
+        return a;
+    }
+
+    @Test
+    public void hitReturnsCopy() {
+        SFTPAttributeCache cache = new SFTPAttributeCache(10, 60000);
+        cache.put("/a", false, attrs(5), cache.generation());
+
+        SFTPv3FileAttributes a = (SFTPv3FileAttributes) cache.get("/a", false);
+        assertThat(a.size, is(Long.valueOf(5)));
+        a.size = Long.valueOf(7);
+
+        assertThat(((SFTPv3FileAttributes) cache.get("/a", false)).size, is(Long.valueOf(5)));
+        assertThat(cache.get("/a", true), is(nullValue()));
+    }
+
+    @Test
+    public void negativeEntries() {
+        SFTPAttributeCache cache = new SFTPAttributeCache(10, 60000);
+        cache.put("/missing", false, new SFTPException("gone", ErrorCodes.SSH_FX_NO_SUCH_FILE), cache.generation());
+
+        Object o = cache.get("/missing", false);
+        assertTrue(o instanceof SFTPException);
+        assertThat(((SFTPException) o).getServerErrorCode(), is(ErrorCodes.SSH_FX_NO_SUCH_FILE));
+    }
+
+    @Test
+    public void invalidationDropsPathParentAndStaleResults() {
+        SFTPAttributeCache cache = new SFTPAttributeCache(10, 60000);
+        long g = cache.generation();
+        cache.put("/d", false, attrs(1), g);
+        cache.put("/d/f", false, attrs(2), g);
+        cache.put("/other", false, attrs(3), g);
+
+        cache.invalidate("/d/f");
+        assertThat(cache.get("/d/f", false), is(nullValue()));
+        assertThat(cache.get("/d", false), is(nullValue()));
+        assertThat(cache.get("/other", false), is(notNullValue()));
+
+        /* A reply to a request sent before the invalidation is not cached */
+        cache.put("/d/f", false, attrs(2), g);
+        assertThat(cache.get("/d/f", false), is(nullValue()));
+    }
+
+    @Test
+    public void statAnsweredBeforeTheModificationCompletesIsDropped() {
+        SFTPAttributeCache cache = new SFTPAttributeCache(10, 60000);
+
+        /* The client is about to send a REMOVE */
+        cache.invalidate("/f");
+
+        /* Another thread stats the file, the server answers before handling the REMOVE */
+        long g = cache.generation();
+        cache.put("/f", false, attrs(1), g);
+
+        /* The REMOVE completes */
+        cache.invalidate("/f");
+        assertThat(cache.get("/f", false), is(nullValue()));
+
+        /* A reply that arrives only now is not cached either */
+        cache.put("/f", false, attrs(1), g);
+        assertThat(cache.get("/f", false), is(nullValue()));
+    }
+
+    @Test
+    public void treeInvalidation() {
+        SFTPAttributeCache cache = new SFTPAttributeCache(10, 60000);
+        long g = cache.generation();
+        cache.put("/d/x", false, attrs(1), g);
+        cache.put("/d/x/y/z", false, attrs(2), g);
+        cache.put("/d/xy", false, attrs(3), g);
+
+        cache.invalidateTree("/d/x");
+        assertThat(cache.get("/d/x/y/z", false), is(nullValue()));
+        assertThat(cache.get("/d/xy", false), is(notNullValue()));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        SFTPAttributeCache cache = new SFTPAttributeCache(2, 60000);
+        long g = cache.generation();
+        cache.put("/a", false, attrs(1), g);
+        cache.put("/b", false, attrs(2), g);
+        cache.get("/a", false);
+        cache.put("/c", false, attrs(3), g);
+
+        assertThat(cache.get("/a", false), is(notNullValue()));
+        assertThat(cache.get("/b", false), is(nullValue()));
+    }
+
+    @Test
+    public void expires() throws InterruptedException {
+        SFTPAttributeCache cache = new SFTPAttributeCache(10, 1);
+        cache.put("/a", false, attrs(1), cache.generation());
+        Thread.sleep(20);
+        assertThat(cache.get("/a", false), is(nullValue()));
+    }
+}
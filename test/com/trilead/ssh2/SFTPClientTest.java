@@ -9,6 +9,7 @@ import org.junit.Test;
 import java.io.InputStream;
 import java.io.OutputStream;
 
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
@@ -40,4 +41,25 @@ public class SFTPClientTest {
         assertTrue(sftpClient.exists(PATH_FILE));
         sftpClient.close();
     }
+
+    @Test
+    public void mkdirsCreatesParentsAndAcceptsExistingDirectories() throws Exception {
+        SFTPClient sftpClient = new SFTPClient(con.getConnection());
+        String dir = TMP_TEST + "/a/b/c";
+
+        sftpClient.mkdirs(dir, POSIX_PERMISSION);
+        assertTrue(sftpClient.stat(dir).isDirectory());
+
+        /* Existing, so none of its parents are looked at */
+        sftpClient.mkdirs(dir, POSIX_PERMISSION);
+        sftpClient.mkdirs("/tmp", POSIX_PERMISSION);
+
+        sftpClient.writeToFile(PATH_FILE).close();
+        SFTPv3BatchResult[] results = sftpClient.mkdirsAll(new String[] { dir + "/d", TMP_TEST + "/a/e", PATH_FILE + "/x" }, POSIX_PERMISSION);
+        assertTrue(results[0].isOK());
+        assertTrue(results[1].isOK());
+        assertFalse(results[2].isOK());
+        assertTrue(sftpClient.stat(dir + "/d").isDirectory());
+        sftpClient.close();
+    }
 }
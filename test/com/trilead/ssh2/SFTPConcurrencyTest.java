@@ -0,0 +1,189 @@
+package com.trilead.ssh2;
+
+import com.trilead.ssh2.channel.ConnectionRule;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SFTPConcurrencyTest {
+    private static final String DIR = "/tmp/concurrency";
+    private static final int POSIX_PERMISSION = 0700;
+
+    @Rule
+    public ConnectionRule con = new ConnectionRule();
+
+    private static byte[] content(int seed, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+            data[i] = (byte) (seed * 31 + i);
+        return data;
+    }
+
+    private static void write(SFTPv3Client client, String path, byte[] data) throws IOException {
+        SFTPv3FileHandle h = client.createFileTruncate(path);
+        for (int off = 0; off < data.length; off += client.getMaxWriteLength())
+            client.write(h, off, data, off, Math.min(client.getMaxWriteLength(), data.length - off));
+        client.closeFile(h);
+    }
+
+    private static byte[] read(SFTPv3Client client, String path, int length) throws IOException {
+        byte[] data = new byte[length];
+        SFTPv3FileHandle h = client.openFileRO(path);
+        int off = 0;
+        while (off < length) {
+            int n = client.read(h, off, data, off, Math.min(client.getMaxReadLength(), length - off));
+            if (n < 0)
+                break;
+            off += n;
+        }
+        client.closeFile(h);
+        assertEquals(length, off);
+        return data;
+    }
+
+    @Test
+    public void requestsFromSeveralThreads() throws Exception {
+        final SFTPv3Client client = new SFTPv3Client(con.getConnection());
+        client.mkdirs(DIR, POSIX_PERMISSION);
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int i = 0; i < 8; i++) {
+            final int seed = i;
+            Thread t = new Thread() {
+                public void run() {
+                    try {
+                        String path = DIR + "/file-" + seed;
+                        byte[] data = content(seed, 100000 + seed * 1000);
+                        for (int round = 0; round < 5; round++) {
+                            write(client, path, data);
+                            assertEquals(data.length, client.stat(path).size.longValue());
+                            assertArrayEquals(data, read(client, path, data.length));
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            t.start();
+            threads.add(t);
+        }
+
+        for (Thread t : threads)
+            t.join();
+
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+
+        client.close();
+    }
+
+    @Test
+    public void interleavedAsyncRequests() throws Exception {
+        SFTPv3Client client = new SFTPv3Client(con.getConnection());
+        client.mkdirs(DIR, POSIX_PERMISSION);
+
+        int chunk = client.getMaxReadLength();
+        byte[] data = content(1, chunk * 10 + 123);
+        write(client, DIR + "/file", data);
+
+        SFTPv3FileHandle h = client.openFileRO(DIR + "/file");
+        List<CompletableFuture<byte[]>> reads = new ArrayList<CompletableFuture<byte[]>>();
+        List<CompletableFuture<SFTPv3FileAttributes>> stats = new ArrayList<CompletableFuture<SFTPv3FileAttributes>>();
+
+        /* Backwards, with other requests in between, so replies can come in any order */
+        for (int i = 10; i >= 0; i--) {
+            reads.add(0, client.readAsync(h, (long) i * chunk, chunk));
+            stats.add(client.statAsync(DIR + "/file"));
+        }
+        CompletableFuture<byte[]> eof = client.readAsync(h, data.length, chunk);
+
+        for (int i = 0; i <= 10; i++) {
+            byte[] part = reads.get(i).get(30, TimeUnit.SECONDS);
+            assertNotNull(part);
+            int off = i * chunk;
+            int expected = Math.min(chunk, data.length - off);
+            assertEquals(expected, part.length);
+            for (int j = 0; j < expected; j++)
+                assertEquals(data[off + j], part[j]);
+        }
+        for (CompletableFuture<SFTPv3FileAttributes> f : stats)
+            assertEquals(data.length, f.get(30, TimeUnit.SECONDS).size.longValue());
+        assertNull(eof.get(30, TimeUnit.SECONDS));
+
+        client.closeFile(h);
+        client.close();
+    }
+
+    @Test(timeout = 60000)
+    public void writeLargerThanTheOutstandingRequests() throws Exception {
+        SFTPv3Client client = new SFTPv3Client(con.getConnection());
+        client.mkdirs(DIR, POSIX_PERMISSION);
+        client.setMaxOutstandingRequests(2);
+
+        byte[] data = content(3, client.getMaxWriteLength() * 10 + 7);
+        byte[] src = data.clone();
+        SFTPv3FileHandle h = client.createFileTruncate(DIR + "/file");
+        CompletableFuture<Void> written = client.writeAsync(h, 0, src, 0, src.length);
+
+        /* The parts not sent yet must not see this */
+        Arrays.fill(src, (byte) 0);
+        written.get(30, TimeUnit.SECONDS);
+        client.closeFile(h);
+
+        assertArrayEquals(data, read(client, DIR + "/file", data.length));
+        client.close();
+    }
+
+    @Test(timeout = 60000)
+    public void requestsFailOnceTheChannelIsClosed() throws Exception {
+        SFTPv3Client client = new SFTPv3Client(con.getConnection());
+        client.mkdirs(DIR, POSIX_PERMISSION);
+        write(client, DIR + "/file", content(2, 1000));
+
+        SFTPv3FileHandle h = client.openFileRO(DIR + "/file");
+        List<CompletableFuture<byte[]>> pending = new ArrayList<CompletableFuture<byte[]>>();
+        for (int i = 0; i < 50; i++)
+            pending.add(client.readAsync(h, 0, 1000));
+
+        client.close();
+
+        /* Whatever was outstanding completes one way or the other, nothing hangs */
+        for (CompletableFuture<byte[]> f : pending) {
+            try {
+                f.get();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+        }
+
+        try {
+            client.stat(DIR + "/file");
+            fail("stat after close");
+        } catch (IOException expected) {
+        }
+
+        try {
+            client.statAsync(DIR + "/file").get();
+            fail("statAsync after close");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+}
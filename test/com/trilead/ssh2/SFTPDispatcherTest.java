@@ -0,0 +1,129 @@
+package com.trilead.ssh2;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SFTPDispatcherTest {
+    private static final int SSH_FXP_STATUS = 101;
+
+    /** Hands out the data a few bytes at a time, like a channel that receives small packets. */
+    private static class ChunkedInputStream extends ByteArrayInputStream {
+        private final int chunk;
+
+        ChunkedInputStream(byte[] data, int chunk) {
+            super(data);
+            this.chunk = chunk;
+        }
+
+        public synchronized int available() {
+            return Math.min(super.available(), chunk);
+        }
+
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, chunk));
+        }
+    }
+
+    private static byte[] reply(int id, int payload) {
+        return new byte[] { 0, 0, 0, 6, (byte) SSH_FXP_STATUS, 0, 0, 0, (byte) id, (byte) payload };
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] p : parts)
+            out.write(p, 0, p.length);
+        return out.toByteArray();
+    }
+
+    private static SFTPDispatcher dispatcher(InputStream replies, ByteArrayOutputStream requests) {
+        return new SFTPDispatcher(replies, new ByteArrayInputStream(new byte[0]), requests, 1024, null);
+    }
+
+    private static CompletableFuture<byte[]> request(SFTPDispatcher d, int id) {
+        return d.request(17, id, new byte[] { 1, 2 }, 0, 2);
+    }
+
+    private static IOException failure(CompletableFuture<byte[]> f) throws Exception {
+        try {
+            f.get(5, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+            return (IOException) e.getCause();
+        }
+        fail("The request did not fail");
+        return null;
+    }
+
+    @Test
+    public void framesRequests() {
+        ByteArrayOutputStream requests = new ByteArrayOutputStream();
+        request(dispatcher(new ByteArrayInputStream(new byte[0]), requests), 7);
+
+        byte[] expected = { 0, 0, 0, 7, 17, 0, 0, 0, 7, 1, 2 };
+        byte[] sent = requests.toByteArray();
+        assertEquals(expected.length, sent.length);
+        for (int i = 0; i < expected.length; i++)
+            assertEquals(expected[i], sent[i]);
+    }
+
+    @Test
+    public void outOfOrderAndFragmentedRepliesReachTheirRequests() throws Exception {
+        InputStream replies = new ChunkedInputStream(concat(reply(3, 33), reply(1, 11), reply(2, 22)), 3);
+        SFTPDispatcher d = dispatcher(replies, new ByteArrayOutputStream());
+
+        CompletableFuture<byte[]> f1 = request(d, 1);
+        CompletableFuture<byte[]> f2 = request(d, 2);
+        CompletableFuture<byte[]> f3 = request(d, 3);
+
+        d.dataAvailable(false);
+
+        assertEquals(11, f1.get(5, TimeUnit.SECONDS)[5]);
+        assertEquals(22, f2.get(5, TimeUnit.SECONDS)[5]);
+        assertEquals(33, f3.get(5, TimeUnit.SECONDS)[5]);
+    }
+
+    @Test
+    public void unknownIdFailsAllRequests() throws Exception {
+        SFTPDispatcher d = dispatcher(new ByteArrayInputStream(reply(9, 0)), new ByteArrayOutputStream());
+        CompletableFuture<byte[]> f = request(d, 1);
+
+        d.dataAvailable(false);
+
+        failure(f);
+        failure(request(d, 2));
+    }
+
+    @Test
+    public void closeFailsPendingAndLaterRequests() throws Exception {
+        SFTPDispatcher d = dispatcher(new ByteArrayInputStream(new byte[0]), new ByteArrayOutputStream());
+        CompletableFuture<byte[]> f = request(d, 1);
+
+        d.closed(null);
+
+        failure(f);
+        failure(request(d, 2));
+    }
+
+    @Test
+    public void eofDeliversTheRepliesReceivedBefore() throws Exception {
+        SFTPDispatcher d = dispatcher(new ByteArrayInputStream(reply(1, 11)), new ByteArrayOutputStream());
+        CompletableFuture<byte[]> f1 = request(d, 1);
+        CompletableFuture<byte[]> f2 = request(d, 2);
+
+        d.eof();
+
+        assertEquals(11, f1.get(5, TimeUnit.SECONDS)[5]);
+        failure(f2);
+    }
+}
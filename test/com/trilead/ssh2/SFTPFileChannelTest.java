@@ -0,0 +1,235 @@
+package com.trilead.ssh2;
+
+import com.trilead.ssh2.channel.ConnectionRule;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class SFTPFileChannelTest {
+    private static final String DIR = "/tmp/channel";
+    private static final String FILE = DIR + "/file";
+    private static final int POSIX_PERMISSION = 0700;
+
+    @Rule
+    public ConnectionRule con = new ConnectionRule();
+
+    private static byte[] content(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+            data[i] = (byte) (i * 17 + i / 257);
+        return data;
+    }
+
+    private static SFTPv3Client client(Connection connection) throws IOException {
+        SFTPv3Client client = new SFTPv3Client(connection);
+        client.mkdirs(DIR, POSIX_PERMISSION);
+        return client;
+    }
+
+    private static void createFile(SFTPv3Client client, byte[] data) throws IOException {
+        SeekableByteChannel ch = client.openChannel(FILE, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        assertEquals(data.length, ch.write(ByteBuffer.wrap(data)));
+        ch.close();
+    }
+
+    private static byte[] readAt(SeekableByteChannel ch, long position, int len) throws IOException {
+        ByteBuffer dst = ByteBuffer.allocate(len);
+        ch.position(position);
+        while (dst.hasRemaining() && ch.read(dst) >= 0) {
+        }
+        assertEquals(position + dst.position(), ch.position());
+        byte[] result = new byte[dst.position()];
+        dst.flip();
+        dst.get(result);
+        return result;
+    }
+
+    private static byte[] slice(byte[] data, int from, int len) {
+        len = Math.max(0, Math.min(len, data.length - from));
+        byte[] result = new byte[len];
+        System.arraycopy(data, from, result, 0, len);
+        return result;
+    }
+
+    @Test
+    public void readsAcrossBlockEdges() throws Exception {
+        SFTPv3Client client = client(con.getConnection());
+        int block = client.getMaxReadLength();
+        byte[] data = content(block * 5 + 100);
+        createFile(client, data);
+        SeekableByteChannel ch = client.openChannel(FILE);
+        assertEquals(data.length, ch.size());
+
+        /* Right before, at and after the edges, and spanning several blocks */
+        assertArrayEquals(slice(data, block - 1, 2), readAt(ch, block - 1, 2));
+        assertArrayEquals(slice(data, block, 1), readAt(ch, block, 1));
+        assertArrayEquals(slice(data, 2 * block - 10, 20), readAt(ch, 2 * block - 10, 20));
+        assertArrayEquals(slice(data, 10, 3 * block), readAt(ch, 10, 3 * block));
+        assertArrayEquals(slice(data, 0, data.length), readAt(ch, 0, data.length));
+
+        /* At and beyond the end */
+        assertArrayEquals(slice(data, data.length - 5, 5), readAt(ch, data.length - 5, 50));
+        ch.position(data.length);
+        assertEquals(-1, ch.read(ByteBuffer.allocate(10)));
+        ch.position(data.length + block * 3);
+        assertEquals(-1, ch.read(ByteBuffer.allocate(10)));
+
+        /* Random, from the cache and not */
+        Random random = new Random(42);
+        for (int i = 0; i < 200; i++) {
+            int position = random.nextInt(data.length);
+            int len = 1 + random.nextInt(block * 2);
+            assertArrayEquals(slice(data, position, len), readAt(ch, position, len));
+        }
+
+        try {
+            ch.write(ByteBuffer.allocate(1));
+            fail("write to a read-only channel");
+        } catch (NonWritableChannelException expected) {
+        }
+        ch.close();
+        client.close();
+    }
+
+    @Test
+    public void sequentialReads() throws Exception {
+        SFTPv3Client client = client(con.getConnection());
+        byte[] data = content(client.getMaxReadLength() * 20 + 3);
+        createFile(client, data);
+        SeekableByteChannel ch = client.openChannel(FILE, StandardOpenOption.READ);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer dst = ByteBuffer.allocate(1000);
+        while (ch.read(dst) >= 0) {
+            out.write(dst.array(), 0, dst.position());
+            dst.clear();
+        }
+        assertArrayEquals(data, out.toByteArray());
+        ch.close();
+        client.close();
+    }
+
+    @Test
+    public void writesReplaceCachedBlocks() throws Exception {
+        SFTPv3Client client = client(con.getConnection());
+        int block = client.getMaxReadLength();
+        byte[] data = content(block * 3);
+        createFile(client, data);
+        SeekableByteChannel ch = client.openChannel(FILE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        assertArrayEquals(data, readAt(ch, 0, data.length));
+
+        /* Over a block edge, and past the end */
+        byte[] patch = new byte[100];
+        ch.position(block - 50);
+        assertEquals(100, ch.write(ByteBuffer.wrap(patch)));
+        System.arraycopy(patch, 0, data, block - 50, 100);
+        ch.position(data.length - 10);
+        ch.write(ByteBuffer.wrap(patch));
+
+        byte[] grown = new byte[data.length + 90];
+        System.arraycopy(data, 0, grown, 0, data.length - 10);
+        assertEquals(grown.length, ch.size());
+        assertArrayEquals(grown, readAt(ch, 0, grown.length));
+        ch.close();
+        client.close();
+    }
+
+    @Test
+    public void truncate() throws Exception {
+        SFTPv3Client client = client(con.getConnection());
+        int block = client.getMaxReadLength();
+        byte[] data = content(block * 3);
+        createFile(client, data);
+        SeekableByteChannel ch = client.openChannel(FILE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        assertArrayEquals(data, readAt(ch, 0, data.length));
+
+        /* In the middle of a cached block */
+        ch.truncate(block + 10);
+        assertEquals(block + 10, ch.size());
+        assertEquals(block + 10, ch.position());
+        assertArrayEquals(slice(data, 0, block + 10), readAt(ch, 0, data.length));
+
+        /* Larger than the file, nothing changes */
+        ch.truncate(data.length);
+        assertEquals(block + 10, ch.size());
+
+        /* Leaves a position before the new end alone */
+        ch.position(5);
+        ch.truncate(100);
+        assertEquals(5, ch.position());
+        assertEquals(100, ch.size());
+        ch.close();
+
+        ch = client.openChannel(FILE);
+        try {
+            ch.truncate(0);
+            fail("truncate a read-only channel");
+        } catch (NonWritableChannelException expected) {
+        }
+        ch.close();
+        client.close();
+    }
+
+    @Test
+    public void append() throws Exception {
+        SFTPv3Client client = client(con.getConnection());
+        int block = client.getMaxReadLength();
+        byte[] data = content(block + 7);
+        createFile(client, data);
+        SeekableByteChannel ch = client.openChannel(FILE, StandardOpenOption.APPEND);
+
+        /* Wherever the position is, writes go to the end */
+        ch.position(3);
+        assertEquals(5, ch.write(ByteBuffer.wrap(new byte[5])));
+        assertEquals(data.length + 5, ch.position());
+        ch.write(ByteBuffer.wrap(content(block * 2)));
+        assertEquals(data.length + 5 + block * 2, ch.size());
+        ch.close();
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(data);
+        expected.write(new byte[5]);
+        expected.write(content(block * 2));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        client.download(FILE, out);
+        assertArrayEquals(expected.toByteArray(), out.toByteArray());
+
+        try {
+            client.openChannel(FILE, StandardOpenOption.APPEND, StandardOpenOption.READ);
+            fail("APPEND with READ");
+        } catch (IllegalArgumentException e) {
+        }
+        client.close();
+    }
+
+    @Test
+    public void closed() throws Exception {
+        SFTPv3Client client = client(con.getConnection());
+        createFile(client, content(10));
+        SeekableByteChannel ch = client.openChannel(FILE);
+        ch.close();
+        ch.close();
+        assertFalse(ch.isOpen());
+
+        try {
+            ch.read(ByteBuffer.allocate(1));
+            fail("read after close");
+        } catch (ClosedChannelException expected) {
+        }
+        client.close();
+    }
+}
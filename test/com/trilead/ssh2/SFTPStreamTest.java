@@ -0,0 +1,157 @@
+package com.trilead.ssh2;
+
+import com.trilead.ssh2.channel.ConnectionRule;
+import com.trilead.ssh2.jenkins.SFTPClient;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class SFTPStreamTest {
+    private static final String DIR = "/tmp/streams";
+    private static final int POSIX_PERMISSION = 0700;
+
+    @Rule
+    public ConnectionRule con = new ConnectionRule();
+
+    private static byte[] content(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+            data[i] = (byte) (i * 13 + i / 509);
+        return data;
+    }
+
+    private static SFTPv3Client client(Connection connection) throws IOException {
+        SFTPv3Client client = new SFTPv3Client(connection);
+        client.mkdirs(DIR, POSIX_PERMISSION);
+        return client;
+    }
+
+    /** Writes in pieces that do not line up with the chunks, reads back in others. */
+    private static void roundTrip(SFTPv3Client client, int length) throws IOException {
+        String path = DIR + "/file-" + length;
+        byte[] data = content(length);
+
+        OutputStream out = client.writeToFile(path);
+        int off = 0;
+        for (int piece = 1; off < length; piece = piece * 3 + 1) {
+            int n = Math.min(piece, length - off);
+            if (n == 1)
+                out.write(data[off]);
+            else
+                out.write(data, off, n);
+            off += n;
+        }
+        out.close();
+        assertEquals(length, client.stat(path).size.longValue());
+
+        InputStream in = client.read(path);
+        byte[] back = new byte[length];
+        off = 0;
+        if (length > 0)
+            back[off++] = (byte) in.read();
+        while (off < length) {
+            int n = in.read(back, off, Math.min(1000, length - off));
+            if (n < 0)
+                break;
+            off += n;
+        }
+        assertEquals(-1, in.read());
+        assertEquals(-1, in.read(new byte[10], 0, 10));
+        in.close();
+        assertArrayEquals(data, back);
+    }
+
+    @Test
+    public void filesSmallerThanOneChunkExactlyOneChunkAndManyChunks() throws Exception {
+        SFTPv3Client client = client(con.getConnection());
+        int chunk = client.getMaxReadLength();
+
+        roundTrip(client, 0);
+        roundTrip(client, 100);
+        roundTrip(client, chunk);
+        roundTrip(client, client.getMaxWriteLength());
+        roundTrip(client, chunk * 30 + 3);
+        client.close();
+    }
+
+    @Test
+    public void skipAndTransferTo() throws Exception {
+        SFTPv3Client client = client(con.getConnection());
+        int chunk = client.getMaxReadLength();
+        byte[] data = content(chunk * 8 + 5);
+        OutputStream out = client.writeToFile(DIR + "/file");
+        out.write(data);
+        out.close();
+
+        InputStream in = client.read(DIR + "/file");
+        assertEquals(data[0], (byte) in.read());
+
+        /* Within the current chunk, then far beyond it */
+        assertEquals(10, in.skip(10));
+        assertEquals(data[11], (byte) in.read());
+        assertEquals(chunk * 3, in.skip(chunk * 3));
+        assertEquals(data[chunk * 3 + 12], (byte) in.read());
+
+        ByteArrayOutputStream rest = new ByteArrayOutputStream();
+        assertEquals(data.length - chunk * 3 - 13, in.transferTo(rest));
+        byte[] tail = new byte[data.length - chunk * 3 - 13];
+        System.arraycopy(data, chunk * 3 + 13, tail, 0, tail.length);
+        assertArrayEquals(tail, rest.toByteArray());
+        assertEquals(-1, in.read());
+        in.close();
+
+        try {
+            in.read();
+            fail("read after close");
+        } catch (IOException expected) {
+        }
+        client.close();
+    }
+
+    @Test
+    public void writeErrorsAreReportedLater() throws Exception {
+        SFTPv3Client client = client(con.getConnection());
+        client.writeToFile(DIR + "/file").close();
+
+        /* The server refuses writes to a handle opened for reading only */
+        OutputStream out = new SFTPOutputStream(client, client.openFileRO(DIR + "/file"), 0, true);
+        out.write(content(100));
+        try {
+            out.close();
+            fail("close did not report the failed write");
+        } catch (IOException expected) {
+        }
+
+        try {
+            out.write(1);
+            fail("write after close");
+        } catch (IOException expected) {
+        }
+        client.close();
+    }
+
+    @Test
+    public void jenkinsClient() throws Exception {
+        SFTPClient client = new SFTPClient(con.getConnection());
+        client.mkdirs(DIR, POSIX_PERMISSION);
+        byte[] data = content(client.getMaxWriteLength() * 2 + 1);
+
+        OutputStream out = client.writeToFile(DIR + "/file");
+        out.write(data);
+        out.close();
+
+        InputStream in = client.read(DIR + "/file");
+        assertArrayEquals(data, IOUtils.toByteArray(in));
+        in.close();
+        client.close();
+    }
+}
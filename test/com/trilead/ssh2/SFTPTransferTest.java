@@ -0,0 +1,86 @@
+package com.trilead.ssh2;
+
+import com.trilead.ssh2.channel.ConnectionRule;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class SFTPTransferTest {
+    private static final String DIR = "/tmp/transfer";
+    private static final int POSIX_PERMISSION = 0700;
+
+    @Rule
+    public ConnectionRule con = new ConnectionRule();
+
+    private static byte[] content(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+            data[i] = (byte) (i * 7 + i / 251);
+        return data;
+    }
+
+    private static void roundTrip(SFTPv3Client client, int length) throws Exception {
+        String path = DIR + "/file-" + length;
+        byte[] data = content(length);
+
+        assertEquals(length, client.upload(new ByteArrayInputStream(data), path));
+        assertEquals(length, client.stat(path).size.longValue());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(length, client.download(path, out));
+        assertArrayEquals(data, out.toByteArray());
+    }
+
+    @Test
+    public void filesSmallerThanOneChunkExactlyOneChunkAndManyChunks() throws Exception {
+        SFTPv3Client client = new SFTPv3Client(con.getConnection());
+        client.mkdirs(DIR, POSIX_PERMISSION);
+        int chunk = client.getMaxReadLength();
+
+        roundTrip(client, 0);
+        roundTrip(client, 1000);
+        roundTrip(client, chunk);
+        roundTrip(client, chunk + 1);
+        roundTrip(client, chunk * 40 + 17);
+        client.close();
+    }
+
+    @Test
+    public void fewOutstandingRequests() throws Exception {
+        SFTPv3Client client = new SFTPv3Client(con.getConnection());
+        client.mkdirs(DIR, POSIX_PERMISSION);
+        client.setMaxOutstandingRequests(1);
+
+        roundTrip(client, client.getMaxReadLength() * 3 + 5);
+        client.close();
+    }
+
+    @Test
+    public void fromAnOffset() throws Exception {
+        SFTPv3Client client = new SFTPv3Client(con.getConnection());
+        client.mkdirs(DIR, POSIX_PERMISSION);
+        int chunk = client.getMaxReadLength();
+        byte[] data = content(chunk * 3);
+        client.upload(new ByteArrayInputStream(data), DIR + "/file");
+
+        /* Overwrite the middle, the rest stays */
+        byte[] middle = new byte[chunk];
+        SFTPv3FileHandle h = client.openFileRW(DIR + "/file");
+        assertEquals(chunk, client.upload(new ByteArrayInputStream(middle), h, chunk));
+        System.arraycopy(middle, 0, data, chunk, chunk);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(chunk * 2 - 10, client.download(h, chunk + 10, out));
+        client.closeFile(h);
+
+        byte[] tail = new byte[chunk * 2 - 10];
+        System.arraycopy(data, chunk + 10, tail, 0, tail.length);
+        assertArrayEquals(tail, out.toByteArray());
+        client.close();
+    }
+}
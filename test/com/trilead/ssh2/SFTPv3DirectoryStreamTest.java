@@ -0,0 +1,122 @@
+package com.trilead.ssh2;
+
+import com.trilead.ssh2.channel.ConnectionRule;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SFTPv3DirectoryStreamTest {
+    private static final String DIR = "/tmp/listing";
+    private static final int POSIX_PERMISSION = 0700;
+
+    /* OpenSSH sends 100 names per SSH_FXP_NAME */
+    private static final int FILES = 350;
+
+    @Rule
+    public ConnectionRule con = new ConnectionRule();
+
+    private SFTPv3Client client() throws Exception {
+        SFTPv3Client client = new SFTPv3Client(con.getConnection());
+        client.mkdirs(DIR, POSIX_PERMISSION);
+        client.mkdir(DIR + "/sub", POSIX_PERMISSION);
+
+        byte[] data = new byte[FILES];
+        for (int i = 0; i < FILES; i++) {
+            SFTPv3FileHandle h = client.createFile(DIR + "/file-" + i);
+            if (i > 0)
+                client.write(h, 0, data, 0, i);
+            client.closeFile(h);
+        }
+        return client;
+    }
+
+    @Test
+    public void directoryLargerThanOneBatch() throws Exception {
+        SFTPv3Client client = client();
+        SFTPv3DirectoryStream dir = client.openDirectoryStream(DIR);
+        Set<String> seen = new HashSet<String>();
+
+        SFTPv3DirectoryStream.Entry e;
+        while ((e = dir.read()) != null) {
+            String name = e.getFilename();
+            assertTrue("twice: " + name, seen.add(name));
+
+            if (name.startsWith("file-")) {
+                assertTrue(e.isRegularFile());
+                assertEquals(Integer.parseInt(name.substring(5)), e.getSize());
+                assertEquals(e.getSize(), e.toAttributes().size.longValue());
+            } else {
+                assertTrue(name, e.isDirectory());
+            }
+        }
+        assertNull(dir.read());
+        dir.close();
+
+        assertEquals(FILES + 3, seen.size());
+        assertTrue(seen.contains("."));
+        assertTrue(seen.contains(".."));
+        assertTrue(seen.contains("sub"));
+
+        assertEquals(FILES + 3, client.ls(DIR).size());
+        client.close();
+    }
+
+    @Test
+    public void iterator() throws Exception {
+        SFTPv3Client client = client();
+        SFTPv3DirectoryStream dir = client.openDirectoryStream(DIR);
+        int n = 0;
+
+        for (SFTPv3DirectoryStream.Entry e : dir) {
+            assertEquals(e.getFilename(), e.toDirectoryEntry().filename);
+            n++;
+        }
+        assertEquals(FILES + 3, n);
+
+        try {
+            dir.iterator();
+            fail("second iterator");
+        } catch (IllegalStateException expected) {
+        }
+        dir.close();
+        client.close();
+    }
+
+    @Test
+    public void closedBeforeTheEnd() throws Exception {
+        SFTPv3Client client = client();
+        SFTPv3DirectoryStream dir = client.openDirectoryStream(DIR);
+
+        for (int i = 0; i < 10; i++)
+            dir.read();
+        dir.close();
+
+        try {
+            dir.read();
+            fail("read after close");
+        } catch (IOException expected) {
+        }
+
+        /* The replies still on their way are dropped, the client goes on */
+        assertTrue(client.stat(DIR + "/sub").isDirectory());
+        client.close();
+    }
+
+    @Test(expected = SFTPException.class)
+    public void missingDirectory() throws Exception {
+        SFTPv3Client client = new SFTPv3Client(con.getConnection());
+        try {
+            client.openDirectoryStream("/tmp/does-not-exist");
+        } finally {
+            client.close();
+        }
+    }
+}
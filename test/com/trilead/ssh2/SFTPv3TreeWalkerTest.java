@@ -0,0 +1,177 @@
+package com.trilead.ssh2;
+
+import com.trilead.ssh2.channel.ConnectionRule;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SFTPv3TreeWalkerTest {
+    private static final String ROOT = "/tmp/tree";
+    private static final int POSIX_PERMISSION = 0700;
+
+    /* More than one SSH_FXP_NAME of OpenSSH */
+    private static final int BIG = 250;
+
+    @Rule
+    public ConnectionRule con = new ConnectionRule();
+
+    /** Records what the walk reported, path -> depth. */
+    private static class Recorder implements SFTPv3TreeWalker.Visitor {
+        final Map<String, Integer> visited = new HashMap<String, Integer>();
+        final List<String> failed = new ArrayList<String>();
+        final Set<String> skip = new HashSet<String>();
+        int terminateAfter = Integer.MAX_VALUE;
+
+        public int visit(String path, SFTPv3DirectoryStream.Entry entry, int depth) {
+            assertFalse("twice: " + path, visited.containsKey(path));
+            visited.put(path, Integer.valueOf(depth));
+            if (visited.size() >= terminateAfter)
+                return SFTPv3TreeWalker.TERMINATE;
+            return skip.contains(path) ? SFTPv3TreeWalker.SKIP_SUBTREE : SFTPv3TreeWalker.CONTINUE;
+        }
+
+        public int failed(String path, IOException e) {
+            failed.add(path);
+            return SFTPv3TreeWalker.CONTINUE;
+        }
+    }
+
+    /**
+     * ROOT/d0 .. d3, each with s0 .. s2 holding f0 .. f4, ROOT/big with BIG
+     * files and ROOT/link pointing back to ROOT.
+     */
+    private static Set<String> createTree(SFTPv3Client client) throws IOException {
+        Set<String> paths = new HashSet<String>();
+        client.mkdirs(ROOT, POSIX_PERMISSION);
+
+        for (int d = 0; d < 4; d++) {
+            String dir = ROOT + "/d" + d;
+            client.mkdir(dir, POSIX_PERMISSION);
+            paths.add(dir);
+            for (int s = 0; s < 3; s++) {
+                String sub = dir + "/s" + s;
+                client.mkdir(sub, POSIX_PERMISSION);
+                paths.add(sub);
+                for (int f = 0; f < 5; f++)
+                    paths.add(createFile(client, sub + "/f" + f));
+            }
+        }
+
+        client.mkdir(ROOT + "/big", POSIX_PERMISSION);
+        paths.add(ROOT + "/big");
+        for (int f = 0; f < BIG; f++)
+            paths.add(createFile(client, ROOT + "/big/f" + f));
+
+        client.createSymlink(ROOT + "/link", ROOT);
+        paths.add(ROOT + "/link");
+        return paths;
+    }
+
+    private static String createFile(SFTPv3Client client, String path) throws IOException {
+        client.closeFile(client.createFile(path));
+        return path;
+    }
+
+    private static int depth(String path) {
+        int n = 0;
+        for (int i = ROOT.length(); i < path.length(); i++)
+            if (path.charAt(i) == '/')
+                n++;
+        return n;
+    }
+
+    private static void assertVisited(Set<String> expected, Recorder r) {
+        assertEquals(expected, r.visited.keySet());
+        for (Map.Entry<String, Integer> e : r.visited.entrySet())
+            assertEquals(e.getKey(), depth(e.getKey()), e.getValue().intValue());
+        assertTrue(r.failed.isEmpty());
+    }
+
+    @Test
+    public void visitsEveryEntryOnceWithoutFollowingLinks() throws Exception {
+        SFTPv3Client client = new SFTPv3Client(con.getConnection());
+        Set<String> expected = createTree(client);
+
+        Recorder r = new Recorder();
+        new SFTPv3TreeWalker(client).walk(ROOT, r);
+        assertVisited(expected, r);
+
+        SFTPv3TreeWalker oneAtATime = new SFTPv3TreeWalker(client);
+        oneAtATime.setMaxParallelism(1);
+        r = new Recorder();
+        oneAtATime.walk(ROOT + "/", r);
+        assertVisited(expected, r);
+        client.close();
+    }
+
+    @Test
+    public void severalClients() throws Exception {
+        SFTPv3Client[] clients = {
+                new SFTPv3Client(con.getConnection()),
+                new SFTPv3Client(con.getConnection())
+        };
+        Set<String> expected = createTree(clients[0]);
+
+        Recorder r = new Recorder();
+        new SFTPv3TreeWalker(clients).walk(ROOT, r);
+        assertVisited(expected, r);
+
+        clients[0].close();
+        clients[1].close();
+    }
+
+    @Test
+    public void skipDepthAndTerminate() throws Exception {
+        SFTPv3Client client = new SFTPv3Client(con.getConnection());
+        Set<String> expected = createTree(client);
+
+        Recorder r = new Recorder();
+        r.skip.add(ROOT + "/d0");
+        r.skip.add(ROOT + "/big");
+        new SFTPv3TreeWalker(client).walk(ROOT, r);
+        assertTrue(r.visited.containsKey(ROOT + "/d0"));
+        assertFalse(r.visited.containsKey(ROOT + "/d0/s0"));
+        assertFalse(r.visited.containsKey(ROOT + "/big/f0"));
+        assertEquals(expected.size() - 3 - 15 - BIG, r.visited.size());
+
+        SFTPv3TreeWalker shallow = new SFTPv3TreeWalker(client);
+        shallow.setMaxDepth(1);
+        r = new Recorder();
+        shallow.walk(ROOT, r);
+        assertEquals(6, r.visited.size());
+
+        r = new Recorder();
+        r.terminateAfter = 10;
+        new SFTPv3TreeWalker(client).walk(ROOT, r);
+        assertEquals(10, r.visited.size());
+        client.close();
+    }
+
+    @Test
+    public void unreadableDirectoryIsReported() throws Exception {
+        SFTPv3Client client = new SFTPv3Client(con.getConnection());
+        Set<String> expected = createTree(client);
+        client.chmod(ROOT + "/d1", 0);
+
+        Recorder r = new Recorder();
+        new SFTPv3TreeWalker(client).walk(ROOT, r);
+
+        assertEquals(1, r.failed.size());
+        assertEquals(ROOT + "/d1", r.failed.get(0));
+        assertEquals(expected.size() - 3 - 15, r.visited.size());
+
+        client.chmod(ROOT + "/d1", POSIX_PERMISSION);
+        client.close();
+    }
+}
@@ -0,0 +1,177 @@
+package com.trilead.ssh2.channel;
+
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.LocalPortForwarder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Forwards through both directions of the non-blocking engine: a local port
+ * forwarded to a port on the server, which is forwarded back to an echo
+ * server next to the test.
+ */
+public class ForwardingEngineTest {
+    private static final int REMOTE_PORT = 20022;
+
+    @Rule
+    public ConnectionRule con = new ConnectionRule();
+
+    private ServerSocket echo;
+    private ExecutorService threads;
+
+    /** Counted down to let the echo server read. */
+    private final CountDownLatch reading = new CountDownLatch(1);
+
+    private LocalPortForwarder forwarder;
+
+    @Before
+    public void setUp() throws Exception {
+        echo = new ServerSocket(0, 200, InetAddress.getLoopbackAddress());
+        threads = Executors.newCachedThreadPool();
+        threads.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                while (true) {
+                    final Socket s = echo.accept();
+                    threads.submit(new Callable<Void>() {
+                        public Void call() throws Exception {
+                            reading.await();
+                            InputStream in = s.getInputStream();
+                            OutputStream out = s.getOutputStream();
+                            byte[] buf = new byte[8192];
+                            int n;
+                            while ((n = in.read(buf)) >= 0)
+                                out.write(buf, 0, n);
+                            s.close();
+                            return null;
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (forwarder != null)
+            forwarder.close();
+        echo.close();
+        threads.shutdownNow();
+    }
+
+    private void forward(int preconnect) throws Exception {
+        Connection c = con.getConnection();
+        c.setNonBlockingForwarding(true);
+        c.requestRemotePortForwarding("127.0.0.1", REMOTE_PORT, "127.0.0.1", echo.getLocalPort(), preconnect);
+        forwarder = c.createLocalPortForwarder(new InetSocketAddress("127.0.0.1", 0), "127.0.0.1", REMOTE_PORT);
+    }
+
+    private Socket connect() throws IOException {
+        Socket s = new Socket("127.0.0.1", forwarder.getLocalPort());
+        s.setSoTimeout(60000);
+        return s;
+    }
+
+    @Test(timeout = 120000)
+    public void slowReaderIsThrottled() throws Exception {
+        forward(0);
+        final byte[] data = new byte[64 * 1024 * 1024];
+        new Random(1).nextBytes(data);
+
+        final Socket s = connect();
+        final AtomicLong written = new AtomicLong();
+        Future<Void> writer = threads.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                OutputStream out = s.getOutputStream();
+                for (int off = 0; off < data.length; off += 65536) {
+                    out.write(data, off, 65536);
+                    written.set(off + 65536);
+                }
+                s.shutdownOutput();
+                return null;
+            }
+        });
+
+        /* Nothing is read at the far end, so the writer has to stall */
+        long stalled;
+        do {
+            stalled = written.get();
+            Thread.sleep(1000);
+        } while (stalled != written.get());
+        assertTrue("buffered " + stalled, stalled < data.length / 2);
+
+        /* Once the far end reads, everything arrives, in order */
+        reading.countDown();
+        ByteArrayOutputStream back = new ByteArrayOutputStream();
+        InputStream in = s.getInputStream();
+        byte[] buf = new byte[65536];
+        int n;
+        while ((n = in.read(buf)) >= 0)
+            back.write(buf, 0, n);
+        writer.get();
+        s.close();
+        assertArrayEquals(data, back.toByteArray());
+    }
+
+    private void manyConnectionsAtOnce(int preconnect) throws Exception {
+        forward(preconnect);
+        reading.countDown();
+
+        /* More than maxPendingConnects (32), the rest waits in the queue */
+        List<Future<String>> results = new ArrayList<Future<String>>();
+        for (int i = 0; i < 100; i++) {
+            final String line = "connection " + i;
+            results.add(threads.submit(new Callable<String>() {
+                public String call() throws Exception {
+                    Socket s = connect();
+                    s.getOutputStream().write((line + "\n").getBytes("US-ASCII"));
+                    s.shutdownOutput();
+                    DataInputStream in = new DataInputStream(s.getInputStream());
+                    byte[] buf = new byte[line.length() + 1];
+                    in.readFully(buf);
+                    assertEquals(-1, in.read());
+                    s.close();
+                    return new String(buf, 0, line.length(), "US-ASCII");
+                }
+            }));
+        }
+
+        for (int i = 0; i < results.size(); i++)
+            assertEquals("connection " + i, results.get(i).get(60, TimeUnit.SECONDS));
+    }
+
+    @Test(timeout = 120000)
+    public void connectQueue() throws Exception {
+        manyConnectionsAtOnce(0);
+    }
+
+    @Test(timeout = 120000)
+    public void connectQueueWithPreconnectedSockets() throws Exception {
+        manyConnectionsAtOnce(4);
+    }
+}
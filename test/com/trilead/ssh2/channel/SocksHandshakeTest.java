@@ -0,0 +1,94 @@
+package com.trilead.ssh2.channel;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SocksHandshakeTest {
+    /** A buffer as the handshake reads into it: position is the end of the data. */
+    private static ByteBuffer received(int... bytes) {
+        ByteBuffer in = ByteBuffer.allocate(262);
+        for (int b : bytes)
+            in.put((byte) b);
+        return in;
+    }
+
+    @Test
+    public void greetingSplitAcrossReads() {
+        ByteBuffer in = received(5);
+        assertEquals(0, SocksHandshake.greetingLength(in));
+
+        in.put((byte) 2);
+        in.put((byte) 2);
+        assertEquals(0, SocksHandshake.greetingLength(in));
+
+        in.put((byte) 0);
+        assertEquals(4, SocksHandshake.greetingLength(in));
+        assertTrue(SocksHandshake.offersNoAuth(in));
+    }
+
+    @Test
+    public void greetingWithoutNoAuth() {
+        ByteBuffer in = received(5, 1, 2);
+        assertEquals(3, SocksHandshake.greetingLength(in));
+        assertFalse(SocksHandshake.offersNoAuth(in));
+    }
+
+    @Test
+    public void connectIPv4() throws Exception {
+        SocksHandshake.Request r = SocksHandshake.parseRequest(received(5, 1, 0, 1, 10, 0, 0, 1, 0x1f, 0x90));
+        assertNotNull(r);
+        assertEquals(0, r.error);
+        assertEquals("10.0.0.1", r.host);
+        assertEquals(8080, r.port);
+        assertEquals(10, r.length);
+    }
+
+    @Test
+    public void connectIPv6() throws Exception {
+        SocksHandshake.Request r = SocksHandshake.parseRequest(received(5, 1, 0, 4,
+                0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 0, 22));
+        assertNotNull(r);
+        assertEquals("0:0:0:0:0:0:0:1", r.host);
+        assertEquals(22, r.port);
+        assertEquals(22, r.length);
+    }
+
+    @Test
+    public void connectDomainSplitAcrossReadsWithTrailingData() throws Exception {
+        ByteBuffer in = received(5, 1, 0, 3, 4, 'h', 'o');
+        assertNull(SocksHandshake.parseRequest(in));
+
+        in.put(new byte[] { 's', 't', 0, 80, 'G', 'E', 'T' });
+        SocksHandshake.Request r = SocksHandshake.parseRequest(in);
+        assertNotNull(r);
+        assertEquals("host", r.host);
+        assertEquals(80, r.port);
+
+        /* The rest belongs to the tunnel */
+        assertEquals(11, r.length);
+        assertEquals(3, in.position() - r.length);
+    }
+
+    @Test
+    public void unsupportedCommandAndAddressType() throws Exception {
+        /* BIND */
+        SocksHandshake.Request r = SocksHandshake.parseRequest(received(5, 2, 0, 1, 10, 0, 0, 1, 0, 80));
+        assertEquals(0x07, r.error);
+
+        r = SocksHandshake.parseRequest(received(5, 1, 0, 9, 0));
+        assertEquals(0x08, r.error);
+    }
+
+    @Test
+    public void versionIsReported() throws Exception {
+        SocksHandshake.Request r = SocksHandshake.parseRequest(received(4, 1, 0, 1, 10, 0, 0, 1, 0, 80));
+        assertEquals(4, r.version);
+    }
+}
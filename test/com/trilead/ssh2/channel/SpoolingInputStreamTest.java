@@ -0,0 +1,116 @@
+package com.trilead.ssh2.channel;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+public class SpoolingInputStreamTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    final Channel c = new Channel(null);
+
+    private static byte[] data(int len, int seed) {
+        byte[] b = new byte[len];
+        for (int i=0; i<len; i++)
+            b[i] = (byte)(i*31+seed);
+        return b;
+    }
+
+    private void receive(byte[] b) throws IOException {
+        synchronized (c) {
+            c.stdout.write(b, 0, b.length);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1000];
+        int len;
+        while ((len=in.read(buf))>=0)
+            out.write(buf,0,len);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void memoryOnly() throws Exception {
+        SpoolingInputStream s = c.spool(false, 100000, null);
+        byte[] a = data(20000, 1);
+        receive(a);
+        c.eof();
+
+        assertThat(s.available(), is(20000));
+        assertArrayEquals(a, readAll(s));
+        assertThat(c.stdout.readable(), is(0));
+    }
+
+    /**
+     * Without a spill directory the surplus is held back until it has been read.
+     */
+    @Test
+    public void holdsBackSurplus() throws Exception {
+        SpoolingInputStream s = c.spool(false, 1000, null);
+        receive(data(3000, 2));
+
+        assertThat(c.stdout.readable(), is(2000));
+
+        byte[] buf = new byte[1500];
+        assertThat(s.read(buf), is(1500));
+        assertThat(c.stdout.readable(), is(500));
+
+        s.close();
+        assertThat(c.stdout.readable(), is(0));
+    }
+
+    /**
+     * The order is kept while data moves between memory and the spill file.
+     */
+    @Test
+    public void spillKeepsOrder() throws Exception {
+        File dir = tmp.newFolder();
+        SpoolingInputStream s = c.spool(false, 10000, dir);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        byte[] buf = new byte[7000];
+
+        for (int i=0; i<20; i++) {
+            byte[] b = data(4000+i*100, i);
+            receive(b);
+            expected.write(b);
+            assertThat(c.stdout.readable(), is(0));
+
+            if (i%3==0)
+                actual.write(buf, 0, s.read(buf));
+        }
+        c.eof();
+        actual.write(readAll(s));
+
+        assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+
+        s.close();
+        assertThat(dir.list().length, is(0));
+    }
+
+    @Test
+    public void dropsDataAfterClose() throws Exception {
+        SpoolingInputStream s = c.spool(false, 10, null);
+        s.close();
+        receive(data(100, 3));
+
+        assertThat(c.stdout.readable(), is(0));
+        try {
+            s.read();
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
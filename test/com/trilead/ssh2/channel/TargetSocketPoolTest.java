@@ -0,0 +1,68 @@
+package com.trilead.ssh2.channel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class TargetSocketPoolTest {
+    private ServerSocket target;
+    private ForwardingEngine engine;
+
+    @Before
+    public void setUp() throws Exception {
+        target = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        target.setSoTimeout(10000);
+        /* The pool only connects, it never touches the channel manager */
+        engine = new ForwardingEngine(null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        engine.stopWorking();
+        target.close();
+    }
+
+    private static byte[] received(final TargetSocketPool.Entry e) throws Exception {
+        final CompletableFuture<byte[]> f = new CompletableFuture<byte[]>();
+        e.loop.execute(new Runnable() {
+            public void run() {
+                f.complete(e.takeReceived());
+            }
+        });
+        return f.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void replacesSocketsClosedByTheTarget() throws Exception {
+        TargetSocketPool pool = engine.createPool(ForwardingTarget.tcp("127.0.0.1", target.getLocalPort()), 1);
+
+        Socket first = target.accept();
+        first.close();
+
+        /* Noticed by the I/O loop, without anybody asking the pool */
+        Socket second = target.accept();
+        second.getOutputStream().write("hello".getBytes("US-ASCII"));
+        second.getOutputStream().flush();
+        Thread.sleep(500);
+
+        TargetSocketPool.Entry e = pool.take();
+        assertNotNull(e);
+        assertEquals("hello", new String(received(e), "US-ASCII"));
+
+        /* Taking a socket starts connecting the next one */
+        target.accept().close();
+
+        e.closeSocket();
+        second.close();
+        pool.close();
+    }
+}
@@ -0,0 +1,83 @@
+package com.trilead.ssh2.transport;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertTrue;
+
+public class OutboundSchedulerTest {
+    private static final int PACKET = 32 * 1024;
+
+    /**
+     * Sends like ChannelManager does: one ticket at a time, asking for the
+     * next turn right after releasing the previous one.
+     */
+    private static Thread sender(final OutboundScheduler scheduler, final OutboundScheduler.Flow flow,
+                                 final AtomicLong sent, final AtomicLong total, final long limit,
+                                 final AtomicBoolean stop) {
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    while (true) {
+                        scheduler.acquire(flow, PACKET);
+                        try {
+                            if (stop.get())
+                                return;
+                            sent.addAndGet(PACKET);
+                            if (total.addAndGet(PACKET) >= limit)
+                                stop.set(true);
+                        } finally {
+                            scheduler.release();
+                        }
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        t.start();
+        return t;
+    }
+
+    private static double ratio(int weightA, int weightB) throws Exception {
+        /* Generous, so that the test does not depend on how quickly the threads get a CPU */
+        OutboundScheduler scheduler = new OutboundScheduler(100);
+        OutboundScheduler.Flow a = new OutboundScheduler.Flow();
+        OutboundScheduler.Flow b = new OutboundScheduler.Flow();
+        a.setWeight(weightA);
+        b.setWeight(weightB);
+
+        AtomicLong sentA = new AtomicLong();
+        AtomicLong sentB = new AtomicLong();
+        AtomicLong total = new AtomicLong();
+        AtomicBoolean stop = new AtomicBoolean();
+
+        /* Hold the link until both senders are queued, so that neither gets a head start */
+
+        scheduler.acquire(new OutboundScheduler.Flow(), PACKET);
+        Thread ta = sender(scheduler, a, sentA, total, 4000L * PACKET, stop);
+        Thread tb = sender(scheduler, b, sentB, total, 4000L * PACKET, stop);
+        Thread.sleep(200);
+        scheduler.release();
+
+        ta.join(60000);
+        tb.join(60000);
+
+        assertTrue(sentB.get() > 0);
+        return (double) sentA.get() / sentB.get();
+    }
+
+    @Test
+    public void weightsDivideTheLink() throws Exception {
+        double r = ratio(4, 1);
+        assertTrue("ratio " + r, r > 3.0 && r < 5.0);
+    }
+
+    @Test
+    public void equalWeightsShareEqually() throws Exception {
+        double r = ratio(1, 1);
+        assertTrue("ratio " + r, r > 0.75 && r < 1.33);
+    }
+}